@@ -0,0 +1,47 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, so that each suite reports its allocation rate (gc.alloc.rate.norm is 
+ * the number of bytes allocated per operation) as well as its throughput. Any JMH command line option may be given, 
+ * e.g. a regular expression of the benchmarks to run:
+ * <pre>
+ * java -jar target/benchmarks.jar StateNodeMapBenchmark -p mappingCount=10000
+ * </pre>
+ * @author Caleb Powell <caleb.powell@gmail.com> 
+ */
+public class BenchmarkRunner {
+
+	public static void main(String[] args) throws Exception {
+		Options options = new OptionsBuilder()
+			.parent(new CommandLineOptions(args))
+			.addProfiler(GCProfiler.class)
+			.build();
+		new Runner(options).run();
+	}
+}
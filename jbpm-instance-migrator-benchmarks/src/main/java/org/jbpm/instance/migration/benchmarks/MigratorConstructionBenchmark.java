@@ -0,0 +1,75 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jbpm.instance.migration.Migration;
+import org.jbpm.instance.migration.Migrator;
+import org.jbpm.instance.migration.shape.ProcessShape;
+import org.jbpm.instance.migration.shape.ProcessShapeGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Construction of a {@link Migrator} from hundreds of Migration revisions, each renaming every wait state of the 
+ * previous revision. This covers ordering the revisions and building and compiling the composite node map.
+ * @author Caleb Powell <caleb.powell@gmail.com> 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MigratorConstructionBenchmark {
+
+	@Param({"10", "100", "500"})
+	public int revisionCount;
+
+	@Param({"5", "50"})
+	public int nodeCount;
+
+	private Migration[] migrations;
+
+	@Setup
+	public void setUp() {
+		ProcessShape shape = new ProcessShape();
+		shape.setNodeCount(nodeCount);
+		shape.setVersionCount(revisionCount + 1);
+		shape.setChurn(1);
+		migrations = new ProcessShapeGenerator("benchmark", shape).createMigrations(0);
+	}
+
+	@Benchmark
+	public Migrator construct() {
+		return new Migrator("benchmark", null, migrations, null);
+	}
+}
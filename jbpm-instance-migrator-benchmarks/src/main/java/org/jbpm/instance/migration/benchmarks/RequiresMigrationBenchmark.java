@@ -0,0 +1,87 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jbpm.graph.exe.ProcessInstance;
+import org.jbpm.instance.migration.MigrationUtils;
+import org.jbpm.instance.migration.ProcessDefinitionCache;
+import org.jbpm.instance.migration.shape.ProcessShape;
+import org.jbpm.instance.migration.shape.ProcessShapeGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link MigrationUtils#requiresMigration(ProcessInstance, org.jbpm.JbpmContext, ProcessDefinitionCache)} on a chain 
+ * of nested sub processes, each of which waits in every branch of a fork. A current tree must 
+ * be walked completely, while an outdated leaf is found by a partial walk.
+ * @author Caleb Powell <caleb.powell@gmail.com> 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequiresMigrationBenchmark {
+
+	@Param({"1", "4", "8"})
+	public int subProcessDepth;
+
+	@Param({"1", "10"})
+	public int forkWidth;
+
+	@Param({"true", "false"})
+	public boolean outdatedLeaf;
+
+	private ProcessDefinitionCache definitionCache;
+	private ProcessInstance processInstance;
+
+	@Setup
+	public void setUp() {
+		ProcessShape shape = new ProcessShape();
+		shape.setForkWidth(forkWidth);
+		shape.setNodeCount(forkWidth * 4);
+		shape.setSubProcessDepth(subProcessDepth);
+		ProcessShapeGenerator generator = new ProcessShapeGenerator("benchmark", shape);
+		definitionCache = new ProcessDefinitionCache();
+		for (int level = 0; level <= subProcessDepth; level++) {
+			boolean outdated = outdatedLeaf && level == subProcessDepth;
+			definitionCache.put(generator.createDefinition(level, outdated ? 2 : 1));
+		}
+		processInstance = generator.createProcessInstance(1);
+	}
+
+	@Benchmark
+	public boolean requiresMigration() {
+		return MigrationUtils.requiresMigration(processInstance, null, definitionCache);
+	}
+}
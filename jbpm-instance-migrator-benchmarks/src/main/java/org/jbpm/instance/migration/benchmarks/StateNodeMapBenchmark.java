@@ -0,0 +1,96 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jbpm.instance.migration.CompiledStateNodeMap;
+import org.jbpm.instance.migration.StateNodeMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Construction of a composite {@link StateNodeMap}, and lookups against its compiled snapshot. Half of the mappings 
+ * extend chains of earlier mappings, which is the case the map's union-find structure exists for.
+ * @author Caleb Powell <caleb.powell@gmail.com> 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StateNodeMapBenchmark {
+
+	@Param({"10", "100", "1000", "10000"})
+	public int mappingCount;
+
+	private String[][] mappings;
+	private CompiledStateNodeMap compiledNodeMap;
+	private String[] lookups;
+
+	@Setup
+	public void setUp() {
+		mappings = new String[mappingCount][];
+		for (int i = 0; i < mappingCount; i++) {
+			mappings[i] = i % 2 == 0 ? new String[] {"node" + i, "current" + i} : new String[] {"current" + (i - 1), "current" + i};
+		}
+		compiledNodeMap = build().compile();
+		lookups = new String[mappingCount];
+		for (int i = 0; i < mappingCount; i++) {
+			lookups[i] = mappings[i][0];
+		}
+	}
+
+	@Benchmark
+	public StateNodeMap build() {
+		StateNodeMap nodeMap = new StateNodeMap();
+		for (int i = 0; i < mappings.length; i++) {
+			nodeMap.addNodeMapping(mappings[i][0], mappings[i][1]);
+		}
+		return nodeMap;
+	}
+
+	@Benchmark
+	public CompiledStateNodeMap buildAndCompile() {
+		return build().compile();
+	}
+
+	@Benchmark
+	public int lookupCompiled() {
+		int found = 0;
+		for (int i = 0; i < lookups.length; i++) {
+			if(compiledNodeMap.containsCurrentNodeName(compiledNodeMap.getCurrentNodeName(lookups[i]))) {
+				found++;
+			}
+		}
+		return found;
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jbpm.graph.exe.ProcessInstance;
+import org.jbpm.instance.migration.MigrationPlan;
+import org.jbpm.instance.migration.Migrator;
+import org.jbpm.instance.migration.shape.ProcessShape;
+import org.jbpm.instance.migration.shape.ProcessShapeGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Mapping the tokens of a ProcessInstance that waits in every branch of a wide fork, where each branch's wait states 
+ * are nested in super states and half of them are renamed by the migration. Both a full migration (which builds the new 
+ * ProcessInstance) and a dry run plan are measured.
+ * @author Caleb Powell <caleb.powell@gmail.com> 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TokenMappingBenchmark {
+
+	@Param({"10", "100", "1000"})
+	public int forkWidth;
+
+	@Param({"0", "5", "20"})
+	public int superStateDepth;
+
+	private Migrator migrator;
+	private ProcessInstance processInstance;
+
+	@Setup
+	public void setUp() {
+		ProcessShape shape = new ProcessShape();
+		shape.setForkWidth(forkWidth);
+		shape.setNodeCount(forkWidth * 4);
+		shape.setSuperStateDepth(superStateDepth);
+		shape.setChurn(0.5);
+		ProcessShapeGenerator generator = new ProcessShapeGenerator("benchmark", shape);
+		migrator = generator.createMigrator(null);
+		migrator.setProcessDefinitionCache(generator.createDefinitionCache());
+		processInstance = generator.createProcessInstance(1);
+	}
+
+	@Benchmark
+	public ProcessInstance migrate() {
+		return migrator.migrate(processInstance);
+	}
+
+	@Benchmark
+	public MigrationPlan plan() {
+		return migrator.plan(processInstance);
+	}
+}
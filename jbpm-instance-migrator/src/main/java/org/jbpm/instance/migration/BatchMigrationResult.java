@@ -0,0 +1,202 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The outcome of a {@link BatchMigrator#run(Iterator)}: the counts of migrated, skipped (already current) and 
+ * failed ProcessInstances, and the throughput of each chunk.
+ * @author Caleb Powell <caleb.powell@gmail.com> 
+ */
+public class BatchMigrationResult {
+
+	private final List chunkResults = new ArrayList();
+	private final List failedProcessInstanceIds = new ArrayList();
+	private int retryCount;
+
+	void addChunkResult(ChunkResult chunkResult) {
+		chunkResults.add(chunkResult);
+	}
+
+	void addFailedProcessInstanceId(Long processInstanceId) {
+		failedProcessInstanceIds.add(processInstanceId);
+	}
+
+	void addRetry() {
+		retryCount++;
+	}
+
+	/**
+	 * Appends the chunks and failures of another result to this one. The chunks are renumbered in the order they are merged.
+	 */
+	void merge(BatchMigrationResult other) {
+		for (Iterator iterator = other.chunkResults.iterator(); iterator.hasNext();) {
+			ChunkResult chunkResult = (ChunkResult) iterator.next();
+			chunkResults.add(new ChunkResult(chunkResults.size() + 1, chunkResult.migratedCount, chunkResult.skippedCount, chunkResult.failedCount, chunkResult.elapsedMillis));
+		}
+		failedProcessInstanceIds.addAll(other.failedProcessInstanceIds);
+		retryCount += other.retryCount;
+	}
+
+	/**
+	 * Records every ProcessInstance of a chunk that could not be completed (e.g. its transaction was rolled back) as failed.
+	 */
+	void addFailedChunk(List processInstanceIds, long elapsedMillis) {
+		failedProcessInstanceIds.addAll(processInstanceIds);
+		chunkResults.add(new ChunkResult(chunkResults.size() + 1, 0, 0, processInstanceIds.size(), elapsedMillis));
+	}
+
+	/**
+	 * @return the {@link ChunkResult} of each chunk, in the order they were migrated.
+	 */
+	public List getChunkResults() {
+		return Collections.unmodifiableList(chunkResults);
+	}
+
+	/**
+	 * @return the ids of the ProcessInstances whose migration threw an exception.
+	 */
+	public List getFailedProcessInstanceIds() {
+		return Collections.unmodifiableList(failedProcessInstanceIds);
+	}
+
+	public int getMigratedCount() {
+		int count = 0;
+		for (Iterator iterator = chunkResults.iterator(); iterator.hasNext();) {
+			count += ((ChunkResult) iterator.next()).getMigratedCount();
+		}
+		return count;
+	}
+
+	public int getSkippedCount() {
+		int count = 0;
+		for (Iterator iterator = chunkResults.iterator(); iterator.hasNext();) {
+			count += ((ChunkResult) iterator.next()).getSkippedCount();
+		}
+		return count;
+	}
+
+	public int getFailedCount() {
+		return failedProcessInstanceIds.size();
+	}
+
+	/**
+	 * @return the number of times a chunk was rolled back and migrated again without a failed ProcessInstance.
+	 */
+	public int getRetryCount() {
+		return retryCount;
+	}
+
+	/**
+	 * @return the number of milliseconds spent migrating the chunks.
+	 */
+	public long getElapsedMillis() {
+		long elapsedMillis = 0;
+		for (Iterator iterator = chunkResults.iterator(); iterator.hasNext();) {
+			elapsedMillis += ((ChunkResult) iterator.next()).getElapsedMillis();
+		}
+		return elapsedMillis;
+	}
+
+	/**
+	 * @return the number of ProcessInstances processed (migrated, skipped or failed) per second.
+	 */
+	public double getProcessInstancesPerSecond() {
+		return ChunkResult.perSecond(getMigratedCount() + getSkippedCount() + getFailedCount(), getElapsedMillis());
+	}
+
+	public String toString() {
+		return "Migrated " + getMigratedCount() + ", skipped " + getSkippedCount() + " and failed " + getFailedCount() + 
+			" process instance(s) in " + chunkResults.size() + " chunk(s) (" + (long) getProcessInstancesPerSecond() + " instances/second)";
+	}
+
+	/**
+	 * The outcome of a single chunk.
+	 */
+	public static class ChunkResult {
+		private final int chunkNumber;
+		private final int migratedCount;
+		private final int skippedCount;
+		private final int failedCount;
+		private final long elapsedMillis;
+
+		ChunkResult(int chunkNumber, int migratedCount, int skippedCount, int failedCount, long elapsedMillis) {
+			this.chunkNumber = chunkNumber;
+			this.migratedCount = migratedCount;
+			this.skippedCount = skippedCount;
+			this.failedCount = failedCount;
+			this.elapsedMillis = elapsedMillis;
+		}
+
+		/**
+		 * @return the (one based) position of this chunk in the batch.
+		 */
+		public int getChunkNumber() {
+			return chunkNumber;
+		}
+
+		public int getMigratedCount() {
+			return migratedCount;
+		}
+
+		public int getSkippedCount() {
+			return skippedCount;
+		}
+
+		public int getFailedCount() {
+			return failedCount;
+		}
+
+		/**
+		 * @return the number of ProcessInstances read in this chunk.
+		 */
+		public int getSize() {
+			return migratedCount + skippedCount + failedCount;
+		}
+
+		/**
+		 * @return the number of milliseconds spent loading, migrating, flushing and committing this chunk.
+		 */
+		public long getElapsedMillis() {
+			return elapsedMillis;
+		}
+
+		/**
+		 * @return the number of ProcessInstances processed per second.
+		 */
+		public double getProcessInstancesPerSecond() {
+			return perSecond(getSize(), elapsedMillis);
+		}
+
+		public String toString() {
+			return "Chunk " + chunkNumber + ": migrated " + migratedCount + ", skipped " + skippedCount + ", failed " + failedCount + 
+				" in " + elapsedMillis + "ms (" + (long) getProcessInstancesPerSecond() + " instances/second)";
+		}
+
+		private static double perSecond(int count, long elapsedMillis) {
+			return count * 1000.0 / Math.max(elapsedMillis, 1);
+		}
+	}
+}
@@ -0,0 +1,342 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.hibernate.Hibernate;
+import org.hibernate.Session;
+import org.jbpm.JbpmContext;
+import org.jbpm.graph.exe.ProcessInstance;
+import org.jbpm.instance.migration.util.JbpmInstanceMigratorLogger;
+
+/**
+ * Migrates a (potentially very large) set of ProcessInstances, identified by id, in chunks. 
+ * 
+ * For each chunk the BatchMigrator loads each ProcessInstance, migrates it (which invokes the Migrator's 
+ * MigrationHandlers), saves the new ProcessInstance, invokes the Migrator's BatchMigrationHandlers once for the 
+ * whole chunk, flushes and commits the session, and then clears the session and the Migrator's caches. Memory use therefore depends on the chunk size, not on the number of 
+ * ProcessInstances migrated. 
+ * <pre>
+ * BatchMigrator batchMigrator = new BatchMigrator(migrator, 200);
+ * BatchMigrationResult result = batchMigrator.run(processInstanceIds.iterator());
+ * </pre>
+ * The Migrator's JbpmContext must have an open transaction. Since many JDBC drivers close open cursors when a 
+ * transaction is committed, the ids should not be scrolled from the same session (e.g. read the ids of an 
+ * {@link OutdatedProcessInstanceFinder} into a list first), or chunks should not be committed.
+ * 
+ * If the Migrator {@link Migrator#setReparentVariables(boolean) re-parents variables}, the variables of a chunk's 
+ * ProcessInstances are moved once the new ProcessInstances have been saved, before the BatchMigrationHandlers are invoked.
+ * 
+ * With a {@link #setTaskInstanceMigrator(TaskInstanceMigrator) task instance migrator}, the open TaskInstances of a 
+ * chunk's ProcessInstances are moved to the new ProcessInstances once they have been saved, before the 
+ * BatchMigrationHandlers are invoked. The MigrationHandlers are then invoked after the move rather than as each 
+ * ProcessInstance is migrated, since a handler that ends the old ProcessInstance would stop its open TaskInstances 
+ * from signalling.
+ * 
+ * With a {@link #setJournal(MigrationJournal) journal}, the outcome of each ProcessInstance is journaled once its 
+ * chunk is committed, and ProcessInstances that the journal records as complete are skipped without being loaded. 
+ * A batch that stopped part way through is resumed by running it again with the same ids and journal.
+ * 
+ * A ProcessInstance that cannot be loaded is reported as failed. A ProcessInstance whose migration fails fails its 
+ * chunk, since its MigrationHandlers may already have changed it: the chunk's transaction is rolled back, the 
+ * ProcessInstance is reported as failed, and the rest of the chunk is migrated again in a new transaction. When chunks 
+ * are not committed by the BatchMigrator (see {@link #setCommitChunks(boolean)}) the transaction belongs to the caller, 
+ * so the failure is thrown instead, as an {@link InvalidMigrationException}, and the caller must roll the transaction back.
+ * @author Caleb Powell <caleb.powell@gmail.com> 
+ */
+public class BatchMigrator {
+
+	public static final int DEFAULT_CHUNK_SIZE = 100;
+
+	private static Logger logger = Logger.getLogger(JbpmInstanceMigratorLogger.class);
+	private final Migrator migrator;
+	private final int chunkSize;
+	private boolean commitChunks = true;
+	private MigrationJournal journal;
+	private final List journalEntries = new ArrayList();
+	private TaskInstanceMigrator taskInstanceMigrator;
+
+	/**
+	 * @param migrator The migrator used to migrate each ProcessInstance. Its JbpmContext is used to load and save them.
+	 */
+	public BatchMigrator(Migrator migrator) {
+		this(migrator, DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * @param migrator The migrator used to migrate each ProcessInstance. Its JbpmContext is used to load and save them.
+	 * @param chunkSize The number of ProcessInstances migrated per transaction.
+	 */
+	public BatchMigrator(Migrator migrator, int chunkSize) {
+		if(chunkSize < 1) {
+			throw new IllegalArgumentException("The chunkSize must be greater than zero.");
+		}
+		this.migrator = migrator;
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Migrates each of the ProcessInstances.
+	 * @param processInstanceIds An Iterator of ProcessInstance ids (as {@link Long}'s).
+	 * @return the counts and throughput of the batch. The ids of ProcessInstances that could not be migrated are 
+	 * reported in the result; exceptions thrown by a BatchMigrationHandler, or while flushing or committing a chunk, 
+	 * are not caught.
+	 * @throws InvalidMigrationException if a ProcessInstance could not be migrated and chunks are not committed by this BatchMigrator.
+	 */
+	public BatchMigrationResult run(Iterator processInstanceIds) {
+		BatchMigrationResult result = new BatchMigrationResult();
+		int chunkNumber = 0;
+		while (processInstanceIds.hasNext()) {
+			List chunk = nextChunk(processInstanceIds);
+			BatchMigrationResult.ChunkResult chunkResult = migrateChunk(++chunkNumber, chunk, result);
+			result.addChunkResult(chunkResult);
+			logger.info(chunkResult);
+		}
+		logger.info(result);
+		return result;
+	}
+
+	private List nextChunk(Iterator processInstanceIds) {
+		List chunk = new ArrayList(chunkSize);
+		while (chunk.size() < chunkSize && processInstanceIds.hasNext()) {
+			chunk.add(processInstanceIds.next());
+		}
+		return chunk;
+	}
+
+	private BatchMigrationResult.ChunkResult migrateChunk(int chunkNumber, List chunk, BatchMigrationResult result) {
+		long start = System.currentTimeMillis();
+		List failedIds = new ArrayList();
+		while (true) {
+			int journalSize = journalEntries.size();
+			try {
+				return migrateChunk(chunkNumber, chunk, failedIds, result, start);
+			} catch (FailedProcessInstanceException e) {
+				if(!commitChunks) {
+					throw e;
+				}
+				rollbackChunk(journalSize);
+				failedIds.add(e.getProcessInstanceId());
+				result.addRetry();
+			}
+		}
+	}
+
+	/**
+	 * Migrates a single chunk without retrying it. The failedIds are reported as failed without being loaded, and the 
+	 * ids of ProcessInstances that cannot be loaded are added to them.
+	 * @throws FailedProcessInstanceException if a ProcessInstance could not be migrated, in which case the chunk's 
+	 * transaction must be rolled back.
+	 */
+	BatchMigrationResult migrateChunk(List chunk, List failedIds, long start) {
+		BatchMigrationResult result = new BatchMigrationResult();
+		result.addChunkResult(migrateChunk(1, chunk, failedIds, result, start));
+		return result;
+	}
+
+	private BatchMigrationResult.ChunkResult migrateChunk(int chunkNumber, List chunk, List failedIds, BatchMigrationResult result, long start) {
+		JbpmContext jbpmContext = migrator.getJbpmContext();
+		migrator.getSession().setPairingTokens(taskInstanceMigrator != null);
+		int migratedCount = 0;
+		int skippedCount = 0;
+		List oldProcessInstances = new ArrayList();
+		List newProcessInstances = new ArrayList();
+		for (Iterator iterator = chunk.iterator(); iterator.hasNext();) {
+			Long processInstanceId = (Long) iterator.next();
+			if(failedIds.contains(processInstanceId)) {
+				continue;
+			}
+			if(journal != null && journal.isCompleted(processInstanceId.longValue())) {
+				logger.debug("Skipping process instance[@id=" + processInstanceId + "]; the journal records it as complete.");
+				skippedCount++;
+				continue;
+			}
+			ProcessInstance processInstance;
+			try {
+				processInstance = jbpmContext.loadProcessInstance(processInstanceId.longValue());
+				Hibernate.initialize(processInstance);
+			} catch (RuntimeException e) {
+				logger.error("Unable to load process instance[@id=" + processInstanceId + "].", e);
+				failedIds.add(processInstanceId);
+				continue;
+			}
+			try {
+				ProcessInstance newProcessInstance = migrator.migrate(processInstance, taskInstanceMigrator == null, false);
+				if(newProcessInstance == processInstance) {
+					skippedCount++;
+					journal(processInstanceId.longValue(), processInstanceId.longValue(), MigrationJournal.SKIPPED);
+				} else {
+					jbpmContext.save(newProcessInstance);
+					journal(processInstanceId.longValue(), newProcessInstance.getId(), MigrationJournal.MIGRATED);
+					oldProcessInstances.add(processInstance);
+					newProcessInstances.add(newProcessInstance);
+					migratedCount++;
+				}
+			} catch (RuntimeException e) {
+				String errorMessage = "Unable to migrate process instance[@id=" + processInstanceId + "]. Its chunk must be rolled back, since the migration may have changed it.";
+				logger.error(errorMessage, e);
+				throw new FailedProcessInstanceException(errorMessage, processInstanceId, e);
+			}
+		}
+		migrator.moveVariables();
+		if(taskInstanceMigrator != null) {
+			taskInstanceMigrator.migrate(oldProcessInstances, newProcessInstances, migrator.getSession());
+			invokeMigrationHandlers(oldProcessInstances, newProcessInstances);
+		}
+		migrator.invokeBatchMigrationHandlers(oldProcessInstances, newProcessInstances);
+		for (Iterator iterator = failedIds.iterator(); iterator.hasNext();) {
+			Long processInstanceId = (Long) iterator.next();
+			result.addFailedProcessInstanceId(processInstanceId);
+			journal(processInstanceId.longValue(), processInstanceId.longValue(), MigrationJournal.FAILED);
+		}
+		endChunk(jbpmContext.getSession());
+		return new BatchMigrationResult.ChunkResult(chunkNumber, migratedCount, skippedCount, failedIds.size(), System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * Invokes the Migrator's MigrationHandlers for each ProcessInstance of the chunk, once its TaskInstances have been moved.
+	 * @throws FailedProcessInstanceException if a MigrationHandler fails, in which case the chunk's transaction must be rolled back.
+	 */
+	private void invokeMigrationHandlers(List oldProcessInstances, List newProcessInstances) {
+		for (int i = 0; i < oldProcessInstances.size(); i++) {
+			ProcessInstance processInstance = (ProcessInstance) oldProcessInstances.get(i);
+			try {
+				migrator.invokeMigrationHandlers(processInstance, (ProcessInstance) newProcessInstances.get(i));
+			} catch (RuntimeException e) {
+				String errorMessage = "Unable to migrate process instance[@id=" + processInstance.getId() + "]. Its chunk must be rolled back, since the migration may have changed it.";
+				logger.error(errorMessage, e);
+				throw new FailedProcessInstanceException(errorMessage, new Long(processInstance.getId()), e);
+			}
+		}
+	}
+
+	private void journal(long oldProcessInstanceId, long newProcessInstanceId, int outcome) {
+		if(journal != null) {
+			journalEntries.add(new MigrationJournal.Entry(oldProcessInstanceId, newProcessInstanceId, outcome));
+		}
+	}
+
+	private void endChunk(Session session) {
+		session.flush();
+		if(commitChunks) {
+			session.getTransaction().commit();
+			writeJournal();
+			session.beginTransaction();
+		}
+		session.clear();
+		migrator.clearCaches();
+	}
+
+	/**
+	 * Rolls back the chunk's transaction and begins a new one, discarding the chunk's journal entries and everything 
+	 * the session and the Migrator hold on to, so that the chunk can be migrated again from the database.
+	 */
+	private void rollbackChunk(int journalSize) {
+		Session session = migrator.getJbpmContext().getSession();
+		session.getTransaction().rollback();
+		journalEntries.subList(journalSize, journalEntries.size()).clear();
+		session.clear();
+		migrator.clearCaches();
+		session.beginTransaction();
+	}
+
+	/**
+	 * Appends the outcomes of the ProcessInstances migrated since the last write to the journal. When chunks are 
+	 * committed by this BatchMigrator, this is done after each commit; otherwise call it after committing the transaction.
+	 * @throws InvalidMigrationException if the journal could not be written.
+	 */
+	public void writeJournal() {
+		if(journal == null || journalEntries.isEmpty()) {
+			return;
+		}
+		try {
+			journal.append(journalEntries);
+			journalEntries.clear();
+		} catch (IOException e) {
+			String errorMessage = "Unable to write to the migration journal '" + journal.getFile() + "'.";
+			logger.error(errorMessage, e);
+			throw new InvalidMigrationException(errorMessage, e);
+		}
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public boolean isCommitChunks() {
+		return commitChunks;
+	}
+
+	/**
+	 * @param commitChunks If false, each chunk is flushed and cleared but the transaction (and {@link #writeJournal() 
+	 * writing the journal}) is left to the caller. Defaults to true.
+	 */
+	public void setCommitChunks(boolean commitChunks) {
+		this.commitChunks = commitChunks;
+	}
+
+	public MigrationJournal getJournal() {
+		return journal;
+	}
+
+	public TaskInstanceMigrator getTaskInstanceMigrator() {
+		return taskInstanceMigrator;
+	}
+
+	/**
+	 * @param taskInstanceMigrator The migrator that moves the open TaskInstances of each chunk to the new 
+	 * ProcessInstances, or null (the default) to leave them on the old ProcessInstances.
+	 */
+	public void setTaskInstanceMigrator(TaskInstanceMigrator taskInstanceMigrator) {
+		this.taskInstanceMigrator = taskInstanceMigrator;
+	}
+
+	/**
+	 * @param journal The journal of the outcome of each ProcessInstance, or null (the default) for no journal.
+	 */
+	public void setJournal(MigrationJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * Thrown when a ProcessInstance of a chunk could not be migrated, so that the chunk is rolled back and migrated 
+	 * again without it.
+	 */
+	static class FailedProcessInstanceException extends InvalidMigrationException {
+
+		private static final long serialVersionUID = 4119826046925093672L;
+		private final Long processInstanceId;
+
+		FailedProcessInstanceException(String message, Long processInstanceId, Throwable cause) {
+			super(message, cause);
+			this.processInstanceId = processInstanceId;
+		}
+
+		Long getProcessInstanceId() {
+			return processInstanceId;
+		}
+	}
+}
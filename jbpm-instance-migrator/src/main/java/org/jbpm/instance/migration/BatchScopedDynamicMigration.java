@@ -0,0 +1,35 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration;
+
+/**
+ * A marker interface for {@link DynamicMigration}s that may be reused for the duration of a batch. A 
+ * {@link Migrator} hands out the same instance for every token migrated with one {@link MigrationSession} until 
+ * the session is cleared (see {@link MigrationSession#clear()}), and chunks migrated concurrently, each with its 
+ * own session, never share an instance. An implementation may therefore cache state that is only valid for the 
+ * current batch, such as lookups made in the current session.
+ * 
+ * @see SharedDynamicMigration
+ * @author Caleb Powell <caleb.powell@gmail.com> 
+ */
+public interface BatchScopedDynamicMigration extends DynamicMigration {
+
+}
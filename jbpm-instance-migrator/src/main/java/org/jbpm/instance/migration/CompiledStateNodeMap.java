@@ -0,0 +1,130 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * An immutable snapshot of a {@link StateNodeMap}, created by {@link StateNodeMap#compile()}.
+ * 
+ * The mappings are held in an open addressing (linear probing) table of interned node names, so the snapshot is 
+ * compact and its lookups never lock. A single instance can be shared by all of the threads migrating a process.
+ * @author Caleb Powell <caleb.powell@gmail.com> 
+ */
+public final class CompiledStateNodeMap extends StateNodeMap {
+
+	private final String[] deprecatedNodeNames;
+	private final String[] currentNodeNamesByDeprecatedNode;
+	private final String[] currentNodeNames;
+	private final int mask;
+	private final Set deprecatedNodeNameSet;
+	private final Set currentNodeNameSet;
+
+	CompiledStateNodeMap(String[] deprecatedNodeNames, String[] currentNodeNames) {
+		int capacity = tableCapacity(deprecatedNodeNames.length);
+		this.mask = capacity - 1;
+		this.deprecatedNodeNames = new String[capacity];
+		this.currentNodeNamesByDeprecatedNode = new String[capacity];
+		this.currentNodeNames = new String[capacity];
+		Set deprecatedNodeNameSet = new HashSet();
+		Set currentNodeNameSet = new HashSet();
+		for (int i = 0; i < deprecatedNodeNames.length; i++) {
+			String deprecatedNodeName = deprecatedNodeNames[i].intern();
+			String currentNodeName = currentNodeNames[i].intern();
+			int slot = probe(this.deprecatedNodeNames, deprecatedNodeName);
+			this.deprecatedNodeNames[slot] = deprecatedNodeName;
+			this.currentNodeNamesByDeprecatedNode[slot] = currentNodeName;
+			this.currentNodeNames[probe(this.currentNodeNames, currentNodeName)] = currentNodeName;
+			deprecatedNodeNameSet.add(deprecatedNodeName);
+			currentNodeNameSet.add(currentNodeName);
+		}
+		this.deprecatedNodeNameSet = Collections.unmodifiableSet(deprecatedNodeNameSet);
+		this.currentNodeNameSet = Collections.unmodifiableSet(currentNodeNameSet);
+		freeze();
+	}
+
+	public String getCurrentNodeName(String deprecatedNodeName) {
+		if(deprecatedNodeName == null) {
+			return null;
+		}
+		return currentNodeNamesByDeprecatedNode[probe(deprecatedNodeNames, deprecatedNodeName)];
+	}
+
+	public boolean containsDeprecatedNodeName(String nodeName) {
+		return nodeName != null && deprecatedNodeNames[probe(deprecatedNodeNames, nodeName)] != null;
+	}
+
+	public boolean containsCurrentNodeName(String currentNodeName) {
+		return currentNodeName != null && currentNodeNames[probe(currentNodeNames, currentNodeName)] != null;
+	}
+
+	public Set deprecatedNodeNames() {
+		return this.deprecatedNodeNameSet;
+	}
+
+	public Collection currentNodeNames() {
+		return this.currentNodeNameSet;
+	}
+
+	/**
+	 * A compiled map is immutable.
+	 * @throws IllegalStateException
+	 */
+	public void addNodeMapping(String deprecatedNodeName, String currentNodeName) {
+		throw new IllegalStateException("Invalid Node Mapping ['"+deprecatedNodeName+"' => '"+currentNodeName+"']! A compiled node map cannot be modified.");
+	}
+
+	/**
+	 * A compiled map is already a snapshot, so it is returned as is.
+	 */
+	public CompiledStateNodeMap compile() {
+		return this;
+	}
+
+	/**
+	 * @return the slot that holds the nodeName, or the empty slot where it would be stored.
+	 */
+	private int probe(String[] table, String nodeName) {
+		int slot = spread(nodeName.hashCode()) & mask;
+		while (table[slot] != null && !table[slot].equals(nodeName)) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private static int spread(int hashCode) {
+		return hashCode ^ (hashCode >>> 16);
+	}
+
+	/**
+	 * @return the smallest power of two that keeps the table at most half full.
+	 */
+	private static int tableCapacity(int size) {
+		int capacity = 2;
+		while (capacity < size * 2) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A thread-safe cache of {@link DynamicMigration}s, keyed by Class name. Each Class is loaded and 
+ * validated once. Whether an instance is reused depends on the DynamicMigration:
+ * <ul>
+ * <li>A {@link SharedDynamicMigration} is instantiated once and shared for the life of the cache.</li>
+ * <li>A {@link BatchScopedDynamicMigration} is instantiated once per batch. A {@link Migrator} keeps these instances in the 
+ * {@link MigrationSession} of the chunk it migrates, which discards them when it is cleared, so concurrent chunks never 
+ * share one. Lookups without a session keep them until {@link #clearBatchScopedInstances()} is invoked.</li>
+ * <li>Any other DynamicMigration is instantiated for each lookup, as it may hold state for the token it mapped.</li>
+ * </ul>
+ * 
+ * @see Migrator#setDynamicMigrationCache(DynamicMigrationCache)
+ * @author Caleb Powell <caleb.powell@gmail.com> 
+ */
+public class DynamicMigrationCache {
+
+	private final Map migrationClasses = new HashMap();
+	private final Map sharedInstances = new HashMap();
+	private final Map batchScopedInstances = new HashMap();
+	private long instantiationCount;
+
+	/**
+	 * 
+	 * @param migrationClassName
+	 * @return A DynamicMigration instance of the named Class.
+	 * @throws InvalidMigrationException if the Class cannot be found, is not a valid DynamicMigration, or cannot be instantiated.
+	 */
+	public DynamicMigration lookup(String migrationClassName) {
+		return lookup(migrationClassName, batchScopedInstances);
+	}
+
+	/**
+	 * Looks up a DynamicMigration, keeping any {@link BatchScopedDynamicMigration} instance in the given map rather 
+	 * than in this cache.
+	 * @param migrationClassName
+	 * @param batchScopedInstances The batch scoped instances of the caller's batch, keyed by Class name.
+	 * @return A DynamicMigration instance of the named Class.
+	 * @see MigrationSession#lookupDynamicMigration(DynamicMigrationCache, String)
+	 */
+	synchronized DynamicMigration lookup(String migrationClassName, Map batchScopedInstances) {
+		Class migrationClass = (Class) migrationClasses.get(migrationClassName);
+		if(migrationClass == null) {
+			migrationClass = MigrationUtils.loadDynamicMigrationClass(migrationClassName);
+			migrationClasses.put(migrationClassName, migrationClass);
+		}
+		
+		if(SharedDynamicMigration.class.isAssignableFrom(migrationClass)) {
+			return lookupInstance(sharedInstances, migrationClass);
+		} else if(BatchScopedDynamicMigration.class.isAssignableFrom(migrationClass)) {
+			return lookupInstance(batchScopedInstances, migrationClass);
+		}
+		return instantiate(migrationClass);
+	}
+
+	/**
+	 * Discards the {@link BatchScopedDynamicMigration} instances handed out by {@link #lookup(String)}. The next lookup 
+	 * of each will create a new instance. The instances held by a {@link MigrationSession} are not affected.
+	 */
+	public synchronized void clearBatchScopedInstances() {
+		batchScopedInstances.clear();
+	}
+
+	/**
+	 * @return the number of DynamicMigration instances this cache has created.
+	 */
+	public synchronized long getInstantiationCount() {
+		return instantiationCount;
+	}
+
+	private DynamicMigration lookupInstance(Map instances, Class migrationClass) {
+		DynamicMigration dynamicMigration = (DynamicMigration) instances.get(migrationClass.getName());
+		if(dynamicMigration == null) {
+			dynamicMigration = instantiate(migrationClass);
+			instances.put(migrationClass.getName(), dynamicMigration);
+		}
+		return dynamicMigration;
+	}
+
+	private DynamicMigration instantiate(Class migrationClass) {
+		instantiationCount++;
+		return MigrationUtils.instantiateDynamicMigration(migrationClass);
+	}
+}
@@ -0,0 +1,316 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.jbpm.graph.def.Node;
+import org.jbpm.graph.def.ProcessDefinition;
+import org.jbpm.graph.def.SuperState;
+import org.jbpm.instance.migration.util.JbpmInstanceMigratorLogger;
+
+/**
+ * Migrates ProcessInstances to the latest version of their ProcessDefinition in place, without loading them. 
+ * 
+ * Most new versions of a ProcessDefinition only change actions or add nodes. The ProcessInstances of such a version 
+ * do not need the new ProcessInstance (and the copies of the variables and tokens) that a {@link Migrator} builds; 
+ * it is enough to point each ProcessInstance at the latest ProcessDefinition and each of its tokens at the node the 
+ * Migrator's {@link StateNodeMap} maps it to. An InPlaceMigrator does this with set-based HQL updates: for each 
+ * 'in' list of at most {@link #getBatchSize()} ids, one update of the tokens per occupied source node, one update of the 
+ * ProcessInstances and one of their TaskMgmtInstances. 
+ * 
+ * A ProcessInstance is migrated in place only if each of its tokens is in a node that maps to a node of the latest 
+ * ProcessDefinition without a {@link DynamicMigration}, none of its tokens has a sub process instance, and it has 
+ * no open TaskInstance, SwimlaneInstance or Job (a timer or an asynchronous continuation). Those rows refer to the 
+ * tasks, swimlanes, nodes and actions of the old ProcessDefinition, so re-pointing the ProcessInstance alone would 
+ * leave it half on each version. The ids of the other outdated ProcessInstances are returned, to be migrated by the Migrator:
+ * <pre>
+ * List remainingIds = new InPlaceMigrator(migrator).migrate(processInstanceIds);
+ * new BatchMigrator(migrator).run(remainingIds.iterator());
+ * </pre>
+ * The ProcessInstances keep their ids, variables, ended task instances and the dates their tokens entered their nodes, 
+ * no 'migrationMemo' variable is created and the Migrator's MigrationHandlers are not invoked. The updates bypass 
+ * the Hibernate session, so ProcessInstances that were loaded before the migration are stale; clear the session afterwards.
+ * @see Migrator
+ * @author Caleb Powell <caleb.powell@gmail.com> 
+ */
+public class InPlaceMigrator {
+
+	/**
+	 * The default maximum number of ids bound to a single 'in' clause.
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 500;
+
+	private static final String PROCESS_DEFINITIONS_QUERY = 
+		"select pi.id, pi.processDefinition.id from org.jbpm.graph.exe.ProcessInstance as pi " +
+		"where pi.id in (:processInstanceIds)";
+
+	private static final String OWNERS_OF_SUB_PROCESSES_QUERY = 
+		"select distinct token.processInstance.id from org.jbpm.graph.exe.Token as token " +
+		"where token.processInstance.id in (:processInstanceIds) " +
+		"and token.subProcessInstance is not null";
+
+	private static final String OWNERS_OF_OPEN_TASK_INSTANCES_QUERY = 
+		"select distinct ti.processInstance.id from org.jbpm.taskmgmt.exe.TaskInstance as ti " +
+		"where ti.processInstance.id in (:processInstanceIds) " +
+		"and ti.end is null";
+
+	private static final String OWNERS_OF_SWIMLANE_INSTANCES_QUERY = 
+		"select distinct si.taskMgmtInstance.processInstance.id from org.jbpm.taskmgmt.exe.SwimlaneInstance as si " +
+		"where si.taskMgmtInstance.processInstance.id in (:processInstanceIds)";
+
+	private static final String OWNERS_OF_JOBS_QUERY = 
+		"select distinct job.processInstance.id from org.jbpm.job.Job as job " +
+		"where job.processInstance.id in (:processInstanceIds)";
+
+	private static final String OCCUPIED_NODES_QUERY = 
+		"select distinct token.node.id from org.jbpm.graph.exe.Token as token " +
+		"where token.processInstance.id in (:processInstanceIds)";
+
+	private static final String OWNERS_OF_TOKENS_IN_NODES_QUERY = 
+		"select distinct token.processInstance.id from org.jbpm.graph.exe.Token as token " +
+		"where token.processInstance.id in (:processInstanceIds) " +
+		"and token.node.id in (:nodeIds)";
+
+	private static final String UPDATE_TOKEN_NODES = 
+		"update org.jbpm.graph.exe.Token set node = :targetNode " +
+		"where node.id = :sourceNodeId " +
+		"and processInstance.id in (:processInstanceIds)";
+
+	private static final String UPDATE_PROCESS_DEFINITIONS = 
+		"update org.jbpm.graph.exe.ProcessInstance set processDefinition = :targetDefinition " +
+		"where id in (:processInstanceIds)";
+
+	private static final String UPDATE_TASK_MGMT_DEFINITIONS = 
+		"update org.jbpm.taskmgmt.exe.TaskMgmtInstance set taskMgmtDefinition = :taskMgmtDefinition " +
+		"where processInstance.id in (:processInstanceIds)";
+
+	private static Logger logger = Logger.getLogger(JbpmInstanceMigratorLogger.class);
+	private final Migrator migrator;
+	private final MigrationSession session;
+	private int batchSize = DEFAULT_BATCH_SIZE;
+
+	/**
+	 * @param migrator The migrator whose {@link StateNodeMap} maps the tokens. Its JbpmContext is used to run the updates.
+	 */
+	public InPlaceMigrator(Migrator migrator) {
+		this(migrator, migrator.getSession());
+	}
+
+	/**
+	 * @param migrator The migrator whose {@link StateNodeMap} maps the tokens.
+	 * @param session The session of the calling thread, whose JbpmContext is used to run the updates.
+	 */
+	public InPlaceMigrator(Migrator migrator, MigrationSession session) {
+		this.migrator = migrator;
+		this.session = session;
+	}
+
+	/**
+	 * Migrates each of the ProcessInstances that can be migrated in place. ProcessInstances of the latest version 
+	 * are left alone. The JbpmContext must have an open transaction, which is left to the caller to commit.
+	 * @param processInstanceIds The ids (as {@link Long}'s) of ProcessInstances of this migrator's ProcessDefinition.
+	 * @return the ids of the outdated ProcessInstances that could not be migrated in place, in ascending order.
+	 * @throws IllegalArgumentException if a ProcessInstance belongs to another ProcessDefinition. 
+	 */
+	public List migrate(List processInstanceIds) {
+		Session hibernateSession = session.getJbpmContext().getSession();
+		List ineligibleIds = new ArrayList();
+		for (int from = 0; from < processInstanceIds.size(); from += batchSize) {
+			List ids = processInstanceIds.subList(from, Math.min(from + batchSize, processInstanceIds.size()));
+			migrateBatch(hibernateSession, ids, ineligibleIds);
+		}
+		Collections.sort(ineligibleIds);
+		return ineligibleIds;
+	}
+
+	private void migrateBatch(Session hibernateSession, List ids, List ineligibleIds) {
+		Set blockedIds = new HashSet(query(hibernateSession, OWNERS_OF_SUB_PROCESSES_QUERY, ids, null));
+		blockedIds.addAll(query(hibernateSession, OWNERS_OF_OPEN_TASK_INSTANCES_QUERY, ids, null));
+		blockedIds.addAll(query(hibernateSession, OWNERS_OF_SWIMLANE_INSTANCES_QUERY, ids, null));
+		blockedIds.addAll(query(hibernateSession, OWNERS_OF_JOBS_QUERY, ids, null));
+		Map idsByDefinition = groupByProcessDefinition(hibernateSession, ids);
+		
+		List targetDefinitions = new ArrayList();
+		for (Iterator iterator = idsByDefinition.keySet().iterator(); iterator.hasNext();) {
+			ProcessDefinition sourceDefinition = (ProcessDefinition) hibernateSession.load(ProcessDefinition.class, (Long) iterator.next());
+			if(!migrator.willMigrate(sourceDefinition)) {
+				String errorMessage = "The in place migrator cannot migrate a processInstance of the "+sourceDefinition.getName()+" ProcessDefinition!";
+				logger.error(errorMessage);
+				throw new IllegalArgumentException(errorMessage);
+			}
+			targetDefinitions.add(new ProcessDefinition[] {sourceDefinition, session.findLatestProcessDefinition(sourceDefinition.getName())});
+		}
+		
+		for (Iterator iterator = targetDefinitions.iterator(); iterator.hasNext();) {
+			ProcessDefinition[] definitions = (ProcessDefinition[]) iterator.next();
+			if(definitions[0].getVersion() >= definitions[1].getVersion()) {
+				continue;
+			}
+			List definitionIds = (List) idsByDefinition.get(new Long(definitions[0].getId()));
+			List eligibleIds = new ArrayList();
+			for (Iterator idIterator = definitionIds.iterator(); idIterator.hasNext();) {
+				Object id = idIterator.next();
+				if(blockedIds.contains(id)) {
+					ineligibleIds.add(id);
+				} else {
+					eligibleIds.add(id);
+				}
+			}
+			if(!eligibleIds.isEmpty()) {
+				migrateInPlace(hibernateSession, definitions[0], definitions[1], eligibleIds, ineligibleIds);
+			}
+		}
+	}
+
+	/**
+	 * @return the ids of the batch, grouped (in order) by the id of their ProcessDefinition. 
+	 */
+	private Map groupByProcessDefinition(Session hibernateSession, List ids) {
+		Map idsByDefinition = new LinkedHashMap();
+		for (Iterator iterator = query(hibernateSession, PROCESS_DEFINITIONS_QUERY, ids, null).iterator(); iterator.hasNext();) {
+			Object[] row = (Object[]) iterator.next();
+			Long definitionId = new Long(((Number) row[1]).longValue());
+			List definitionIds = (List) idsByDefinition.get(definitionId);
+			if(definitionIds == null) {
+				definitionIds = new ArrayList();
+				idsByDefinition.put(definitionId, definitionIds);
+			}
+			definitionIds.add(new Long(((Number) row[0]).longValue()));
+		}
+		return idsByDefinition;
+	}
+
+	/**
+	 * Resolves each node occupied by a token of the ProcessInstances, moves the ProcessInstances with a token in a node 
+	 * that cannot be resolved without a {@link DynamicMigration} to the ineligibleIds, and updates the rest.
+	 */
+	private void migrateInPlace(Session hibernateSession, ProcessDefinition sourceDefinition, ProcessDefinition targetDefinition, List ids, List ineligibleIds) {
+		NodeResolutionTable table = session.getNodeResolutionTable(sourceDefinition, targetDefinition, migrator.getStateNodeMap());
+		Map sourceNodes = new HashMap();
+		collectNodes(sourceDefinition.getNodes(), sourceNodes);
+		
+		Map targetNodes = new LinkedHashMap();
+		List unresolvedNodeIds = new ArrayList();
+		for (Iterator iterator = query(hibernateSession, OCCUPIED_NODES_QUERY, ids, null).iterator(); iterator.hasNext();) {
+			Number nodeId = (Number) iterator.next();
+			if(nodeId == null) {
+				continue;
+			}
+			Long sourceNodeId = new Long(nodeId.longValue());
+			Node sourceNode = (Node) sourceNodes.get(sourceNodeId);
+			NodeResolutionTable.Entry entry = sourceNode == null ? null : table.lookup(sourceNode);
+			if(entry == null || entry.isDynamic() || entry.getTargetNode() == null) {
+				unresolvedNodeIds.add(sourceNodeId);
+			} else {
+				targetNodes.put(sourceNodeId, entry.getTargetNode());
+			}
+		}
+		
+		if(!unresolvedNodeIds.isEmpty()) {
+			List blockedIds = query(hibernateSession, OWNERS_OF_TOKENS_IN_NODES_QUERY, ids, unresolvedNodeIds);
+			for (Iterator iterator = blockedIds.iterator(); iterator.hasNext();) {
+				Long id = new Long(((Number) iterator.next()).longValue());
+				if(ids.remove(id)) {
+					ineligibleIds.add(id);
+				}
+			}
+			if(ids.isEmpty()) {
+				return;
+			}
+		}
+		
+		int tokenCount = 0;
+		for (Iterator iterator = targetNodes.entrySet().iterator(); iterator.hasNext();) {
+			Map.Entry nodes = (Map.Entry) iterator.next();
+			Query update = hibernateSession.createQuery(UPDATE_TOKEN_NODES);
+			update.setEntity("targetNode", nodes.getValue());
+			update.setLong("sourceNodeId", ((Long) nodes.getKey()).longValue());
+			update.setParameterList("processInstanceIds", ids);
+			tokenCount += update.executeUpdate();
+		}
+		
+		Query update = hibernateSession.createQuery(UPDATE_PROCESS_DEFINITIONS);
+		update.setEntity("targetDefinition", targetDefinition);
+		update.setParameterList("processInstanceIds", ids);
+		int processInstanceCount = update.executeUpdate();
+		
+		if(targetDefinition.getTaskMgmtDefinition() != null) {
+			update = hibernateSession.createQuery(UPDATE_TASK_MGMT_DEFINITIONS);
+			update.setEntity("taskMgmtDefinition", targetDefinition.getTaskMgmtDefinition());
+			update.setParameterList("processInstanceIds", ids);
+			update.executeUpdate();
+		}
+		logger.info("Migrated " + processInstanceCount + " " + targetDefinition.getName() + " process instance(s) and " + tokenCount + 
+				" token(s) in place from version [" + sourceDefinition.getVersion() + "] to [" + targetDefinition.getVersion() + "].");
+	}
+
+	/**
+	 * Adds the nodes (and the nodes nested in SuperStates) to the map, keyed by id.
+	 */
+	private void collectNodes(List nodes, Map nodesById) {
+		for (int i = 0; nodes != null && i < nodes.size(); i++) {
+			Node node = (Node) nodes.get(i);
+			nodesById.put(new Long(node.getId()), node);
+			if(node instanceof SuperState) {
+				collectNodes(((SuperState) node).getNodes(), nodesById);
+			}
+		}
+	}
+
+	private List query(Session hibernateSession, String hql, List processInstanceIds, List nodeIds) {
+		Query query = hibernateSession.createQuery(hql);
+		query.setParameterList("processInstanceIds", processInstanceIds);
+		if(nodeIds != null) {
+			query.setParameterList("nodeIds", nodeIds);
+		}
+		return query.list();
+	}
+
+	/**
+	 * @return the maximum number of ids bound to a single 'in' clause.
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * @param batchSize The maximum number of ids bound to a single 'in' clause. Keep it below your database's limit 
+	 * (e.g. 1000 for Oracle).
+	 */
+	public void setBatchSize(int batchSize) {
+		if(batchSize < 1) {
+			throw new IllegalArgumentException("The batchSize must be greater than zero.");
+		}
+		this.batchSize = batchSize;
+	}
+}
@@ -37,7 +37,54 @@ public class MigrationComparator implements Comparator, Serializable {
 	public int compare(Object o1, Object o2) {
 		Migration migration1 = (Migration) o1;
 		Migration migration2 = (Migration) o2;
-		return migration1.getClass().getName().compareTo(migration2.getClass().getName());
+		return compareClassNames(migration1.getClass().getName(), migration2.getClass().getName());
+	}
+
+	/**
+	 * Compares two Migration Class names. Names that share a base name are ordered by their numeric
+	 * revision suffix, so 'FooMigration999' precedes 'FooMigration1000'. Any other names are compared lexically. 
+	 * @param className1
+	 * @param className2
+	 * @return
+	 */
+	public static int compareClassNames(String className1, String className2) {
+		int revisionIndex1 = revisionIndex(className1);
+		int revisionIndex2 = revisionIndex(className2);
+		if(revisionIndex1 == revisionIndex2 && revisionIndex1 < className1.length() && revisionIndex2 < className2.length() 
+				&& className1.regionMatches(0, className2, 0, revisionIndex1)) {
+			int result = compareRevisions(stripLeadingZeros(className1.substring(revisionIndex1)), stripLeadingZeros(className2.substring(revisionIndex2)));
+			if(result != 0) {
+				return result;
+			}
+		}
+		return className1.compareTo(className2);
+	}
+
+	/**
+	 * @param className
+	 * @return the index of the revision number at the end of the className, or the length of the className if it has no revision number.
+	 */
+	static int revisionIndex(String className) {
+		int index = className.length();
+		while (index > 0 && Character.isDigit(className.charAt(index - 1))) {
+			index--;
+		}
+		return index;
+	}
+
+	private static int compareRevisions(String revision1, String revision2) {
+		if(revision1.length() != revision2.length()) {
+			return revision1.length() - revision2.length();
+		}
+		return revision1.compareTo(revision2);
+	}
+
+	private static String stripLeadingZeros(String revision) {
+		int index = 0;
+		while (index < revision.length() - 1 && revision.charAt(index) == '0') {
+			index++;
+		}
+		return revision.substring(index);
 	}
 
 }
@@ -0,0 +1,126 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.jbpm.instance.migration.util.JbpmInstanceMigratorLogger;
+
+/**
+ * An index of the Migration classes available on the classpath, grouped by their base Class name. The index 
+ * is read from every <i>META-INF/jbpm-instance-migrator/migrations.properties</i> resource, which are written 
+ * at build time by the {@link MigrationIndexGenerator}. Each entry maps a base Class name to a comma separated 
+ * list of Migration Class names, in revision order. For example:
+ * <blockquote>
+ * com.foo.BarMigration=com.foo.BarMigration001,com.foo.BarMigration002
+ * </blockquote>
+ * 
+ * @see MigrationUtils#lookupMigrationsFor(String)
+ * @author Caleb Powell <caleb.powell@gmail.com> 
+ */
+public class MigrationIndex {
+
+	/**
+	 * The classpath location of the index resources.
+	 */
+	public static final String INDEX_RESOURCE_NAME = "META-INF/jbpm-instance-migrator/migrations.properties";
+	
+	private static Logger logger = Logger.getLogger(JbpmInstanceMigratorLogger.class);
+	private final Map migrationClassNames = new HashMap();
+
+	/**
+	 * Reads every index resource that is visible to the classLoader.
+	 * @param classLoader
+	 * @return
+	 * @throws InvalidMigrationException if an index resource cannot be read.
+	 */
+	public static MigrationIndex load(ClassLoader classLoader) {
+		MigrationIndex index = new MigrationIndex();
+		try {
+			Enumeration resources = classLoader.getResources(INDEX_RESOURCE_NAME);
+			while (resources.hasMoreElements()) {
+				index.read((URL) resources.nextElement());
+			}
+		} catch (IOException e) {
+			String errorMessage = "Could not read the " + INDEX_RESOURCE_NAME + " migration index.";
+			logger.error(errorMessage, e);
+			throw new InvalidMigrationException(errorMessage, e);
+		}
+		return index;
+	}
+
+	/**
+	 * 
+	 * @param baseClassName
+	 * @return The Migration Class names indexed for the baseClassName, in revision order, or null if the baseClassName is not indexed.
+	 */
+	public String[] getMigrationClassNames(String baseClassName) {
+		List classNames = (List) migrationClassNames.get(baseClassName);
+		return classNames == null ? null : (String[]) classNames.toArray(new String[classNames.size()]);
+	}
+
+	/**
+	 * @return true if the baseClassName is indexed.
+	 */
+	public boolean contains(String baseClassName) {
+		return migrationClassNames.containsKey(baseClassName);
+	}
+
+	private void read(URL resource) throws IOException {
+		logger.debug("Reading the migration index at " + resource);
+		Properties properties = new Properties();
+		InputStream inputStream = resource.openStream();
+		try {
+			properties.load(inputStream);
+		} finally {
+			IOUtils.closeQuietly(inputStream);
+		}
+		for (Iterator iterator = properties.keySet().iterator(); iterator.hasNext();) {
+			String baseClassName = (String) iterator.next();
+			add(baseClassName, StringUtils.split(properties.getProperty(baseClassName), ", "));
+		}
+	}
+
+	private void add(String baseClassName, String[] classNames) {
+		List indexedClassNames = (List) migrationClassNames.get(baseClassName);
+		if(indexedClassNames == null) {
+			indexedClassNames = new ArrayList();
+			migrationClassNames.put(baseClassName, indexedClassNames);
+		}
+		for (int i = 0; classNames != null && i < classNames.length; i++) {
+			if(!indexedClassNames.contains(classNames[i])) {
+				indexedClassNames.add(classNames[i]);
+			}
+		}
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.jbpm.instance.migration.util.JbpmInstanceMigratorLogger;
+
+/**
+ * Writes the {@link MigrationIndex} for a directory of compiled classes. It is intended to be run as a build 
+ * step once the classes have been compiled (e.g. in the <i>process-classes</i> phase), with the compiled classes 
+ * and their dependencies on the classpath:
+ * <blockquote>
+ * java org.jbpm.instance.migration.MigrationIndexGenerator target/classes [target/classes/META-INF/jbpm-instance-migrator/migrations.properties]
+ * </blockquote>
+ * Every concrete {@link Migration} whose Class name ends with a revision number is indexed under the Class name 
+ * without that revision number, e.g. 'com.foo.BarMigration012' is indexed under 'com.foo.BarMigration'.
+ * 
+ * @author Caleb Powell <caleb.powell@gmail.com> 
+ */
+public class MigrationIndexGenerator {
+
+	private static Logger logger = Logger.getLogger(JbpmInstanceMigratorLogger.class);
+	private static final String CLASS_FILE_SUFFIX = ".class";
+	private static final Comparator CLASS_NAME_COMPARATOR = new Comparator() {
+		public int compare(Object o1, Object o2) {
+			return MigrationComparator.compareClassNames((String) o1, (String) o2);
+		}
+	};
+
+	private final File classesDirectory;
+	private final ClassLoader classLoader;
+
+	/**
+	 * @param classesDirectory The root directory of the compiled classes.
+	 * @param classLoader A ClassLoader that can load the compiled classes.
+	 */
+	public MigrationIndexGenerator(File classesDirectory, ClassLoader classLoader) {
+		this.classesDirectory = classesDirectory;
+		this.classLoader = classLoader;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if(args.length < 1) {
+			System.err.println("Usage: MigrationIndexGenerator <classes directory> [index file]");
+			System.exit(1);
+		}
+		File classesDirectory = new File(args[0]);
+		File indexFile = args.length > 1 ? new File(args[1]) : new File(classesDirectory, MigrationIndex.INDEX_RESOURCE_NAME);
+		ClassLoader parent = Thread.currentThread().getContextClassLoader();
+		ClassLoader classLoader = new URLClassLoader(new URL[]{classesDirectory.toURI().toURL()}, parent);
+		new MigrationIndexGenerator(classesDirectory, classLoader).writeIndex(indexFile);
+	}
+
+	/**
+	 * Scans the classes directory and writes the index to the indexFile. No file is written if the 
+	 * directory does not contain any Migrations.
+	 * @param indexFile
+	 * @return The number of Migrations that were indexed.
+	 * @throws IOException
+	 */
+	public int writeIndex(File indexFile) throws IOException {
+		Map index = generateIndex();
+		if(index.isEmpty()) {
+			logger.info("No migrations were found in " + classesDirectory + ". The migration index was not written.");
+			return 0;
+		}
+		
+		indexFile.getParentFile().mkdirs();
+		int migrationCount = 0;
+		OutputStream outputStream = new FileOutputStream(indexFile);
+		try {
+			Writer writer = new OutputStreamWriter(outputStream, "ISO-8859-1");
+			writer.write("# Generated by " + MigrationIndexGenerator.class.getName() + ". Do not edit.\n");
+			for (Iterator entries = index.entrySet().iterator(); entries.hasNext();) {
+				Map.Entry entry = (Map.Entry) entries.next();
+				List classNames = (List) entry.getValue();
+				writer.write(entry.getKey() + "=");
+				for (int i = 0; i < classNames.size(); i++) {
+					writer.write((i == 0 ? "" : ",") + classNames.get(i));
+				}
+				writer.write("\n");
+				migrationCount += classNames.size();
+			}
+			writer.flush();
+		} finally {
+			IOUtils.closeQuietly(outputStream);
+		}
+		logger.info("Indexed " + migrationCount + " migrations for " + index.size() + " base Class names in " + indexFile + ".");
+		return migrationCount;
+	}
+
+	/**
+	 * @return A Map of base Class names to the List of their Migration Class names, in revision order.
+	 */
+	public Map generateIndex() {
+		Map index = new TreeMap();
+		List classNames = new ArrayList();
+		collectClassNames(classesDirectory, "", classNames);
+		for (Iterator iterator = classNames.iterator(); iterator.hasNext();) {
+			String className = (String) iterator.next();
+			int revisionIndex = MigrationComparator.revisionIndex(className);
+			if(revisionIndex == className.length() || !isMigration(className)) {
+				continue;
+			}
+			String baseClassName = className.substring(0, revisionIndex);
+			List migrations = (List) index.get(baseClassName);
+			if(migrations == null) {
+				migrations = new ArrayList();
+				index.put(baseClassName, migrations);
+			}
+			migrations.add(className);
+		}
+		for (Iterator iterator = index.values().iterator(); iterator.hasNext();) {
+			Collections.sort((List) iterator.next(), CLASS_NAME_COMPARATOR);
+		}
+		return index;
+	}
+
+	private void collectClassNames(File directory, String packagePrefix, List classNames) {
+		File[] files = directory.listFiles();
+		for (int i = 0; files != null && i < files.length; i++) {
+			String fileName = files[i].getName();
+			if(files[i].isDirectory()) {
+				collectClassNames(files[i], packagePrefix + fileName + ".", classNames);
+			} else if(fileName.endsWith(CLASS_FILE_SUFFIX) && fileName.indexOf('$') < 0) {
+				classNames.add(packagePrefix + fileName.substring(0, fileName.length() - CLASS_FILE_SUFFIX.length()));
+			}
+		}
+	}
+
+	private boolean isMigration(String className) {
+		try {
+			return MigrationUtils.isValidMigration(Class.forName(className, false, classLoader));
+		} catch (ClassNotFoundException e) {
+			logger.warn("Could not load " + className + " while generating the migration index.", e);
+			return false;
+		} catch (LinkageError e) {
+			logger.warn("Could not load " + className + " while generating the migration index.", e);
+			return false;
+		}
+	}
+}
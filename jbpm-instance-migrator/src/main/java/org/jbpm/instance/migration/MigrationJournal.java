@@ -0,0 +1,269 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.jbpm.instance.migration.util.JbpmInstanceMigratorLogger;
+import org.jbpm.instance.migration.util.LongHashSet;
+
+/**
+ * An append-only record of the outcome of each ProcessInstance migrated by a {@link BatchMigrator} (or 
+ * {@link ParallelBatchMigrator}), used to resume a batch that stopped part way through. 
+ * 
+ * The journal is a memory-mapped binary file of fixed size entries: the old ProcessInstance id, the new ProcessInstance 
+ * id, the {@link Entry#getOutcome() outcome} and a checksum. The batch migrators append the entries of a chunk once 
+ * its transaction has been committed, and force them to disk before migrating the next chunk, so a crash loses at most 
+ * the entries of the chunk being committed. When a journal is opened, its entries are read up to the first incomplete 
+ * one, and the ids of the migrated and skipped ProcessInstances are held in memory; a resumed batch skips those ids 
+ * without loading them. Failed ProcessInstances are journaled but are not considered complete, so they are retried.
+ * <pre>
+ * MigrationJournal journal = new MigrationJournal(new File("foo-migration.journal"));
+ * try {
+ * 	BatchMigrator batchMigrator = new BatchMigrator(migrator, 200);
+ * 	batchMigrator.setJournal(journal);
+ * 	batchMigrator.run(processInstanceIds.iterator());
+ * } finally {
+ * 	journal.close();
+ * }
+ * </pre>
+ * A chunk that is committed but not yet journaled when the batch stops is migrated again when the batch is resumed 
+ * with the same ids, even if its old ProcessInstances were ended (e.g. by an 
+ * {@link org.jbpm.instance.migration.handler.EndProcessMigrationHandler}), since 
+ * {@link MigrationUtils#requiresMigration(org.jbpm.graph.exe.ProcessInstance, org.jbpm.JbpmContext)} does not look at 
+ * the end date. If migrating an instance twice must be prevented, end the old ProcessInstances and resume the batch with 
+ * the ids found by a new {@link OutdatedProcessInstanceFinder} query, which excludes ended ProcessInstances. This class is thread-safe.
+ * @author Caleb Powell <caleb.powell@gmail.com> 
+ */
+public class MigrationJournal {
+
+	public static final int MIGRATED = 1;
+	public static final int SKIPPED = 2;
+	public static final int FAILED = 3;
+
+	static final int HEADER_SIZE = 16;
+	static final int ENTRY_SIZE = 24;
+	private static final long MAGIC = 0x4A42504D4D4A4E4CL;
+	private static final int FORMAT_VERSION = 1;
+	private static final int CHECKSUM_SEED = 0x5BD1E995;
+	private static final int DEFAULT_GROWTH = 64 * 1024;
+
+	private static Logger logger = Logger.getLogger(JbpmInstanceMigratorLogger.class);
+	private final File file;
+	private final int growth;
+	private final RandomAccessFile randomAccessFile;
+	private final FileChannel channel;
+	private final LongHashSet completedIds = new LongHashSet();
+	private MappedByteBuffer buffer;
+	private int entryCount;
+	private boolean closed;
+
+	/**
+	 * Opens the journal, creating the file if it does not exist.
+	 * @param file
+	 * @throws IOException
+	 * @throws InvalidMigrationException if the file is not a migration journal.
+	 */
+	public MigrationJournal(File file) throws IOException {
+		this(file, DEFAULT_GROWTH);
+	}
+
+	/**
+	 * @param file
+	 * @param growth The number of entries the mapped file grows by when it is full.
+	 */
+	MigrationJournal(File file, int growth) throws IOException {
+		this.file = file;
+		this.growth = growth;
+		this.randomAccessFile = new RandomAccessFile(file, "rw");
+		this.channel = randomAccessFile.getChannel();
+		try {
+			long length = channel.size();
+			map(Math.max(length, HEADER_SIZE + (long) growth * ENTRY_SIZE));
+			if(length < HEADER_SIZE) {
+				buffer.putLong(0, MAGIC);
+				buffer.putInt(8, FORMAT_VERSION);
+				buffer.putInt(12, ENTRY_SIZE);
+				buffer.force();
+			} else {
+				checkHeader();
+				readEntries();
+			}
+		} catch (IOException e) {
+			randomAccessFile.close();
+			throw e;
+		} catch (RuntimeException e) {
+			randomAccessFile.close();
+			throw e;
+		}
+		logger.info("Opened the migration journal " + file + " with " + entryCount + " entries (" + completedIds.size() + " completed process instances).");
+	}
+
+	private void checkHeader() {
+		if(buffer.getLong(0) != MAGIC || buffer.getInt(8) != FORMAT_VERSION || buffer.getInt(12) != ENTRY_SIZE) {
+			String errorMessage = "The file '" + file + "' is not a migration journal.";
+			logger.error(errorMessage);
+			throw new InvalidMigrationException(errorMessage);
+		}
+	}
+
+	private void readEntries() {
+		int capacity = (buffer.capacity() - HEADER_SIZE) / ENTRY_SIZE;
+		while (entryCount < capacity) {
+			int position = HEADER_SIZE + entryCount * ENTRY_SIZE;
+			long oldId = buffer.getLong(position);
+			long newId = buffer.getLong(position + 8);
+			int outcome = buffer.getInt(position + 16);
+			if(buffer.getInt(position + 20) != checksum(oldId, newId, outcome)) {
+				break;
+			}
+			if(outcome != FAILED) {
+				completedIds.add(oldId);
+			}
+			entryCount++;
+		}
+	}
+
+	/**
+	 * Appends the entries and forces them to disk.
+	 * @param entries A List of {@link Entry}'s.
+	 * @throws IOException
+	 */
+	public synchronized void append(List entries) throws IOException {
+		checkOpen();
+		for (Iterator iterator = entries.iterator(); iterator.hasNext();) {
+			Entry entry = (Entry) iterator.next();
+			int position = HEADER_SIZE + entryCount * ENTRY_SIZE;
+			if(position + ENTRY_SIZE > buffer.capacity()) {
+				buffer.force();
+				map((long) position + (long) growth * ENTRY_SIZE);
+			}
+			buffer.putLong(position, entry.oldProcessInstanceId);
+			buffer.putLong(position + 8, entry.newProcessInstanceId);
+			buffer.putInt(position + 16, entry.outcome);
+			buffer.putInt(position + 20, checksum(entry.oldProcessInstanceId, entry.newProcessInstanceId, entry.outcome));
+			if(entry.outcome != FAILED) {
+				completedIds.add(entry.oldProcessInstanceId);
+			}
+			entryCount++;
+		}
+		buffer.force();
+	}
+
+	/**
+	 * @param processInstanceId
+	 * @return true if the ProcessInstance was migrated (or skipped because it was current).
+	 */
+	public synchronized boolean isCompleted(long processInstanceId) {
+		return completedIds.contains(processInstanceId);
+	}
+
+	/**
+	 * @return the number of ProcessInstances that were migrated or skipped.
+	 */
+	public synchronized int getCompletedCount() {
+		return completedIds.size();
+	}
+
+	public synchronized int getEntryCount() {
+		return entryCount;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Forces the journal to disk and closes the file. The mapped region is released when it is garbage collected.
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		if(!closed) {
+			closed = true;
+			buffer.force();
+			randomAccessFile.close();
+		}
+	}
+
+	private void map(long size) throws IOException {
+		if(size > Integer.MAX_VALUE) {
+			throw new IOException("The migration journal '" + file + "' is full.");
+		}
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+	}
+
+	private void checkOpen() {
+		if(closed) {
+			throw new IllegalStateException("The migration journal '" + file + "' has been closed.");
+		}
+	}
+
+	/**
+	 * The checksum of an unwritten (zeroed) entry is never zero, so the end of the journal is the first entry whose 
+	 * checksum does not match.
+	 */
+	static int checksum(long oldProcessInstanceId, long newProcessInstanceId, int outcome) {
+		long hash = ((oldProcessInstanceId * 31 + newProcessInstanceId) * 31 + outcome) * 0x9E3779B97F4A7C15L;
+		return (int) (hash ^ (hash >>> 32)) ^ CHECKSUM_SEED;
+	}
+
+	/**
+	 * The outcome of migrating a ProcessInstance.
+	 */
+	public static class Entry {
+		private final long oldProcessInstanceId;
+		private final long newProcessInstanceId;
+		private final int outcome;
+
+		/**
+		 * @param oldProcessInstanceId
+		 * @param newProcessInstanceId The id of the migrated ProcessInstance. For skipped and failed instances, the old id.
+		 * @param outcome One of {@link MigrationJournal#MIGRATED}, {@link MigrationJournal#SKIPPED} or {@link MigrationJournal#FAILED}.
+		 */
+		public Entry(long oldProcessInstanceId, long newProcessInstanceId, int outcome) {
+			if(outcome < MIGRATED || outcome > FAILED) {
+				throw new IllegalArgumentException("Invalid outcome: " + outcome);
+			}
+			this.oldProcessInstanceId = oldProcessInstanceId;
+			this.newProcessInstanceId = newProcessInstanceId;
+			this.outcome = outcome;
+		}
+
+		public long getOldProcessInstanceId() {
+			return oldProcessInstanceId;
+		}
+
+		public long getNewProcessInstanceId() {
+			return newProcessInstanceId;
+		}
+
+		public int getOutcome() {
+			return outcome;
+		}
+	}
+}
@@ -0,0 +1,626 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.jbpm.JbpmConfiguration;
+import org.jbpm.JbpmContext;
+import org.jbpm.graph.exe.ProcessInstance;
+import org.jbpm.instance.migration.util.BoundedBuffer;
+import org.jbpm.instance.migration.util.JbpmInstanceMigratorLogger;
+
+/**
+ * Migrates a set of ProcessInstances, identified by id, in a pipeline of stages, so that the database reads, graph 
+ * building and writes of different chunks overlap. The unit of work is a chunk of ids with its own JbpmContext 
+ * (session and transaction). Each chunk is carried through every stage by one thread, which creates the chunk's 
+ * JbpmContext in the load stage and closes it in the persist stage: jBPM binds a JbpmContext to the thread that 
+ * created it, so a context (and its session) never changes threads.
+ * <ol>
+ * <li><b>{@link #LOAD}</b> creates the chunk's JbpmContext and loads each ProcessInstance's graph (tokens, nodes, 
+ * variables and sub processes).</li>
+ * <li><b>{@link #PLAN}</b> creates a {@link MigrationPlan} for each ProcessInstance, skipping those that are current 
+ * and failing those with unmapped tokens.</li>
+ * <li><b>{@link #BUILD}</b> builds each new ProcessInstance.</li>
+ * <li><b>{@link #HANDLE}</b> invokes the Migrator's MigrationHandlers for each ProcessInstance, unless there is a 
+ * task instance migrator.</li>
+ * <li><b>{@link #PERSIST}</b> saves the new ProcessInstances, moves their variables if the Migrator 
+ * {@link Migrator#setReparentVariables(boolean) re-parents variables}, moves the open TaskInstances if there is a 
+ * {@link #setTaskInstanceMigrator(TaskInstanceMigrator) task instance migrator} (and then invokes the 
+ * MigrationHandlers), invokes the Migrator's BatchMigrationHandlers once for the chunk, and commits the chunk. The 
+ * MigrationHandlers and BatchMigrationHandlers are therefore invoked at the same points as by the {@link BatchMigrator}.</li>
+ * </ol>
+ * The MigrationHandlers run before the chunk is committed, so that their changes (e.g. ending the old 
+ * ProcessInstance) are committed in the same transaction as the new ProcessInstances. With a task instance migrator 
+ * they run once the TaskInstances have been moved, since a handler that ends the old ProcessInstance would stop its 
+ * open TaskInstances from signalling. 
+ * 
+ * A ProcessInstance that cannot be loaded, planned or built is reported as failed and the rest of its chunk carries on, 
+ * since nothing has been changed yet. A MigrationHandler may already have changed its ProcessInstance, so, as with the 
+ * {@link BatchMigrator}, a failed MigrationHandler fails the chunk: its transaction is rolled back, the ProcessInstance 
+ * is reported as failed, and the same thread carries the rest of the chunk through the stages again, with a new 
+ * JbpmContext. Any other failure rolls the chunk back and reports all of its ProcessInstances as failed.
+ * 
+ * Each stage works on a limited number of chunks at once ({@link #setThreadCount(String, int)}); a chunk that reaches 
+ * a busy stage waits in the stage's queue. The pipeline has one thread for each chunk that can be in a stage, i.e. the 
+ * sum of the stages' thread counts. {@link #getStageStatistics()} reports each stage's queue depth and busy time, 
+ * which shows whether the database or the migrator is the bottleneck. As with the {@link ParallelBatchMigrator}, the 
+ * MigrationHandlers and {@link SharedDynamicMigration}s must be thread-safe, and each chunk in flight holds a database connection.
+ * @author Caleb Powell <caleb.powell@gmail.com> 
+ */
+public class MigrationPipeline {
+
+	public static final String LOAD = "load";
+	public static final String PLAN = "plan";
+	public static final String BUILD = "build";
+	public static final String HANDLE = "handle";
+	public static final String PERSIST = "persist";
+	private static final String[] STAGE_NAMES = {LOAD, PLAN, BUILD, HANDLE, PERSIST};
+
+	/**
+	 * The default number of chunks waiting for a pipeline thread.
+	 */
+	public static final int DEFAULT_QUEUE_CAPACITY = 2;
+
+	private static Logger logger = Logger.getLogger(JbpmInstanceMigratorLogger.class);
+	private final Migrator migrator;
+	private final JbpmConfiguration jbpmConfiguration;
+	private final int[] threadCounts = {1, 1, 1, 1, 1};
+	private int chunkSize = BatchMigrator.DEFAULT_CHUNK_SIZE;
+	private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+	private Stage[] stages = new Stage[0];
+	private BatchMigrationResult result;
+	private int activeThreads;
+	private TaskInstanceMigrator taskInstanceMigrator;
+
+	/**
+	 * @param migrator The migrator that migrates each chunk, with the chunk's {@link MigrationSession}.
+	 * @param jbpmConfiguration The configuration used to create each chunk's JbpmContext.
+	 */
+	public MigrationPipeline(Migrator migrator, JbpmConfiguration jbpmConfiguration) {
+		this.migrator = migrator;
+		this.jbpmConfiguration = jbpmConfiguration;
+	}
+
+	/**
+	 * Migrates each of the ProcessInstances, returning once every chunk has left the pipeline.
+	 * @param processInstanceIds An Iterator of ProcessInstance ids (as {@link Long}'s). It is read by the calling thread only.
+	 * @return the counts and chunk throughput of the run.
+	 * @throws InvalidMigrationException if the calling thread was interrupted.
+	 */
+	public BatchMigrationResult run(Iterator processInstanceIds) {
+		result = new BatchMigrationResult();
+		final Stage[] stages = createStages();
+		this.stages = stages;
+		final BoundedBuffer chunks = new BoundedBuffer(queueCapacity);
+		Thread[] threads = new Thread[getPipelineThreadCount()];
+		activeThreads = threads.length;
+		try {
+			for (int i = 0; i < threads.length; i++) {
+				threads[i] = new Thread("jbpm-migrator-pipeline-" + i) {
+					public void run() {
+						migrateChunks(chunks, stages);
+					}
+				};
+				threads[i].start();
+			}
+			while (processInstanceIds.hasNext()) {
+				WorkUnit workUnit = new WorkUnit();
+				while (workUnit.processInstanceIds.size() < chunkSize && processInstanceIds.hasNext()) {
+					workUnit.processInstanceIds.add(processInstanceIds.next());
+				}
+				if(!chunks.put(workUnit)) {
+					fail(workUnit, LOAD, new IllegalStateException("The pipeline has stopped."));
+				}
+			}
+			chunks.close();
+			for (int i = 0; i < threads.length; i++) {
+				threads[i].join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InvalidMigrationException("Interrupted while waiting for the migration pipeline.", e);
+		} finally {
+			chunks.close();
+		}
+		logger.info(result);
+		return result;
+	}
+
+	/**
+	 * Carries chunks through the stages until there are no more. Once the last pipeline thread has stopped, the 
+	 * chunks it leaves behind are failed, so that no chunk goes unreported.
+	 */
+	private void migrateChunks(BoundedBuffer chunks, Stage[] stages) {
+		try {
+			WorkUnit workUnit;
+			while ((workUnit = (WorkUnit) chunks.take()) != null) {
+				migrateChunk(workUnit, stages);
+			}
+		} catch (InterruptedException e) {
+			logger.error(Thread.currentThread().getName() + " was interrupted.", e);
+		} finally {
+			boolean last;
+			synchronized (this) {
+				last = --activeThreads == 0;
+			}
+			if(last) {
+				chunks.close();
+				failRemainingChunks(chunks);
+			}
+		}
+	}
+
+	private void migrateChunk(WorkUnit workUnit, Stage[] stages) throws InterruptedException {
+		int i = 0;
+		while (i < stages.length) {
+			try {
+				if(!stages[i].processChunk(workUnit)) {
+					return;
+				}
+				i++;
+			} catch (BatchMigrator.FailedProcessInstanceException e) {
+				logger.warn("Migrating a chunk of " + workUnit.processInstanceIds.size() + " process instance(s) again without process instance[@id=" + e.getProcessInstanceId() + "].");
+				workUnit = workUnit.retry(e.getProcessInstanceId());
+				synchronized (result) {
+					result.addRetry();
+				}
+				i = 0;
+			}
+		}
+	}
+
+	private void failRemainingChunks(BoundedBuffer chunks) {
+		try {
+			WorkUnit workUnit;
+			while ((workUnit = (WorkUnit) chunks.take()) != null) {
+				fail(workUnit, LOAD, new IllegalStateException("The pipeline has stopped."));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private Stage[] createStages() {
+		return new Stage[] {new LoadStage(), new PlanStage(), new BuildStage(), new HandleStage(), new PersistStage()};
+	}
+
+	/**
+	 * @return a {@link StageStatistics} for each stage of the current (or last) run, in pipeline order.
+	 */
+	public List getStageStatistics() {
+		Stage[] stages = this.stages;
+		List statistics = new ArrayList(stages.length);
+		for (int i = 0; i < stages.length; i++) {
+			statistics.add(stages[i].getStatistics());
+		}
+		return statistics;
+	}
+
+	/**
+	 * @param stageName One of {@link #LOAD}, {@link #PLAN}, {@link #BUILD}, {@link #HANDLE} or {@link #PERSIST}.
+	 * @param threadCount The number of chunks the stage works on at once. Defaults to 1. Each adds a pipeline thread.
+	 */
+	public void setThreadCount(String stageName, int threadCount) {
+		if(threadCount < 1) {
+			throw new IllegalArgumentException("The threadCount must be greater than zero.");
+		}
+		threadCounts[stageIndex(stageName)] = threadCount;
+	}
+
+	public int getThreadCount(String stageName) {
+		return threadCounts[stageIndex(stageName)];
+	}
+
+	private int getPipelineThreadCount() {
+		int pipelineThreadCount = 0;
+		for (int i = 0; i < threadCounts.length; i++) {
+			pipelineThreadCount += threadCounts[i];
+		}
+		return pipelineThreadCount;
+	}
+
+	private int stageIndex(String stageName) {
+		for (int i = 0; i < STAGE_NAMES.length; i++) {
+			if(STAGE_NAMES[i].equals(stageName)) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("Unknown stage '" + stageName + "'!");
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * @param chunkSize The number of ProcessInstances per unit of work (and transaction). Defaults to {@link BatchMigrator#DEFAULT_CHUNK_SIZE}.
+	 */
+	public void setChunkSize(int chunkSize) {
+		if(chunkSize < 1) {
+			throw new IllegalArgumentException("The chunkSize must be greater than zero.");
+		}
+		this.chunkSize = chunkSize;
+	}
+
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	/**
+	 * @param queueCapacity The number of chunks waiting for a pipeline thread. Defaults to {@link #DEFAULT_QUEUE_CAPACITY}.
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		if(queueCapacity < 1) {
+			throw new IllegalArgumentException("The queueCapacity must be greater than zero.");
+		}
+		this.queueCapacity = queueCapacity;
+	}
+
+	public TaskInstanceMigrator getTaskInstanceMigrator() {
+		return taskInstanceMigrator;
+	}
+
+	/**
+	 * @param taskInstanceMigrator The task instance migrator shared by the pipeline threads, or null (the default) to leave 
+	 * the open TaskInstances on the old ProcessInstances.
+	 */
+	public void setTaskInstanceMigrator(TaskInstanceMigrator taskInstanceMigrator) {
+		this.taskInstanceMigrator = taskInstanceMigrator;
+	}
+
+	private void complete(WorkUnit workUnit) {
+		synchronized (result) {
+			result.addChunkResult(new BatchMigrationResult.ChunkResult(result.getChunkResults().size() + 1, 
+					workUnit.newProcessInstances.size(), workUnit.skippedCount, workUnit.failedProcessInstanceIds.size(), workUnit.getElapsedMillis()));
+			for (Iterator iterator = workUnit.failedProcessInstanceIds.iterator(); iterator.hasNext();) {
+				result.addFailedProcessInstanceId((Long) iterator.next());
+			}
+		}
+	}
+
+	private void fail(WorkUnit workUnit, String stageName, Throwable cause) {
+		logger.error("The " + stageName + " stage is rolling back a chunk of " + workUnit.processInstanceIds.size() + " process instance(s).", cause);
+		rollback(workUnit);
+		synchronized (result) {
+			result.addFailedChunk(workUnit.processInstanceIds, workUnit.getElapsedMillis());
+		}
+	}
+
+	private void rollback(WorkUnit workUnit) {
+		if(workUnit.jbpmContext != null && !workUnit.closed) {
+			workUnit.closed = true;
+			try {
+				workUnit.jbpmContext.setRollbackOnly();
+				workUnit.jbpmContext.close();
+			} catch (RuntimeException e) {
+				logger.error("Unable to roll back a chunk of " + workUnit.processInstanceIds.size() + " process instance(s).", e);
+			}
+		}
+	}
+
+	/**
+	 * A chunk of ProcessInstances and the JbpmContext they belong to. The parallel lists hold the old 
+	 * ProcessInstances that are still being migrated, and (from the build stage on) their new ProcessInstances.
+	 */
+	private static class WorkUnit {
+		private final long start;
+		private final List processInstanceIds = new ArrayList();
+		private final List failedProcessInstanceIds = new ArrayList();
+		private List oldProcessInstances = new ArrayList();
+		private List newProcessInstances = new ArrayList();
+		private int skippedCount;
+		private JbpmContext jbpmContext;
+		private MigrationSession session;
+		private boolean closed = false;
+
+		private WorkUnit() {
+			this(System.currentTimeMillis());
+		}
+
+		private WorkUnit(long start) {
+			this.start = start;
+		}
+
+		/**
+		 * @return a new unit of the same chunk, which leaves out the failed ProcessInstances, including the given one.
+		 */
+		private WorkUnit retry(Long failedProcessInstanceId) {
+			WorkUnit workUnit = new WorkUnit(start);
+			workUnit.processInstanceIds.addAll(processInstanceIds);
+			workUnit.failedProcessInstanceIds.addAll(failedProcessInstanceIds);
+			workUnit.failedProcessInstanceIds.add(failedProcessInstanceId);
+			return workUnit;
+		}
+
+		private void failed(ProcessInstance processInstance, RuntimeException e) {
+			logger.error("Unable to migrate process instance[@id=" + processInstance.getId() + "].", e);
+			failedProcessInstanceIds.add(new Long(processInstance.getId()));
+		}
+
+		private long getElapsedMillis() {
+			return System.currentTimeMillis() - start;
+		}
+	}
+
+	/**
+	 * A stage of the pipeline, which the pipeline threads enter in turn. At most threadCount chunks are in the stage at 
+	 * once; the threads of the other chunks wait in its queue.
+	 */
+	private abstract class Stage {
+		private final String name;
+		private final int threadCount;
+		private int activeCount;
+		private int queueDepth;
+		private int maxQueueDepth;
+		private long busyMillis;
+		private long processedCount;
+
+		private Stage(String name) {
+			this.name = name;
+			this.threadCount = threadCounts[stageIndex(name)];
+		}
+
+		abstract void process(WorkUnit workUnit);
+
+		/**
+		 * Processes the chunk with the calling thread, once there is room for it in this stage.
+		 * @return false if the chunk failed, in which case it has been rolled back and reported.
+		 * @throws InterruptedException if the thread was interrupted while it waited; the chunk has been rolled back and reported.
+		 * @throws BatchMigrator.FailedProcessInstanceException if a MigrationHandler failed; the chunk has been rolled 
+		 * back but not reported, so that it can be migrated again.
+		 */
+		private boolean processChunk(WorkUnit workUnit) throws InterruptedException {
+			try {
+				enter();
+			} catch (InterruptedException e) {
+				fail(workUnit, name, e);
+				throw e;
+			}
+			long start = System.currentTimeMillis();
+			try {
+				process(workUnit);
+				return true;
+			} catch (BatchMigrator.FailedProcessInstanceException e) {
+				rollback(workUnit);
+				throw e;
+			} catch (RuntimeException e) {
+				fail(workUnit, name, e);
+				return false;
+			} finally {
+				leave(System.currentTimeMillis() - start);
+			}
+		}
+
+		private synchronized void enter() throws InterruptedException {
+			if(activeCount >= threadCount) {
+				queueDepth++;
+				maxQueueDepth = Math.max(maxQueueDepth, queueDepth);
+				try {
+					while (activeCount >= threadCount) {
+						wait();
+					}
+				} finally {
+					queueDepth--;
+				}
+			}
+			activeCount++;
+		}
+
+		private synchronized void leave(long elapsedMillis) {
+			activeCount--;
+			busyMillis += elapsedMillis;
+			processedCount++;
+			notifyAll();
+		}
+
+		private synchronized StageStatistics getStatistics() {
+			return new StageStatistics(name, threadCount, queueDepth, maxQueueDepth, busyMillis, processedCount);
+		}
+	}
+
+	private class LoadStage extends Stage {
+		private LoadStage() {
+			super(LOAD);
+		}
+
+		void process(WorkUnit workUnit) {
+			workUnit.jbpmContext = jbpmConfiguration.createJbpmContext();
+			workUnit.session = new MigrationSession(workUnit.jbpmContext);
+			workUnit.session.setPairingTokens(taskInstanceMigrator != null);
+			for (Iterator iterator = workUnit.processInstanceIds.iterator(); iterator.hasNext();) {
+				Long processInstanceId = (Long) iterator.next();
+				if(workUnit.failedProcessInstanceIds.contains(processInstanceId)) {
+					continue;
+				}
+				try {
+					ProcessInstance processInstance = workUnit.jbpmContext.loadProcessInstance(processInstanceId.longValue());
+					MigrationUtils.initializeProcessInstance(processInstance, !migrator.isReparentVariables());
+					workUnit.oldProcessInstances.add(processInstance);
+				} catch (RuntimeException e) {
+					logger.error("Unable to load process instance[@id=" + processInstanceId + "].", e);
+					workUnit.failedProcessInstanceIds.add(processInstanceId);
+				}
+			}
+		}
+	}
+
+	private class PlanStage extends Stage {
+		private PlanStage() {
+			super(PLAN);
+		}
+
+		void process(WorkUnit workUnit) {
+			List plannedProcessInstances = new ArrayList();
+			for (Iterator iterator = workUnit.oldProcessInstances.iterator(); iterator.hasNext();) {
+				ProcessInstance processInstance = (ProcessInstance) iterator.next();
+				try {
+					MigrationPlan plan = migrator.plan(processInstance, workUnit.session);
+					if(!plan.requiresMigration()) {
+						workUnit.skippedCount++;
+					} else if(!plan.isExecutable()) {
+						logger.error("Unable to migrate process instance[@id=" + processInstance.getId() + "]: " + plan);
+						workUnit.failedProcessInstanceIds.add(new Long(processInstance.getId()));
+					} else {
+						plannedProcessInstances.add(processInstance);
+					}
+				} catch (RuntimeException e) {
+					workUnit.failed(processInstance, e);
+				}
+			}
+			workUnit.oldProcessInstances = plannedProcessInstances;
+		}
+	}
+
+	private class BuildStage extends Stage {
+		private BuildStage() {
+			super(BUILD);
+		}
+
+		void process(WorkUnit workUnit) {
+			List builtProcessInstances = new ArrayList();
+			for (Iterator iterator = workUnit.oldProcessInstances.iterator(); iterator.hasNext();) {
+				ProcessInstance processInstance = (ProcessInstance) iterator.next();
+				try {
+					workUnit.newProcessInstances.add(migrator.migrateOldProcessInstance(processInstance, workUnit.session));
+					builtProcessInstances.add(processInstance);
+				} catch (RuntimeException e) {
+					workUnit.failed(processInstance, e);
+				}
+			}
+			workUnit.oldProcessInstances = builtProcessInstances;
+		}
+	}
+
+	private class HandleStage extends Stage {
+		private HandleStage() {
+			super(HANDLE);
+		}
+
+		void process(WorkUnit workUnit) {
+			if(taskInstanceMigrator == null) {
+				invokeMigrationHandlers(workUnit);
+			}
+		}
+	}
+
+	/**
+	 * @throws BatchMigrator.FailedProcessInstanceException if a MigrationHandler fails, in which case the chunk must be rolled back.
+	 */
+	private void invokeMigrationHandlers(WorkUnit workUnit) {
+		for (int i = 0; i < workUnit.oldProcessInstances.size(); i++) {
+			ProcessInstance processInstance = (ProcessInstance) workUnit.oldProcessInstances.get(i);
+			try {
+				migrator.invokeMigrationHandlers(processInstance, (ProcessInstance) workUnit.newProcessInstances.get(i));
+			} catch (RuntimeException e) {
+				String errorMessage = "Unable to migrate process instance[@id=" + processInstance.getId() + "]. Its chunk must be rolled back, since the migration may have changed it.";
+				logger.error(errorMessage, e);
+				throw new BatchMigrator.FailedProcessInstanceException(errorMessage, new Long(processInstance.getId()), e);
+			}
+		}
+	}
+
+	private class PersistStage extends Stage {
+		private PersistStage() {
+			super(PERSIST);
+		}
+
+		void process(WorkUnit workUnit) {
+			for (Iterator iterator = workUnit.newProcessInstances.iterator(); iterator.hasNext();) {
+				workUnit.jbpmContext.save((ProcessInstance) iterator.next());
+			}
+			workUnit.session.moveVariables();
+			if(taskInstanceMigrator != null) {
+				taskInstanceMigrator.migrate(workUnit.oldProcessInstances, workUnit.newProcessInstances, workUnit.session);
+				invokeMigrationHandlers(workUnit);
+			}
+			migrator.invokeBatchMigrationHandlers(workUnit.oldProcessInstances, workUnit.newProcessInstances);
+			workUnit.closed = true;
+			workUnit.jbpmContext.close();
+			complete(workUnit);
+		}
+	}
+
+	/**
+	 * A snapshot of the activity of one stage.
+	 */
+	public static class StageStatistics {
+		private final String stageName;
+		private final int threadCount;
+		private final int queueDepth;
+		private final int maxQueueDepth;
+		private final long busyMillis;
+		private final long processedCount;
+
+		StageStatistics(String stageName, int threadCount, int queueDepth, int maxQueueDepth, long busyMillis, long processedCount) {
+			this.stageName = stageName;
+			this.threadCount = threadCount;
+			this.queueDepth = queueDepth;
+			this.maxQueueDepth = maxQueueDepth;
+			this.busyMillis = busyMillis;
+			this.processedCount = processedCount;
+		}
+
+		public String getStageName() {
+			return stageName;
+		}
+
+		public int getThreadCount() {
+			return threadCount;
+		}
+
+		/**
+		 * @return the number of chunks waiting for the stage when the snapshot was taken.
+		 */
+		public int getQueueDepth() {
+			return queueDepth;
+		}
+
+		/**
+		 * @return the largest number of chunks that have waited for the stage. A stage whose queue is often full is the bottleneck.
+		 */
+		public int getMaxQueueDepth() {
+			return maxQueueDepth;
+		}
+
+		/**
+		 * @return the total number of milliseconds the stage's threads spent processing chunks.
+		 */
+		public long getBusyMillis() {
+			return busyMillis;
+		}
+
+		/**
+		 * @return the number of chunks the stage has processed.
+		 */
+		public long getProcessedCount() {
+			return processedCount;
+		}
+
+		public String toString() {
+			return "Stage '" + stageName + "' (" + threadCount + " thread(s)): processed " + processedCount + " chunk(s), busy " + busyMillis + 
+				"ms, queue depth " + queueDepth + " (max " + maxQueueDepth + ")";
+		}
+	}
+}
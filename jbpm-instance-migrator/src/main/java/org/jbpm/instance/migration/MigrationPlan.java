@@ -0,0 +1,215 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The result of a dry run of a migration, produced by {@link Migrator#plan(org.jbpm.graph.exe.ProcessInstance)}. 
+ * 
+ * A plan records the node that each token of a ProcessInstance (and of its sub processes) would be moved to, 
+ * without creating the new ProcessInstance, copying variables or invoking the MigrationHandlers. Tokens whose 
+ * node cannot be found in the latest ProcessDefinition are reported as unmapped; migrating such an instance 
+ * would fail.
+ * @author Caleb Powell <caleb.powell@gmail.com> 
+ */
+public class MigrationPlan {
+
+	private final long processInstanceId;
+	private final String processDefinitionName;
+	private final int sourceVersion;
+	private final int targetVersion;
+	private final boolean requiresMigration;
+	private final List tokenMappings = new ArrayList();
+
+	MigrationPlan(long processInstanceId, String processDefinitionName, int sourceVersion, int targetVersion, boolean requiresMigration) {
+		this.processInstanceId = processInstanceId;
+		this.processDefinitionName = processDefinitionName;
+		this.sourceVersion = sourceVersion;
+		this.targetVersion = targetVersion;
+		this.requiresMigration = requiresMigration;
+	}
+
+	void addTokenMapping(TokenMapping tokenMapping) {
+		tokenMappings.add(tokenMapping);
+	}
+
+	public long getProcessInstanceId() {
+		return processInstanceId;
+	}
+
+	public String getProcessDefinitionName() {
+		return processDefinitionName;
+	}
+
+	/**
+	 * @return the version of the ProcessInstance's ProcessDefinition.
+	 */
+	public int getSourceVersion() {
+		return sourceVersion;
+	}
+
+	/**
+	 * @return the version the ProcessInstance would be migrated to.
+	 */
+	public int getTargetVersion() {
+		return targetVersion;
+	}
+
+	/**
+	 * @return false if the ProcessInstance (and all of its sub processes) are current, in which case the plan has no token mappings.
+	 */
+	public boolean requiresMigration() {
+		return requiresMigration;
+	}
+
+	/**
+	 * @return the {@link TokenMapping}s of this ProcessInstance's tokens, root token first. 
+	 */
+	public List getTokenMappings() {
+		return Collections.unmodifiableList(tokenMappings);
+	}
+
+	/**
+	 * @return the plans of the sub processes of this ProcessInstance's tokens (but not their sub processes).
+	 */
+	public List getSubProcessPlans() {
+		List subProcessPlans = new ArrayList();
+		for (Iterator iterator = tokenMappings.iterator(); iterator.hasNext();) {
+			TokenMapping tokenMapping = (TokenMapping) iterator.next();
+			if(tokenMapping.getSubProcessPlan() != null) {
+				subProcessPlans.add(tokenMapping.getSubProcessPlan());
+			}
+		}
+		return subProcessPlans;
+	}
+
+	/**
+	 * @return the unmapped {@link TokenMapping}s of this ProcessInstance and all of its nested sub processes.
+	 */
+	public List getUnmappedTokenMappings() {
+		List unmappedTokenMappings = new ArrayList();
+		collectUnmappedTokenMappings(unmappedTokenMappings);
+		return unmappedTokenMappings;
+	}
+
+	private void collectUnmappedTokenMappings(List unmappedTokenMappings) {
+		for (Iterator iterator = tokenMappings.iterator(); iterator.hasNext();) {
+			TokenMapping tokenMapping = (TokenMapping) iterator.next();
+			if(!tokenMapping.isMapped()) {
+				unmappedTokenMappings.add(tokenMapping);
+			}
+			if(tokenMapping.getSubProcessPlan() != null) {
+				tokenMapping.getSubProcessPlan().collectUnmappedTokenMappings(unmappedTokenMappings);
+			}
+		}
+	}
+
+	/**
+	 * @return true if every token of this ProcessInstance and its nested sub processes can be mapped.
+	 */
+	public boolean isExecutable() {
+		return getUnmappedTokenMappings().isEmpty();
+	}
+
+	public String toString() {
+		StringBuffer buffer = new StringBuffer();
+		buffer.append(processDefinitionName);
+		buffer.append(" process instance[@id=").append(processInstanceId).append("] version [");
+		buffer.append(sourceVersion).append("] => [").append(targetVersion).append("]");
+		for (Iterator iterator = tokenMappings.iterator(); iterator.hasNext();) {
+			buffer.append("\n\t").append(iterator.next());
+		}
+		return buffer.toString();
+	}
+
+	/**
+	 * The planned mapping of a single token.
+	 */
+	public static class TokenMapping {
+		private final String tokenName;
+		private final String sourceNodeName;
+		private final String targetNodeName;
+		private final boolean mapped;
+		private final String dynamicMigrationClassName;
+		private final MigrationPlan subProcessPlan;
+
+		TokenMapping(String tokenName, String sourceNodeName, String targetNodeName, boolean mapped, String dynamicMigrationClassName, MigrationPlan subProcessPlan) {
+			this.tokenName = tokenName;
+			this.sourceNodeName = sourceNodeName;
+			this.targetNodeName = targetNodeName;
+			this.mapped = mapped;
+			this.dynamicMigrationClassName = dynamicMigrationClassName;
+			this.subProcessPlan = subProcessPlan;
+		}
+
+		public String getTokenName() {
+			return tokenName;
+		}
+
+		/**
+		 * @return the fully qualified name of the token's current node.
+		 */
+		public String getSourceNodeName() {
+			return sourceNodeName;
+		}
+
+		/**
+		 * @return the fully qualified name of the node the token would be moved to, or (if unmapped) the node name 
+		 * that could not be found.
+		 */
+		public String getTargetNodeName() {
+			return targetNodeName;
+		}
+
+		/**
+		 * @return false if the latest ProcessDefinition has no node named {@link #getTargetNodeName()}.
+		 */
+		public boolean isMapped() {
+			return mapped;
+		}
+
+		/**
+		 * @return true if the target node was chosen by a {@link DynamicMigration}.
+		 */
+		public boolean isDynamic() {
+			return dynamicMigrationClassName != null;
+		}
+
+		public String getDynamicMigrationClassName() {
+			return dynamicMigrationClassName;
+		}
+
+		/**
+		 * @return the plan of the token's sub process, or null if the token has no sub process.
+		 */
+		public MigrationPlan getSubProcessPlan() {
+			return subProcessPlan;
+		}
+
+		public String toString() {
+			return "Token '" + tokenName + "': '" + sourceNodeName + "' => '" + targetNodeName + "'" + (mapped ? "" : " (unmapped)") + (isDynamic() ? " by " + dynamicMigrationClassName : "");
+		}
+	}
+}
@@ -0,0 +1,281 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.jbpm.JbpmContext;
+import org.jbpm.context.exe.TokenVariableMap;
+import org.jbpm.graph.def.ProcessDefinition;
+import org.jbpm.graph.exe.ProcessInstance;
+import org.jbpm.graph.exe.Token;
+import org.jbpm.instance.migration.util.JbpmInstanceMigratorLogger;
+
+/**
+ * The state of the migrations performed with one JbpmContext: the context itself, the cached latest 
+ * ProcessDefinitions, the compiled {@link NodeResolutionTable}s and the {@link BatchScopedDynamicMigration} 
+ * instances. Each of these belongs to the context's 
+ * Hibernate session, so a MigrationSession must only be used by the thread that uses its JbpmContext. The session also 
+ * queues the variables of the ProcessInstances migrated by a Migrator that {@link Migrator#setReparentVariables(boolean) 
+ * re-parents variables}, until they are moved by {@link #moveVariables()}, and, if it is {@link #setPairingTokens(boolean) 
+ * pairing tokens}, the token of the new ProcessInstance that was created for each token of a migrated ProcessInstance.
+ * 
+ * A {@link Migrator} holds no session state of its own when it is given a MigrationSession, so one Migrator can be 
+ * built once and shared by every thread, each of which passes its own session to 
+ * {@link Migrator#migrate(ProcessInstance, MigrationSession)}.
+ * 
+ * @see Migrator
+ * @author Caleb Powell <caleb.powell@gmail.com> 
+ */
+public class MigrationSession {
+
+	private static final String MOVE_VARIABLES = 
+		"update org.jbpm.context.exe.VariableInstance " +
+		"set processInstance = :processInstance, token = :token, tokenVariableMap = :tokenVariableMap " +
+		"where tokenVariableMap.id = :sourceTokenVariableMapId " +
+		"and name <> :migrationMemo";
+
+	private static Logger logger = Logger.getLogger(JbpmInstanceMigratorLogger.class);
+	private final JbpmContext jbpmContext;
+	private final ProcessDefinitionCache definitionCache;
+	private final Map nodeResolutionTables = new IdentityHashMap();
+	private final List variableMoves;
+	private final Map batchScopedMigrations;
+	private final Map newTokens;
+	private boolean pairingTokens = false;
+
+	/**
+	 * Creates a session with its own {@link ProcessDefinitionCache}.
+	 * @param jbpmContext
+	 */
+	public MigrationSession(JbpmContext jbpmContext) {
+		this(jbpmContext, new ProcessDefinitionCache(Migrator.DEFAULT_DEFINITION_CACHE_TIME_TO_LIVE));
+	}
+
+	/**
+	 * @param jbpmContext
+	 * @param definitionCache The cache used to look up the latest ProcessDefinitions. It may be shared by several 
+	 * sessions of the same JbpmContext.
+	 */
+	public MigrationSession(JbpmContext jbpmContext, ProcessDefinitionCache definitionCache) {
+		this(jbpmContext, definitionCache, new ArrayList(), new HashMap(), new IdentityHashMap());
+	}
+
+	private MigrationSession(JbpmContext jbpmContext, ProcessDefinitionCache definitionCache, List variableMoves, Map batchScopedMigrations, Map newTokens) {
+		this.jbpmContext = jbpmContext;
+		this.definitionCache = definitionCache;
+		this.variableMoves = variableMoves;
+		this.batchScopedMigrations = batchScopedMigrations;
+		this.newTokens = newTokens;
+	}
+
+	public JbpmContext getJbpmContext() {
+		return jbpmContext;
+	}
+
+	public ProcessDefinitionCache getProcessDefinitionCache() {
+		return definitionCache;
+	}
+
+	ProcessDefinition findLatestProcessDefinition(String processName) {
+		return MigrationUtils.findLatestProcessDefinition(processName, jbpmContext, definitionCache);
+	}
+
+	boolean requiresMigration(ProcessInstance processInstance) {
+		return MigrationUtils.requiresMigration(processInstance, jbpmContext, definitionCache);
+	}
+
+	/**
+	 * Returns the compiled {@link NodeResolutionTable} of the nodeMap for the sourceDefinition and targetDefinition 
+	 * pair, compiling it if this is the first token of the sourceDefinition version to be migrated with the nodeMap.
+	 */
+	NodeResolutionTable getNodeResolutionTable(ProcessDefinition sourceDefinition, ProcessDefinition targetDefinition, StateNodeMap nodeMap) {
+		synchronized (nodeResolutionTables) {
+			Map tables = (Map) nodeResolutionTables.get(nodeMap);
+			if(tables == null) {
+				tables = new HashMap();
+				nodeResolutionTables.put(nodeMap, tables);
+			}
+			Long key = new Long(sourceDefinition.getId());
+			NodeResolutionTable table = (NodeResolutionTable) tables.get(key);
+			if(table == null || !table.isCompiledFor(sourceDefinition, targetDefinition)) {
+				logger.debug("Compiling the " + targetDefinition.getName() + " node resolution table for version [" + sourceDefinition.getVersion() + "] => [" + targetDefinition.getVersion() + "]");
+				table = new NodeResolutionTable(sourceDefinition, targetDefinition, nodeMap);
+				tables.put(key, table);
+			}
+			return table;
+		}
+	}
+
+	/**
+	 * Looks up the named {@link DynamicMigration} in the dynamicMigrationCache. A {@link BatchScopedDynamicMigration} 
+	 * is held by this session rather than by the cache, so it is reused until this session is cleared and is never 
+	 * handed to a session of another chunk.
+	 */
+	DynamicMigration lookupDynamicMigration(DynamicMigrationCache dynamicMigrationCache, String migrationClassName) {
+		synchronized (batchScopedMigrations) {
+			return dynamicMigrationCache.lookup(migrationClassName, batchScopedMigrations);
+		}
+	}
+
+	/**
+	 * Creates a session for building ProcessInstances on another thread. The Hibernate session is not thread-safe, so 
+	 * the fork has no JbpmContext: it looks the latest ProcessDefinitions up in a {@link ProcessDefinitionCache#snapshot() 
+	 * snapshot} of this session's cache, which never expires and never queries, and it must only be given graphs that 
+	 * have already been initialized. It shares this session's queue of variables to move, its token pairs and 
+	 * {@link BatchScopedDynamicMigration}s, but compiles its own {@link NodeResolutionTable}s. 
+	 */
+	MigrationSession fork() {
+		MigrationSession fork = new MigrationSession(null, definitionCache.snapshot(), variableMoves, batchScopedMigrations, newTokens);
+		fork.pairingTokens = pairingTokens;
+		return fork;
+	}
+
+	/**
+	 * @return true if the session records the new token created for each old token.
+	 */
+	public boolean isPairingTokens() {
+		return pairingTokens;
+	}
+
+	/**
+	 * @param pairingTokens If true, the session records the new token created for each old token, which a 
+	 * {@link TaskInstanceMigrator} needs to move the TaskInstances. The pairs hold on to both ProcessInstance graphs 
+	 * until the session is cleared, so they are not recorded by default. Turning pairing off discards the recorded pairs. 
+	 */
+	public void setPairingTokens(boolean pairingTokens) {
+		this.pairingTokens = pairingTokens;
+		if(!pairingTokens) {
+			synchronized (newTokens) {
+				newTokens.clear();
+			}
+		}
+	}
+
+	/**
+	 * Records the newToken as the token created for the oldToken, if the session is pairing tokens. Tokens are paired 
+	 * by identity rather than by name, since the tokens of different (nested) forks may share a name.
+	 */
+	void addNewToken(Token oldToken, Token newToken) {
+		if(!pairingTokens) {
+			return;
+		}
+		synchronized (newTokens) {
+			newTokens.put(oldToken, newToken);
+		}
+	}
+
+	/**
+	 * @return the token created for the oldToken by a migration with this session since it was last cleared, or null 
+	 * if there is none.
+	 */
+	Token findNewToken(Token oldToken) {
+		synchronized (newTokens) {
+			return (Token) newTokens.get(oldToken);
+		}
+	}
+
+	/**
+	 * Queues the persisted variables of the oldProcessInstance's root token to be moved to the newProcessInstance.
+	 */
+	void addVariableMove(ProcessInstance oldProcessInstance, ProcessInstance newProcessInstance) {
+		synchronized (variableMoves) {
+			variableMoves.add(new ProcessInstance[] {oldProcessInstance, newProcessInstance});
+		}
+	}
+
+	/**
+	 * Moves the persisted variables queued since the last call from the root token of each old ProcessInstance to that 
+	 * of its new ProcessInstance. The session is flushed first, so that the new ProcessInstances are inserted; each 
+	 * move is then a single update of the variable rows' foreign keys, so the variables are neither loaded nor 
+	 * rewritten. New ProcessInstances that were not saved (e.g. because the migration failed) keep no variables, and 
+	 * their old ProcessInstances keep theirs. The updates bypass the Hibernate session, so the variable maps of ProcessInstances 
+	 * that were already loaded are stale until the session is cleared.
+	 * @return the number of variable instances moved.
+	 */
+	public int moveVariables() {
+		List moves;
+		synchronized (variableMoves) {
+			if(variableMoves.isEmpty()) {
+				return 0;
+			}
+			moves = new ArrayList(variableMoves);
+			variableMoves.clear();
+		}
+		Session session = jbpmContext.getSession();
+		session.flush();
+		int movedCount = 0;
+		for (Iterator iterator = moves.iterator(); iterator.hasNext();) {
+			ProcessInstance[] processInstances = (ProcessInstance[]) iterator.next();
+			movedCount += moveVariables(session, processInstances[0], processInstances[1]);
+		}
+		logger.debug("Moved " + movedCount + " variable instance(s) of " + moves.size() + " process instance(s).");
+		return movedCount;
+	}
+
+	private int moveVariables(Session session, ProcessInstance oldProcessInstance, ProcessInstance newProcessInstance) {
+		if(newProcessInstance.getId() == 0) {
+			logger.debug("Not moving the variables of process instance[@id=" + oldProcessInstance.getId() + "]; its new process instance was not saved.");
+			return 0;
+		}
+		TokenVariableMap sourceMap = oldProcessInstance.getContextInstance().getTokenVariableMap(oldProcessInstance.getRootToken());
+		if(sourceMap == null) {
+			return 0;
+		}
+		TokenVariableMap targetMap = newProcessInstance.getContextInstance().getTokenVariableMap(newProcessInstance.getRootToken());
+		Query update = session.createQuery(MOVE_VARIABLES);
+		update.setEntity("processInstance", newProcessInstance);
+		update.setEntity("token", newProcessInstance.getRootToken());
+		update.setEntity("tokenVariableMap", targetMap);
+		update.setLong("sourceTokenVariableMapId", sourceMap.getId());
+		update.setString("migrationMemo", Migrator.MIGRATION_MEMO);
+		return update.executeUpdate();
+	}
+
+	/**
+	 * Discards the cached ProcessDefinitions, the compiled node resolution tables, the batch scoped dynamic 
+	 * migrations, the token pairs and the variable moves that have not been made. Call this method whenever the Hibernate session is 
+	 * cleared, since the cached objects belong to that session.
+	 */
+	public void clear() {
+		definitionCache.invalidateAll();
+		synchronized (variableMoves) {
+			variableMoves.clear();
+		}
+		synchronized (nodeResolutionTables) {
+			nodeResolutionTables.clear();
+		}
+		synchronized (batchScopedMigrations) {
+			batchScopedMigrations.clear();
+		}
+		synchronized (newTokens) {
+			newTokens.clear();
+		}
+	}
+}
@@ -24,16 +24,20 @@ import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
-import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
+import org.hibernate.Hibernate;
 import org.jbpm.JbpmContext;
+import org.jbpm.context.exe.ContextInstance;
+import org.jbpm.graph.def.Node;
 import org.jbpm.graph.def.ProcessDefinition;
+import org.jbpm.graph.def.SuperState;
 import org.jbpm.graph.exe.ProcessInstance;
 import org.jbpm.graph.exe.Token;
 import org.jbpm.instance.migration.util.JbpmInstanceMigratorLogger;
@@ -50,6 +54,8 @@ public class MigrationUtils {
 	
 	private static final String JAVA_SYNTAX_PREFIX = "java://";
 	private static Logger logger = Logger.getLogger(JbpmInstanceMigratorLogger.class);
+	private static final Map migrationClassesByBaseName = new HashMap();
+	private static MigrationIndex migrationIndex;
 	
 	/**
 	 * Convert an xml file into a valid jBPM ProcessDefinition class
@@ -64,9 +70,14 @@ public class MigrationUtils {
 	}
 
 	/**
-	 * Taking a base class name, this method will search the Classpath for all Migrations that begin with that name. The migrations will be returned
-	 * in an array. For example, given the base Class name 'com.foo.BarMigration', this method will attempt to load classes named 
+	 * Taking a base class name, this method will return all of the Migrations that begin with that name, in revision order. 
+	 * 
+	 * The Migrations are read from the {@link MigrationIndex} if the base class name has been indexed (see {@link MigrationIndexGenerator}). 
+	 * Otherwise this method will search the Classpath. For example, given the base Class name 'com.foo.BarMigration', it will attempt to load classes named 
 	 * 'com.foo.BarMigration001', 'com.foo.BarMigration002', 'com.foo.BarMigration003', etc. It will stop loading when it catches a {@link ClassNotFoundException}.
+	 * Either way, the Migration classes found for a base class name are only looked up once, until {@link #refreshMigrationIndex()} 
+	 * is invoked. A base class name without any Migrations is not remembered, so Migrations that are deployed later are found by 
+	 * the next lookup; a base class name that is added to a regenerated index is only read from it once the index has been refreshed.
 	 *  
 	 * Valid Migration classes must implement the {@link Migration} interface (but not be an interface themselves), have a default constructor, and cannot be abstract.
 	 * 
@@ -74,31 +85,93 @@ public class MigrationUtils {
 	 * @return 
 	 */
 	public static Migration[] lookupMigrationsFor(String baseClassName) {
+		Class[] migrationClasses = lookupMigrationClassesFor(baseClassName);
+		Migration[] migrations = new Migration[migrationClasses.length];
+		for (int i = 0; i < migrationClasses.length; i++) {
+			migrations[i] = instantiateMigration(migrationClasses[i]);
+		}
+		return migrations;
+	}
+
+	/**
+	 * Discards the {@link MigrationIndex} and the Migration classes that have been looked up, so that they are 
+	 * read again by the next invocation of {@link #lookupMigrationsFor(String)}.
+	 */
+	public static synchronized void refreshMigrationIndex() {
+		migrationIndex = null;
+		migrationClassesByBaseName.clear();
+	}
+
+	private static synchronized Class[] lookupMigrationClassesFor(String baseClassName) {
+		Class[] migrationClasses = (Class[]) migrationClassesByBaseName.get(baseClassName);
+		if(migrationClasses == null) {
+			String[] indexedClassNames = getMigrationIndex().getMigrationClassNames(baseClassName);
+			migrationClasses = indexedClassNames != null ? loadIndexedMigrationClasses(indexedClassNames) : searchForMigrationClasses(baseClassName);
+			if(migrationClasses.length == 0) {
+				logger.info("Could not locate any migrations for the base Class name [" + baseClassName + "].");
+			} else {
+				migrationClassesByBaseName.put(baseClassName, migrationClasses);
+			}
+		}
+		return migrationClasses;
+	}
+
+	private static MigrationIndex getMigrationIndex() {
+		if(migrationIndex == null) {
+			migrationIndex = MigrationIndex.load(MigrationUtils.class.getClassLoader());
+		}
+		return migrationIndex;
+	}
+
+	private static Class[] loadIndexedMigrationClasses(String[] migrationClassNames) {
+		Class[] migrationClasses = new Class[migrationClassNames.length];
+		for (int i = 0; i < migrationClassNames.length; i++) {
+			try {
+				migrationClasses[i] = Class.forName(migrationClassNames[i]);
+			} catch (ClassNotFoundException e) {
+				String errorMessage = "The " + migrationClassNames[i] + " migration is listed in the migration index, but could not be loaded. Please regenerate the index.";
+				logger.error(errorMessage, e);
+				throw new InvalidMigrationException(errorMessage, e);
+			}
+			if(!isValidMigration(migrationClasses[i])) {
+				String errorMessage = "The " + migrationClassNames[i] + " class is listed in the migration index, but is not a valid Migration.";
+				logger.error(errorMessage);
+				throw new InvalidMigrationException(errorMessage);
+			}
+		}
+		return migrationClasses;
+	}
+
+	private static Class[] searchForMigrationClasses(String baseClassName) {
+		logger.debug("The base Class name [" + baseClassName + "] is not indexed. Searching the Classpath for its migrations.");
 		int revision = 0;
-		List migrations = new ArrayList();
+		List migrationClasses = new ArrayList();
 		while (true) {
 			String migrationName = constructMigrationClassName(baseClassName, ++revision);
 			try {
 				Class migrationClass = Class.forName(migrationName);
 				if (isValidMigration(migrationClass)) {
-					migrations.add(migrationClass.newInstance());
+					migrationClasses.add(migrationClass);
 				}
 			} catch (ClassNotFoundException e) {
-				if(CollectionUtils.isEmpty(migrations)) {
-					logger.info("Could not locate any migrations for the base Class name [" + baseClassName + "].");
-				}
 				break;
-			} catch (InstantiationException e) {
-				String errorMessage = "The " + migrationName + " migration could not be instantiated. Please ensure it has a default constructor.";
-				logger.error(errorMessage, e);
-				throw new InvalidMigrationException(errorMessage, e);
-			} catch (IllegalAccessException e) {
-				String errorMessage = "The " + migrationName + " migration could not be instantiated.";
-				logger.error(errorMessage, e);
-				throw new InvalidMigrationException(errorMessage, e);
 			}
 		}
-		return (Migration[]) migrations.toArray(new Migration[migrations.size()]);
+		return (Class[]) migrationClasses.toArray(new Class[migrationClasses.size()]);
+	}
+
+	private static Migration instantiateMigration(Class migrationClass) {
+		try {
+			return (Migration) migrationClass.newInstance();
+		} catch (InstantiationException e) {
+			String errorMessage = "The " + migrationClass.getName() + " migration could not be instantiated. Please ensure it has a default constructor.";
+			logger.error(errorMessage, e);
+			throw new InvalidMigrationException(errorMessage, e);
+		} catch (IllegalAccessException e) {
+			String errorMessage = "The " + migrationClass.getName() + " migration could not be instantiated.";
+			logger.error(errorMessage, e);
+			throw new InvalidMigrationException(errorMessage, e);
+		}
 	}
 
 	/**
@@ -116,7 +189,7 @@ public class MigrationUtils {
 	 * @param migrationClass
 	 * @return true is this class is an assignable to {@link Migration}, is not an interface, and is not abstract.
 	 */
-	private static boolean isValidMigration(Class migrationClass) {
+	static boolean isValidMigration(Class migrationClass) {
 		return Migration.class.isAssignableFrom(migrationClass) && isConcreteClass(migrationClass);
 	}
 
@@ -125,7 +198,7 @@ public class MigrationUtils {
 	 * @param migrationClass
 	 * @return true is this class is an assignable to {@link DynamicMigration}, is not an interface, and is not abstract.
 	 */
-	private static boolean isValidDynamicMigration(Class migrationClass) {
+	static boolean isValidDynamicMigration(Class migrationClass) {
 		return DynamicMigration.class.isAssignableFrom(migrationClass) && isConcreteClass(migrationClass);
 	}
 	
@@ -139,36 +212,51 @@ public class MigrationUtils {
 	 * @return true if the processInstance (or any of it's subProcessInstance's) belongs to an outdated processDefinition.
 	 */
 	public static boolean requiresMigration(ProcessInstance processInstance, JbpmContext jbpmContext) {
-		ProcessDefinition latestProcessDefinition = MigrationUtils.findLatestProcessDefinition(processInstance.getProcessDefinition().getName(), jbpmContext);
-		//1. look at the given process definition
-		boolean processInstanceRequiresMigration = processInstance.getProcessDefinition().getVersion() != latestProcessDefinition.getVersion(); 
-		
-		//2. search for sub process definitions
-		List subProcesses = findSubProcesses(processInstance.getRootToken());
-		for (Iterator iter = subProcesses.iterator(); processInstanceRequiresMigration == false && iter.hasNext();) {
-			ProcessInstance subProcessInstance = (ProcessInstance) iter.next();
-			processInstanceRequiresMigration = requiresMigration(subProcessInstance, jbpmContext);
+		return requiresMigration(processInstance, jbpmContext, null);
+	}
+
+	/**
+	 * Used to determine whether a ProcessInstance requires migration.
+	 * @param processInstance
+	 * @param jbpmContext
+	 * @param definitionCache The cache used to look up the latest ProcessDefinitions. If null, each lookup will query the jbpmContext.
+	 * @return true if the processInstance (or any of it's subProcessInstance's) belongs to an outdated processDefinition.
+	 */
+	public static boolean requiresMigration(ProcessInstance processInstance, JbpmContext jbpmContext, ProcessDefinitionCache definitionCache) {
+		if(definitionCache == null) {
+			definitionCache = new ProcessDefinitionCache();
 		}
+		boolean processInstanceRequiresMigration = isOutdated(processInstance, jbpmContext, definitionCache);
 		logger.info("Checking whether process instance[@id='" + processInstance.getId()+"'] requires migration? => " + processInstanceRequiresMigration);
-		return processInstanceRequiresMigration ;
+		return processInstanceRequiresMigration;
 	}
 
-	private static List findSubProcesses(Token token) {
-		ArrayList processInstances = new ArrayList();
-		ProcessInstance processInstance = token.getSubProcessInstance();
-		if(processInstance != null){
-			processInstances.add(processInstance);
-			processInstances.addAll(findSubProcesses(processInstance.getRootToken()));
-		}
-		
-		Map children = token.getChildren();
-		if(children != null){
-			for (Iterator iter = children.values().iterator(); iter.hasNext();) {
-				Token childToken = (Token) iter.next();
-				processInstances.addAll(findSubProcesses(childToken));
+	/**
+	 * Walks the processInstance and its nested sub processes depth first, stopping at the first 
+	 * ProcessInstance whose version differs from the latest version.
+	 */
+	private static boolean isOutdated(ProcessInstance processInstance, final JbpmContext jbpmContext, final ProcessDefinitionCache definitionCache) {
+		return !TokenTreeWalker.PROCESS_INSTANCE_TREE.walk(processInstance, new TokenTreeWalker.Visitor() {
+			public boolean visitProcessInstance(ProcessInstance visitedProcessInstance) {
+				ProcessDefinition processDefinition = visitedProcessInstance.getProcessDefinition();
+				return processDefinition.getVersion() == definitionCache.getLatestVersion(processDefinition.getName(), jbpmContext);
 			}
-		}
-		return processInstances;
+
+			public boolean visitToken(Token token) {
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * Finds the ids of the named ProcessDefinition's ProcessInstances that require migration, without loading them.
+	 * @param processDefinitionName
+	 * @param jbpmContext
+	 * @return the ids (as Long's) in ascending order. Close the iterator if you do not read it to the end.
+	 * @see OutdatedProcessInstanceFinder
+	 */
+	public static ProcessInstanceIdIterator findOutdatedProcessInstanceIds(String processDefinitionName, JbpmContext jbpmContext) {
+		return new OutdatedProcessInstanceFinder(jbpmContext).findOutdatedProcessInstanceIds(processDefinitionName);
 	}
 
 	/**
@@ -183,15 +271,92 @@ public class MigrationUtils {
 	}
 
 	/**
+	 * Used to find a {@link ProcessDefinition} by it's name.
 	 * 
-	 * @param className
+	 * @param processName The name of the process definition.
+	 * @param jbpmContext
+	 * @param definitionCache The cache used to look up the ProcessDefinition. If null, this method will query the jbpmContext.
+	 * @return
+	 */
+	public static ProcessDefinition findLatestProcessDefinition(String processName, JbpmContext jbpmContext, ProcessDefinitionCache definitionCache) {
+		if(definitionCache == null) {
+			return findLatestProcessDefinition(processName, jbpmContext);
+		}
+		return definitionCache.findLatestProcessDefinition(processName, jbpmContext);
+	}
+
+	/**
+	 * Initializes the parts of the processInstance (and of its nested sub processes) that a Migrator reads: the
+	 * variables and the node of each token. Once initialized, the graph can be read without touching the session.
+	 * @param processInstance
+	 * @param initializeVariables false if the variables are moved rather than copied (see {@link Migrator#setReparentVariables(boolean)}).
+	 */
+	static void initializeProcessInstance(ProcessInstance processInstance, final boolean initializeVariables) {
+		TokenTreeWalker.PROCESS_INSTANCE_TREE.walk(processInstance, new TokenTreeWalker.Visitor() {
+			public boolean visitProcessInstance(ProcessInstance visitedProcessInstance) {
+				Hibernate.initialize(visitedProcessInstance);
+				ContextInstance contextInstance = visitedProcessInstance.getContextInstance();
+				if(initializeVariables && contextInstance != null) {
+					contextInstance.getVariables();
+				}
+				return true;
+			}
+
+			public boolean visitToken(Token token) {
+				Hibernate.initialize(token.getNode());
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * Initializes the nodes (including those nested in super states), the module definitions and the events of the
+	 * processDefinition, which a Migrator reads when it resolves nodes and creates a ProcessInstance.
+	 * @param processDefinition
+	 */
+	static void initializeProcessDefinition(ProcessDefinition processDefinition) {
+		Hibernate.initialize(processDefinition);
+		Hibernate.initialize(processDefinition.getDefinitions());
+		Hibernate.initialize(processDefinition.getEvents());
+		initializeNodes(processDefinition.getNodes());
+	}
+
+	private static void initializeNodes(List nodes) {
+		if(nodes == null) {
+			return;
+		}
+		Hibernate.initialize(nodes);
+		for (Iterator iterator = nodes.iterator(); iterator.hasNext();) {
+			Node node = (Node) iterator.next();
+			Hibernate.initialize(node);
+			if(node instanceof SuperState) {
+				initializeNodes(((SuperState) node).getNodes());
+			}
+		}
+	}
+
+	/**
+	 * Loads and instantiates the named {@link DynamicMigration}. Each invocation creates a new instance; use a 
+	 * {@link DynamicMigrationCache} to reuse instances.
+	 * 
+	 * @param migrationClassName
 	 * @return
 	 */
 	public static DynamicMigration lookupDynamicMigration(String migrationClassName) {
+		return instantiateDynamicMigration(loadDynamicMigrationClass(migrationClassName));
+	}
+
+	/**
+	 * Loads the named {@link DynamicMigration} Class and checks that it is a valid DynamicMigration.
+	 * @param migrationClassName
+	 * @return
+	 * @throws InvalidMigrationException if the Class cannot be found, or is not a valid DynamicMigration.
+	 */
+	static Class loadDynamicMigrationClass(String migrationClassName) {
 		try {
 			Class migrationClass = Class.forName(migrationClassName);
 			if (isValidDynamicMigration(migrationClass)) {
-				return (DynamicMigration) migrationClass.newInstance();
+				return migrationClass;
 			} else{
 				String errorMessage = "The type '" + migrationClassName + "' is not a valid DynamicMigration. Please ensure your Class  implements '" +
 						DynamicMigration.class.getName() + "', is not abstract and contains a default constructor.";
@@ -202,12 +367,23 @@ public class MigrationUtils {
 			String errorMessage = "Could not locate DynamicMigration Class name [" + migrationClassName + "].";
 			logger.error(errorMessage);
 			throw new InvalidMigrationException(errorMessage, e);
+		}
+	}
+
+	/**
+	 * @param migrationClass A valid {@link DynamicMigration} Class.
+	 * @return a new instance of the migrationClass.
+	 * @throws InvalidMigrationException if the Class cannot be instantiated.
+	 */
+	static DynamicMigration instantiateDynamicMigration(Class migrationClass) {
+		try {
+			return (DynamicMigration) migrationClass.newInstance();
 		} catch (InstantiationException e) {
-			String errorMessage = "The " + migrationClassName + " migration could not be instantiated. Please ensure it has a default constructor.";
+			String errorMessage = "The " + migrationClass.getName() + " migration could not be instantiated. Please ensure it has a default constructor.";
 			logger.error(errorMessage, e);
 			throw new InvalidMigrationException(errorMessage, e);
 		} catch (IllegalAccessException e) {
-			String errorMessage = "The " + migrationClassName + " migration could not be instantiated.";
+			String errorMessage = "The " + migrationClass.getName() + " migration could not be instantiated.";
 			logger.error(errorMessage, e);
 			throw new InvalidMigrationException(errorMessage, e);
 		}
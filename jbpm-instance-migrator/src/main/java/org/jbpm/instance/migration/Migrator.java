@@ -22,6 +22,7 @@ package org.jbpm.instance.migration;
 
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -50,13 +51,25 @@ import org.jbpm.graph.node.ProcessState;
 import org.jbpm.graph.node.StartState;
 import org.jbpm.graph.node.State;
 import org.jbpm.graph.node.TaskNode;
+import org.jbpm.instance.migration.handler.BatchMigrationHandler;
 import org.jbpm.instance.migration.handler.MigrationHandler;
 import org.jbpm.instance.migration.util.JbpmInstanceMigratorLogger;
+import org.jbpm.instance.migration.util.MigratorValiditionUtil;
 
 
 
 /**
  * An instance of this class is responsible for migrating a process instance to te latest version. 
+ * 
+ * A Migrator is a plan compiled from its Migrations and sub-process migrators; the state that belongs to a Hibernate 
+ * session (the JbpmContext, the cached ProcessDefinitions and the compiled node resolution tables) is kept in a 
+ * {@link MigrationSession}. Once it has been configured, a Migrator may be shared by any number of threads, each 
+ * of which migrates with its own session (see {@link #migrate(ProcessInstance, MigrationSession)}). The methods 
+ * that take no session use the session of the JbpmContext the Migrator was constructed with.
+ * 
+ * A Migrator that is shared by a {@link MigratorRegistry} is {@link #isFrozen() frozen}: its setters and the methods 
+ * that add handlers throw an IllegalStateException, so that one thread cannot change it while others migrate with it. 
+ * Configure a copy made by {@link #withJbpmContext(JbpmContext)} instead.
  * @author Caleb Powell <caleb.powell@gmail.com> 
  * @author David Harcombe <david.harcombe@intelliware.ca> 
  */
@@ -64,12 +77,25 @@ public class Migrator {
 
 	private static Logger logger = Logger.getLogger(JbpmInstanceMigratorLogger.class);
 	private static final String ROOT_TOKEN_NAME = "Root token";
+	/**
+	 * The name of the variable that records the migration of a ProcessInstance.
+	 */
+	static final String MIGRATION_MEMO = "migrationMemo";
+	/**
+	 * The number of milliseconds a Migrator will reuse a cached ProcessDefinition before querying for it again.
+	 */
+	public static final long DEFAULT_DEFINITION_CACHE_TIME_TO_LIVE = 60 * 1000;
 	private final SortedSet migrations = new TreeSet(new MigrationComparator());
 	private final Map subProcessMigrators = new HashMap();
-	private final JbpmContext jbpmContext;
 	private final String processDefinitionName;
-	private final StateNodeMap compositeNodeMap = new StateNodeMap();
+	private final CompiledStateNodeMap compositeNodeMap;
 	private final List migrationHandlers = new ArrayList();
+	private final List batchMigrationHandlers = new ArrayList();
+	private MigrationSession session;
+	private DynamicMigrationCache dynamicMigrationCache = new DynamicMigrationCache();
+	private int subProcessThreadCount = 1;
+	private boolean reparentVariables = false;
+	private volatile boolean frozen = false;
 	public static Set SUPPORTED_WAIT_STATE_NODE_TYPES = new HashSet(){
 		private static final long serialVersionUID = 9100798202825510066L;
 	{
@@ -86,14 +112,15 @@ public class Migrator {
 	/**
 	 * 
 	 * @param processDefinitionName The name of the ProcessDefinition that this migrator is responsible for.
-	 * @param jbpmContext A JBPMContext that the migrator can use to look up the latest ProcessDefinition (among other things).
+	 * @param jbpmContext A JBPMContext that the migrator can use to look up the latest ProcessDefinition (among other things). It may be null if the
+	 * migrator is only given {@link MigrationSession}s.
 	 * @param migrations An arrray of migration instances.
 	 * @param subProcessMigrators An array of migrator classes for any subprocesses that this Migrator may encounter.
 	 * @throws InvalidMigrationException
 	 */
 	public Migrator(String processDefinitionName, JbpmContext jbpmContext, Migration[] migrations, Migrator[] subProcessMigrators) throws InvalidMigrationException {
 		this.processDefinitionName = processDefinitionName;
-		this.jbpmContext = jbpmContext;
+		this.session = new MigrationSession(jbpmContext);
 
 		if(!ArrayUtils.isEmpty(migrations)) {
 			CollectionUtils.addAll(this.migrations, migrations);
@@ -103,7 +130,28 @@ public class Migrator {
 			this.subProcessMigrators.put(subProcessMigrators[i].getProcessDefinitionName(), subProcessMigrators[i]);
 		}
 
-		populateCompositeNodeMap();
+		this.compositeNodeMap = populateCompositeNodeMap();
+	}
+
+	/**
+	 * Creates a copy of the prototype that uses another JbpmContext.
+	 * @see #withJbpmContext(JbpmContext)
+	 */
+	private Migrator(Migrator prototype, JbpmContext jbpmContext) {
+		this.processDefinitionName = prototype.processDefinitionName;
+		this.session = new MigrationSession(jbpmContext);
+		this.migrations.addAll(prototype.migrations);
+		this.compositeNodeMap = prototype.compositeNodeMap;
+		this.migrationHandlers.addAll(prototype.migrationHandlers);
+		this.batchMigrationHandlers.addAll(prototype.batchMigrationHandlers);
+		this.dynamicMigrationCache = prototype.dynamicMigrationCache;
+		this.subProcessThreadCount = prototype.subProcessThreadCount;
+		this.reparentVariables = prototype.reparentVariables;
+		for (Iterator iterator = prototype.getSubProcessMigrators().iterator(); iterator.hasNext();) {
+			Migrator subProcessMigrator = ((Migrator) iterator.next()).withJbpmContext(jbpmContext);
+			subProcessMigrator.setProcessDefinitionCache(session.getProcessDefinitionCache());
+			this.subProcessMigrators.put(subProcessMigrator.getProcessDefinitionName(), subProcessMigrator);
+		}
 	}
 
 	/**
@@ -139,6 +187,33 @@ public class Migrator {
 	 * @throws InvalidMigrationException
 	 */
 	public ProcessInstance migrate(ProcessInstance processInstance) {
+		return migrate(processInstance, session, true, true);
+	}
+
+	/**
+	 * Migrates the ProcessInstance instance to the latest version, using the session's JbpmContext and caches 
+	 * instead of this Migrator's.
+	 * @param processInstance The processInstance that you wish to migrate.
+	 * @param session The session of the calling thread.
+	 * @return A migrated processInstance based on the latest version of this Migrator's ProcessDefinition. If the processInstance does not require migration,
+	 * this method will return the provided processInstance object.
+	 * @throws InvalidMigrationException
+	 */
+	public ProcessInstance migrate(ProcessInstance processInstance, MigrationSession session) {
+		return migrate(processInstance, session, true, true);
+	}
+
+	/**
+	 * @param invokeMigrationHandlers If false, the caller invokes the {@link MigrationHandler}s later (see 
+	 * {@link #invokeMigrationHandlers(ProcessInstance, ProcessInstance)}), e.g. once the open TaskInstances have been moved.
+	 * @param invokeBatchMigrationHandlers If false, the caller invokes the {@link BatchMigrationHandler}s once for a 
+	 * whole chunk (see {@link #invokeBatchMigrationHandlers(List, List)}).
+	 */
+	ProcessInstance migrate(ProcessInstance processInstance, boolean invokeMigrationHandlers, boolean invokeBatchMigrationHandlers) {
+		return migrate(processInstance, session, invokeMigrationHandlers, invokeBatchMigrationHandlers);
+	}
+
+	private ProcessInstance migrate(ProcessInstance processInstance, MigrationSession session, boolean invokeMigrationHandlers, boolean invokeBatchMigrationHandlers) {
 		if(!willMigrate(processInstance.getProcessDefinition())){
 			String errorMessage = "The "+getProcessDefinitionName()+" migrator cannot migrate a processInstance of the "+processInstance.getProcessDefinition().getName()+" ProcessDefinition!";
 			logger.error(errorMessage);
@@ -146,12 +221,14 @@ public class Migrator {
 		}
 		
 		ProcessInstance newProcessInstance = null;
-		if(processRequiresMigration(processInstance, jbpmContext)) {
+		if(session.requiresMigration(processInstance)) {
 			logger.info(getProcessDefinitionName()+" Migrator attempting to migrate processInstance[@id="+processInstance.getId()+"].");
-			newProcessInstance = migrateOldProcessInstance(processInstance);
-			for (Iterator iterator = migrationHandlers.iterator(); iterator.hasNext();) {
-				MigrationHandler migrationHandler = (MigrationHandler) iterator.next();
-				migrationHandler.migrateInstance(processInstance, newProcessInstance);
+			newProcessInstance = migrateOldProcessInstance(processInstance, session);
+			if(invokeMigrationHandlers) {
+				invokeMigrationHandlers(processInstance, newProcessInstance);
+			}
+			if(invokeBatchMigrationHandlers) {
+				invokeBatchMigrationHandlers(Collections.singletonList(processInstance), Collections.singletonList(newProcessInstance));
 			}
 			logger.info(getProcessDefinitionName()+" Migrator finished migration of processInstance[@id="+processInstance.getId()+"].");
 		} else {
@@ -161,32 +238,157 @@ public class Migrator {
 	}
 
 	/**
-	 * This method iterates through 'migrations' list and populates the compositeNodeMap with each Migration mappings.
+	 * Performs a dry run of the migration of the ProcessInstance. Every token (including those of sub processes) is 
+	 * mapped to its node in the latest ProcessDefinition, and {@link DynamicMigration}s are consulted, but no 
+	 * ProcessInstance is created, no variables are copied and the MigrationHandlers are not invoked. 
+	 * @param processInstance The processInstance that you wish to migrate.
+	 * @return the plan of the migration. If the processInstance does not require migration, the plan has no token mappings.
+	 * @throws IllegalArgumentException if this Migrator cannot migrate the processInstance.
+	 */
+	public MigrationPlan plan(ProcessInstance processInstance) {
+		return plan(processInstance, session);
+	}
+
+	/**
+	 * Performs a dry run of the migration of the ProcessInstance, using the session's JbpmContext and caches.
+	 * @param processInstance The processInstance that you wish to migrate.
+	 * @param session The session of the calling thread.
+	 * @return the plan of the migration.
+	 * @see #plan(ProcessInstance)
+	 */
+	public MigrationPlan plan(ProcessInstance processInstance, MigrationSession session) {
+		if(!willMigrate(processInstance.getProcessDefinition())){
+			String errorMessage = "The "+getProcessDefinitionName()+" migrator cannot plan a processInstance of the "+processInstance.getProcessDefinition().getName()+" ProcessDefinition!";
+			logger.error(errorMessage);
+			throw new IllegalArgumentException(errorMessage);
+		}
+		
+		if(session.requiresMigration(processInstance)) {
+			return planOldProcessInstance(processInstance, session);
+		}
+		int version = processInstance.getProcessDefinition().getVersion();
+		return new MigrationPlan(processInstance.getId(), getProcessDefinitionName(), version, version, false);
+	}
+
+	/**
+	 * Performs a dry run of the migration of each ProcessInstance in the list.
+	 * @param processInstances
+	 * @return a List of {@link MigrationPlan}s, in the order of the processInstances.
+	 * @see #plan(ProcessInstance)
+	 */
+	public List plan(List processInstances) {
+		List plans = new ArrayList(processInstances.size());
+		for (Iterator iterator = processInstances.iterator(); iterator.hasNext();) {
+			plans.add(plan((ProcessInstance) iterator.next()));
+		}
+		return plans;
+	}
+
+	/**
+	 * This method iterates through 'migrations' list and populates a composite node map with each Migration mappings.
+	 * @return the compiled (immutable) composite node map.
 	 * @throws InvalidMigrationException
 	 */
-	private void populateCompositeNodeMap() {
+	private CompiledStateNodeMap populateCompositeNodeMap() {
+		StateNodeMap nodeMap = new StateNodeMap();
 		for (Iterator iterator = this.migrations.iterator(); iterator.hasNext();) {
 			Migration currentMigration = (Migration) iterator.next();
 			logger.debug("Adding the " + currentMigration.getClass().getName()+" migration node mappings to the composite node map.");
-			this.compositeNodeMap.addMigration(currentMigration);
+			nodeMap.addMigration(currentMigration);
 		}
+		return nodeMap.compile();
 	}
 	
-	private ProcessInstance migrateOldProcessInstance(ProcessInstance processInstance) {
-		ProcessInstance newProcessInstance = MigrationUtils.findLatestProcessDefinition(processInstance.getProcessDefinition().getName(), jbpmContext).createProcessInstance();
+	void invokeMigrationHandlers(ProcessInstance processInstance, ProcessInstance newProcessInstance) {
+		for (Iterator iterator = migrationHandlers.iterator(); iterator.hasNext();) {
+			MigrationHandler migrationHandler = (MigrationHandler) iterator.next();
+			migrationHandler.migrateInstance(processInstance, newProcessInstance);
+		}
+	}
+
+	/**
+	 * Invokes each {@link BatchMigrationHandler} with a chunk of migrated ProcessInstances.
+	 * @param oldProcessInstances
+	 * @param newProcessInstances The new ProcessInstances, in the same order as the oldProcessInstances.
+	 */
+	void invokeBatchMigrationHandlers(List oldProcessInstances, List newProcessInstances) {
+		if(oldProcessInstances.isEmpty()) {
+			return;
+		}
+		for (Iterator iterator = batchMigrationHandlers.iterator(); iterator.hasNext();) {
+			BatchMigrationHandler batchMigrationHandler = (BatchMigrationHandler) iterator.next();
+			batchMigrationHandler.migrateInstances(oldProcessInstances, newProcessInstances);
+		}
+	}
+
+	/**
+	 * Builds the new ProcessInstance (and sub process instances) without checking whether the processInstance 
+	 * requires migration and without invoking the MigrationHandlers.
+	 */
+	ProcessInstance migrateOldProcessInstance(ProcessInstance processInstance, MigrationSession session) {
+		ProcessInstance newProcessInstance = session.findLatestProcessDefinition(processInstance.getProcessDefinition().getName()).createProcessInstance();
 		migrateContextInstance(processInstance, newProcessInstance);
-		mapAllTokens(null, processInstance.getRootToken(), newProcessInstance);
+		if(subProcessThreadCount > 1) {
+			List subProcessTokens = new ArrayList();
+			mapAllTokens(processInstance, newProcessInstance, subProcessTokens, session);
+			mapSubProcessesInParallel(subProcessTokens, session);
+		} else {
+			mapAllTokens(processInstance, newProcessInstance, null, session);
+		}
+		if(reparentVariables) {
+			session.addVariableMove(processInstance, newProcessInstance);
+		}
 		return newProcessInstance;
 	}
 
-	private boolean processRequiresMigration(ProcessInstance processInstance, JbpmContext jbpmContext) {
-		return MigrationUtils.requiresMigration(processInstance, jbpmContext);
+	private MigrationPlan planOldProcessInstance(ProcessInstance processInstance, MigrationSession session) {
+		ProcessDefinition sourceDefinition = processInstance.getProcessDefinition();
+		ProcessDefinition targetDefinition = session.findLatestProcessDefinition(sourceDefinition.getName());
+		MigrationPlan plan = new MigrationPlan(processInstance.getId(), sourceDefinition.getName(), sourceDefinition.getVersion(), targetDefinition.getVersion(), true);
+		planAllTokens(processInstance, targetDefinition, plan, session);
+		return plan;
+	}
+
+	private void planAllTokens(ProcessInstance processInstance, final ProcessDefinition targetDefinition, final MigrationPlan plan, final MigrationSession session) {
+		TokenTreeWalker.PROCESS_INSTANCE.walk(processInstance, new TokenTreeWalker.Visitor() {
+			public boolean visitProcessInstance(ProcessInstance processInstance) {
+				return true;
+			}
+
+			public boolean visitToken(Token token) {
+				planToken(token, targetDefinition, plan, session);
+				return true;
+			}
+		});
+	}
+
+	private void planToken(Token oldToken, ProcessDefinition targetDefinition, MigrationPlan plan, MigrationSession session) {
+		NodeResolutionTable.Entry entry = lookupNodeResolution(oldToken, targetDefinition, session);
+		String targetNodeName = entry.getCurrentNodeName();
+		Node targetNode = entry.getTargetNode();
+		if(entry.isDynamic()) {
+			targetNodeName = mapDynamicNode(entry, oldToken, session);
+			targetNode = MigratorValiditionUtil.findNode(targetDefinition, targetNodeName);
+		}
+		if(targetNode != null) {
+			targetNodeName = targetNode.getFullyQualifiedName();
+		}
+		
+		MigrationPlan subProcessPlan = null;
+		ProcessInstance oldSubProcess = oldToken.getSubProcessInstance();
+		if(oldSubProcess != null) {
+			subProcessPlan = getSubProcessMigrator(oldSubProcess.getProcessDefinition().getName()).planOldProcessInstance(oldSubProcess, session);
+		}
+		plan.addTokenMapping(new MigrationPlan.TokenMapping(getTokenName(oldToken), entry.getSourceNodeName(), targetNodeName, 
+				targetNode != null, entry.getDynamicMigrationClassName(), subProcessPlan));
 	}
 
 	private void migrateContextInstance(ProcessInstance oldProcessInstance, ProcessInstance newProcessInstance) {
 		ContextInstance oldContextInstance = oldProcessInstance.getContextInstance();
 		ContextInstance newContextInstance = newProcessInstance.getContextInstance();
-		migratePersistedVariables(oldContextInstance, newContextInstance);
+		if(!reparentVariables) {
+			migratePersistedVariables(oldContextInstance, newContextInstance);
+		}
 		migrateTransientVariables(oldContextInstance, newContextInstance);
 		addMigrationMemo(newContextInstance, oldProcessInstance, newProcessInstance);
 	}
@@ -196,7 +398,7 @@ public class Migrator {
 		int oldVersion = oldProcessInstance.getProcessDefinition().getVersion();
 		int newVersion = newProcessInstance.getProcessDefinition().getVersion();
 		Date today = Calendar.getInstance().getTime();
-		newContextInstance.createVariable("migrationMemo", createMigrationMemo(oldVersion, newVersion, today, oldProcessInstance.getId()));
+		newContextInstance.createVariable(MIGRATION_MEMO, createMigrationMemo(oldVersion, newVersion, today, oldProcessInstance.getId()));
 	}
 
 	private String createMigrationMemo(int oldVersion, int newVersion, Date today, long predecessorProcessId) {
@@ -226,16 +428,35 @@ public class Migrator {
 		}
 	}
 
-	private void mapAllTokens(Token parentToken, Token oldProcessToken, ProcessInstance newProcessInstance) {
-		mapProcessToken(parentToken, oldProcessToken, newProcessInstance);
-		mapChildTokens(oldProcessToken, newProcessInstance);
+	/**
+	 * Creates a token of the newProcessInstance for each token of the oldProcessInstance. Every token other than the 
+	 * root token is created as a child of the new root token, however deep the old token was nested.
+	 * @param subProcessTokens If not null, the (old, new) super process token pairs are added to this list (in the 
+	 * order of the walk) instead of their sub processes being migrated during the walk.
+	 */
+	private void mapAllTokens(ProcessInstance oldProcessInstance, final ProcessInstance newProcessInstance, final List subProcessTokens, final MigrationSession session) {
+		TokenTreeWalker.PROCESS_INSTANCE.walk(oldProcessInstance, new TokenTreeWalker.Visitor() {
+			public boolean visitProcessInstance(ProcessInstance processInstance) {
+				return true;
+			}
+
+			public boolean visitToken(Token token) {
+				mapProcessToken(newProcessInstance.getRootToken(), token, newProcessInstance, subProcessTokens, session);
+				return true;
+			}
+		});
 	}
 
-	private void mapProcessToken(Token parentToken, Token oldToken, ProcessInstance newInstance) {
-		Node toNode = findCurrentNode(oldToken);
+	private void mapProcessToken(Token parentToken, Token oldToken, ProcessInstance newInstance, List subProcessTokens, MigrationSession session) {
+		Node toNode = findCurrentNode(oldToken, session);
 		Token newToken = createNewToken(parentToken, oldToken, newInstance, toNode);
+		session.addNewToken(oldToken, newToken);
 		if(oldToken.getSubProcessInstance() != null) {
-			mapSubProcess(oldToken, newToken);
+			if(subProcessTokens != null) {
+				subProcessTokens.add(new Token[] {oldToken, newToken});
+			} else {
+				mapSubProcess(oldToken, newToken, session);
+			}
 		}
 	}
 
@@ -253,56 +474,151 @@ public class Migrator {
 		return newToken;
 	}
 
-	private String getTokenName(Token token) {
+	private static String getTokenName(Token token) {
 		return token.getName() == null ? ROOT_TOKEN_NAME : token.getName();
 	}
 
-	private void mapSubProcess(Token oldSuperProcessToken, Token newSuperProcessToken) {
+	private void mapSubProcess(Token oldSuperProcessToken, Token newSuperProcessToken, MigrationSession session) {
 		ProcessInstance oldSubProcess = oldSuperProcessToken.getSubProcessInstance();
 		logger.info(getProcessDefinitionName() + " migrator is attempting to migrate a "+oldSubProcess.getProcessDefinition().getName()+ " sub-process instance.");
-		ProcessDefinition newSubProcessDefinition = this.jbpmContext.getGraphSession().findLatestProcessDefinition(oldSubProcess.getProcessDefinition().getName());
+		ProcessDefinition newSubProcessDefinition = session.findLatestProcessDefinition(oldSubProcess.getProcessDefinition().getName());
 		
-		ProcessInstance newSubProcessInstance =	getSubProcessMigrator(newSubProcessDefinition.getName()).migrateOldProcessInstance(oldSubProcess);
+		ProcessInstance newSubProcessInstance =	getSubProcessMigrator(newSubProcessDefinition.getName()).migrateOldProcessInstance(oldSubProcess, session);
+		attachSubProcess(newSuperProcessToken, newSubProcessInstance);
+	}
+
+	private void attachSubProcess(Token newSuperProcessToken, ProcessInstance newSubProcessInstance) {
 		newSubProcessInstance.setSuperProcessToken(newSuperProcessToken);
 		newSuperProcessToken.setSubProcessInstance(newSubProcessInstance);
 	}
 
-	private Migrator getSubProcessMigrator(String processDefinitionName) {
-		if(!this.subProcessMigrators.containsKey(processDefinitionName)){
-			//create a default migrator for the subprocess definition
-			Migrator subProcessMigrator = new Migrator(processDefinitionName, jbpmContext, new Migration[]{}, new Migrator[]{});
-			subProcessMigrators.put(processDefinitionName, subProcessMigrator);
+	/**
+	 * Builds the sub process instances of the (old, new) super process token pairs on up to subProcessThreadCount 
+	 * threads, each with its own {@link MigrationSession#fork() fork} of the session, and then attaches them to the new 
+	 * super process tokens in the order of the pairs. The Hibernate session is not thread-safe, so the old sub process 
+	 * instances and the ProcessDefinitions they are migrated between are initialized (and cached) by the calling thread 
+	 * first, and the building threads only work on those graphs in memory: a fork has no JbpmContext, and its snapshot of 
+	 * the ProcessDefinitionCache never expires, so nothing is queried or loaded on the building threads.
+	 */
+	private void mapSubProcessesInParallel(List subProcessTokens, MigrationSession session) {
+		if(subProcessTokens.size() < 2) {
+			for (Iterator iterator = subProcessTokens.iterator(); iterator.hasNext();) {
+				Token[] tokens = (Token[]) iterator.next();
+				mapSubProcess(tokens[0], tokens[1], session);
+			}
+			return;
+		}
+		
+		SubProcessBuild[] builds = new SubProcessBuild[subProcessTokens.size()];
+		for (int i = 0; i < builds.length; i++) {
+			Token[] tokens = (Token[]) subProcessTokens.get(i);
+			builds[i] = prepareSubProcessBuild(tokens[0], tokens[1], session);
+		}
+		
+		SubProcessWorker[] workers = new SubProcessWorker[Math.min(subProcessThreadCount, builds.length)];
+		SubProcessBuildQueue queue = new SubProcessBuildQueue(builds);
+		logger.info(getProcessDefinitionName() + " migrator is building " + builds.length + " sub-process instances with " + workers.length + " threads.");
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new SubProcessWorker(i, queue);
+			workers[i].start();
+		}
+		try {
+			for (int i = 0; i < workers.length; i++) {
+				workers[i].join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InvalidMigrationException("Interrupted while waiting for the sub-process instances to be built.", e);
+		}
+		
+		for (int i = 0; i < builds.length; i++) {
+			if(builds[i].failure instanceof RuntimeException) {
+				throw (RuntimeException) builds[i].failure;
+			} else if(builds[i].failure != null) {
+				throw new InvalidMigrationException("Unable to build a sub-process instance of " + getProcessDefinitionName() + ".", builds[i].failure);
+			}
+			attachSubProcess(builds[i].newSuperProcessToken, builds[i].newSubProcessInstance);
 		}
-		return (Migrator) this.subProcessMigrators.get(processDefinitionName);
 	}
 
-	private void mapChildTokens(Token oldProcessToken, ProcessInstance newProcessInstance) {
-		if (oldProcessToken.getChildren() != null) {
-			Iterator childTokenIter = oldProcessToken.getChildren().values().iterator();
-			while (childTokenIter.hasNext()) {
-				Token childToken = (Token) childTokenIter.next();
-				mapAllTokens(newProcessInstance.getRootToken(), childToken, newProcessInstance);
+	private SubProcessBuild prepareSubProcessBuild(Token oldSuperProcessToken, Token newSuperProcessToken, MigrationSession session) {
+		ProcessInstance oldSubProcess = oldSuperProcessToken.getSubProcessInstance();
+		MigrationUtils.initializeProcessInstance(oldSubProcess, !reparentVariables);
+		initializeDefinitions(oldSubProcess, session);
+		
+		String subProcessName = oldSubProcess.getProcessDefinition().getName();
+		Migrator subProcessMigrator = getSubProcessMigrator(session.findLatestProcessDefinition(subProcessName).getName());
+		return new SubProcessBuild(oldSuperProcessToken, newSuperProcessToken, subProcessMigrator, session.fork());
+	}
+
+	/**
+	 * Initializes the ProcessDefinitions of the oldProcessInstance (and of its nested sub processes), and caches and 
+	 * initializes the latest versions of them.
+	 */
+	private void initializeDefinitions(ProcessInstance oldProcessInstance, final MigrationSession session) {
+		TokenTreeWalker.PROCESS_INSTANCE_TREE.walk(oldProcessInstance, new TokenTreeWalker.Visitor() {
+			public boolean visitProcessInstance(ProcessInstance processInstance) {
+				MigrationUtils.initializeProcessDefinition(processInstance.getProcessDefinition());
+				MigrationUtils.initializeProcessDefinition(session.findLatestProcessDefinition(processInstance.getProcessDefinition().getName()));
+				return true;
 			}
+
+			public boolean visitToken(Token token) {
+				return true;
+			}
+		});
+	}
+
+	private Migrator getSubProcessMigrator(String processDefinitionName) {
+		synchronized (subProcessMigrators) {
+			if(!this.subProcessMigrators.containsKey(processDefinitionName)){
+				//create a default migrator for the subprocess definition
+				Migrator subProcessMigrator = new Migrator(processDefinitionName, session.getJbpmContext(), new Migration[]{}, new Migrator[]{});
+				subProcessMigrator.setProcessDefinitionCache(session.getProcessDefinitionCache());
+				subProcessMigrator.setDynamicMigrationCache(dynamicMigrationCache);
+				subProcessMigrator.setReparentVariables(reparentVariables);
+				if(frozen) {
+					subProcessMigrator.freeze();
+				}
+				subProcessMigrators.put(processDefinitionName, subProcessMigrator);
+			}
+			return (Migrator) this.subProcessMigrators.get(processDefinitionName);
 		}
 	}
 
-	private Node findCurrentNode(Token oldProcessToken) {
-		String nodeName = oldProcessToken.getNode().getFullyQualifiedName();
-		String currentNodeName = this.compositeNodeMap.containsDeprecatedNodeName(nodeName) ? this.compositeNodeMap.getCurrentNodeName(nodeName) : nodeName;
-		logger.debug(getProcessDefinitionName()+" Migrator.findCurrentNode: mapping '"+nodeName+"' => '"+currentNodeName+"'");
-		if (MigrationUtils.isDynamicNodeName(currentNodeName)){
-			//parse className
-			String migrationClassName = MigrationUtils.parseClassNameFromDynamicNode(currentNodeName);
-			
-			//instantiate the DynamicMigration
-			DynamicMigration dynamicMigration = MigrationUtils.lookupDynamicMigration(migrationClassName);
-			
-			//invoke DynamicMigration instance and assign the node name
-			currentNodeName = dynamicMigration.map(nodeName, oldProcessToken.getProcessInstance());
+	/**
+	 * @return a snapshot of the sub-process migrators, which may be added to (lazily) while it is iterated.
+	 */
+	private List getSubProcessMigrators() {
+		synchronized (subProcessMigrators) {
+			return new ArrayList(subProcessMigrators.values());
+		}
+	}
+
+	private Node findCurrentNode(Token oldProcessToken, MigrationSession session) {
+		ProcessDefinition targetDefinition = session.findLatestProcessDefinition(oldProcessToken.getProcessInstance().getProcessDefinition().getName());
+		NodeResolutionTable.Entry entry = lookupNodeResolution(oldProcessToken, targetDefinition, session);
+		if (entry.isDynamic()){
+			return MigratorValiditionUtil.findNode(targetDefinition, mapDynamicNode(entry, oldProcessToken, session));
 		} 
-		
-		ProcessDefinition targetDefinition = MigrationUtils.findLatestProcessDefinition(oldProcessToken.getProcessInstance().getProcessDefinition().getName(), jbpmContext);
-		return targetDefinition.findNode(currentNodeName);
+		return entry.getTargetNode();
+	}
+
+	private NodeResolutionTable.Entry lookupNodeResolution(Token oldProcessToken, ProcessDefinition targetDefinition, MigrationSession session) {
+		ProcessDefinition sourceDefinition = oldProcessToken.getProcessInstance().getProcessDefinition();
+		NodeResolutionTable.Entry entry = session.getNodeResolutionTable(sourceDefinition, targetDefinition, compositeNodeMap).lookup(oldProcessToken.getNode());
+		if(logger.isDebugEnabled()) {
+			logger.debug(getProcessDefinitionName()+" Migrator.findCurrentNode: mapping '"+entry.getSourceNodeName()+"' => '"+entry.getCurrentNodeName()+"'");
+		}
+		return entry;
+	}
+
+	/**
+	 * Invokes the entry's {@link DynamicMigration} and returns the node name it assigns to the token.
+	 */
+	private String mapDynamicNode(NodeResolutionTable.Entry entry, Token oldProcessToken, MigrationSession session) {
+		DynamicMigration dynamicMigration = session.lookupDynamicMigration(dynamicMigrationCache, entry.getDynamicMigrationClassName());
+		return dynamicMigration.map(entry.getSourceNodeName(), oldProcessToken.getProcessInstance());
 	}
 
 	private String getProcessDefinitionName() {
@@ -321,14 +637,257 @@ public class Migrator {
 	
 	/**
 	 * Returns this Migrator's {@link StateNodeMap}, which is a composite of all the 
-	 * Migrations' {@link StateNodeMap}'s.
+	 * Migrations' {@link StateNodeMap}'s. The map is a {@link CompiledStateNodeMap}, so it cannot be modified 
+	 * and may be shared between threads.
 	 * @return
 	 */
 	public StateNodeMap getStateNodeMap() {
 		return this.compositeNodeMap;
 	}
 
+	/**
+	 * Discards the state this Migrator (and each of its sub-process migrators) holds on to between migrations: the 
+	 * cached ProcessDefinitions, compiled node resolution tables and {@link BatchScopedDynamicMigration}s of its own 
+	 * session (see {@link MigrationSession#clear()}). The {@link DynamicMigrationCache} is shared with the copies made by 
+	 * {@link #withJbpmContext(JbpmContext)}, so it is left alone. Call this method whenever the Hibernate session is 
+	 * cleared, since the cached objects belong to that session.
+	 */
+	public void clearCaches() {
+		session.clear();
+		for (Iterator iterator = getSubProcessMigrators().iterator(); iterator.hasNext();) {
+			Migrator subProcessMigrator = (Migrator) iterator.next();
+			subProcessMigrator.clearCaches();
+		}
+	}
+
+	/**
+	 * Returns a copy of this Migrator (and its sub-process migrators) that uses the given JbpmContext. The copy shares 
+	 * this Migrator's compiled {@link StateNodeMap}, MigrationHandlers and {@link DynamicMigrationCache}, but has its own 
+	 * {@link MigrationSession}, since that holds objects that belong to a session. This allows each thread of a batch 
+	 * to migrate with its own JbpmContext, provided the MigrationHandlers and {@link SharedDynamicMigration}s are 
+	 * thread-safe. Passing a session to {@link #migrate(ProcessInstance, MigrationSession)} does the same without a copy.
+	 * @param jbpmContext
+	 * @return a Migrator bound to the jbpmContext.
+	 */
+	public Migrator withJbpmContext(JbpmContext jbpmContext) {
+		return new Migrator(this, jbpmContext);
+	}
+
+	JbpmContext getJbpmContext() {
+		return session.getJbpmContext();
+	}
+
+	/**
+	 * @return the session that is used by the methods that take no session.
+	 */
+	MigrationSession getSession() {
+		return session;
+	}
+
+	/**
+	 * @return true if this Migrator is shared by a {@link MigratorRegistry}, and can therefore no longer be changed.
+	 */
+	public boolean isFrozen() {
+		return frozen;
+	}
+
+	/**
+	 * Stops this Migrator (and each of its sub-process migrators) from being changed. Copies made by 
+	 * {@link #withJbpmContext(JbpmContext)} are not frozen.
+	 */
+	void freeze() {
+		frozen = true;
+		for (Iterator iterator = getSubProcessMigrators().iterator(); iterator.hasNext();) {
+			Migrator subProcessMigrator = (Migrator) iterator.next();
+			subProcessMigrator.freeze();
+		}
+	}
+
+	private void checkNotFrozen() {
+		if(frozen) {
+			throw new IllegalStateException("The " + processDefinitionName + " Migrator is shared by a MigratorRegistry and cannot be changed. Change a copy made by withJbpmContext(JbpmContext) instead.");
+		}
+	}
+
+	/**
+	 * @param migrationHandler
+	 * @throws IllegalStateException if this Migrator is {@link #isFrozen() frozen}.
+	 */
 	public void addMigrationHandler(MigrationHandler migrationHandler) {
+		checkNotFrozen();
 		this.migrationHandlers.add(migrationHandler);
 	}
+
+	/**
+	 * Adds a handler that is invoked once per chunk by the batch migrators, after the chunk's new ProcessInstances have 
+	 * been saved and before the chunk is committed (see {@link BatchMigrationHandler}). {@link #migrate(ProcessInstance)} 
+	 * invokes it with a single pair.
+	 * @param batchMigrationHandler
+	 * @throws IllegalStateException if this Migrator is {@link #isFrozen() frozen}.
+	 */
+	public void addBatchMigrationHandler(BatchMigrationHandler batchMigrationHandler) {
+		checkNotFrozen();
+		this.batchMigrationHandlers.add(batchMigrationHandler);
+	}
+
+	public int getSubProcessThreadCount() {
+		return this.subProcessThreadCount;
+	}
+
+	/**
+	 * Sets the number of threads used to build the sub process instances of a ProcessInstance. The sub process 
+	 * instances are built in parallel, each with its own fork of the {@link MigrationSession}, and attached to their 
+	 * super process tokens in the order in which the tokens were walked. The sub process instances are initialized 
+	 * before they are built, and the building threads have no JbpmContext (neither a session nor a current context), 
+	 * so the {@link DynamicMigration}s of the sub processes, and the process-start actions of their ProcessDefinitions, 
+	 * must be thread-safe and must not use the session or need a current JbpmContext.
+	 * @param subProcessThreadCount Defaults to 1, which builds each sub process instance in turn as it is met.
+	 * @throws IllegalStateException if this Migrator is {@link #isFrozen() frozen}.
+	 */
+	public void setSubProcessThreadCount(int subProcessThreadCount) {
+		checkNotFrozen();
+		if(subProcessThreadCount < 1) {
+			throw new IllegalArgumentException("The subProcessThreadCount must be greater than zero.");
+		}
+		this.subProcessThreadCount = subProcessThreadCount;
+	}
+
+	public boolean isReparentVariables() {
+		return this.reparentVariables;
+	}
+
+	/**
+	 * Sets whether this Migrator (and each of its sub-process migrators) moves the persisted variables of a ProcessInstance 
+	 * to the new ProcessInstance instead of copying them. Copying loads (and deserializes) each variable and inserts 
+	 * a new row for it; moving updates the foreign keys of the existing rows, once the new ProcessInstance has been saved. 
+	 * The moves are queued by the {@link MigrationSession} and run by {@link MigrationSession#moveVariables()}, which the 
+	 * {@link BatchMigrator} and the {@link MigrationPipeline} call after saving each chunk; after {@link #migrate(ProcessInstance)}, 
+	 * save the new ProcessInstance and call {@link #moveVariables()}. The MigrationHandlers see the persisted variables on the 
+	 * old ProcessInstance only, and the old ProcessInstance is left without them.
+	 * @param reparentVariables Defaults to false.
+	 * @throws IllegalStateException if this Migrator is {@link #isFrozen() frozen}.
+	 */
+	public void setReparentVariables(boolean reparentVariables) {
+		checkNotFrozen();
+		this.reparentVariables = reparentVariables;
+		for (Iterator iterator = getSubProcessMigrators().iterator(); iterator.hasNext();) {
+			Migrator subProcessMigrator = (Migrator) iterator.next();
+			subProcessMigrator.setReparentVariables(reparentVariables);
+		}
+	}
+
+	/**
+	 * Moves the variables of the ProcessInstances migrated with this Migrator's own session since the last call (see 
+	 * {@link #setReparentVariables(boolean)}). Call it after saving the new ProcessInstances.
+	 * @return the number of variable instances moved.
+	 */
+	public int moveVariables() {
+		return session.moveVariables();
+	}
+
+	/**
+	 * Returns the cache this Migrator uses to look up the latest ProcessDefinitions. 
+	 * @return
+	 */
+	public ProcessDefinitionCache getProcessDefinitionCache() {
+		return session.getProcessDefinitionCache();
+	}
+
+	/**
+	 * Replaces the cache this Migrator (and each of its sub-process migrators) uses to look up the latest 
+	 * ProcessDefinitions. This allows several migrators to share a cache for the duration of a batch.  
+	 * @param definitionCache
+	 * @throws IllegalStateException if this Migrator is {@link #isFrozen() frozen}.
+	 */
+	public void setProcessDefinitionCache(ProcessDefinitionCache definitionCache) {
+		checkNotFrozen();
+		this.session = new MigrationSession(session.getJbpmContext(), definitionCache);
+		for (Iterator iterator = getSubProcessMigrators().iterator(); iterator.hasNext();) {
+			Migrator subProcessMigrator = (Migrator) iterator.next();
+			subProcessMigrator.setProcessDefinitionCache(definitionCache);
+		}
+	}
+
+	/**
+	 * Returns the cache this Migrator uses to obtain {@link DynamicMigration} instances.
+	 * @return
+	 */
+	public DynamicMigrationCache getDynamicMigrationCache() {
+		return this.dynamicMigrationCache;
+	}
+
+	/**
+	 * Replaces the cache this Migrator (and each of its sub-process migrators) uses to obtain {@link DynamicMigration} instances.
+	 * @param dynamicMigrationCache
+	 * @throws IllegalStateException if this Migrator is {@link #isFrozen() frozen}.
+	 */
+	public void setDynamicMigrationCache(DynamicMigrationCache dynamicMigrationCache) {
+		checkNotFrozen();
+		this.dynamicMigrationCache = dynamicMigrationCache;
+		for (Iterator iterator = getSubProcessMigrators().iterator(); iterator.hasNext();) {
+			Migrator subProcessMigrator = (Migrator) iterator.next();
+			subProcessMigrator.setDynamicMigrationCache(dynamicMigrationCache);
+		}
+	}
+
+	/**
+	 * A sub process instance to be built by a {@link SubProcessWorker}, and the result of building it.
+	 */
+	private static class SubProcessBuild {
+		private final Token oldSuperProcessToken;
+		private final Token newSuperProcessToken;
+		private final Migrator subProcessMigrator;
+		private final MigrationSession session;
+		private ProcessInstance newSubProcessInstance;
+		private Throwable failure;
+
+		private SubProcessBuild(Token oldSuperProcessToken, Token newSuperProcessToken, Migrator subProcessMigrator, MigrationSession session) {
+			this.oldSuperProcessToken = oldSuperProcessToken;
+			this.newSuperProcessToken = newSuperProcessToken;
+			this.subProcessMigrator = subProcessMigrator;
+			this.session = session;
+		}
+
+		private void build() {
+			try {
+				newSubProcessInstance = subProcessMigrator.migrateOldProcessInstance(oldSuperProcessToken.getSubProcessInstance(), session);
+			} catch (Throwable t) {
+				logger.error("Unable to build a sub-process instance of " + subProcessMigrator.getProcessDefinitionName() + ".", t);
+				failure = t;
+			}
+		}
+	}
+
+	private static class SubProcessBuildQueue {
+		private final SubProcessBuild[] builds;
+		private int next;
+
+		private SubProcessBuildQueue(SubProcessBuild[] builds) {
+			this.builds = builds;
+		}
+
+		/**
+		 * @return the next build, or null once every build has been taken.
+		 */
+		private synchronized SubProcessBuild take() {
+			return next < builds.length ? builds[next++] : null;
+		}
+	}
+
+	private static class SubProcessWorker extends Thread {
+		private final SubProcessBuildQueue queue;
+
+		private SubProcessWorker(int index, SubProcessBuildQueue queue) {
+			super("jbpm-migrator-sub-process-" + index);
+			this.queue = queue;
+			setDaemon(true);
+		}
+
+		public void run() {
+			SubProcessBuild build;
+			while ((build = queue.take()) != null) {
+				build.build();
+			}
+		}
+	}
 }
@@ -0,0 +1,217 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.jbpm.JbpmContext;
+import org.jbpm.graph.exe.ProcessInstance;
+import org.jbpm.instance.migration.util.JbpmInstanceMigratorLogger;
+
+/**
+ * A registry of Migrators, keyed by the name of the ProcessDefinition they migrate. Each registered Migrator (and 
+ * its registered sub-process migrators) is built once, when it is first requested, and the registry hands out copies 
+ * of it that are bound to the caller's JbpmContext (see {@link Migrator#withJbpmContext(JbpmContext)}). The copies 
+ * share the compiled {@link StateNodeMap}, so the Migrations are only looked up and compiled once per registration. 
+ * Alternatively, {@link #getMigrator(String)} returns the registered Migrator itself, which each thread may use with 
+ * its own {@link MigrationSession}. A registered Migrator is {@link Migrator#isFrozen() frozen}, so it cannot be 
+ * changed by one of the threads that share it.
+ * 
+ * A registry may be used by several threads at once. Most applications share the one returned by {@link #getInstance()}.
+ * 
+ * @see Migrator
+ * @author Caleb Powell <caleb.powell@gmail.com> 
+ */
+public class MigratorRegistry {
+
+	private static Logger logger = Logger.getLogger(JbpmInstanceMigratorLogger.class);
+	private static final MigratorRegistry instance = new MigratorRegistry();
+	private final Map registrations = new HashMap();
+	private final Map migrators = new HashMap();
+
+	/**
+	 * @return the registry shared by the application.
+	 */
+	public static MigratorRegistry getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Registers the migrator of a ProcessDefinition, replacing any previous registration of it.
+	 * @param processDefinitionName The name of the ProcessDefinition.
+	 * @param baseClassName The base name of the migration classes (see {@link MigrationUtils#lookupMigrationsFor(String)}).
+	 * @param subProcessDefinitionNames The names of the registered ProcessDefinitions whose migrators are used for 
+	 * sub processes, or null. Other sub processes are migrated by a default Migrator.
+	 */
+	public void register(String processDefinitionName, String baseClassName, String[] subProcessDefinitionNames) {
+		register(new Registration(processDefinitionName, baseClassName, null, subProcessDefinitionNames));
+	}
+
+	/**
+	 * Registers the migrator of a ProcessDefinition, replacing any previous registration of it.
+	 * @param processDefinitionName The name of the ProcessDefinition.
+	 * @param migrations The Migrations of the ProcessDefinition.
+	 * @param subProcessDefinitionNames The names of the registered ProcessDefinitions whose migrators are used for 
+	 * sub processes, or null. Other sub processes are migrated by a default Migrator.
+	 */
+	public void register(String processDefinitionName, Migration[] migrations, String[] subProcessDefinitionNames) {
+		register(new Registration(processDefinitionName, null, migrations, subProcessDefinitionNames));
+	}
+
+	private synchronized void register(Registration registration) {
+		registrations.put(registration.processDefinitionName, registration);
+		invalidate(registration.processDefinitionName);
+	}
+
+	public synchronized boolean isRegistered(String processDefinitionName) {
+		return registrations.containsKey(processDefinitionName);
+	}
+
+	/**
+	 * Returns a Migrator for the named ProcessDefinition that is bound to the jbpmContext, building the registered 
+	 * Migrator first if this is the first request for it (or for it since it was refreshed).
+	 * @param processDefinitionName
+	 * @param jbpmContext
+	 * @return a copy of the registered Migrator. MigrationHandlers added to it are not added to the registered Migrator.
+	 * @throws InvalidMigrationException if no Migrator has been registered for the ProcessDefinition, or if the 
+	 * sub-process migrators of a registration refer to each other in a cycle.
+	 */
+	public Migrator getMigrator(String processDefinitionName, JbpmContext jbpmContext) {
+		return getMigrator(processDefinitionName).withJbpmContext(jbpmContext);
+	}
+
+	/**
+	 * Returns the registered Migrator of the named ProcessDefinition, building it first if this is the first request 
+	 * for it (or for it since it was refreshed). The Migrator is shared, and has no JbpmContext of its own, so it 
+	 * must be used with a {@link MigrationSession} (see {@link Migrator#migrate(ProcessInstance, MigrationSession)}). 
+	 * It is {@link Migrator#isFrozen() frozen}, so it cannot be given MigrationHandlers or otherwise changed.
+	 * @param processDefinitionName
+	 * @return the registered Migrator.
+	 * @throws InvalidMigrationException if no Migrator has been registered for the ProcessDefinition, or if the 
+	 * sub-process migrators of a registration refer to each other in a cycle.
+	 */
+	public synchronized Migrator getMigrator(String processDefinitionName) {
+		return build(processDefinitionName, new HashSet());
+	}
+
+	private Migrator build(String processDefinitionName, Set processDefinitionNamesBeingBuilt) {
+		Migrator migrator = (Migrator) migrators.get(processDefinitionName);
+		if(migrator != null) {
+			return migrator;
+		}
+		
+		Registration registration = (Registration) registrations.get(processDefinitionName);
+		if(registration == null) {
+			String errorMessage = "No migrator has been registered for the " + processDefinitionName + " ProcessDefinition.";
+			logger.error(errorMessage);
+			throw new InvalidMigrationException(errorMessage);
+		}
+		if(!processDefinitionNamesBeingBuilt.add(processDefinitionName)) {
+			String errorMessage = "The sub-process migrators of the " + processDefinitionName + " ProcessDefinition refer to each other in a cycle.";
+			logger.error(errorMessage);
+			throw new InvalidMigrationException(errorMessage);
+		}
+		
+		Migrator[] subProcessMigrators = new Migrator[registration.subProcessDefinitionNames.length];
+		for (int i = 0; i < subProcessMigrators.length; i++) {
+			subProcessMigrators[i] = build(registration.subProcessDefinitionNames[i], processDefinitionNamesBeingBuilt);
+		}
+		logger.info("Building the registered migrator of the " + processDefinitionName + " ProcessDefinition.");
+		Migration[] migrations = registration.migrations != null ? registration.migrations : MigrationUtils.lookupMigrationsFor(registration.baseClassName);
+		migrator = new Migrator(processDefinitionName, null, migrations, subProcessMigrators);
+		migrator.freeze();
+		migrators.put(processDefinitionName, migrator);
+		processDefinitionNamesBeingBuilt.remove(processDefinitionName);
+		return migrator;
+	}
+
+	/**
+	 * Discards every built Migrator and the Migration classes that have been looked up (see 
+	 * {@link MigrationUtils#refreshMigrationIndex()}), so that they are built again when they are next requested. 
+	 * The registrations are kept. Copies that have already been handed out are not affected.
+	 */
+	public synchronized void refresh() {
+		MigrationUtils.refreshMigrationIndex();
+		migrators.clear();
+	}
+
+	/**
+	 * Discards the built Migrator of the named ProcessDefinition, and those of the registrations that use it as a 
+	 * sub-process migrator, so that they are built again when they are next requested.
+	 * @param processDefinitionName
+	 */
+	public synchronized void refresh(String processDefinitionName) {
+		MigrationUtils.refreshMigrationIndex();
+		invalidate(processDefinitionName);
+	}
+
+	/**
+	 * Discards every registration and built Migrator.
+	 */
+	public synchronized void clear() {
+		registrations.clear();
+		migrators.clear();
+	}
+
+	/**
+	 * A registration can only be built once its sub-process migrators have been, so the walk up the registrations 
+	 * stops at the first Migrator that has not been built.
+	 */
+	private void invalidate(String processDefinitionName) {
+		if(migrators.remove(processDefinitionName) == null) {
+			return;
+		}
+		for (Iterator iterator = registrations.values().iterator(); iterator.hasNext();) {
+			Registration registration = (Registration) iterator.next();
+			if(registration.usesSubProcessMigrator(processDefinitionName)) {
+				invalidate(registration.processDefinitionName);
+			}
+		}
+	}
+
+	private static class Registration {
+		private final String processDefinitionName;
+		private final String baseClassName;
+		private final Migration[] migrations;
+		private final String[] subProcessDefinitionNames;
+
+		private Registration(String processDefinitionName, String baseClassName, Migration[] migrations, String[] subProcessDefinitionNames) {
+			this.processDefinitionName = processDefinitionName;
+			this.baseClassName = baseClassName;
+			this.migrations = migrations;
+			this.subProcessDefinitionNames = subProcessDefinitionNames != null ? subProcessDefinitionNames : new String[0];
+		}
+
+		private boolean usesSubProcessMigrator(String processDefinitionName) {
+			for (int i = 0; i < subProcessDefinitionNames.length; i++) {
+				if(subProcessDefinitionNames[i].equals(processDefinitionName)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,182 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.jbpm.graph.def.Node;
+import org.jbpm.graph.def.ProcessDefinition;
+import org.jbpm.graph.def.SuperState;
+import org.jbpm.instance.migration.util.MigratorValiditionUtil;
+
+/**
+ * A precompiled table that maps each node of a source ProcessDefinition version to the node of the
+ * target ProcessDefinition that its tokens will be migrated to. The table is built once for a 
+ * (source version, target version) pair, so that mapping a token is a single hash lookup rather than 
+ * a {@link StateNodeMap} lookup followed by a {@link ProcessDefinition#findNode(String)} path parse.
+ * 
+ * Nodes that are mapped to a {@link DynamicMigration} cannot be resolved in advance; their entries
+ * record the DynamicMigration class name instead.
+ * 
+ * @see Migrator
+ * @author Caleb Powell <caleb.powell@gmail.com> 
+ */
+public class NodeResolutionTable {
+
+	private final ProcessDefinition sourceDefinition;
+	private final ProcessDefinition targetDefinition;
+	private final StateNodeMap nodeMap;
+	private final Map entries = new HashMap();
+
+	/**
+	 * Compiles the table for every node in the sourceDefinition.
+	 * @param sourceDefinition The ProcessDefinition version that tokens are migrated from.
+	 * @param targetDefinition The ProcessDefinition version that tokens are migrated to.
+	 * @param nodeMap The composite map of deprecated and current node names.
+	 */
+	public NodeResolutionTable(ProcessDefinition sourceDefinition, ProcessDefinition targetDefinition, StateNodeMap nodeMap) {
+		this.sourceDefinition = sourceDefinition;
+		this.targetDefinition = targetDefinition;
+		this.nodeMap = nodeMap;
+		compile(sourceDefinition.getNodes());
+	}
+
+	/**
+	 * @param sourceNode A node belonging to this table's source ProcessDefinition.
+	 * @return The resolved mapping for the sourceNode.
+	 */
+	public Entry lookup(Node sourceNode) {
+		Object key = keyFor(sourceNode);
+		synchronized (entries) {
+			Entry entry = (Entry) entries.get(key);
+			if(entry == null) {
+				entry = resolve(sourceNode);
+				entries.put(key, entry);
+			}
+			return entry;
+		}
+	}
+
+	/**
+	 * @return an Iterator over the table's {@link Entry}s.
+	 */
+	public Iterator entries() {
+		synchronized (entries) {
+			return new HashMap(entries).values().iterator();
+		}
+	}
+
+	public ProcessDefinition getSourceDefinition() {
+		return sourceDefinition;
+	}
+
+	public ProcessDefinition getTargetDefinition() {
+		return targetDefinition;
+	}
+
+	/**
+	 * @param sourceDefinition
+	 * @param targetDefinition
+	 * @return true if this table was compiled for the given pair of ProcessDefinitions.
+	 */
+	public boolean isCompiledFor(ProcessDefinition sourceDefinition, ProcessDefinition targetDefinition) {
+		return this.sourceDefinition == sourceDefinition && this.targetDefinition == targetDefinition;
+	}
+
+	private void compile(List nodes) {
+		for (int i = 0; nodes != null && i < nodes.size(); i++) {
+			Node node = (Node) nodes.get(i);
+			entries.put(keyFor(node), resolve(node));
+			if(node instanceof SuperState) {
+				compile(((SuperState) node).getNodes());
+			}
+		}
+	}
+
+	private Entry resolve(Node sourceNode) {
+		String sourceNodeName = sourceNode.getFullyQualifiedName();
+		String currentNodeName = nodeMap.containsDeprecatedNodeName(sourceNodeName) ? nodeMap.getCurrentNodeName(sourceNodeName) : sourceNodeName;
+		if(MigrationUtils.isDynamicNodeName(currentNodeName)) {
+			return new Entry(sourceNodeName, currentNodeName, null, MigrationUtils.parseClassNameFromDynamicNode(currentNodeName));
+		}
+		return new Entry(sourceNodeName, currentNodeName, MigratorValiditionUtil.findNode(targetDefinition, currentNodeName), null);
+	}
+
+	/**
+	 * Persistent nodes are keyed by their id, since a token's node may be a different (proxy) object than 
+	 * the one held by the ProcessDefinition. Nodes that have not been persisted are keyed by name.
+	 */
+	private static Object keyFor(Node node) {
+		return node.getId() != 0 ? (Object) new Long(node.getId()) : node.getFullyQualifiedName();
+	}
+
+	/**
+	 * A resolved mapping from a source node to a target node.
+	 */
+	public static class Entry {
+		private final String sourceNodeName;
+		private final String currentNodeName;
+		private final Node targetNode;
+		private final String dynamicMigrationClassName;
+
+		private Entry(String sourceNodeName, String currentNodeName, Node targetNode, String dynamicMigrationClassName) {
+			this.sourceNodeName = sourceNodeName;
+			this.currentNodeName = currentNodeName;
+			this.targetNode = targetNode;
+			this.dynamicMigrationClassName = dynamicMigrationClassName;
+		}
+
+		/**
+		 * @return the fully qualified name of the source node.
+		 */
+		public String getSourceNodeName() {
+			return sourceNodeName;
+		}
+
+		/**
+		 * @return the name the source node maps to in the composite node map (which may be a <i>java://</i> node name).
+		 */
+		public String getCurrentNodeName() {
+			return currentNodeName;
+		}
+
+		/**
+		 * @return the target node, or null if the entry is dynamic or the target ProcessDefinition does not contain the current node.
+		 */
+		public Node getTargetNode() {
+			return targetNode;
+		}
+
+		/**
+		 * @return true if the target node must be determined by a {@link DynamicMigration}.
+		 */
+		public boolean isDynamic() {
+			return dynamicMigrationClassName != null;
+		}
+
+		public String getDynamicMigrationClassName() {
+			return dynamicMigrationClassName;
+		}
+	}
+}
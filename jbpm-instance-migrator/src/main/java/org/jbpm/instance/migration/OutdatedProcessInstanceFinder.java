@@ -0,0 +1,180 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.Session;
+import org.jbpm.JbpmContext;
+import org.jbpm.instance.migration.util.JbpmInstanceMigratorLogger;
+
+/**
+ * Finds the ids of the ProcessInstances that require migration without loading them. 
+ * 
+ * A ProcessInstance is selected if it has not ended, is not itself a sub process, and either its own 
+ * ProcessDefinition or that of any of its (nested) sub processes is older than the latest deployed version; the same 
+ * rule as {@link MigrationUtils#requiresMigration(org.jbpm.graph.exe.ProcessInstance, JbpmContext)}. The selection is 
+ * done with HQL projections of ids, so no ProcessInstances, Tokens or ProcessDefinitions are hydrated: 
+ * <ol>
+ * <li>The ProcessInstances whose own definition is outdated are scrolled from the database.</li>
+ * <li>The owners of outdated sub processes are found with a single query, and then followed up the sub process 
+ * hierarchy with 'in' queries of at most {@link #getBatchSize()} ids.</li>
+ * </ol>
+ * <pre>
+ * ProcessInstanceIdIterator ids = new OutdatedProcessInstanceFinder(jbpmContext).findOutdatedProcessInstanceIds("FooProcess");
+ * try {
+ *	while (ids.hasNext()) {
+ *		Long id = (Long) ids.next();
+ *		...
+ *	}
+ * } finally {
+ *	ids.close();
+ * }
+ * </pre>
+ * @author Caleb Powell <caleb.powell@gmail.com> 
+ */
+public class OutdatedProcessInstanceFinder {
+
+	/**
+	 * The default maximum number of ids bound to a single 'in' clause.
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 500;
+
+	private static final String OUTDATED_PROCESS_INSTANCES_QUERY = 
+		"select pi.id from org.jbpm.graph.exe.ProcessInstance as pi " +
+		"where pi.processDefinition.name = :processDefinitionName " +
+		"and pi.end is null " +
+		"and pi.superProcessToken is null " +
+		"and pi.processDefinition.version < " +
+		"(select max(pd.version) from org.jbpm.graph.def.ProcessDefinition as pd where pd.name = :processDefinitionName) " +
+		"order by pi.id";
+
+	private static final String OWNERS_OF_OUTDATED_SUB_PROCESSES_QUERY = 
+		"select distinct token.processInstance.id from org.jbpm.graph.exe.Token as token " +
+		"where token.subProcessInstance is not null " +
+		"and token.subProcessInstance.processDefinition.version < " +
+		"(select max(pd.version) from org.jbpm.graph.def.ProcessDefinition as pd where pd.name = token.subProcessInstance.processDefinition.name)";
+
+	private static final String OWNERS_OF_SUB_PROCESSES_QUERY = 
+		"select distinct token.processInstance.id from org.jbpm.graph.exe.Token as token " +
+		"where token.subProcessInstance.id in (:subProcessInstanceIds)";
+
+	private static final String ACTIVE_ROOT_PROCESS_INSTANCES_QUERY = 
+		"select pi.id from org.jbpm.graph.exe.ProcessInstance as pi " +
+		"where pi.id in (:processInstanceIds) " +
+		"and pi.processDefinition.name = :processDefinitionName " +
+		"and pi.end is null " +
+		"and pi.superProcessToken is null";
+
+	private static Logger logger = Logger.getLogger(JbpmInstanceMigratorLogger.class);
+	private final JbpmContext jbpmContext;
+	private int batchSize = DEFAULT_BATCH_SIZE;
+
+	/**
+	 * @param jbpmContext The context whose session is used to run the queries.
+	 */
+	public OutdatedProcessInstanceFinder(JbpmContext jbpmContext) {
+		this.jbpmContext = jbpmContext;
+	}
+
+	/**
+	 * Returns the ids of the named ProcessDefinition's ProcessInstances that require migration. 
+	 * @param processDefinitionName
+	 * @return the ids in ascending order. The caller must {@link ProcessInstanceIdIterator#close()} the iterator if it 
+	 * is not read to the end. 
+	 */
+	public ProcessInstanceIdIterator findOutdatedProcessInstanceIds(String processDefinitionName) {
+		Session session = jbpmContext.getSession();
+		long[] ownersOfOutdatedSubProcesses = findOwnersOfOutdatedSubProcesses(session, processDefinitionName);
+		logger.debug("Found " + ownersOfOutdatedSubProcesses.length + " '" + processDefinitionName + "' process instance(s) with outdated sub processes.");
+		
+		Query query = session.createQuery(OUTDATED_PROCESS_INSTANCES_QUERY);
+		query.setString("processDefinitionName", processDefinitionName);
+		query.setFetchSize(batchSize);
+		return new ProcessInstanceIdIterator(query.scroll(ScrollMode.FORWARD_ONLY), ownersOfOutdatedSubProcesses);
+	}
+
+	/**
+	 * Follows each outdated sub process up to its root ProcessInstance, and returns the sorted ids of the active 
+	 * roots that belong to the named ProcessDefinition.
+	 */
+	private long[] findOwnersOfOutdatedSubProcesses(Session session, String processDefinitionName) {
+		Set visited = new HashSet();
+		List owners = session.createQuery(OWNERS_OF_OUTDATED_SUB_PROCESSES_QUERY).list();
+		while (!owners.isEmpty()) {
+			List unvisited = new ArrayList();
+			for (Iterator iterator = owners.iterator(); iterator.hasNext();) {
+				Object id = iterator.next();
+				if(visited.add(id)) {
+					unvisited.add(id);
+				}
+			}
+			owners = queryInBatches(session, OWNERS_OF_SUB_PROCESSES_QUERY, "subProcessInstanceIds", unvisited, null);
+		}
+		
+		List roots = queryInBatches(session, ACTIVE_ROOT_PROCESS_INSTANCES_QUERY, "processInstanceIds", new ArrayList(visited), processDefinitionName);
+		long[] ids = new long[roots.size()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = ((Number) roots.get(i)).longValue();
+		}
+		Arrays.sort(ids);
+		return ids;
+	}
+
+	private List queryInBatches(Session session, String hql, String parameterName, List ids, String processDefinitionName) {
+		List results = new ArrayList();
+		for (int from = 0; from < ids.size(); from += batchSize) {
+			Query query = session.createQuery(hql);
+			query.setParameterList(parameterName, ids.subList(from, Math.min(from + batchSize, ids.size())));
+			if(processDefinitionName != null) {
+				query.setString("processDefinitionName", processDefinitionName);
+			}
+			results.addAll(query.list());
+		}
+		return results;
+	}
+
+	/**
+	 * @return the maximum number of ids bound to a single 'in' clause, which is also the JDBC fetch size.
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * @param batchSize The maximum number of ids bound to a single 'in' clause. Keep it below your database's limit 
+	 * (e.g. 1000 for Oracle).
+	 */
+	public void setBatchSize(int batchSize) {
+		if(batchSize < 1) {
+			throw new IllegalArgumentException("The batchSize must be greater than zero.");
+		}
+		this.batchSize = batchSize;
+	}
+}
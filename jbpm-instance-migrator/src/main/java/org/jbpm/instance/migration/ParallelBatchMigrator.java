@@ -0,0 +1,282 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.jbpm.JbpmConfiguration;
+import org.jbpm.JbpmContext;
+import org.jbpm.instance.migration.util.BoundedBuffer;
+import org.jbpm.instance.migration.util.JbpmInstanceMigratorLogger;
+
+/**
+ * Migrates a set of ProcessInstances, identified by id, with several worker threads. 
+ * 
+ * The ids are partitioned across the workers by hash (id modulo the number of workers), so a ProcessInstance is 
+ * always migrated by the same worker. Each worker migrates its ids in chunks; every chunk is migrated with a new 
+ * JbpmContext (and therefore its own session and transaction) and a {@link Migrator#withJbpmContext(JbpmContext) copy} 
+ * of the Migrator, which shares the compiled node map of the original.
+ * 
+ * Failures are handled as by the {@link BatchMigrator}, except that the workers own their transactions, so a failed 
+ * ProcessInstance is never thrown: its chunk is always migrated again, with a new JbpmContext. A chunk whose 
+ * transaction cannot be committed is rolled back and all of its ids are reported as failed.
+ * <pre>
+ * ParallelBatchMigrator parallelMigrator = new ParallelBatchMigrator(migrator, JbpmConfiguration.getInstance(), 8);
+ * parallelMigrator.setMaxConnections(6);
+ * BatchMigrationResult result = parallelMigrator.run(processInstanceIds.iterator());
+ * </pre>
+ * Each worker holds a database connection while it migrates a chunk, so the number of workers is limited to 
+ * {@link #setMaxConnections(int) maxConnections}; keep it below the size of the connection pool. The Migrator's 
+ * MigrationHandlers and {@link SharedDynamicMigration}s are shared by the workers and must be thread-safe.
+ * @see BatchMigrator
+ * @author Caleb Powell <caleb.powell@gmail.com> 
+ */
+public class ParallelBatchMigrator {
+
+	private static Logger logger = Logger.getLogger(JbpmInstanceMigratorLogger.class);
+	private final Migrator migrator;
+	private final JbpmConfiguration jbpmConfiguration;
+	private final int workerCount;
+	private int chunkSize = BatchMigrator.DEFAULT_CHUNK_SIZE;
+	private int maxConnections = Integer.MAX_VALUE;
+	private MigrationJournal journal;
+	private TaskInstanceMigrator taskInstanceMigrator;
+
+	/**
+	 * @param migrator The migrator whose copies are used by the workers.
+	 * @param jbpmConfiguration The configuration used to create each chunk's JbpmContext.
+	 * @param workerCount The number of worker threads.
+	 */
+	public ParallelBatchMigrator(Migrator migrator, JbpmConfiguration jbpmConfiguration, int workerCount) {
+		if(workerCount < 1) {
+			throw new IllegalArgumentException("The workerCount must be greater than zero.");
+		}
+		this.migrator = migrator;
+		this.jbpmConfiguration = jbpmConfiguration;
+		this.workerCount = workerCount;
+	}
+
+	/**
+	 * Migrates each of the ProcessInstances, returning once every worker has finished.
+	 * @param processInstanceIds An Iterator of ProcessInstance ids (as {@link Long}'s). It is read by the calling thread only.
+	 * @return the combined counts and chunk throughput of all workers.
+	 * @throws InvalidMigrationException if a worker stopped unexpectedly, or the calling thread was interrupted.
+	 */
+	public BatchMigrationResult run(Iterator processInstanceIds) {
+		Worker[] workers = new Worker[getEffectiveWorkerCount()];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Worker(i);
+		}
+		logger.info("Migrating with " + workers.length + " worker(s) in chunks of " + chunkSize + ".");
+		
+		List refusedIds = new ArrayList();
+		try {
+			for (int i = 0; i < workers.length; i++) {
+				workers[i].start();
+			}
+			while (processInstanceIds.hasNext()) {
+				Long processInstanceId = (Long) processInstanceIds.next();
+				if(!workers[partition(processInstanceId, workers.length)].processInstanceIds.put(processInstanceId)) {
+					refusedIds.add(processInstanceId);
+				}
+			}
+			join(workers);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InvalidMigrationException("Interrupted while waiting for the migration workers.", e);
+		} finally {
+			for (int i = 0; i < workers.length; i++) {
+				workers[i].processInstanceIds.close();
+			}
+		}
+		
+		BatchMigrationResult result = new BatchMigrationResult();
+		for (int i = 0; i < workers.length; i++) {
+			if(workers[i].failure != null) {
+				throw new InvalidMigrationException(workers[i].getName() + " stopped unexpectedly.", workers[i].failure);
+			}
+			result.merge(workers[i].result);
+		}
+		if(!refusedIds.isEmpty()) {
+			result.addFailedChunk(refusedIds, 0);
+		}
+		logger.info(result);
+		return result;
+	}
+
+	private void join(Worker[] workers) throws InterruptedException {
+		for (int i = 0; i < workers.length; i++) {
+			workers[i].processInstanceIds.close();
+		}
+		for (int i = 0; i < workers.length; i++) {
+			workers[i].join();
+		}
+	}
+
+	static int partition(Long processInstanceId, int partitionCount) {
+		return (int) Math.abs(processInstanceId.longValue() % partitionCount);
+	}
+
+	/**
+	 * @return the number of workers that will be started, i.e. the workerCount limited to maxConnections.
+	 */
+	public int getEffectiveWorkerCount() {
+		return Math.min(workerCount, maxConnections);
+	}
+
+	public int getWorkerCount() {
+		return workerCount;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * @param chunkSize The number of ProcessInstances a worker migrates per transaction. Defaults to {@link BatchMigrator#DEFAULT_CHUNK_SIZE}.
+	 */
+	public void setChunkSize(int chunkSize) {
+		if(chunkSize < 1) {
+			throw new IllegalArgumentException("The chunkSize must be greater than zero.");
+		}
+		this.chunkSize = chunkSize;
+	}
+
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * @param maxConnections The maximum number of database connections (and therefore workers) in use at once. Unlimited by default.
+	 */
+	public void setMaxConnections(int maxConnections) {
+		if(maxConnections < 1) {
+			throw new IllegalArgumentException("The maxConnections must be greater than zero.");
+		}
+		this.maxConnections = maxConnections;
+	}
+
+	public MigrationJournal getJournal() {
+		return journal;
+	}
+
+	/**
+	 * @param journal The journal shared by the workers, or null (the default) for no journal. Each worker journals a 
+	 * chunk once its transaction has been committed.
+	 * @see BatchMigrator#setJournal(MigrationJournal)
+	 */
+	public void setJournal(MigrationJournal journal) {
+		this.journal = journal;
+	}
+
+	public TaskInstanceMigrator getTaskInstanceMigrator() {
+		return taskInstanceMigrator;
+	}
+
+	/**
+	 * @param taskInstanceMigrator The task instance migrator shared by the workers, or null (the default) to leave the 
+	 * open TaskInstances on the old ProcessInstances.
+	 * @see BatchMigrator#setTaskInstanceMigrator(TaskInstanceMigrator)
+	 */
+	public void setTaskInstanceMigrator(TaskInstanceMigrator taskInstanceMigrator) {
+		this.taskInstanceMigrator = taskInstanceMigrator;
+	}
+
+	private class Worker extends Thread {
+		private final BoundedBuffer processInstanceIds = new BoundedBuffer(chunkSize * 2);
+		private final BatchMigrationResult result = new BatchMigrationResult();
+		private Throwable failure;
+
+		private Worker(int index) {
+			super("jbpm-migrator-worker-" + index);
+		}
+
+		public void run() {
+			try {
+				List chunk = nextChunk();
+				while (!chunk.isEmpty()) {
+					migrateChunk(chunk);
+					chunk = nextChunk();
+				}
+			} catch (Throwable t) {
+				logger.error(getName() + " stopped unexpectedly.", t);
+				failure = t;
+			} finally {
+				processInstanceIds.close();
+			}
+		}
+
+		private List nextChunk() throws InterruptedException {
+			List chunk = new ArrayList(chunkSize);
+			Object processInstanceId;
+			while (chunk.size() < chunkSize && (processInstanceId = processInstanceIds.take()) != null) {
+				chunk.add(processInstanceId);
+			}
+			return chunk;
+		}
+
+		private void migrateChunk(List chunk) {
+			long start = System.currentTimeMillis();
+			List failedIds = new ArrayList();
+			BatchMigrationResult chunkResult = null;
+			BatchMigrator batchMigrator = null;
+			boolean retry = true;
+			while (retry) {
+				retry = false;
+				chunkResult = null;
+				JbpmContext jbpmContext = jbpmConfiguration.createJbpmContext();
+				try {
+					batchMigrator = new BatchMigrator(migrator.withJbpmContext(jbpmContext), chunkSize);
+					batchMigrator.setCommitChunks(false);
+					batchMigrator.setJournal(journal);
+					batchMigrator.setTaskInstanceMigrator(taskInstanceMigrator);
+					chunkResult = batchMigrator.migrateChunk(chunk, failedIds, start);
+				} catch (BatchMigrator.FailedProcessInstanceException e) {
+					logger.warn(getName() + " is rolling back a chunk of " + chunk.size() + " process instance(s) to migrate it again without process instance[@id=" + e.getProcessInstanceId() + "].");
+					jbpmContext.setRollbackOnly();
+					failedIds.add(e.getProcessInstanceId());
+					result.addRetry();
+					retry = true;
+				} catch (RuntimeException e) {
+					logger.error(getName() + " is rolling back a chunk of " + chunk.size() + " process instance(s).", e);
+					jbpmContext.setRollbackOnly();
+				} finally {
+					try {
+						jbpmContext.close();
+					} catch (RuntimeException e) {
+						logger.error(getName() + " was unable to commit a chunk of " + chunk.size() + " process instance(s).", e);
+						chunkResult = null;
+						retry = false;
+					}
+				}
+			}
+			if(chunkResult != null) {
+				batchMigrator.writeJournal();
+				result.merge(chunkResult);
+			} else {
+				result.addFailedChunk(chunk, System.currentTimeMillis() - start);
+			}
+		}
+	}
+}
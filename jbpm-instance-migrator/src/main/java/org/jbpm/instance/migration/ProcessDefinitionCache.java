@@ -0,0 +1,185 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.jbpm.JbpmContext;
+import org.jbpm.graph.def.ProcessDefinition;
+import org.jbpm.instance.migration.util.JbpmInstanceMigratorLogger;
+
+/**
+ * Caches the latest {@link ProcessDefinition} for each ProcessDefinition name so that the
+ * {@link Migrator} does not have to query the GraphSession for every token and sub-process it 
+ * encounters. 
+ * 
+ * An entry is kept until it is explicitly invalidated (e.g. after a new version has been deployed), or 
+ * until it is older than the time to live given to the constructor. A cache is typically scoped to a 
+ * single batch of migrations, since the cached ProcessDefinitions belong to the session that loaded them.
+ * 
+ * @see Migrator#setProcessDefinitionCache(ProcessDefinitionCache)
+ * @author Caleb Powell <caleb.powell@gmail.com> 
+ */
+public class ProcessDefinitionCache {
+
+	/**
+	 * The time to live used by caches that never expire their entries.
+	 */
+	public static final long NO_EXPIRY = -1;
+	
+	private static Logger logger = Logger.getLogger(JbpmInstanceMigratorLogger.class);
+	private final Map entries = new HashMap();
+	private final long timeToLive;
+	private long hitCount;
+	private long missCount;
+
+	/**
+	 * Creates a cache whose entries remain valid until they are invalidated.
+	 */
+	public ProcessDefinitionCache() {
+		this(NO_EXPIRY);
+	}
+	
+	/**
+	 * @param timeToLive The number of milliseconds an entry remains valid, or {@link #NO_EXPIRY}.
+	 */
+	public ProcessDefinitionCache(long timeToLive) {
+		this.timeToLive = timeToLive;
+	}
+
+	/**
+	 * Returns the latest version of the named ProcessDefinition, querying the jbpmContext's GraphSession
+	 * only if the definition is not cached (or the cached entry has expired).
+	 * 
+	 * @param processName The name of the process definition.
+	 * @param jbpmContext The context to query, or null if the cache must not query.
+	 * @return the latest ProcessDefinition, or null if no ProcessDefinition of that name has been deployed.
+	 * @throws InvalidMigrationException if the definition is not cached and there is no jbpmContext to query.
+	 */
+	public synchronized ProcessDefinition findLatestProcessDefinition(String processName, JbpmContext jbpmContext) {
+		Entry entry = (Entry) entries.get(processName);
+		long now = System.currentTimeMillis();
+		if(entry != null && !entry.isExpired(now)) {
+			hitCount++;
+			return entry.processDefinition;
+		}
+		missCount++;
+		if(jbpmContext == null) {
+			String errorMessage = "The latest '" + processName + "' ProcessDefinition is not cached, and there is no JbpmContext to look it up with.";
+			logger.error(errorMessage);
+			throw new InvalidMigrationException(errorMessage);
+		}
+		ProcessDefinition processDefinition = jbpmContext.getGraphSession().findLatestProcessDefinition(processName);
+		if(processDefinition != null) {
+			logger.debug("Caching version [" + processDefinition.getVersion() + "] of the '" + processName + "' ProcessDefinition.");
+			entries.put(processName, new Entry(processDefinition, now));
+		}
+		return processDefinition;
+	}
+
+	/**
+	 * Caches the processDefinition as the latest version of its name, e.g. right after it has been deployed. 
+	 * @param processDefinition
+	 */
+	public synchronized void put(ProcessDefinition processDefinition) {
+		entries.put(processDefinition.getName(), new Entry(processDefinition, System.currentTimeMillis()));
+	}
+
+	/**
+	 * @return a cache of the current entries (including expired ones) that never expires. The copy can be read 
+	 * without a JbpmContext, e.g. by threads that must not use the session the ProcessDefinitions belong to.
+	 */
+	synchronized ProcessDefinitionCache snapshot() {
+		ProcessDefinitionCache snapshot = new ProcessDefinitionCache(NO_EXPIRY);
+		for (Iterator iterator = entries.values().iterator(); iterator.hasNext();) {
+			snapshot.put(((Entry) iterator.next()).processDefinition);
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Returns the version number of the latest named ProcessDefinition. This is answered from the in-memory
+	 * entries, so checking a ProcessInstance's version against the latest version does not touch the 
+	 * ProcessDefinition itself.
+	 * 
+	 * @param processName The name of the process definition.
+	 * @param jbpmContext
+	 * @return the version of the latest ProcessDefinition.
+	 * @throws InvalidMigrationException if no ProcessDefinition of that name has been deployed.
+	 */
+	public synchronized int getLatestVersion(String processName, JbpmContext jbpmContext) {
+		if(findLatestProcessDefinition(processName, jbpmContext) == null) {
+			String errorMessage = "Unable to find a ProcessDefinition named '" + processName + "'!";
+			logger.error(errorMessage);
+			throw new InvalidMigrationException(errorMessage);
+		}
+		return ((Entry) entries.get(processName)).version;
+	}
+
+	/**
+	 * Discards the cached entry for the named ProcessDefinition. Call this method after deploying a new
+	 * version of the ProcessDefinition.
+	 * @param processName
+	 */
+	public synchronized void invalidate(String processName) {
+		entries.remove(processName);
+	}
+
+	/**
+	 * Discards all of the cached entries.
+	 */
+	public synchronized void invalidateAll() {
+		entries.clear();
+	}
+
+	/**
+	 * @return the number of lookups that were answered from the cache.
+	 */
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * @return the number of lookups that required a GraphSession query.
+	 */
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	private class Entry {
+		private final ProcessDefinition processDefinition;
+		private final int version;
+		private final long created;
+
+		private Entry(ProcessDefinition processDefinition, long created) {
+			this.processDefinition = processDefinition;
+			this.version = processDefinition.getVersion();
+			this.created = created;
+		}
+
+		private boolean isExpired(long now) {
+			return timeToLive != NO_EXPIRY && now - created >= timeToLive;
+		}
+	}
+}
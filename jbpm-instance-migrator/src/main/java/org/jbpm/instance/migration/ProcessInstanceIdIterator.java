@@ -0,0 +1,109 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.hibernate.ScrollableResults;
+
+/**
+ * An {@link Iterator} over ProcessInstance ids (as {@link Long}'s), in ascending order and without duplicates. 
+ * 
+ * The ids are read from an open {@link ScrollableResults} as the iterator advances, merged with an array of ids 
+ * that were resolved up front. The iterator closes the ScrollableResults once it is exhausted; callers that stop 
+ * early must call {@link #close()}.
+ * 
+ * @see OutdatedProcessInstanceFinder
+ * @author Caleb Powell <caleb.powell@gmail.com> 
+ */
+public class ProcessInstanceIdIterator implements Iterator {
+
+	private ScrollableResults scrollableResults;
+	private final long[] resolvedIds;
+	private int resolvedIndex = 0;
+	private Long scrolledId;
+	private Long nextId;
+	private long lastId = Long.MIN_VALUE;
+
+	/**
+	 * @param scrollableResults The ids to scroll, ordered by id. The first column of each row must be the id.
+	 * @param resolvedIds Additional ids, sorted in ascending order.
+	 */
+	ProcessInstanceIdIterator(ScrollableResults scrollableResults, long[] resolvedIds) {
+		this.scrollableResults = scrollableResults;
+		this.resolvedIds = resolvedIds;
+		this.scrolledId = scroll();
+		this.nextId = advance();
+	}
+
+	public boolean hasNext() {
+		return nextId != null;
+	}
+
+	public Object next() {
+		if(nextId == null) {
+			throw new NoSuchElementException();
+		}
+		Long id = nextId;
+		nextId = advance();
+		return id;
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Releases the underlying ScrollableResults (and its JDBC cursor). Calling this method more than once has no effect.
+	 */
+	public void close() {
+		if(scrollableResults != null) {
+			scrollableResults.close();
+			scrollableResults = null;
+		}
+	}
+
+	private Long advance() {
+		while (scrolledId != null || resolvedIndex < resolvedIds.length) {
+			long id;
+			if(scrolledId != null && (resolvedIndex == resolvedIds.length || scrolledId.longValue() <= resolvedIds[resolvedIndex])) {
+				id = scrolledId.longValue();
+				scrolledId = scroll();
+			} else {
+				id = resolvedIds[resolvedIndex++];
+			}
+			if(id != lastId) {
+				lastId = id;
+				return new Long(id);
+			}
+		}
+		close();
+		return null;
+	}
+
+	private Long scroll() {
+		if(scrollableResults == null || !scrollableResults.next()) {
+			return null;
+		}
+		return new Long(((Number) scrollableResults.get(0)).longValue());
+	}
+}
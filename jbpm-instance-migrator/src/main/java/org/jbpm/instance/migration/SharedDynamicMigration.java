@@ -0,0 +1,33 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration;
+
+/**
+ * A marker interface for {@link DynamicMigration}s that are safe to share. A {@link DynamicMigrationCache} 
+ * creates a single instance of each SharedDynamicMigration and hands it out for every token it maps, 
+ * so implementations must be stateless (or otherwise thread-safe).
+ * 
+ * @see BatchScopedDynamicMigration
+ * @author Caleb Powell <caleb.powell@gmail.com> 
+ */
+public interface SharedDynamicMigration extends DynamicMigration {
+
+}
@@ -21,23 +21,33 @@
 package org.jbpm.instance.migration;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 
-import org.apache.commons.collections.MapUtils;
 import org.apache.commons.lang.StringUtils;
 
 /**
  * This class is used to compile a list of node name mappings for one or more Migrations.
- * It is is backed by a synchronized {@link HashMap}
+ * 
+ * Deprecated node names that supersede each other form a chain (e.g. 'a' => 'b', followed by 'b' => 'c').
+ * Rather than rewriting every entry of a chain when a link is added, the deprecated nodes that map to the same
+ * current node share a {@link NodeGroup}. Groups are merged union-find style, so adding a mapping, looking up a
+ * current node and checking for a current node all take near constant time. 
+ * 
+ * Once all the mappings have been added, {@link #compile()} produces an immutable {@link CompiledStateNodeMap} 
+ * snapshot that can be shared between threads without locking.
  * @author Caleb Powell <caleb.powell@gmail.com> 
  * @author David Harcombe <david.harcombe@intelliware.ca> 
  */
 public class StateNodeMap {
 
-	private final Map backingMap = MapUtils.synchronizedMap(new HashMap());
+	private final Map deprecatedNodes = new HashMap();
+	private final Map currentNodes = new HashMap();
+	private volatile boolean frozen = false;
 
 	public StateNodeMap() {
 	}
@@ -66,8 +76,9 @@ public class StateNodeMap {
 	 * @param deprecatedNodeName The name of a deprecated node.
 	 * @return The name of the node that supersedes the deprecated node.
 	 */
-	public String getCurrentNodeName(String deprecatedNodeName){
-		return (String) backingMap.get(deprecatedNodeName);
+	public synchronized String getCurrentNodeName(String deprecatedNodeName){
+		NodeGroup nodeGroup = (NodeGroup) deprecatedNodes.get(deprecatedNodeName);
+		return nodeGroup == null ? null : nodeGroup.find().currentNodeName;
 	}
 
 	/**
@@ -75,8 +86,8 @@ public class StateNodeMap {
 	 * @param nodeName
 	 * @return true if this map contains the deprecated node.
 	 */
-	public boolean containsDeprecatedNodeName(String nodeName){
-		return backingMap.containsKey(nodeName);
+	public synchronized boolean containsDeprecatedNodeName(String nodeName){
+		return deprecatedNodes.containsKey(nodeName);
 	}
 
 	/**
@@ -84,24 +95,25 @@ public class StateNodeMap {
 	 * @param nodeName
 	 * @return true if this map contains the current node.
 	 */
-	public boolean containsCurrentNodeName(String currentNodeName) {
-		return backingMap.containsValue(currentNodeName);
+	public synchronized boolean containsCurrentNodeName(String currentNodeName) {
+		return currentNodes.containsKey(currentNodeName);
 	}
 
 	/**
 	 * 
-	 * @return a Set of deprecated node names.
+	 * @return an unmodifiable copy of the Set of deprecated node names; it does not reflect mappings added later.
 	 */
-	public Set deprecatedNodeNames() {
-		return backingMap.keySet();
+	public synchronized Set deprecatedNodeNames() {
+		return Collections.unmodifiableSet(new HashSet(deprecatedNodes.keySet()));
 	}
 	
 	/**
 	 * 
-	 * @return a {@link Collection} of current node names.
+	 * @return an unmodifiable copy of the {@link Collection} of the distinct current node names; it does not reflect 
+	 * mappings added later.
 	 */
-	public Collection currentNodeNames() {
-		return backingMap.values();
+	public synchronized Collection currentNodeNames() {
+		return Collections.unmodifiableSet(new HashSet(currentNodes.keySet()));
 	}
 
 	/**
@@ -110,27 +122,86 @@ public class StateNodeMap {
 	 * @param currentNodeName
 	 * @throws {@link InvalidMigrationException} if the currentNodeName was previously added as a deprecated node.
 	 */
-	public void addNodeMapping(String deprecatedNodeName, String currentNodeName) {
+	public synchronized void addNodeMapping(String deprecatedNodeName, String currentNodeName) {
+		if(isFrozen()) {
+			throw new IllegalStateException("Invalid Node Mapping ['"+deprecatedNodeName+"' => '"+currentNodeName+"']! This node map has been frozen.");
+		}
 		if(this.containsDeprecatedNodeName(currentNodeName)) {
 			throw new InvalidMigrationException("Invalid Node Mapping ['"+deprecatedNodeName+"' => '"+currentNodeName+"']! The '"+currentNodeName+"' node was deprecated by a previous migration.");
 		}
-		updateCurrentNodeNames(deprecatedNodeName, currentNodeName);
-		backingMap.put(deprecatedNodeName, currentNodeName);
+		if(this.containsDeprecatedNodeName(deprecatedNodeName)) {
+			removeDeprecatedNode(deprecatedNodeName);
+		}
+		NodeGroup nodeGroup = updateCurrentNodeNames(deprecatedNodeName, currentNodeName);
+		nodeGroup.size++;
+		deprecatedNodes.put(deprecatedNodeName, nodeGroup);
+	}
+
+	/**
+	 * Prevents any further mappings from being added to this map. Once frozen, {@link #addNodeMapping(String, String)}
+	 * and {@link #addMigration(Migration)} throw an {@link IllegalStateException}.
+	 */
+	public void freeze() {
+		this.frozen = true;
+	}
+
+	/**
+	 * 
+	 * @return true if this map no longer accepts mappings.
+	 */
+	public boolean isFrozen() {
+		return this.frozen;
+	}
+
+	/**
+	 * Freezes this map and returns an immutable, compact snapshot of it. The snapshot does not lock on reads,
+	 * so a single instance can be shared by any number of concurrent migrations.
+	 * @return a {@link CompiledStateNodeMap} containing the mappings of this map.
+	 */
+	public synchronized CompiledStateNodeMap compile() {
+		freeze();
+		String[] deprecatedNodeNames = new String[deprecatedNodes.size()];
+		String[] currentNodeNames = new String[deprecatedNodes.size()];
+		int i = 0;
+		for (Iterator iterator = deprecatedNodes.entrySet().iterator(); iterator.hasNext(); i++) {
+			Map.Entry entry = (Map.Entry) iterator.next();
+			deprecatedNodeNames[i] = (String) entry.getKey();
+			currentNodeNames[i] = ((NodeGroup) entry.getValue()).find().currentNodeName;
+		}
+		return new CompiledStateNodeMap(deprecatedNodeNames, currentNodeNames);
 	}
 
 	/**
-	 * Searches the entries in the backingMap. If an Entry contains a value equal to the 
-	 * deprecatedNodeName, the value will be replaced with the currentNodeName. 
+	 * Re-points the deprecated nodes that map to the deprecatedNodeName at the currentNodeName. Rather than 
+	 * visiting each of those nodes, their group is renamed, or merged with the currentNodeName's group.
 	 * @param deprecatedNodeName The value that will be replaced
 	 * @param currentNodeName The replacement value
+	 * @return the group of the currentNodeName.
 	 */
-	private void updateCurrentNodeNames(String deprecatedNodeName, String currentNodeName) {
-		Iterator allEntries = this.backingMap.entrySet().iterator();
-		while (allEntries.hasNext()) {
-			Map.Entry entry = (Map.Entry) allEntries.next();
-			if (entry.getValue().equals(deprecatedNodeName)) {
-				entry.setValue(currentNodeName);
-			}
+	private NodeGroup updateCurrentNodeNames(String deprecatedNodeName, String currentNodeName) {
+		NodeGroup deprecatedGroup = (NodeGroup) currentNodes.remove(deprecatedNodeName);
+		NodeGroup currentGroup = (NodeGroup) currentNodes.get(currentNodeName);
+		if(deprecatedGroup == null && currentGroup == null) {
+			currentGroup = new NodeGroup();
+		} else if(currentGroup == null) {
+			currentGroup = deprecatedGroup;
+		} else if(deprecatedGroup != null) {
+			currentGroup = currentGroup.union(deprecatedGroup);
+		}
+		currentGroup.currentNodeName = currentNodeName;
+		currentNodes.put(currentNodeName, currentGroup);
+		return currentGroup;
+	}
+
+	/**
+	 * Removes a deprecated node so that it can be re-mapped. The nodes that were re-pointed through it by
+	 * earlier mappings keep their current node.
+	 * @param deprecatedNodeName
+	 */
+	private void removeDeprecatedNode(String deprecatedNodeName) {
+		NodeGroup nodeGroup = ((NodeGroup) deprecatedNodes.remove(deprecatedNodeName)).find();
+		if(--nodeGroup.size == 0) {
+			currentNodes.remove(nodeGroup.currentNodeName);
 		}
 	}
 
@@ -158,5 +229,47 @@ public class StateNodeMap {
 		}
 	}
 
-	
+	/**
+	 * A set of deprecated nodes that map to the same current node. Only the representative (root) group 
+	 * of a set holds a meaningful currentNodeName and size.
+	 */
+	private static class NodeGroup {
+		private NodeGroup parent = this;
+		private String currentNodeName;
+		private int size;
+
+		private NodeGroup find() {
+			NodeGroup root = this;
+			while (root.parent != root) {
+				root = root.parent;
+			}
+			NodeGroup nodeGroup = this;
+			while (nodeGroup != root) {
+				NodeGroup next = nodeGroup.parent;
+				nodeGroup.parent = root;
+				nodeGroup = next;
+			}
+			return root;
+		}
+
+		/**
+		 * Merges the smaller of the two groups into the larger one.
+		 * @return the root of the merged group.
+		 */
+		private NodeGroup union(NodeGroup other) {
+			NodeGroup root = this.find();
+			NodeGroup otherRoot = other.find();
+			if(root == otherRoot) {
+				return root;
+			}
+			if(root.size < otherRoot.size) {
+				NodeGroup swap = root;
+				root = otherRoot;
+				otherRoot = swap;
+			}
+			otherRoot.parent = root;
+			root.size += otherRoot.size;
+			return root;
+		}
+	}
 }
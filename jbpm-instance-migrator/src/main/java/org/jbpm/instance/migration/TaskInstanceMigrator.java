@@ -0,0 +1,366 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.jbpm.graph.def.Node;
+import org.jbpm.graph.exe.ProcessInstance;
+import org.jbpm.graph.exe.Token;
+import org.jbpm.graph.node.TaskNode;
+import org.jbpm.instance.migration.util.JbpmInstanceMigratorLogger;
+import org.jbpm.taskmgmt.def.Swimlane;
+import org.jbpm.taskmgmt.def.Task;
+import org.jbpm.taskmgmt.def.TaskMgmtDefinition;
+import org.jbpm.taskmgmt.exe.SwimlaneInstance;
+import org.jbpm.taskmgmt.exe.TaskInstance;
+import org.jbpm.taskmgmt.exe.TaskMgmtInstance;
+
+/**
+ * Moves the open TaskInstances of a chunk of migrated ProcessInstances, and the SwimlaneInstances that hold their 
+ * actor assignments, to the new ProcessInstances without loading them. 
+ * 
+ * A {@link Migrator} creates a token of the new ProcessInstance for each token of the old one, but leaves the 
+ * TaskInstances on the old tokens. For each chunk of (old, new) ProcessInstance pairs, a TaskInstanceMigrator: 
+ * <ol>
+ * <li>pairs each old token (including the tokens of sub processes) with the new token the Migrator created for it, as 
+ * recorded by the chunk's {@link MigrationSession} (which the BatchMigrator and the MigrationPipeline set to 
+ * {@link MigrationSession#setPairingTokens(boolean) pair tokens});</li>
+ * <li>selects the id, token and task name of the open TaskInstances of the old tokens, and the id and name of the 
+ * SwimlaneInstances of the old ProcessInstances, with HQL projections of at most {@link #getBatchSize()} ids;</li>
+ * <li>resolves each task by name in the node of its new token (or else in the task management definition of the 
+ * new ProcessInstance), and each swimlane by name;</li>
+ * <li>updates the foreign keys of the rows with one JDBC batch per table, incrementing their version.</li>
+ * </ol>
+ * The actor ids, pooled actors and comments of the TaskInstances stay with the rows they belong to. TaskInstances 
+ * whose task (and SwimlaneInstances whose swimlane) is not in the latest ProcessDefinition are left on the old 
+ * ProcessInstance and counted as {@link #getUnmappedCount() unmapped}. 
+ * <pre>
+ * BatchMigrator batchMigrator = new BatchMigrator(migrator);
+ * batchMigrator.setTaskInstanceMigrator(new TaskInstanceMigrator());
+ * </pre>
+ * The updates bypass the Hibernate session, so TaskInstances that were loaded before the move are stale; since the 
+ * move increments their version, changing them before the session is cleared fails with a StaleObjectStateException 
+ * rather than moving them back. The tasks must be moved before the old ProcessInstance is 
+ * ended, since ending a token loads its open TaskInstances and stops them from signalling; the {@link BatchMigrator} 
+ * and the {@link MigrationPipeline} therefore invoke the MigrationHandlers (e.g. an 
+ * {@link org.jbpm.instance.migration.handler.EndProcessMigrationHandler}) after the move when they have a 
+ * TaskInstanceMigrator. A TaskInstanceMigrator may be shared by threads that each migrate with their own JbpmContext.
+ * @see BatchMigrator#setTaskInstanceMigrator(TaskInstanceMigrator)
+ * @author Caleb Powell <caleb.powell@gmail.com> 
+ */
+public class TaskInstanceMigrator {
+
+	/**
+	 * The default maximum number of ids bound to a single 'in' clause.
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 500;
+
+	private static final String OPEN_TASK_INSTANCES_QUERY = 
+		"select ti.id, ti.token.id, ti.task.name from org.jbpm.taskmgmt.exe.TaskInstance as ti " +
+		"where ti.token.id in (:ids) " +
+		"and ti.end is null";
+
+	private static final String SWIMLANE_INSTANCES_QUERY = 
+		"select si.id, si.taskMgmtInstance.id, si.name from org.jbpm.taskmgmt.exe.SwimlaneInstance as si " +
+		"where si.taskMgmtInstance.id in (:ids)";
+
+	private static final String[] TASK_INSTANCE_PROPERTIES = new String[] {"token", "task", "taskMgmtInstance", "processInstance"};
+	private static final String[] SWIMLANE_INSTANCE_PROPERTIES = new String[] {"taskMgmtInstance", "swimlane"};
+
+	private static Logger logger = Logger.getLogger(JbpmInstanceMigratorLogger.class);
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private int taskInstanceCount;
+	private int swimlaneInstanceCount;
+	private int unmappedCount;
+
+	/**
+	 * Flushes the session's JbpmContext, so that the new ProcessInstances are inserted, and moves the open TaskInstances 
+	 * and the SwimlaneInstances of each old ProcessInstance to its new ProcessInstance. New ProcessInstances that have 
+	 * not been saved are skipped.
+	 * @param oldProcessInstances The migrated ProcessInstances of a chunk.
+	 * @param newProcessInstances The new ProcessInstances, in the same order as the oldProcessInstances.
+	 * @param migrationSession The session the ProcessInstances were migrated with, which must be 
+	 * {@link MigrationSession#setPairingTokens(boolean) pairing tokens} and must not have been cleared since.
+	 * @return the number of TaskInstances moved.
+	 * @throws IllegalArgumentException if the migrationSession is not pairing tokens.
+	 * @throws InvalidMigrationException if the rows could not be updated.
+	 */
+	public int migrate(List oldProcessInstances, List newProcessInstances, MigrationSession migrationSession) {
+		if(!migrationSession.isPairingTokens()) {
+			String errorMessage = "The task instances can only be moved with the session they were migrated with, which must be pairing tokens.";
+			logger.error(errorMessage);
+			throw new IllegalArgumentException(errorMessage);
+		}
+		if(oldProcessInstances.isEmpty()) {
+			return 0;
+		}
+		Session session = migrationSession.getJbpmContext().getSession();
+		session.flush();
+		
+		Map newTokens = new HashMap();
+		Map newTaskMgmtInstances = new HashMap();
+		for (int i = 0; i < oldProcessInstances.size(); i++) {
+			pairTokens((ProcessInstance) oldProcessInstances.get(i), (ProcessInstance) newProcessInstances.get(i), migrationSession, newTokens, newTaskMgmtInstances);
+		}
+		
+		List taskInstanceRows = resolveTaskInstances(session, newTokens);
+		List swimlaneInstanceRows = resolveSwimlaneInstances(session, newTaskMgmtInstances);
+		int movedTaskInstances = update(session, TaskInstance.class, TASK_INSTANCE_PROPERTIES, taskInstanceRows);
+		int movedSwimlaneInstances = update(session, SwimlaneInstance.class, SWIMLANE_INSTANCE_PROPERTIES, swimlaneInstanceRows);
+		synchronized (this) {
+			taskInstanceCount += movedTaskInstances;
+			swimlaneInstanceCount += movedSwimlaneInstances;
+		}
+		logger.debug("Moved " + movedTaskInstances + " task instance(s) and " + movedSwimlaneInstances + " swimlane instance(s) of " + oldProcessInstances.size() + " process instance(s).");
+		return movedTaskInstances;
+	}
+
+	/**
+	 * Adds the new token of each token of the oldProcessInstance (and of its sub processes) to the newTokens, keyed by the 
+	 * id of the old token, and the new TaskMgmtInstances to the newTaskMgmtInstances, keyed by the id of the old one.
+	 */
+	private void pairTokens(ProcessInstance oldProcessInstance, ProcessInstance newProcessInstance, final MigrationSession migrationSession, final Map newTokens, final Map newTaskMgmtInstances) {
+		if(newProcessInstance.getId() == 0) {
+			logger.debug("Not moving the task instances of process instance[@id=" + oldProcessInstance.getId() + "]; its new process instance was not saved.");
+			return;
+		}
+		final Map newProcessInstances = new HashMap();
+		newProcessInstances.put(new Long(oldProcessInstance.getId()), newProcessInstance);
+		TokenTreeWalker.PROCESS_INSTANCE_TREE.walk(oldProcessInstance, new TokenTreeWalker.Visitor() {
+			public boolean visitProcessInstance(ProcessInstance processInstance) {
+				ProcessInstance newProcessInstance = (ProcessInstance) newProcessInstances.get(new Long(processInstance.getId()));
+				if(newProcessInstance != null && processInstance.getTaskMgmtInstance() != null && newProcessInstance.getTaskMgmtInstance() != null) {
+					newTaskMgmtInstances.put(new Long(processInstance.getTaskMgmtInstance().getId()), newProcessInstance.getTaskMgmtInstance());
+				}
+				return true;
+			}
+
+			public boolean visitToken(Token token) {
+				Token newToken = migrationSession.findNewToken(token);
+				if(newToken == null || newToken.getId() == 0) {
+					return true;
+				}
+				newTokens.put(new Long(token.getId()), newToken);
+				if(token.getSubProcessInstance() != null && newToken.getSubProcessInstance() != null) {
+					newProcessInstances.put(new Long(token.getSubProcessInstance().getId()), newToken.getSubProcessInstance());
+				}
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * @return a row of ids (the TaskInstance, then the values of the {@link #TASK_INSTANCE_PROPERTIES}) for each 
+	 * open TaskInstance whose task could be resolved.
+	 */
+	private List resolveTaskInstances(Session session, Map newTokens) {
+		List rows = new ArrayList();
+		for (Iterator iterator = query(session, OPEN_TASK_INSTANCES_QUERY, new ArrayList(newTokens.keySet())).iterator(); iterator.hasNext();) {
+			Object[] taskInstance = (Object[]) iterator.next();
+			Token newToken = (Token) newTokens.get(new Long(((Number) taskInstance[1]).longValue()));
+			String taskName = (String) taskInstance[2];
+			Task task = taskName == null ? null : findTask(newToken, taskName);
+			if(task == null) {
+				logger.warn("Unable to move task instance[@id=" + taskInstance[0] + "]; the " + newToken.getProcessInstance().getProcessDefinition().getName() + 
+						" ProcessDefinition has no task named '" + taskName + "'.");
+				unmapped();
+				continue;
+			}
+			ProcessInstance newProcessInstance = newToken.getProcessInstance();
+			rows.add(new long[] {((Number) taskInstance[0]).longValue(), newToken.getId(), task.getId(), 
+					newProcessInstance.getTaskMgmtInstance().getId(), newProcessInstance.getId()});
+		}
+		return rows;
+	}
+
+	/**
+	 * @return the task named taskName of the newToken's node if it is a TaskNode, or else of the task management 
+	 * definition of the newToken's ProcessDefinition.
+	 */
+	private Task findTask(Token newToken, String taskName) {
+		Node node = newToken.getNode();
+		if(node instanceof TaskNode && ((TaskNode) node).getTask(taskName) != null) {
+			return ((TaskNode) node).getTask(taskName);
+		}
+		TaskMgmtDefinition taskMgmtDefinition = newToken.getProcessInstance().getProcessDefinition().getTaskMgmtDefinition();
+		return taskMgmtDefinition == null ? null : taskMgmtDefinition.getTask(taskName);
+	}
+
+	/**
+	 * @return a row of ids (the SwimlaneInstance, then the values of the {@link #SWIMLANE_INSTANCE_PROPERTIES}) for each 
+	 * SwimlaneInstance whose swimlane could be resolved.
+	 */
+	private List resolveSwimlaneInstances(Session session, Map newTaskMgmtInstances) {
+		List rows = new ArrayList();
+		for (Iterator iterator = query(session, SWIMLANE_INSTANCES_QUERY, new ArrayList(newTaskMgmtInstances.keySet())).iterator(); iterator.hasNext();) {
+			Object[] swimlaneInstance = (Object[]) iterator.next();
+			TaskMgmtInstance newTaskMgmtInstance = (TaskMgmtInstance) newTaskMgmtInstances.get(new Long(((Number) swimlaneInstance[1]).longValue()));
+			String swimlaneName = (String) swimlaneInstance[2];
+			TaskMgmtDefinition taskMgmtDefinition = newTaskMgmtInstance.getTaskMgmtDefinition();
+			Swimlane swimlane = taskMgmtDefinition == null || swimlaneName == null ? null : taskMgmtDefinition.getSwimlane(swimlaneName);
+			if(swimlane == null) {
+				logger.warn("Unable to move swimlane instance[@id=" + swimlaneInstance[0] + "]; the new process instance has no swimlane named '" + swimlaneName + "'.");
+				unmapped();
+				continue;
+			}
+			rows.add(new long[] {((Number) swimlaneInstance[0]).longValue(), newTaskMgmtInstance.getId(), swimlane.getId()});
+		}
+		return rows;
+	}
+
+	private List query(Session session, String hql, List ids) {
+		List results = new ArrayList();
+		for (int from = 0; from < ids.size(); from += batchSize) {
+			Query query = session.createQuery(hql);
+			query.setParameterList("ids", ids.subList(from, Math.min(from + batchSize, ids.size())));
+			results.addAll(query.list());
+		}
+		return results;
+	}
+
+	/**
+	 * Updates the foreign keys of each row of the entityClass's table with a single JDBC batch. The column names are 
+	 * taken from the Hibernate mapping; properties that the mapping does not have (e.g. the process instance of a 
+	 * TaskInstance in older versions of jBPM) are not updated. The version of a versioned entity is incremented, so 
+	 * that a session holding a stale copy of a row fails its optimistic lock check instead of moving it back.
+	 * @param rows The rows of ids, each the id of the entity followed by the ids of the properties.
+	 * @return the number of rows updated.
+	 */
+	private int update(Session session, Class entityClass, String[] properties, List rows) {
+		if(rows.isEmpty()) {
+			return 0;
+		}
+		ClassMetadata metadata = session.getSessionFactory().getClassMetadata(entityClass);
+		if(!(metadata instanceof AbstractEntityPersister)) {
+			String errorMessage = "Unable to find the table the " + entityClass.getName() + " class is mapped to.";
+			logger.error(errorMessage);
+			throw new InvalidMigrationException(errorMessage);
+		}
+		AbstractEntityPersister persister = (AbstractEntityPersister) metadata;
+		List mappedProperties = Arrays.asList(persister.getPropertyNames());
+		
+		StringBuffer sql = new StringBuffer("update ").append(persister.getTableName()).append(" set ");
+		List columns = new ArrayList();
+		for (int i = 0; i < properties.length; i++) {
+			if(mappedProperties.contains(properties[i])) {
+				sql.append(columns.isEmpty() ? "" : ", ").append(persister.getPropertyColumnNames(properties[i])[0]).append(" = ?");
+				columns.add(new Integer(i + 1));
+			}
+		}
+		if(persister.isVersioned()) {
+			String versionColumn = persister.getVersionColumnName();
+			sql.append(", ").append(versionColumn).append(" = ").append(versionColumn).append(" + 1");
+		}
+		sql.append(" where ").append(persister.getIdentifierColumnNames()[0]).append(" = ?");
+		
+		PreparedStatement statement = null;
+		try {
+			statement = session.connection().prepareStatement(sql.toString());
+			for (Iterator iterator = rows.iterator(); iterator.hasNext();) {
+				long[] row = (long[]) iterator.next();
+				for (int i = 0; i < columns.size(); i++) {
+					statement.setLong(i + 1, row[((Integer) columns.get(i)).intValue()]);
+				}
+				statement.setLong(columns.size() + 1, row[0]);
+				statement.addBatch();
+			}
+			int[] counts = statement.executeBatch();
+			int updated = 0;
+			for (int i = 0; i < counts.length; i++) {
+				updated += counts[i] < 0 ? 1 : counts[i];
+			}
+			return updated;
+		} catch (SQLException e) {
+			String errorMessage = "Unable to move the " + entityClass.getName() + " rows with '" + sql + "'.";
+			logger.error(errorMessage, e);
+			throw new InvalidMigrationException(errorMessage, e);
+		} finally {
+			close(statement);
+		}
+	}
+
+	private void close(PreparedStatement statement) {
+		if(statement != null) {
+			try {
+				statement.close();
+			} catch (SQLException e) {
+				logger.warn("Unable to close a statement.", e);
+			}
+		}
+	}
+
+	private synchronized void unmapped() {
+		unmappedCount++;
+	}
+
+	/**
+	 * @return the number of TaskInstances moved by this migrator.
+	 */
+	public synchronized int getTaskInstanceCount() {
+		return taskInstanceCount;
+	}
+
+	/**
+	 * @return the number of SwimlaneInstances moved by this migrator.
+	 */
+	public synchronized int getSwimlaneInstanceCount() {
+		return swimlaneInstanceCount;
+	}
+
+	/**
+	 * @return the number of TaskInstances and SwimlaneInstances that were left on their old ProcessInstance, because 
+	 * their task or swimlane is not in the latest ProcessDefinition.
+	 */
+	public synchronized int getUnmappedCount() {
+		return unmappedCount;
+	}
+
+	/**
+	 * @return the maximum number of ids bound to a single 'in' clause.
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * @param batchSize The maximum number of ids bound to a single 'in' clause. Keep it below your database's limit 
+	 * (e.g. 1000 for Oracle).
+	 */
+	public void setBatchSize(int batchSize) {
+		if(batchSize < 1) {
+			throw new IllegalArgumentException("The batchSize must be greater than zero.");
+		}
+		this.batchSize = batchSize;
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import org.jbpm.graph.exe.ProcessInstance;
+import org.jbpm.graph.exe.Token;
+
+/**
+ * Walks the token tree of a ProcessInstance depth first, visiting each token before its children, without recursion. 
+ * If the walker descends into sub processes, the sub process instance of a token is walked before the token's children.
+ * 
+ * The walk keeps its own stack of tokens and child iterators, so it allocates nothing per token beyond the iterator of 
+ * each token's children, and the depth of the tree is not limited by the depth of the thread's stack. A walker holds 
+ * no state between walks, so it may be shared between threads and used recursively (e.g. by a Visitor).
+ * 
+ * @see Migrator
+ * @author Caleb Powell <caleb.powell@gmail.com> 
+ */
+public class TokenTreeWalker {
+
+	/**
+	 * Walks the tokens of a single ProcessInstance.
+	 */
+	public static final TokenTreeWalker PROCESS_INSTANCE = new TokenTreeWalker(false);
+	/**
+	 * Walks the tokens of a ProcessInstance and of its nested sub process instances.
+	 */
+	public static final TokenTreeWalker PROCESS_INSTANCE_TREE = new TokenTreeWalker(true);
+	private static final int INITIAL_STACK_SIZE = 16;
+	private final boolean walkSubProcesses;
+
+	/**
+	 * @param walkSubProcesses true if the walker descends into the sub process instance of each token.
+	 */
+	public TokenTreeWalker(boolean walkSubProcesses) {
+		this.walkSubProcesses = walkSubProcesses;
+	}
+
+	/**
+	 * @param processInstance
+	 * @param visitor
+	 * @return true if every ProcessInstance and Token was visited, or false if the visitor stopped the walk.
+	 */
+	public boolean walk(ProcessInstance processInstance, Visitor visitor) {
+		if(!visitor.visitProcessInstance(processInstance)) {
+			return false;
+		}
+		Object[] stack = new Object[INITIAL_STACK_SIZE];
+		int size = 0;
+		stack[size++] = processInstance.getRootToken();
+		while (size > 0) {
+			Object top = stack[size - 1];
+			Token token;
+			if(top instanceof Iterator) {
+				Iterator children = (Iterator) top;
+				if(!children.hasNext()) {
+					stack[--size] = null;
+					continue;
+				}
+				token = (Token) children.next();
+			} else {
+				token = (Token) top;
+				stack[--size] = null;
+			}
+			
+			if(!visitor.visitToken(token)) {
+				return false;
+			}
+			
+			if(size + 2 > stack.length) {
+				Object[] grownStack = new Object[stack.length * 2];
+				System.arraycopy(stack, 0, grownStack, 0, size);
+				stack = grownStack;
+			}
+			Map children = token.getChildren();
+			if(children != null && !children.isEmpty()) {
+				stack[size++] = children.values().iterator();
+			}
+			ProcessInstance subProcessInstance = token.getSubProcessInstance();
+			if(walkSubProcesses && subProcessInstance != null) {
+				if(!visitor.visitProcessInstance(subProcessInstance)) {
+					return false;
+				}
+				stack[size++] = subProcessInstance.getRootToken();
+			}
+		}
+		return true;
+	}
+
+	public boolean isWalkingSubProcesses() {
+		return walkSubProcesses;
+	}
+
+	/**
+	 * Visited by a {@link TokenTreeWalker}. Either method may stop the walk by returning false.
+	 */
+	public interface Visitor {
+
+		/**
+		 * Invoked before the tokens of the processInstance are visited.
+		 * @param processInstance
+		 * @return false to stop the walk.
+		 */
+		boolean visitProcessInstance(ProcessInstance processInstance);
+
+		/**
+		 * Invoked before the children (and sub process instance) of the token are visited.
+		 * @param token
+		 * @return false to stop the walk.
+		 */
+		boolean visitToken(Token token);
+	}
+}
@@ -0,0 +1,218 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration.handler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.jbpm.graph.exe.ProcessInstance;
+import org.jbpm.instance.migration.InvalidMigrationException;
+import org.jbpm.instance.migration.util.BoundedBuffer;
+import org.jbpm.instance.migration.util.JbpmInstanceMigratorLogger;
+
+/**
+ * Runs a {@link MigrationSnapshotHandler} on threads of its own, so that slow handlers (e.g. notifications or index 
+ * updates) do not hold up the migration. 
+ * 
+ * The ProcessInstances of a chunk belong to the migrating thread's Hibernate session, which is not thread-safe, so 
+ * {@link #migrateInstances(List, List)} takes a {@link MigrationSnapshot} of each pair on the calling thread and 
+ * queues the snapshots, never the ProcessInstances. The snapshots are queued in a bounded buffer; when the buffer is 
+ * full, {@link #migrateInstances(List, List)} blocks until the handler threads catch up. A handler thread may take a 
+ * chunk as soon as it is queued, i.e. before the chunk is committed (or rolled back), so a handler that must only see 
+ * committed chunks should not be run asynchronously. Handlers that change the ProcessInstances (such as the 
+ * {@link EndProcessMigrationHandler}) must be added to the Migrator directly.
+ * 
+ * A chunk whose handler throws an exception is not retried. The first failure is kept, and is thrown (as an 
+ * {@link InvalidMigrationException}) by the next call to {@link #migrateInstances(List, List)}, {@link #flush()} or 
+ * {@link #close()}, which stops the batch at its next chunk. Call {@link #close()} once the batch has finished.
+ * <pre>
+ * AsyncBatchMigrationHandler notifier = new AsyncBatchMigrationHandler(new NotificationHandler(), 4, 1);
+ * migrator.addBatchMigrationHandler(notifier);
+ * try {
+ * 	new BatchMigrator(migrator).run(processInstanceIds.iterator());
+ * } finally {
+ * 	notifier.close();
+ * }
+ * </pre>
+ * @author Caleb Powell <caleb.powell@gmail.com> 
+ */
+public class AsyncBatchMigrationHandler implements BatchMigrationHandler {
+
+	private static Logger logger = Logger.getLogger(JbpmInstanceMigratorLogger.class);
+	private final MigrationSnapshotHandler handler;
+	private final BoundedBuffer chunks;
+	private final Thread[] threads;
+	private final Object lock = new Object();
+	private int pendingCount;
+	private int handledCount;
+	private Throwable failure;
+
+	/**
+	 * @param handler The handler invoked on the handler threads.
+	 * @param queueCapacity The number of chunks queued before {@link #migrateInstances(List, List)} blocks.
+	 * @param threadCount The number of handler threads.
+	 */
+	public AsyncBatchMigrationHandler(MigrationSnapshotHandler handler, int queueCapacity, int threadCount) {
+		if(threadCount < 1) {
+			throw new IllegalArgumentException("The threadCount must be greater than zero.");
+		}
+		this.handler = handler;
+		this.chunks = new BoundedBuffer(queueCapacity);
+		this.threads = new Thread[threadCount];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new HandlerThread(i);
+			threads[i].start();
+		}
+	}
+
+	/**
+	 * Queues the snapshots of the chunk for the handler threads.
+	 * @throws InvalidMigrationException if the handler failed on an earlier chunk, or this handler has been closed.
+	 */
+	public void migrateInstances(List oldProcessInstances, List newProcessInstances) {
+		checkFailure();
+		List chunk = new ArrayList(oldProcessInstances.size());
+		for (int i = 0; i < oldProcessInstances.size(); i++) {
+			chunk.add(MigrationSnapshot.create((ProcessInstance) oldProcessInstances.get(i), (ProcessInstance) newProcessInstances.get(i)));
+		}
+		synchronized (lock) {
+			pendingCount++;
+		}
+		boolean queued = false;
+		try {
+			queued = chunks.put(chunk);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InvalidMigrationException("Interrupted while queueing a chunk for the " + handler.getClass().getName() + " handler.", e);
+		} finally {
+			if(!queued) {
+				chunkDone();
+			}
+		}
+		if(!queued) {
+			throw new InvalidMigrationException("The " + handler.getClass().getName() + " handler has been closed.");
+		}
+	}
+
+	/**
+	 * Blocks until every queued chunk has been handled.
+	 * @throws InvalidMigrationException if the handler failed on any chunk.
+	 */
+	public void flush() {
+		synchronized (lock) {
+			while (pendingCount > 0) {
+				try {
+					lock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InvalidMigrationException("Interrupted while flushing the " + handler.getClass().getName() + " handler.", e);
+				}
+			}
+		}
+		checkFailure();
+	}
+
+	/**
+	 * Handles the queued chunks and stops the handler threads.
+	 * @throws InvalidMigrationException if the handler failed on any chunk.
+	 */
+	public void close() {
+		chunks.close();
+		try {
+			for (int i = 0; i < threads.length; i++) {
+				threads[i].join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InvalidMigrationException("Interrupted while closing the " + handler.getClass().getName() + " handler.", e);
+		}
+		checkFailure();
+	}
+
+	/**
+	 * @return the number of chunks handled (successfully or not).
+	 */
+	public int getHandledCount() {
+		synchronized (lock) {
+			return handledCount;
+		}
+	}
+
+	/**
+	 * @return the first exception thrown by the handler, or null.
+	 */
+	public Throwable getFailure() {
+		synchronized (lock) {
+			return failure;
+		}
+	}
+
+	private void checkFailure() {
+		Throwable failure = getFailure();
+		if(failure != null) {
+			throw new InvalidMigrationException("The " + handler.getClass().getName() + " handler failed.", failure);
+		}
+	}
+
+	private void chunkDone() {
+		synchronized (lock) {
+			pendingCount--;
+			lock.notifyAll();
+		}
+	}
+
+	private class HandlerThread extends Thread {
+		private HandlerThread(int index) {
+			super("jbpm-migrator-handler-" + index);
+			setDaemon(true);
+		}
+
+		public void run() {
+			try {
+				List chunk;
+				while ((chunk = (List) chunks.take()) != null) {
+					handle(chunk);
+				}
+			} catch (InterruptedException e) {
+				logger.error(getName() + " was interrupted.", e);
+			}
+		}
+
+		private void handle(List chunk) {
+			try {
+				handler.handleSnapshots(chunk);
+			} catch (Throwable t) {
+				logger.error("The " + handler.getClass().getName() + " handler failed on a chunk of " + chunk.size() + " process instance(s).", t);
+				synchronized (lock) {
+					if(failure == null) {
+						failure = t;
+					}
+				}
+			} finally {
+				synchronized (lock) {
+					handledCount++;
+				}
+				chunkDone();
+			}
+		}
+	}
+}
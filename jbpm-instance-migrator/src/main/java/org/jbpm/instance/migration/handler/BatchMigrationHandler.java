@@ -0,0 +1,48 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration.handler;
+
+import java.util.List;
+
+/**
+ * A handler that is invoked once for each chunk of migrated ProcessInstances, rather than once for each ProcessInstance. 
+ * 
+ * The {@link org.jbpm.instance.migration.BatchMigrator}, {@link org.jbpm.instance.migration.ParallelBatchMigrator} and 
+ * {@link org.jbpm.instance.migration.MigrationPipeline} invoke the handler on the chunk's thread once the new 
+ * ProcessInstances of the chunk have been saved (so they have ids) and their variables and open TaskInstances have 
+ * been moved, and before the chunk is committed, so changes the handler makes are committed with the chunk. An 
+ * exception thrown by the handler is not caught by the BatchMigrator: it is thrown by 
+ * {@link org.jbpm.instance.migration.BatchMigrator#run(java.util.Iterator)} before the chunk is committed. The 
+ * ParallelBatchMigrator and the MigrationPipeline roll the chunk back and report its ProcessInstances as failed. 
+ * {@link org.jbpm.instance.migration.Migrator#migrate(org.jbpm.graph.exe.ProcessInstance)} invokes the handler with a 
+ * single pair, before the caller saves the new ProcessInstance.
+ * @see org.jbpm.instance.migration.Migrator#addBatchMigrationHandler(BatchMigrationHandler)
+ * @see AsyncBatchMigrationHandler
+ * @author Caleb Powell <caleb.powell@gmail.com> 
+ */
+public interface BatchMigrationHandler {
+
+	/**
+	 * @param oldProcessInstances The migrated ProcessInstances.
+	 * @param newProcessInstances The new ProcessInstances, in the same order as the oldProcessInstances.
+	 */
+	public void migrateInstances(List oldProcessInstances, List newProcessInstances);
+}
@@ -20,14 +20,18 @@
  */
 package org.jbpm.instance.migration.handler;
 
+import java.util.Iterator;
+import java.util.List;
+
 import org.jbpm.graph.exe.ProcessInstance;
 
 /**
- * This handler can be used to end the oldProcessInstance.
+ * This handler can be used to end the oldProcessInstance. It ends the old ProcessInstances in the migrating session, 
+ * so it cannot be run by an {@link AsyncBatchMigrationHandler}, which only sees {@link MigrationSnapshot}s.
  * @author Caleb Powell <caleb.powell@gmail.com>
  *
  */
-public class EndProcessMigrationHandler implements MigrationHandler {
+public class EndProcessMigrationHandler implements MigrationHandler, BatchMigrationHandler {
 
 	/**
 	 * This implementation will invoke the end() method on the oldProcessInstance parameter.
@@ -38,4 +42,15 @@ public class EndProcessMigrationHandler implements MigrationHandler {
 		oldProcessInstance.end();
 	}
 
+	/**
+	 * This implementation will invoke the end() method on each of the oldProcessInstances.
+	 * @param oldProcessInstances
+	 * @param newProcessInstances
+	 */
+	public void migrateInstances(List oldProcessInstances, List newProcessInstances) {
+		for (Iterator iterator = oldProcessInstances.iterator(); iterator.hasNext();) {
+			((ProcessInstance) iterator.next()).end();
+		}
+	}
+
 }
@@ -0,0 +1,82 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration.handler;
+
+import org.jbpm.graph.exe.ProcessInstance;
+
+/**
+ * An immutable record of one migrated ProcessInstance: the ids of the old and new ProcessInstances, and the name and 
+ * version of the new ProcessInstance's ProcessDefinition. Unlike the ProcessInstances themselves, a snapshot belongs 
+ * to no Hibernate session, so it can be handed to other threads (see {@link AsyncBatchMigrationHandler}).
+ * @author Caleb Powell <caleb.powell@gmail.com> 
+ */
+public class MigrationSnapshot {
+
+	private final long oldProcessInstanceId;
+	private final long newProcessInstanceId;
+	private final String processDefinitionName;
+	private final int processDefinitionVersion;
+
+	public MigrationSnapshot(long oldProcessInstanceId, long newProcessInstanceId, String processDefinitionName, int processDefinitionVersion) {
+		this.oldProcessInstanceId = oldProcessInstanceId;
+		this.newProcessInstanceId = newProcessInstanceId;
+		this.processDefinitionName = processDefinitionName;
+		this.processDefinitionVersion = processDefinitionVersion;
+	}
+
+	/**
+	 * Takes a snapshot of a migrated pair. It must be called by the thread that uses the ProcessInstances' session, 
+	 * once the newProcessInstance has been saved (so it has an id).
+	 * @param oldProcessInstance
+	 * @param newProcessInstance
+	 */
+	public static MigrationSnapshot create(ProcessInstance oldProcessInstance, ProcessInstance newProcessInstance) {
+		return new MigrationSnapshot(oldProcessInstance.getId(), newProcessInstance.getId(), 
+				newProcessInstance.getProcessDefinition().getName(), newProcessInstance.getProcessDefinition().getVersion());
+	}
+
+	public long getOldProcessInstanceId() {
+		return oldProcessInstanceId;
+	}
+
+	public long getNewProcessInstanceId() {
+		return newProcessInstanceId;
+	}
+
+	/**
+	 * @return the name of the new ProcessInstance's ProcessDefinition.
+	 */
+	public String getProcessDefinitionName() {
+		return processDefinitionName;
+	}
+
+	/**
+	 * @return the version of the new ProcessInstance's ProcessDefinition.
+	 */
+	public int getProcessDefinitionVersion() {
+		return processDefinitionVersion;
+	}
+
+	public String toString() {
+		return "process instance[@id=" + oldProcessInstanceId + "] => [@id=" + newProcessInstanceId + "] (" + 
+			processDefinitionName + " version [" + processDefinitionVersion + "])";
+	}
+}
@@ -0,0 +1,36 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration.handler;
+
+import java.util.List;
+
+/**
+ * A handler of the {@link MigrationSnapshot}s of a chunk of migrated ProcessInstances, run by an 
+ * {@link AsyncBatchMigrationHandler} on a thread of its own.
+ * @author Caleb Powell <caleb.powell@gmail.com> 
+ */
+public interface MigrationSnapshotHandler {
+
+	/**
+	 * @param snapshots A List of {@link MigrationSnapshot}'s, one for each migrated ProcessInstance of the chunk.
+	 */
+	public void handleSnapshots(List snapshots);
+}
@@ -0,0 +1,104 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration.util;
+
+import java.util.LinkedList;
+
+/**
+ * A first-in first-out queue with a fixed capacity, used to hand work between the threads of the batch migrators. 
+ * {@link #put(Object)} blocks while the buffer is full and {@link #take()} blocks while it is empty. Once the buffer 
+ * is closed, puts are refused and takes drain the remaining elements before returning null.
+ * @author Caleb Powell <caleb.powell@gmail.com> 
+ */
+public class BoundedBuffer {
+
+	private final LinkedList elements = new LinkedList();
+	private final int capacity;
+	private boolean closed = false;
+
+	/**
+	 * @param capacity The maximum number of elements the buffer holds.
+	 */
+	public BoundedBuffer(int capacity) {
+		if(capacity < 1) {
+			throw new IllegalArgumentException("The capacity must be greater than zero.");
+		}
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Adds the element, waiting for space if the buffer is full.
+	 * @param element
+	 * @return false if the buffer was (or became) closed, in which case the element was not added.
+	 * @throws InterruptedException
+	 */
+	public synchronized boolean put(Object element) throws InterruptedException {
+		while (!closed && elements.size() >= capacity) {
+			wait();
+		}
+		if(closed) {
+			return false;
+		}
+		elements.addLast(element);
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Removes the oldest element, waiting for one if the buffer is empty.
+	 * @return the element, or null if the buffer is closed and empty.
+	 * @throws InterruptedException
+	 */
+	public synchronized Object take() throws InterruptedException {
+		while (!closed && elements.isEmpty()) {
+			wait();
+		}
+		if(elements.isEmpty()) {
+			return null;
+		}
+		Object element = elements.removeFirst();
+		notifyAll();
+		return element;
+	}
+
+	/**
+	 * Refuses any further elements and wakes the waiting threads. Elements already in the buffer can still be taken.
+	 */
+	public synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * @return the number of elements waiting to be taken.
+	 */
+	public synchronized int size() {
+		return elements.size();
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration.util;
+
+/**
+ * A set of primitive longs (e.g. ProcessInstance ids), which avoids the memory and allocation cost of a 
+ * java.util.Set of {@link Long}'s when millions of ids are held. The longs are kept in an open addressing hash 
+ * table. This class is not thread-safe.
+ * @author Caleb Powell <caleb.powell@gmail.com> 
+ */
+public class LongHashSet {
+
+	private static final int DEFAULT_CAPACITY = 1024;
+	private static final long EMPTY = 0;
+	
+	private long[] table;
+	private int size;
+	private boolean containsEmpty;
+
+	public LongHashSet() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param expectedSize The number of longs the set can hold before its table is resized.
+	 */
+	public LongHashSet(int expectedSize) {
+		int capacity = 2;
+		while (capacity < expectedSize * 2) {
+			capacity <<= 1;
+		}
+		this.table = new long[capacity];
+	}
+
+	/**
+	 * @param value
+	 * @return true if the value was not in the set.
+	 */
+	public boolean add(long value) {
+		if(value == EMPTY) {
+			if(containsEmpty) {
+				return false;
+			}
+			containsEmpty = true;
+			size++;
+			return true;
+		}
+		int index = indexOf(table, value);
+		if(table[index] == value) {
+			return false;
+		}
+		table[index] = value;
+		if(++size * 2 > table.length) {
+			resize();
+		}
+		return true;
+	}
+
+	public boolean contains(long value) {
+		if(value == EMPTY) {
+			return containsEmpty;
+		}
+		return table[indexOf(table, value)] == value;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return the index of the value in the table, or of the empty slot it would be put in.
+	 */
+	private static int indexOf(long[] table, long value) {
+		int mask = table.length - 1;
+		int index = hash(value) & mask;
+		while (table[index] != EMPTY && table[index] != value) {
+			index = (index + 1) & mask;
+		}
+		return index;
+	}
+
+	private static int hash(long value) {
+		int hash = (int) (value ^ (value >>> 32)) * 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+
+	private void resize() {
+		long[] newTable = new long[table.length * 2];
+		for (int i = 0; i < table.length; i++) {
+			if(table[i] != EMPTY) {
+				newTable[indexOf(newTable, table[i])] = table[i];
+			}
+		}
+		table = newTable;
+	}
+}
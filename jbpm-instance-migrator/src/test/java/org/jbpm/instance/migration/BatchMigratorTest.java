@@ -0,0 +1,344 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.jbpm.graph.def.ProcessDefinition;
+import org.jbpm.graph.exe.ProcessInstance;
+import org.jbpm.instance.migration.handler.BatchMigrationHandler;
+import org.jbpm.instance.migration.handler.MigrationHandler;
+import org.jmock.Mock;
+
+public class BatchMigratorTest extends BaseTestCase {
+
+	protected void setUp() throws Exception {
+		super.setUp();
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+	}
+
+	public void test_that_instances_are_migrated_in_chunks() throws IOException {
+		deployV1Definition();
+		List ids = createProcessInstances(5);
+		deployV2Definition();
+		
+		BatchMigrator batchMigrator = new BatchMigrator(createMigrator(), 2);
+		batchMigrator.setCommitChunks(false);
+		BatchMigrationResult result = batchMigrator.run(ids.iterator());
+		
+		assertEquals(5, result.getMigratedCount());
+		assertEquals(0, result.getSkippedCount());
+		assertEquals(0, result.getFailedCount());
+		assertEquals(3, result.getChunkResults().size());
+		assertEquals(2, ((BatchMigrationResult.ChunkResult) result.getChunkResults().get(0)).getSize());
+		assertEquals(1, ((BatchMigrationResult.ChunkResult) result.getChunkResults().get(2)).getSize());
+		
+		assertEquals(5, jbpmContext.getGraphSession().findProcessInstances(findLatestProcessDefinition("simple").getId()).size());
+	}
+
+	public void test_that_current_instances_are_skipped() throws IOException {
+		deployV1Definition();
+		deployV2Definition();
+		List ids = createProcessInstances(3);
+		
+		BatchMigrator batchMigrator = new BatchMigrator(createMigrator(), 2);
+		batchMigrator.setCommitChunks(false);
+		BatchMigrationResult result = batchMigrator.run(ids.iterator());
+		
+		assertEquals(0, result.getMigratedCount());
+		assertEquals(3, result.getSkippedCount());
+	}
+
+	public void test_that_failed_instances_are_reported() throws IOException {
+		deployV1Definition();
+		List ids = createProcessInstances(2);
+		ids.add(new Long(Long.MAX_VALUE));
+		deployV2Definition();
+		
+		BatchMigrator batchMigrator = new BatchMigrator(createMigrator(), 10);
+		batchMigrator.setCommitChunks(false);
+		BatchMigrationResult result = batchMigrator.run(ids.iterator());
+		
+		assertEquals(2, result.getMigratedCount());
+		assertEquals(1, result.getFailedCount());
+		assertEquals(new Long(Long.MAX_VALUE), result.getFailedProcessInstanceIds().get(0));
+	}
+
+	public void test_that_a_failed_migration_is_thrown_when_the_caller_owns_the_transaction() throws IOException {
+		deployV1Definition();
+		List ids = createProcessInstances(2);
+		deployV2Definition();
+		
+		Migrator migrator = createMigrator();
+		Mock handler = mock(MigrationHandler.class);
+		handler.expects(once()).method("migrateInstance").will(throwException(new IllegalStateException("handler failure")));
+		migrator.addMigrationHandler((MigrationHandler) handler.proxy());
+		BatchMigrator batchMigrator = new BatchMigrator(migrator, 10);
+		batchMigrator.setCommitChunks(false);
+		try {
+			batchMigrator.run(ids.iterator());
+			fail("Expected an '" + InvalidMigrationException.class.getName() + "'");
+		} catch (InvalidMigrationException e) {
+			//expected
+			assertEquals(ids.get(0), ((BatchMigrator.FailedProcessInstanceException) e).getProcessInstanceId());
+		}
+	}
+
+	public void test_that_a_committed_chunk_is_migrated_again_without_the_failed_instance() throws IOException {
+		deployV1Definition();
+		ProcessDefinition v1Definition = findLatestProcessDefinition("simple");
+		List ids = createProcessInstances(3);
+		deployV2Definition();
+		ProcessDefinition v2Definition = findLatestProcessDefinition("simple");
+		commit();
+		
+		File file = File.createTempFile("batch", ".journal");
+		file.delete();
+		MigrationJournal journal = new MigrationJournal(file);
+		try {
+			final Long failedId = (Long) ids.get(1);
+			Migrator migrator = createMigrator();
+			migrator.addMigrationHandler(new MigrationHandler() {
+				public void migrateInstance(ProcessInstance oldProcessInstance, ProcessInstance newProcessInstance) {
+					if(oldProcessInstance.getId() == failedId.longValue()) {
+						throw new IllegalStateException("handler failure");
+					}
+				}
+			});
+			BatchMigrator batchMigrator = new BatchMigrator(migrator, 10);
+			batchMigrator.setJournal(journal);
+			BatchMigrationResult result = batchMigrator.run(ids.iterator());
+			
+			assertEquals(2, result.getMigratedCount());
+			assertEquals(1, result.getFailedCount());
+			assertEquals(failedId, result.getFailedProcessInstanceIds().get(0));
+			assertEquals(1, result.getRetryCount());
+			assertEquals(1, result.getChunkResults().size());
+			
+			// the failed instance is journaled (as FAILED, since it is not complete) along with the migrated ones
+			assertEquals(3, journal.getEntryCount());
+			assertEquals(2, journal.getCompletedCount());
+			assertTrue(journal.isCompleted(((Long) ids.get(0)).longValue()));
+			assertFalse(journal.isCompleted(failedId.longValue()));
+			assertTrue(journal.isCompleted(((Long) ids.get(2)).longValue()));
+			
+			// nothing is left to commit, so whatever is found after a rollback was committed by the BatchMigrator
+			rollback();
+			assertEquals(2, jbpmContext.getGraphSession().findProcessInstances(v2Definition.getId()).size());
+			assertEquals(v1Definition.getId(), jbpmContext.loadProcessInstance(failedId.longValue()).getProcessDefinition().getId());
+		} finally {
+			journal.close();
+			file.delete();
+			rollback();
+			jbpmContext.getGraphSession().deleteProcessDefinition(v2Definition.getId());
+			jbpmContext.getGraphSession().deleteProcessDefinition(v1Definition.getId());
+			commit();
+		}
+	}
+
+	public void test_that_the_handlers_are_invoked_for_each_instance() throws IOException {
+		deployV1Definition();
+		List ids = createProcessInstances(3);
+		deployV2Definition();
+		
+		Migrator migrator = createMigrator();
+		Mock handler = mock(MigrationHandler.class);
+		handler.expects(exactly(3)).method("migrateInstance");
+		migrator.addMigrationHandler((MigrationHandler) handler.proxy());
+		BatchMigrator batchMigrator = new BatchMigrator(migrator, 2);
+		batchMigrator.setCommitChunks(false);
+		batchMigrator.run(ids.iterator());
+	}
+
+	public void test_that_journaled_instances_are_skipped() throws IOException {
+		deployV1Definition();
+		List ids = createProcessInstances(4);
+		deployV2Definition();
+		
+		File file = File.createTempFile("batch", ".journal");
+		file.delete();
+		MigrationJournal journal = new MigrationJournal(file);
+		try {
+			BatchMigrator batchMigrator = new BatchMigrator(createMigrator(), 2);
+			batchMigrator.setCommitChunks(false);
+			batchMigrator.setJournal(journal);
+			batchMigrator.run(ids.subList(0, 2).iterator());
+			assertEquals("The journal is written by the caller", 0, journal.getEntryCount());
+			batchMigrator.writeJournal();
+			assertEquals(2, journal.getCompletedCount());
+			
+			BatchMigrationResult result = batchMigrator.run(ids.iterator());
+			assertEquals(2, result.getMigratedCount());
+			assertEquals(2, result.getSkippedCount());
+			batchMigrator.writeJournal();
+			assertEquals(4, journal.getCompletedCount());
+		} finally {
+			journal.close();
+			file.delete();
+		}
+	}
+
+	public void test_that_the_batch_handlers_are_invoked_once_per_chunk() throws IOException {
+		deployV1Definition();
+		List ids = createProcessInstances(3);
+		deployV2Definition();
+		
+		Migrator migrator = createMigrator();
+		Mock handler = mock(BatchMigrationHandler.class);
+		handler.expects(exactly(2)).method("migrateInstances");
+		migrator.addBatchMigrationHandler((BatchMigrationHandler) handler.proxy());
+		BatchMigrator batchMigrator = new BatchMigrator(migrator, 2);
+		batchMigrator.setCommitChunks(false);
+		batchMigrator.run(ids.iterator());
+	}
+
+	public void test_that_the_batch_handlers_are_invoked_once_the_chunk_is_saved() throws IOException {
+		deployV1Definition();
+		List ids = createProcessInstances(3);
+		deployV2Definition();
+		
+		Migrator migrator = createMigrator();
+		final List savedIds = new ArrayList();
+		migrator.addBatchMigrationHandler(new BatchMigrationHandler() {
+			public void migrateInstances(List oldProcessInstances, List newProcessInstances) {
+				for (Iterator iterator = newProcessInstances.iterator(); iterator.hasNext();) {
+					savedIds.add(new Long(((ProcessInstance) iterator.next()).getId()));
+				}
+			}
+		});
+		BatchMigrator batchMigrator = new BatchMigrator(migrator, 2);
+		batchMigrator.setCommitChunks(false);
+		batchMigrator.run(ids.iterator());
+		
+		assertEquals(3, savedIds.size());
+		assertFalse(savedIds.contains(new Long(0)));
+	}
+
+	public void test_that_reparented_variables_are_moved_to_the_new_instances() throws IOException {
+		deployV1Definition();
+		List ids = createProcessInstances(3);
+		for (int i = 0; i < ids.size(); i++) {
+			ProcessInstance processInstance = jbpmContext.loadProcessInstance(((Long) ids.get(i)).longValue());
+			processInstance.getContextInstance().setVariable("document", "document" + i);
+			processInstance.getContextInstance().setVariable("pages", new Long(i));
+		}
+		jbpmContext.getSession().flush();
+		jbpmContext.getSession().clear();
+		deployV2Definition();
+		
+		Migrator migrator = createMigrator();
+		migrator.setReparentVariables(true);
+		BatchMigrator batchMigrator = new BatchMigrator(migrator, 2);
+		batchMigrator.setCommitChunks(false);
+		assertEquals(3, batchMigrator.run(ids.iterator()).getMigratedCount());
+		
+		List newProcessInstances = jbpmContext.getGraphSession().findProcessInstances(findLatestProcessDefinition("simple").getId());
+		assertEquals(3, newProcessInstances.size());
+		List documents = new ArrayList();
+		for (int i = 0; i < newProcessInstances.size(); i++) {
+			ProcessInstance newProcessInstance = (ProcessInstance) newProcessInstances.get(i);
+			assertEquals(3, newProcessInstance.getContextInstance().getVariables().size());
+			assertNotNull(newProcessInstance.getContextInstance().getVariable(Migrator.MIGRATION_MEMO));
+			documents.add(newProcessInstance.getContextInstance().getVariable("document"));
+		}
+		assertTrue(documents.contains("document0"));
+		assertTrue(documents.contains("document2"));
+		assertNull(jbpmContext.loadProcessInstance(((Long) ids.get(0)).longValue()).getContextInstance().getVariable("document"));
+	}
+
+	public void test_that_the_variables_of_a_single_migration_are_moved_once_it_is_saved() throws IOException {
+		deployV1Definition();
+		ProcessInstance processInstance = findLatestProcessDefinition("simple").createProcessInstance();
+		processInstance.signal();
+		processInstance.getContextInstance().setVariable("document", "document");
+		jbpmContext.save(processInstance);
+		jbpmContext.getSession().flush();
+		deployV2Definition();
+		
+		Migrator migrator = createMigrator();
+		migrator.setReparentVariables(true);
+		ProcessInstance newProcessInstance = migrator.migrate(processInstance);
+		assertNull(newProcessInstance.getContextInstance().getVariable("document"));
+		jbpmContext.save(newProcessInstance);
+		
+		assertEquals(1, migrator.moveVariables());
+		assertEquals(0, migrator.moveVariables());
+		jbpmContext.getSession().clear();
+		assertEquals("document", jbpmContext.loadProcessInstance(newProcessInstance.getId()).getContextInstance().getVariable("document"));
+	}
+
+	public void test_that_the_chunk_size_must_be_positive() {
+		try {
+			new BatchMigrator(createMigrator(), 0);
+			fail("Expected an '" + IllegalArgumentException.class.getName() + "'");
+		} catch (IllegalArgumentException e) {
+			//expected
+		}
+	}
+
+	private List createProcessInstances(int count) {
+		List ids = new ArrayList();
+		for (int i = 0; i < count; i++) {
+			ProcessInstance processInstance = findLatestProcessDefinition("simple").createProcessInstance();
+			processInstance.signal();
+			jbpmContext.save(processInstance);
+			ids.add(new Long(processInstance.getId()));
+		}
+		jbpmContext.getSession().flush();
+		return ids;
+	}
+
+	private void commit() {
+		jbpmContext.getSession().getTransaction().commit();
+		jbpmContext.getSession().beginTransaction();
+	}
+
+	private void rollback() {
+		jbpmContext.getSession().getTransaction().rollback();
+		jbpmContext.getSession().clear();
+		jbpmContext.getSession().beginTransaction();
+	}
+
+	private Migrator createMigrator() {
+		return new Migrator("simple", this.jbpmContext, new Migration[]{new SimpleProcessDefinitionMigration001()}, null);
+	}
+
+	private void deployV1Definition() throws IOException {
+		jbpmContext.deployProcessDefinition(MigrationUtils.getProcessDefinition("simpleProcessDefinition_001.xml"));
+	}
+
+	private void deployV2Definition() throws IOException {
+		jbpmContext.deployProcessDefinition(MigrationUtils.getProcessDefinition("simpleProcessDefinition_002.xml"));
+	}
+
+	private static class SimpleProcessDefinitionMigration001 implements Migration{
+		public StateNodeMap createNodeMap() {
+			return new StateNodeMap(new String[][] {{"A","first"}, {"B","second"}, });
+		}
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration;
+
+import junit.framework.TestCase;
+
+public class CompiledStateNodeMapTest extends TestCase {
+
+	private StateNodeMap nodeMap;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		nodeMap = new StateNodeMap(new String[][] {{"a", "b"}, {"x", "y"}, {"b", "c"}});
+	}
+
+	public void test_that_a_compiled_map_contains_the_same_mappings() {
+		CompiledStateNodeMap compiledNodeMap = nodeMap.compile();
+		
+		assertEquals("c", compiledNodeMap.getCurrentNodeName("a"));
+		assertEquals("c", compiledNodeMap.getCurrentNodeName("b"));
+		assertEquals("y", compiledNodeMap.getCurrentNodeName("x"));
+		assertNull(compiledNodeMap.getCurrentNodeName("c"));
+		assertNull(compiledNodeMap.getCurrentNodeName(null));
+		assertTrue(compiledNodeMap.containsDeprecatedNodeName("b"));
+		assertFalse(compiledNodeMap.containsDeprecatedNodeName("y"));
+		assertTrue(compiledNodeMap.containsCurrentNodeName("c"));
+		assertFalse(compiledNodeMap.containsCurrentNodeName("b"));
+		assertEquals(nodeMap.deprecatedNodeNames(), compiledNodeMap.deprecatedNodeNames());
+		assertEquals(nodeMap.currentNodeNames(), compiledNodeMap.currentNodeNames());
+	}
+
+	public void test_that_node_names_are_interned() {
+		CompiledStateNodeMap compiledNodeMap = nodeMap.compile();
+		
+		assertSame("c", compiledNodeMap.getCurrentNodeName(new String("a")));
+	}
+
+	public void test_that_compiling_freezes_the_source_map() {
+		nodeMap.compile();
+		
+		assertTrue(nodeMap.isFrozen());
+		try {
+			nodeMap.addNodeMapping("c", "d");
+			fail("Expected an '" + IllegalStateException.class.getName() + "'");
+		} catch (IllegalStateException e) {
+			//expected
+		}
+	}
+
+	public void test_that_a_compiled_map_cannot_be_modified() {
+		CompiledStateNodeMap compiledNodeMap = nodeMap.compile();
+		try {
+			compiledNodeMap.addNodeMapping("c", "d");
+			fail("Expected an '" + IllegalStateException.class.getName() + "'");
+		} catch (IllegalStateException e) {
+			//expected
+		}
+		try {
+			compiledNodeMap.deprecatedNodeNames().add("d");
+			fail("Expected an '" + UnsupportedOperationException.class.getName() + "'");
+		} catch (UnsupportedOperationException e) {
+			//expected
+		}
+	}
+
+	public void test_that_large_maps_are_compiled() {
+		StateNodeMap largeNodeMap = new StateNodeMap();
+		for (int i = 0; i < 5000; i++) {
+			largeNodeMap.addNodeMapping("old" + i, "new" + (i % 100));
+		}
+		CompiledStateNodeMap compiledNodeMap = largeNodeMap.compile();
+		
+		for (int i = 0; i < 5000; i++) {
+			assertEquals("new" + (i % 100), compiledNodeMap.getCurrentNodeName("old" + i));
+		}
+		assertEquals(100, compiledNodeMap.currentNodeNames().size());
+		assertFalse(compiledNodeMap.containsDeprecatedNodeName("old5000"));
+	}
+}
@@ -0,0 +1,75 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration;
+
+import junit.framework.TestCase;
+
+public class DynamicMigrationCacheTest extends TestCase {
+
+	private DynamicMigrationCache cache;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		cache = new DynamicMigrationCache();
+	}
+
+	public void test_that_a_SharedDynamicMigration_is_instantiated_once() {
+		DynamicMigration first = cache.lookup("org.jbpm.instance.migration.SharedDynamicMigrationForTesting");
+		cache.clearBatchScopedInstances();
+		DynamicMigration second = cache.lookup("org.jbpm.instance.migration.SharedDynamicMigrationForTesting");
+		
+		assertSame(first, second);
+		assertEquals(1, cache.getInstantiationCount());
+	}
+
+	public void test_that_a_BatchScopedDynamicMigration_is_instantiated_once_per_batch() {
+		DynamicMigration first = cache.lookup("org.jbpm.instance.migration.BatchScopedDynamicMigrationForTesting");
+		assertSame(first, cache.lookup("org.jbpm.instance.migration.BatchScopedDynamicMigrationForTesting"));
+		
+		cache.clearBatchScopedInstances();
+		assertNotSame(first, cache.lookup("org.jbpm.instance.migration.BatchScopedDynamicMigrationForTesting"));
+		assertEquals(2, cache.getInstantiationCount());
+	}
+
+	public void test_that_other_DynamicMigrations_are_instantiated_for_each_lookup() {
+		DynamicMigration first = cache.lookup("org.jbpm.instance.migration.DynamicMigrationForTesting");
+		DynamicMigration second = cache.lookup("org.jbpm.instance.migration.DynamicMigrationForTesting");
+		
+		assertNotSame(first, second);
+		assertEquals(DynamicMigrationForTesting.class, second.getClass());
+	}
+
+	public void test_that_invalid_DynamicMigrations_are_rejected() {
+		try {
+			cache.lookup("org.jbpm.instance.migration.AbstractDynamicMigrationForTesting");
+			fail("Abstract class is not a valid type. Expected an '" + InvalidMigrationException.class.getName() + "'");
+		} catch (InvalidMigrationException e) {
+			//expected
+		}
+
+		try {
+			cache.lookup("org.jbpm.instance.migration.NoDefaultConstructorDynamicMigrationForTesting");
+			fail("A DynamicMigration inplementation must have a default constructor. Expected an '" + InvalidMigrationException.class.getName() + "'");
+		} catch (InvalidMigrationException e) {
+			//expected
+		}
+	}
+}
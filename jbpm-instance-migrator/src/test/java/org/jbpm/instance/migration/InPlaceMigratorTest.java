@@ -0,0 +1,285 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.jbpm.graph.exe.ProcessInstance;
+import org.jbpm.job.ExecuteNodeJob;
+import org.jbpm.job.Job;
+import org.jbpm.job.Timer;
+import org.jbpm.taskmgmt.exe.TaskInstance;
+
+public class InPlaceMigratorTest extends BaseTestCase {
+
+	protected void setUp() throws Exception {
+		super.setUp();
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+	}
+
+	public void test_that_the_process_instance_keeps_its_id_and_is_moved_to_the_mapped_node() throws IOException {
+		deploySimpleDefinition("simpleProcessDefinition_001.xml");
+		ProcessInstance processInstance = createSimpleProcessInstance(1);
+		deploySimpleDefinition("simpleProcessDefinition_002.xml");
+		deploySimpleDefinition("simpleProcessDefinition_003.xml");
+		
+		List ineligibleIds = migrateInPlace(new InPlaceMigrator(createSimpleProcessMigrator()), processInstance);
+		
+		assertEquals(0, ineligibleIds.size());
+		ProcessInstance migrated = reload(processInstance);
+		assertEquals(3, migrated.getProcessDefinition().getVersion());
+		assertEquals("third", migrated.getRootToken().getNode().getName());
+		assertSame(migrated.getProcessDefinition(), migrated.getRootToken().getNode().getProcessDefinition());
+	}
+
+	public void test_that_each_token_of_a_fork_is_moved() throws IOException {
+		deploySimpleDefinition("simpleProcessDefinition_001.xml");
+		ProcessInstance processInstance = createSimpleProcessInstance(2);
+		deploySimpleDefinition("simpleProcessDefinition_002.xml");
+		deploySimpleDefinition("simpleProcessDefinition_003.xml");
+		
+		assertEquals(0, migrateInPlace(new InPlaceMigrator(createSimpleProcessMigrator()), processInstance).size());
+		
+		ProcessInstance migrated = reload(processInstance);
+		assertEquals("Fork1", migrated.getRootToken().getNode().getName());
+		assertEquals("forkNodeOne", migrated.getRootToken().getChild("to_forkNode1").getNode().getName());
+		assertEquals("forkNodeTwo", migrated.getRootToken().getChild("to_forkNode2").getNode().getName());
+		assertEquals("forkNodeThree", migrated.getRootToken().getChild("to_forkNode3").getNode().getName());
+		
+		migrated.getRootToken().getChild("to_forkNode1").signal();
+		migrated.getRootToken().getChild("to_forkNode2").signal();
+		migrated.getRootToken().getChild("to_forkNode3").signal();
+		assertEquals("second", migrated.getRootToken().getNode().getName());
+	}
+
+	public void test_that_instances_in_a_dynamically_mapped_node_are_returned() throws IOException {
+		deploySimpleDefinition("simpleProcessDefinition_001.xml");
+		ProcessInstance inStateA = createSimpleProcessInstance(1);
+		ProcessInstance inFork = createSimpleProcessInstance(2);
+		deploySimpleDefinition("simpleProcessDefinition_002.xml");
+		Migrator migrator = new Migrator("simple", jbpmContext, new Migration[] {new DynamicMigration001()}, null);
+		
+		List ineligibleIds = migrateInPlace(new InPlaceMigrator(migrator), new ProcessInstance[] {inStateA, inFork});
+		
+		assertEquals(1, ineligibleIds.size());
+		assertEquals(new Long(inStateA.getId()), ineligibleIds.get(0));
+		assertEquals(1, reload(inStateA).getProcessDefinition().getVersion());
+		assertEquals(2, reload(inFork).getProcessDefinition().getVersion());
+	}
+
+	public void test_that_instances_with_a_sub_process_are_returned() throws IOException {
+		jbpmContext.deployProcessDefinition(MigrationUtils.getProcessDefinition("simpleSubProcessDefinition_001.xml"));
+		jbpmContext.deployProcessDefinition(MigrationUtils.getProcessDefinition("simpleSuperProcessDefinition_001.xml"));
+		ProcessInstance processInstance = findLatestProcessDefinition("simpleSuperProcess").createProcessInstance();
+		processInstance.signal();
+		processInstance.signal();
+		jbpmContext.save(processInstance);
+		jbpmContext.deployProcessDefinition(MigrationUtils.getProcessDefinition("simpleSuperProcessDefinition_002.xml"));
+		Migrator migrator = new Migrator("simpleSuperProcess", jbpmContext, new Migration[0], null);
+		
+		List ineligibleIds = migrateInPlace(new InPlaceMigrator(migrator), processInstance);
+		
+		assertEquals(1, ineligibleIds.size());
+		assertEquals(new Long(processInstance.getId()), ineligibleIds.get(0));
+		assertEquals(1, reload(processInstance).getProcessDefinition().getVersion());
+	}
+
+	public void test_that_instances_with_an_open_task_instance_are_returned() throws IOException {
+		jbpmContext.deployProcessDefinition(MigrationUtils.getProcessDefinition("swimlaneTaskNodeProcessDefinition_001.xml"));
+		ProcessInstance processInstance = findLatestProcessDefinition("swimlaneTaskNodeProcess").createProcessInstance();
+		processInstance.signal();
+		jbpmContext.save(processInstance);
+		jbpmContext.deployProcessDefinition(MigrationUtils.getProcessDefinition("swimlaneTaskNodeProcessDefinition_002.xml"));
+		Migrator migrator = new Migrator("swimlaneTaskNodeProcess", jbpmContext, new Migration[0], null);
+		
+		List ineligibleIds = migrateInPlace(new InPlaceMigrator(migrator), processInstance);
+		
+		assertEquals(1, ineligibleIds.size());
+		assertEquals(new Long(processInstance.getId()), ineligibleIds.get(0));
+		ProcessInstance reloaded = reload(processInstance);
+		assertEquals(1, reloaded.getProcessDefinition().getVersion());
+		assertEquals(1, reloaded.getRootToken().getNode().getProcessDefinition().getVersion());
+	}
+
+	public void test_that_instances_with_a_swimlane_instance_are_returned() throws IOException {
+		jbpmContext.deployProcessDefinition(MigrationUtils.getProcessDefinition("swimlaneTaskNodeProcessDefinition_001.xml"));
+		ProcessInstance processInstance = findLatestProcessDefinition("swimlaneTaskNodeProcess").createProcessInstance();
+		processInstance.signal();
+		TaskInstance taskInstance = (TaskInstance) processInstance.getTaskMgmtInstance().getTaskInstances().iterator().next();
+		taskInstance.setSignalling(false);
+		taskInstance.end();
+		jbpmContext.save(processInstance);
+		jbpmContext.deployProcessDefinition(MigrationUtils.getProcessDefinition("swimlaneTaskNodeProcessDefinition_002.xml"));
+		Migrator migrator = new Migrator("swimlaneTaskNodeProcess", jbpmContext, new Migration[0], null);
+		
+		List ineligibleIds = migrateInPlace(new InPlaceMigrator(migrator), processInstance);
+		
+		assertEquals(1, ineligibleIds.size());
+		assertEquals(new Long(processInstance.getId()), ineligibleIds.get(0));
+		assertEquals(1, reload(processInstance).getProcessDefinition().getVersion());
+	}
+
+	public void test_that_instances_with_a_timer_are_returned() throws IOException {
+		deploySimpleDefinition("simpleProcessDefinition_001.xml");
+		ProcessInstance processInstance = createSimpleProcessInstance(1);
+		saveJob(new Timer(processInstance.getRootToken()));
+		deploySimpleDefinition("simpleProcessDefinition_002.xml");
+		
+		List ineligibleIds = migrateInPlace(new InPlaceMigrator(createSimpleProcessMigrator()), processInstance);
+		
+		assertEquals(1, ineligibleIds.size());
+		assertEquals(1, reload(processInstance).getProcessDefinition().getVersion());
+	}
+
+	public void test_that_instances_with_a_pending_job_are_returned() throws IOException {
+		deploySimpleDefinition("simpleProcessDefinition_001.xml");
+		ProcessInstance processInstance = createSimpleProcessInstance(1);
+		ProcessInstance withoutJob = createSimpleProcessInstance(1);
+		ExecuteNodeJob job = new ExecuteNodeJob(processInstance.getRootToken());
+		job.setNode(processInstance.getRootToken().getNode());
+		saveJob(job);
+		deploySimpleDefinition("simpleProcessDefinition_002.xml");
+		
+		List ineligibleIds = migrateInPlace(new InPlaceMigrator(createSimpleProcessMigrator()), new ProcessInstance[] {processInstance, withoutJob});
+		
+		assertEquals(1, ineligibleIds.size());
+		assertEquals(new Long(processInstance.getId()), ineligibleIds.get(0));
+		assertEquals(1, reload(processInstance).getProcessDefinition().getVersion());
+		assertEquals(2, reload(withoutJob).getProcessDefinition().getVersion());
+	}
+
+	public void test_that_current_instances_are_neither_migrated_nor_returned() throws IOException {
+		deploySimpleDefinition("simpleProcessDefinition_001.xml");
+		ProcessInstance processInstance = createSimpleProcessInstance(1);
+		
+		assertEquals(0, migrateInPlace(new InPlaceMigrator(createSimpleProcessMigrator()), processInstance).size());
+		assertEquals(1, reload(processInstance).getProcessDefinition().getVersion());
+	}
+
+	public void test_that_instances_of_another_definition_are_rejected() throws IOException {
+		deploySimpleDefinition("simpleProcessDefinition_001.xml");
+		ProcessInstance processInstance = createSimpleProcessInstance(1);
+		deploySimpleDefinition("simpleProcessDefinition_002.xml");
+		Migrator fooMigrator = new Migrator("foo", jbpmContext, new Migration[0], null);
+		
+		try {
+			migrateInPlace(new InPlaceMigrator(fooMigrator), processInstance);
+			fail("Expected an '" + IllegalArgumentException.class.getName() + "'");
+		} catch (IllegalArgumentException e) {
+			//expected
+		}
+	}
+
+	public void test_that_small_batches_migrate_every_instance() throws IOException {
+		deploySimpleDefinition("simpleProcessDefinition_001.xml");
+		ProcessInstance[] processInstances = new ProcessInstance[] {
+				createSimpleProcessInstance(1), createSimpleProcessInstance(2), createSimpleProcessInstance(1)};
+		deploySimpleDefinition("simpleProcessDefinition_002.xml");
+		deploySimpleDefinition("simpleProcessDefinition_003.xml");
+		InPlaceMigrator inPlaceMigrator = new InPlaceMigrator(createSimpleProcessMigrator());
+		inPlaceMigrator.setBatchSize(1);
+		
+		assertEquals(0, migrateInPlace(inPlaceMigrator, processInstances).size());
+		for (int i = 0; i < processInstances.length; i++) {
+			assertEquals(3, reload(processInstances[i]).getProcessDefinition().getVersion());
+		}
+	}
+
+	public void test_that_the_batch_size_must_be_positive() {
+		try {
+			new InPlaceMigrator(new Migrator("simple", jbpmContext, new Migration[0], null)).setBatchSize(0);
+			fail("Expected an '" + IllegalArgumentException.class.getName() + "'");
+		} catch (IllegalArgumentException e) {
+			//expected
+		}
+	}
+
+	private List migrateInPlace(InPlaceMigrator inPlaceMigrator, ProcessInstance processInstance) {
+		return migrateInPlace(inPlaceMigrator, new ProcessInstance[] {processInstance});
+	}
+
+	/**
+	 * Flushes the session, migrates the processInstances in place and clears the session.
+	 */
+	private List migrateInPlace(InPlaceMigrator inPlaceMigrator, ProcessInstance[] processInstances) {
+		jbpmContext.getSession().flush();
+		List ids = new ArrayList();
+		for (int i = 0; i < processInstances.length; i++) {
+			ids.add(new Long(processInstances[i].getId()));
+		}
+		List ineligibleIds = inPlaceMigrator.migrate(ids);
+		jbpmContext.getSession().clear();
+		return ineligibleIds;
+	}
+
+	private void saveJob(Job job) {
+		job.setDueDate(new Date());
+		jbpmContext.getSession().save(job);
+	}
+
+	private ProcessInstance reload(ProcessInstance processInstance) {
+		return jbpmContext.loadProcessInstance(processInstance.getId());
+	}
+
+	/**
+	 * @param signals The number of times the new instance is signalled: once to wait in 'A', twice to wait in the fork.
+	 */
+	private ProcessInstance createSimpleProcessInstance(int signals) {
+		ProcessInstance processInstance = findLatestProcessDefinition("simple").createProcessInstance();
+		for (int i = 0; i < signals; i++) {
+			processInstance.signal();
+		}
+		jbpmContext.save(processInstance);
+		return processInstance;
+	}
+
+	private void deploySimpleDefinition(String resourceName) throws IOException {
+		jbpmContext.deployProcessDefinition(MigrationUtils.getProcessDefinition(resourceName));
+	}
+
+	private Migrator createSimpleProcessMigrator() {
+		return new Migrator("simple", jbpmContext, new Migration[] {new SimpleProcessMigration001(), new SimpleProcessMigration002()}, null);
+	}
+
+	private static class SimpleProcessMigration001 implements Migration {
+		public StateNodeMap createNodeMap() {
+			return new StateNodeMap(new String[][] {{"A", "first"}, {"B", "second"}});
+		}
+	}
+
+	private static class SimpleProcessMigration002 implements Migration {
+		public StateNodeMap createNodeMap() {
+			return new StateNodeMap(new String[][] {{"first", "third"}, {"forkNode1", "forkNodeOne"}, {"forkNode2", "forkNodeTwo"}, {"forkNode3", "forkNodeThree"}});
+		}
+	}
+
+	private static class DynamicMigration001 implements Migration {
+		public StateNodeMap createNodeMap() {
+			return new StateNodeMap(new String[][] {{"A", "java://org.jbpm.instance.migration.DynamicMigrationForTheSimpleProcessANode"}});
+		}
+	}
+}
@@ -43,4 +43,12 @@ public class MigrationComparatorTest extends MockObjectTestCase {
 		assertTrue(migrationComparator.compare(migration3, migration1) > 0);
 	}
 
+	public void testThatRevisionsAreComparedNumerically() {
+		assertTrue(MigrationComparator.compareClassNames("com.foo.BarMigration999", "com.foo.BarMigration1000") < 0);
+		assertTrue(MigrationComparator.compareClassNames("com.foo.BarMigration1000", "com.foo.BarMigration999") > 0);
+		assertTrue(MigrationComparator.compareClassNames("com.foo.BarMigration002", "com.foo.BarMigration10") < 0);
+		assertTrue(MigrationComparator.compareClassNames("com.foo.BarMigration002", "com.foo.BazMigration001") < 0);
+		assertEquals(0, MigrationComparator.compareClassNames("com.foo.BarMigration002", "com.foo.BarMigration002"));
+	}
+
 }
@@ -0,0 +1,77 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+public class MigrationIndexGeneratorTest extends TestCase {
+
+	private static final String BASE_CLASS_NAME = "org.jbpm.instance.migration.TestMigration";
+	private File classesDirectory;
+	private File outputDirectory;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		classesDirectory = new File(TestMigration001.class.getProtectionDomain().getCodeSource().getLocation().getPath());
+		outputDirectory = new File(System.getProperty("java.io.tmpdir"), "migration-index-" + System.currentTimeMillis());
+	}
+
+	protected void tearDown() throws Exception {
+		FileUtils.deleteDirectory(outputDirectory);
+		super.tearDown();
+	}
+
+	public void test_that_the_migrations_are_indexed_by_base_class_name_in_revision_order() {
+		Map index = createGenerator().generateIndex();
+		
+		List classNames = (List) index.get(BASE_CLASS_NAME);
+		assertNotNull(classNames);
+		assertEquals(3, classNames.size());
+		assertEquals(BASE_CLASS_NAME + "001", classNames.get(0));
+		assertEquals(BASE_CLASS_NAME + "002", classNames.get(1));
+		assertEquals(BASE_CLASS_NAME + "003", classNames.get(2));
+	}
+
+	public void test_that_the_written_index_can_be_loaded() throws IOException {
+		File indexFile = new File(outputDirectory, MigrationIndex.INDEX_RESOURCE_NAME);
+		assertTrue(createGenerator().writeIndex(indexFile) >= 3);
+		
+		MigrationIndex index = MigrationIndex.load(new URLClassLoader(new URL[]{outputDirectory.toURI().toURL()}, null));
+		assertTrue(index.contains(BASE_CLASS_NAME));
+		String[] classNames = index.getMigrationClassNames(BASE_CLASS_NAME);
+		assertEquals(3, classNames.length);
+		assertEquals(BASE_CLASS_NAME + "003", classNames[2]);
+		assertNull(index.getMigrationClassNames("org.jbpm.instance.migration.NonExistentMigration"));
+	}
+
+	private MigrationIndexGenerator createGenerator() {
+		return new MigrationIndexGenerator(classesDirectory, getClass().getClassLoader());
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class MigrationJournalTest extends TestCase {
+
+	private File file;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		file = File.createTempFile("migration", ".journal");
+		file.delete();
+	}
+
+	protected void tearDown() throws Exception {
+		file.delete();
+		super.tearDown();
+	}
+
+	public void test_that_completed_instances_survive_a_reopen() throws IOException {
+		MigrationJournal journal = new MigrationJournal(file);
+		journal.append(entries(new long[][] {{1, 101, MigrationJournal.MIGRATED}, {2, 2, MigrationJournal.SKIPPED}, {3, 3, MigrationJournal.FAILED}}));
+		assertTrue(journal.isCompleted(1));
+		journal.close();
+		
+		journal = new MigrationJournal(file);
+		try {
+			assertEquals(3, journal.getEntryCount());
+			assertEquals(2, journal.getCompletedCount());
+			assertTrue(journal.isCompleted(1));
+			assertTrue(journal.isCompleted(2));
+			assertFalse("Failed instances are retried", journal.isCompleted(3));
+			assertFalse(journal.isCompleted(4));
+		} finally {
+			journal.close();
+		}
+	}
+
+	public void test_that_entries_are_appended_after_a_reopen() throws IOException {
+		MigrationJournal journal = new MigrationJournal(file);
+		journal.append(entries(new long[][] {{1, 101, MigrationJournal.MIGRATED}}));
+		journal.close();
+		
+		journal = new MigrationJournal(file);
+		journal.append(entries(new long[][] {{2, 102, MigrationJournal.MIGRATED}}));
+		journal.close();
+		
+		journal = new MigrationJournal(file);
+		try {
+			assertEquals(2, journal.getEntryCount());
+			assertTrue(journal.isCompleted(1));
+			assertTrue(journal.isCompleted(2));
+		} finally {
+			journal.close();
+		}
+	}
+
+	public void test_that_the_journal_grows_past_its_mapped_size() throws IOException {
+		MigrationJournal journal = new MigrationJournal(file, 4);
+		for (int i = 1; i <= 10; i++) {
+			journal.append(entries(new long[][] {{i, 100 + i, MigrationJournal.MIGRATED}}));
+		}
+		journal.close();
+		
+		journal = new MigrationJournal(file, 4);
+		try {
+			assertEquals(10, journal.getEntryCount());
+			assertTrue(journal.isCompleted(10));
+		} finally {
+			journal.close();
+		}
+	}
+
+	public void test_that_a_torn_entry_ends_the_journal() throws IOException {
+		MigrationJournal journal = new MigrationJournal(file);
+		journal.append(entries(new long[][] {{1, 101, MigrationJournal.MIGRATED}, {2, 102, MigrationJournal.MIGRATED}}));
+		journal.close();
+		
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			randomAccessFile.seek(MigrationJournal.HEADER_SIZE + MigrationJournal.ENTRY_SIZE + 8);
+			randomAccessFile.writeLong(999);
+		} finally {
+			randomAccessFile.close();
+		}
+		
+		journal = new MigrationJournal(file);
+		try {
+			assertEquals(1, journal.getEntryCount());
+			assertTrue(journal.isCompleted(1));
+			assertFalse(journal.isCompleted(2));
+		} finally {
+			journal.close();
+		}
+	}
+
+	public void test_that_other_files_are_rejected() throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			randomAccessFile.writeBytes("not a migration journal");
+		} finally {
+			randomAccessFile.close();
+		}
+		try {
+			new MigrationJournal(file);
+			fail("Expected an '" + InvalidMigrationException.class.getName() + "'");
+		} catch (InvalidMigrationException e) {
+			//expected
+		}
+	}
+
+	public void test_that_a_closed_journal_cannot_be_appended_to() throws IOException {
+		MigrationJournal journal = new MigrationJournal(file);
+		journal.close();
+		try {
+			journal.append(entries(new long[][] {{1, 101, MigrationJournal.MIGRATED}}));
+			fail("Expected an '" + IllegalStateException.class.getName() + "'");
+		} catch (IllegalStateException e) {
+			//expected
+		}
+	}
+
+	private static List entries(long[][] values) {
+		List entries = new ArrayList();
+		for (int i = 0; i < values.length; i++) {
+			entries.add(new MigrationJournal.Entry(values[i][0], values[i][1], (int) values[i][2]));
+		}
+		return entries;
+	}
+}
@@ -0,0 +1,140 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.jbpm.JbpmConfiguration;
+import org.jbpm.graph.exe.ProcessInstance;
+import org.jbpm.instance.migration.handler.MigrationHandler;
+import org.jbpm.instance.migration.load.LargePopulationFixture;
+import org.jbpm.instance.migration.shape.ProcessShapeGenerator;
+
+public class MigrationPipelineTest extends TestCase {
+
+	public void test_that_an_empty_id_source_completes() {
+		MigrationPipeline pipeline = new MigrationPipeline(null, null);
+		BatchMigrationResult result = pipeline.run(new ArrayList().iterator());
+		
+		assertEquals(0, result.getChunkResults().size());
+		assertEquals(5, pipeline.getStageStatistics().size());
+	}
+
+	public void test_that_chunks_that_fail_in_a_stage_are_reported_and_do_not_reach_the_next_stage() {
+		MigrationPipeline pipeline = new MigrationPipeline(null, null);
+		pipeline.setChunkSize(2);
+		pipeline.setThreadCount(MigrationPipeline.LOAD, 2);
+		List ids = Arrays.asList(new Long[] {new Long(1), new Long(2), new Long(3)});
+		
+		BatchMigrationResult result = pipeline.run(ids.iterator());
+		
+		assertEquals(3, result.getFailedCount());
+		assertEquals(2, result.getChunkResults().size());
+		assertEquals(0, result.getMigratedCount());
+		List statistics = pipeline.getStageStatistics();
+		MigrationPipeline.StageStatistics load = (MigrationPipeline.StageStatistics) statistics.get(0);
+		MigrationPipeline.StageStatistics plan = (MigrationPipeline.StageStatistics) statistics.get(1);
+		assertEquals(MigrationPipeline.LOAD, load.getStageName());
+		assertEquals(2, load.getThreadCount());
+		assertEquals(2, load.getProcessedCount());
+		assertEquals(MigrationPipeline.PLAN, plan.getStageName());
+		assertEquals(0, plan.getProcessedCount());
+	}
+
+	public void test_that_the_pipeline_migrates_every_chunk() throws Exception {
+		LargePopulationFixture fixture = createFixture();
+		JbpmConfiguration jbpmConfiguration = fixture.open();
+		try {
+			List ids = fixture.findOutdatedProcessInstanceIds();
+			MigrationPipeline pipeline = new MigrationPipeline(fixture.createMigrator(), jbpmConfiguration);
+			pipeline.setChunkSize(3);
+			pipeline.setThreadCount(MigrationPipeline.BUILD, 2);
+			BatchMigrationResult result = pipeline.run(ids.iterator());
+			
+			assertEquals(10, result.getMigratedCount());
+			assertEquals(0, result.getFailedCount());
+			assertEquals(4, result.getChunkResults().size());
+			assertTrue(fixture.findOutdatedProcessInstanceIds().isEmpty());
+		} finally {
+			fixture.close();
+		}
+	}
+
+	public void test_that_the_chunk_of_an_instance_whose_handler_fails_is_migrated_again_without_it() throws Exception {
+		LargePopulationFixture fixture = createFixture();
+		JbpmConfiguration jbpmConfiguration = fixture.open();
+		try {
+			List ids = fixture.findOutdatedProcessInstanceIds();
+			final Long failedId = (Long) ids.get(1);
+			Migrator migrator = fixture.createMigrator();
+			migrator.addMigrationHandler(new MigrationHandler() {
+				public void migrateInstance(ProcessInstance oldProcessInstance, ProcessInstance newProcessInstance) {
+					if(oldProcessInstance.getId() == failedId.longValue()) {
+						throw new IllegalStateException("handler failure");
+					}
+				}
+			});
+			MigrationPipeline pipeline = new MigrationPipeline(migrator, jbpmConfiguration);
+			pipeline.setChunkSize(3);
+			BatchMigrationResult result = pipeline.run(ids.iterator());
+			
+			assertEquals(9, result.getMigratedCount());
+			assertEquals(1, result.getFailedCount());
+			assertEquals(failedId, result.getFailedProcessInstanceIds().get(0));
+			assertEquals(1, result.getRetryCount());
+			List outdatedIds = fixture.findOutdatedProcessInstanceIds();
+			assertEquals(1, outdatedIds.size());
+			assertEquals(failedId, outdatedIds.get(0));
+		} finally {
+			fixture.close();
+		}
+	}
+
+	public void test_that_thread_counts_are_configured_per_stage() {
+		MigrationPipeline pipeline = new MigrationPipeline(null, null);
+		pipeline.setThreadCount(MigrationPipeline.BUILD, 4);
+		
+		assertEquals(4, pipeline.getThreadCount(MigrationPipeline.BUILD));
+		assertEquals(1, pipeline.getThreadCount(MigrationPipeline.PERSIST));
+		try {
+			pipeline.setThreadCount("unknown", 1);
+			fail("Expected an '" + IllegalArgumentException.class.getName() + "'");
+		} catch (IllegalArgumentException e) {
+			//expected
+		}
+		try {
+			pipeline.setThreadCount(MigrationPipeline.LOAD, 0);
+			fail("Expected an '" + IllegalArgumentException.class.getName() + "'");
+		} catch (IllegalArgumentException e) {
+			//expected
+		}
+	}
+
+	private LargePopulationFixture createFixture() {
+		return new LargePopulationFixture(new ProcessShapeGenerator("pipeline", LargePopulationFixture.getDefaultShape()), 
+				10, new File(System.getProperty("java.io.tmpdir"), "jbpm-migrator-population"));
+	}
+}
@@ -0,0 +1,193 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jbpm.graph.exe.ProcessInstance;
+import org.jbpm.instance.migration.handler.MigrationHandler;
+import org.jmock.Mock;
+
+public class MigrationPlanTest extends BaseTestCase {
+
+	protected void setUp() throws Exception {
+		super.setUp();
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+	}
+
+	public void test_that_a_plan_maps_every_token_without_migrating() throws IOException {
+		jbpmContext.deployProcessDefinition(MigrationUtils.getProcessDefinition("simpleProcessDefinition_001.xml"));
+		ProcessInstance processInstance = findLatestProcessDefinition("simple").createProcessInstance();
+		processInstance.signal();
+		processInstance.signal();
+		deploySimpleV2AndV3Definitions();
+		
+		Migrator migrator = createSimpleProcessDefinitionMigrator();
+		Mock handler = mock(MigrationHandler.class);
+		handler.expects(never()).method("migrateInstance");
+		migrator.addMigrationHandler((MigrationHandler) handler.proxy());
+		MigrationPlan plan = migrator.plan(processInstance);
+		
+		assertTrue(plan.requiresMigration());
+		assertTrue(plan.isExecutable());
+		assertEquals(1, plan.getSourceVersion());
+		assertEquals(3, plan.getTargetVersion());
+		List tokenMappings = plan.getTokenMappings();
+		assertEquals(4, tokenMappings.size());
+		assertEquals("Fork1", ((MigrationPlan.TokenMapping) tokenMappings.get(0)).getTargetNodeName());
+		assertEquals("forkNodeOne", findTokenMapping(plan, "to_forkNode1").getTargetNodeName());
+		assertEquals("forkNodeThree", findTokenMapping(plan, "to_forkNode3").getTargetNodeName());
+		assertEquals("forkNode3", findTokenMapping(plan, "to_forkNode3").getSourceNodeName());
+		assertEquals("Fork1", processInstance.getRootToken().getNode().getName());
+		assertEquals(1, processInstance.getProcessDefinition().getVersion());
+	}
+
+	public void test_that_nodes_missing_from_the_latest_definition_are_reported_as_unmapped() throws IOException {
+		jbpmContext.deployProcessDefinition(MigrationUtils.getProcessDefinition("simpleProcessDefinition_001.xml"));
+		ProcessInstance processInstance = findLatestProcessDefinition("simple").createProcessInstance();
+		processInstance.signal();
+		deploySimpleV2AndV3Definitions();
+		
+		Migrator migrator = new Migrator("simple", this.jbpmContext, new Migration[]{}, null);
+		MigrationPlan plan = migrator.plan(processInstance);
+		
+		assertFalse(plan.isExecutable());
+		assertEquals(1, plan.getUnmappedTokenMappings().size());
+		MigrationPlan.TokenMapping tokenMapping = (MigrationPlan.TokenMapping) plan.getUnmappedTokenMappings().get(0);
+		assertEquals("A", tokenMapping.getSourceNodeName());
+		assertEquals("A", tokenMapping.getTargetNodeName());
+		assertFalse(tokenMapping.isMapped());
+	}
+
+	public void test_that_a_dynamic_path_through_a_missing_super_state_is_reported_as_unmapped() throws IOException {
+		jbpmContext.deployProcessDefinition(MigrationUtils.getProcessDefinition("simpleProcessDefinition_001.xml"));
+		ProcessInstance processInstance = findLatestProcessDefinition("simple").createProcessInstance();
+		processInstance.signal();
+		jbpmContext.deployProcessDefinition(MigrationUtils.getProcessDefinition("simpleProcessDefinition_002.xml"));
+		
+		Migrator migrator = new Migrator("simple", this.jbpmContext, new Migration[]{new MissingSuperStateMigration()}, null);
+		MigrationPlan plan = migrator.plan(processInstance);
+		
+		assertFalse(plan.isExecutable());
+		assertEquals(1, plan.getUnmappedTokenMappings().size());
+		MigrationPlan.TokenMapping tokenMapping = (MigrationPlan.TokenMapping) plan.getUnmappedTokenMappings().get(0);
+		assertTrue(tokenMapping.isDynamic());
+		assertEquals("A", tokenMapping.getSourceNodeName());
+		assertEquals("missingSuperState/first", tokenMapping.getTargetNodeName());
+		assertFalse(tokenMapping.isMapped());
+	}
+
+	public void test_that_a_current_instance_has_an_empty_plan() throws IOException {
+		jbpmContext.deployProcessDefinition(MigrationUtils.getProcessDefinition("simpleProcessDefinition_001.xml"));
+		ProcessInstance processInstance = findLatestProcessDefinition("simple").createProcessInstance();
+		
+		MigrationPlan plan = createSimpleProcessDefinitionMigrator().plan(processInstance);
+		
+		assertFalse(plan.requiresMigration());
+		assertTrue(plan.isExecutable());
+		assertEquals(0, plan.getTokenMappings().size());
+	}
+
+	public void test_that_sub_processes_are_planned() throws IOException {
+		jbpmContext.deployProcessDefinition(MigrationUtils.getProcessDefinition("simpleSubProcessDefinition_001.xml"));
+		jbpmContext.deployProcessDefinition(MigrationUtils.getProcessDefinition("simpleSuperProcessDefinition_001.xml"));
+		ProcessInstance processInstance = findLatestProcessDefinition("simpleSuperProcess").createProcessInstance();
+		processInstance.signal();
+		processInstance.signal();
+		jbpmContext.deployProcessDefinition(MigrationUtils.getProcessDefinition("simpleSubProcessDefinition_002.xml"));
+		
+		Migrator migrator = new Migrator("simpleSuperProcess", this.jbpmContext, new Migration[]{}, null);
+		MigrationPlan plan = migrator.plan(processInstance);
+		
+		assertTrue(plan.requiresMigration());
+		assertEquals(1, plan.getSubProcessPlans().size());
+		MigrationPlan subProcessPlan = findTokenMapping(plan, "to_forkNode3").getSubProcessPlan();
+		assertNotNull(subProcessPlan);
+		assertEquals("simpleSubProcess", subProcessPlan.getProcessDefinitionName());
+		assertEquals(1, subProcessPlan.getSourceVersion());
+		assertEquals(2, subProcessPlan.getTargetVersion());
+	}
+
+	public void test_that_a_list_of_instances_is_planned_in_order() throws IOException {
+		jbpmContext.deployProcessDefinition(MigrationUtils.getProcessDefinition("simpleProcessDefinition_001.xml"));
+		ProcessInstance first = findLatestProcessDefinition("simple").createProcessInstance();
+		ProcessInstance second = findLatestProcessDefinition("simple").createProcessInstance();
+		deploySimpleV2AndV3Definitions();
+		
+		List plans = createSimpleProcessDefinitionMigrator().plan(Arrays.asList(new ProcessInstance[]{first, second}));
+		
+		assertEquals(2, plans.size());
+		assertEquals(first.getId(), ((MigrationPlan) plans.get(0)).getProcessInstanceId());
+		assertEquals(second.getId(), ((MigrationPlan) plans.get(1)).getProcessInstanceId());
+	}
+
+	public void test_that_the_migrator_rejects_plans_for_other_definitions() throws IOException {
+		jbpmContext.deployProcessDefinition(MigrationUtils.getProcessDefinition("simpleProcessDefinition_001.xml"));
+		Migrator fooMigrator = new Migrator("foo", this.jbpmContext, (Migration[])null, (Migrator[])null);
+		try {
+			fooMigrator.plan(findLatestProcessDefinition("simple").createProcessInstance());
+			fail("Expected an '" + IllegalArgumentException.class.getName() + "'");
+		} catch (IllegalArgumentException e) {
+			//expected
+		}
+	}
+
+	private MigrationPlan.TokenMapping findTokenMapping(MigrationPlan plan, String tokenName) {
+		for (int i = 0; i < plan.getTokenMappings().size(); i++) {
+			MigrationPlan.TokenMapping tokenMapping = (MigrationPlan.TokenMapping) plan.getTokenMappings().get(i);
+			if(tokenName.equals(tokenMapping.getTokenName())) {
+				return tokenMapping;
+			}
+		}
+		fail("No mapping for the '" + tokenName + "' token.");
+		return null;
+	}
+
+	private Migrator createSimpleProcessDefinitionMigrator() throws InvalidMigrationException {
+		return new Migrator("simple", this.jbpmContext, new Migration[]{new SimpleProcessDefinitionMigration001(), new SimpleProcessDefinitionMigration002()}, null);
+	}
+
+	private void deploySimpleV2AndV3Definitions() throws IOException {
+		jbpmContext.deployProcessDefinition(MigrationUtils.getProcessDefinition("simpleProcessDefinition_002.xml"));
+		jbpmContext.deployProcessDefinition(MigrationUtils.getProcessDefinition("simpleProcessDefinition_003.xml"));
+	}
+
+	private static class SimpleProcessDefinitionMigration001 implements Migration{
+		public StateNodeMap createNodeMap() {
+			return new StateNodeMap(new String[][] {{"A","first"}, {"B","second"}, });
+		}
+	}
+	private static class MissingSuperStateMigration implements Migration{
+		public StateNodeMap createNodeMap() {
+			return new StateNodeMap(new String[][] {{"A", "java://org.jbpm.instance.migration.DynamicMigrationToAMissingSuperState"}});
+		}
+	}
+	private static class SimpleProcessDefinitionMigration002 implements Migration{
+		public StateNodeMap createNodeMap() {
+			return new StateNodeMap(new String[][] {{"first","third"}, {"forkNode1","forkNodeOne"}, {"forkNode2","forkNodeTwo"}, {"forkNode3","forkNodeThree"}, });
+		}
+	}
+}
@@ -0,0 +1,190 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.jbpm.graph.def.ProcessDefinition;
+import org.jbpm.graph.exe.ProcessInstance;
+import org.jbpm.graph.exe.Token;
+import org.jbpm.instance.migration.shape.ProcessShape;
+import org.jbpm.instance.migration.shape.ProcessShapeGenerator;
+
+/**
+ * 
+ * @author Caleb Powell <caleb.powell@gmail.com> 
+ */
+public class MigrationSessionTest extends TestCase {
+
+	private ProcessShapeGenerator generator;
+
+	protected void setUp() throws Exception {
+		ProcessShape shape = new ProcessShape();
+		shape.setNodeCount(12);
+		shape.setForkWidth(3);
+		shape.setSuperStateDepth(1);
+		shape.setSubProcessDepth(1);
+		shape.setVersionCount(3);
+		shape.setChurn(0.5);
+		shape.setSeed(7);
+		generator = new ProcessShapeGenerator("session", shape);
+	}
+
+	public void test_that_a_migrator_without_a_jbpm_context_migrates_with_a_session() {
+		Migrator migrator = generator.createMigrator(null);
+		MigrationSession session = new MigrationSession(null, generator.createDefinitionCache());
+		
+		ProcessInstance newProcessInstance = migrator.migrate(generator.createProcessInstance(1), session);
+		
+		assertEquals(3, newProcessInstance.getProcessDefinition().getVersion());
+		assertTrue(migrator.plan(generator.createProcessInstance(2), session).isExecutable());
+		assertEquals(0, migrator.getProcessDefinitionCache().getHitCount());
+	}
+
+	public void test_that_each_session_compiles_its_own_node_resolution_tables() {
+		ProcessDefinition sourceDefinition = generator.createDefinition(0, 1);
+		ProcessDefinition targetDefinition = generator.createDefinition(0, 3);
+		StateNodeMap nodeMap = generator.createMigrator(null).getStateNodeMap();
+		MigrationSession session = new MigrationSession(null);
+		MigrationSession otherSession = new MigrationSession(null);
+		
+		NodeResolutionTable table = session.getNodeResolutionTable(sourceDefinition, targetDefinition, nodeMap);
+		
+		assertSame(table, session.getNodeResolutionTable(sourceDefinition, targetDefinition, nodeMap));
+		assertNotSame(table, otherSession.getNodeResolutionTable(sourceDefinition, targetDefinition, nodeMap));
+		session.clear();
+		assertNotSame(table, session.getNodeResolutionTable(sourceDefinition, targetDefinition, nodeMap));
+	}
+
+	public void test_that_a_fork_reads_a_snapshot_of_the_definition_cache_without_a_context() {
+		ProcessDefinitionCache definitionCache = generator.createDefinitionCache();
+		MigrationSession session = new MigrationSession(null, definitionCache);
+		String processName = generator.getProcessName(0);
+		ProcessDefinition latestDefinition = session.findLatestProcessDefinition(processName);
+		
+		MigrationSession fork = session.fork();
+		definitionCache.invalidateAll();
+		
+		assertNull(fork.getJbpmContext());
+		assertNotSame(definitionCache, fork.getProcessDefinitionCache());
+		assertSame(latestDefinition, fork.findLatestProcessDefinition(processName));
+		try {
+			fork.findLatestProcessDefinition("unknown");
+			fail("Expected an '" + InvalidMigrationException.class.getName() + "'");
+		} catch (InvalidMigrationException e) {
+			//expected
+		}
+	}
+
+	public void test_that_each_session_holds_its_own_batch_scoped_dynamic_migrations() {
+		DynamicMigrationCache cache = new DynamicMigrationCache();
+		MigrationSession session = new MigrationSession(null);
+		MigrationSession otherSession = new MigrationSession(null);
+		String className = BatchScopedDynamicMigrationForTesting.class.getName();
+		
+		DynamicMigration dynamicMigration = session.lookupDynamicMigration(cache, className);
+		
+		assertSame(dynamicMigration, session.lookupDynamicMigration(cache, className));
+		assertSame(dynamicMigration, session.fork().lookupDynamicMigration(cache, className));
+		assertNotSame(dynamicMigration, otherSession.lookupDynamicMigration(cache, className));
+		otherSession.clear();
+		cache.clearBatchScopedInstances();
+		assertSame(dynamicMigration, session.lookupDynamicMigration(cache, className));
+		session.clear();
+		assertNotSame(dynamicMigration, session.lookupDynamicMigration(cache, className));
+	}
+
+	public void test_that_each_old_token_is_paired_with_the_new_token_created_for_it() {
+		Migrator migrator = generator.createMigrator(null);
+		final MigrationSession session = new MigrationSession(null, generator.createDefinitionCache());
+		session.setPairingTokens(true);
+		ProcessInstance processInstance = generator.createProcessInstance(2);
+		
+		migrator.migrate(processInstance, session);
+		
+		final List oldTokens = new ArrayList();
+		final Map newTokens = new IdentityHashMap();
+		TokenTreeWalker.PROCESS_INSTANCE_TREE.walk(processInstance, new TokenTreeWalker.Visitor() {
+			public boolean visitProcessInstance(ProcessInstance processInstance) {
+				return true;
+			}
+
+			public boolean visitToken(Token token) {
+				Token newToken = session.findNewToken(token);
+				assertNotNull(newToken);
+				assertEquals(token.getName(), newToken.getName());
+				assertEquals(token.getProcessInstance().getProcessDefinition().getName(), newToken.getProcessInstance().getProcessDefinition().getName());
+				oldTokens.add(token);
+				newTokens.put(newToken, token);
+				return true;
+			}
+		});
+		assertEquals(oldTokens.size(), newTokens.size());
+		session.clear();
+		assertNull(session.findNewToken((Token) oldTokens.get(0)));
+	}
+
+	public void test_that_tokens_are_not_paired_by_default() {
+		Migrator migrator = generator.createMigrator(null);
+		MigrationSession session = new MigrationSession(null, generator.createDefinitionCache());
+		ProcessInstance processInstance = generator.createProcessInstance(2);
+		
+		migrator.migrate(processInstance, session);
+		
+		assertFalse(session.isPairingTokens());
+		assertNull(session.findNewToken(processInstance.getRootToken()));
+	}
+
+	public void test_that_one_migrator_can_be_shared_by_threads_with_their_own_sessions() throws Exception {
+		final Migrator migrator = generator.createMigrator(null);
+		final List versions = Collections.synchronizedList(new ArrayList());
+		final List failures = Collections.synchronizedList(new ArrayList());
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						MigrationSession session = new MigrationSession(null, generator.createDefinitionCache());
+						for (int j = 0; j < 10; j++) {
+							versions.add(new Integer(migrator.migrate(generator.createProcessInstance(1), session).getProcessDefinition().getVersion()));
+						}
+					} catch (Throwable t) {
+						failures.add(t);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (int i = 0; i < threads.length; i++) {
+			threads[i].join();
+		}
+		
+		assertEquals(Collections.EMPTY_LIST, failures);
+		assertEquals(40, versions.size());
+		assertEquals(Collections.nCopies(40, new Integer(3)), versions);
+	}
+}
@@ -73,6 +73,21 @@ public class MigrationUtilsTest extends BaseTestCase {
 		assertTrue(MigrationUtils.requiresMigration(processInstance.getRootToken().getChild("to_forkNode3").getSubProcessInstance(), jbpmContext));
 		
 	}
+
+	public void test_that_requiresMigration_looks_up_each_latest_definition_once() throws IOException{
+		deployV1Definitions();
+		ProcessInstance processInstance = findLatestProcessDefinition("simpleSuperProcess").createProcessInstance();
+		processInstance.signal();
+		processInstance.signal();
+		ProcessDefinitionCache definitionCache = new ProcessDefinitionCache();
+		
+		assertFalse(MigrationUtils.requiresMigration(processInstance, jbpmContext, definitionCache));
+		long missCount = definitionCache.getMissCount();
+		assertTrue(missCount > 0);
+		
+		assertFalse(MigrationUtils.requiresMigration(processInstance, jbpmContext, definitionCache));
+		assertEquals(missCount, definitionCache.getMissCount());
+	}
 	
 	public void testThatThe_lookupDynamicMigration_methodReturnsTheCorrectClassName(){
 		DynamicMigration dynamicMigration = 
@@ -113,6 +128,18 @@ public class MigrationUtilsTest extends BaseTestCase {
 		
 	}
 	
+	public void testThatThe_lookupMigrationsFor_methodReturnsTheIndexedMigrationsInOrder(){
+		Migration[] migrations = MigrationUtils.lookupMigrationsFor("org.jbpm.instance.migration.TestMigration");
+		assertEquals(3, migrations.length);
+		assertEquals(TestMigration001.class, migrations[0].getClass());
+		assertEquals(TestMigration002.class, migrations[1].getClass());
+		assertEquals(TestMigration003.class, migrations[2].getClass());
+	}
+
+	public void testThatThe_lookupMigrationsFor_methodReturnsAnEmptyArrayForUnknownMigrations(){
+		assertEquals(0, MigrationUtils.lookupMigrationsFor("org.jbpm.instance.migration.NonExistentMigration").length);
+	}
+	
 	public void testThatThe_isDynamicNodeName_methodIsCorrect(){
 		assertTrue(MigrationUtils.isDynamicNodeName("java://org.jbpm.instance.migration.DynamicMigrationForTesting"));
 		
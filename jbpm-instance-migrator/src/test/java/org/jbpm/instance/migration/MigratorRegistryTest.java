@@ -0,0 +1,190 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.jbpm.instance.migration.handler.EndProcessMigrationHandler;
+
+/**
+ * 
+ * @author Caleb Powell <caleb.powell@gmail.com> 
+ */
+public class MigratorRegistryTest extends TestCase {
+
+	private MigratorRegistry registry;
+
+	protected void setUp() throws Exception {
+		registry = new MigratorRegistry();
+		registry.register("sub", new Migration[] {new NodeMigration("SubA", "Sub1")}, null);
+		registry.register("super", new Migration[] {new NodeMigration("A", "A1")}, new String[] {"sub"});
+	}
+
+	public void test_that_each_registered_migrator_is_built_once() {
+		Migrator migrator = registry.getMigrator("super", null);
+		Migrator otherMigrator = registry.getMigrator("super", null);
+		
+		assertNotSame(migrator, otherMigrator);
+		assertSame(migrator.getStateNodeMap(), otherMigrator.getStateNodeMap());
+		assertEquals("A1", migrator.getStateNodeMap().getCurrentNodeName("A"));
+		assertSame(registry.getMigrator("sub", null).getStateNodeMap(), registry.getMigrator("sub", null).getStateNodeMap());
+		assertEquals("Sub1", registry.getMigrator("sub", null).getStateNodeMap().getCurrentNodeName("SubA"));
+	}
+
+	public void test_that_the_registered_migrator_is_shared_for_use_with_sessions() {
+		Migrator migrator = registry.getMigrator("super");
+		
+		assertSame(migrator, registry.getMigrator("super"));
+		assertSame(migrator.getStateNodeMap(), registry.getMigrator("super", null).getStateNodeMap());
+		assertNull(migrator.getJbpmContext());
+	}
+
+	public void test_that_the_registered_migrator_cannot_be_changed() {
+		Migrator migrator = registry.getMigrator("super");
+		
+		assertTrue(migrator.isFrozen());
+		assertTrue(registry.getMigrator("sub").isFrozen());
+		try {
+			migrator.addMigrationHandler(new EndProcessMigrationHandler());
+			fail("Expected an '" + IllegalStateException.class.getName() + "'");
+		} catch (IllegalStateException e) {
+			//expected
+		}
+		try {
+			migrator.setReparentVariables(true);
+			fail("Expected an '" + IllegalStateException.class.getName() + "'");
+		} catch (IllegalStateException e) {
+			//expected
+		}
+		try {
+			migrator.setProcessDefinitionCache(new ProcessDefinitionCache(0));
+			fail("Expected an '" + IllegalStateException.class.getName() + "'");
+		} catch (IllegalStateException e) {
+			//expected
+		}
+		assertFalse(migrator.isReparentVariables());
+	}
+
+	public void test_that_a_copy_of_the_registered_migrator_can_be_changed() {
+		Migrator copy = registry.getMigrator("super", null);
+		copy.setReparentVariables(true);
+		copy.addMigrationHandler(new EndProcessMigrationHandler());
+		
+		assertFalse(copy.isFrozen());
+		assertTrue(copy.isReparentVariables());
+		assertFalse(registry.getMigrator("super").isReparentVariables());
+	}
+
+	public void test_that_a_migrator_that_has_not_been_registered_cannot_be_requested() {
+		assertFalse(registry.isRegistered("unknown"));
+		try {
+			registry.getMigrator("unknown", null);
+			fail("Expected an '" + InvalidMigrationException.class.getName() + "'");
+		} catch (InvalidMigrationException e) {
+			//expected
+		}
+	}
+
+	public void test_that_a_cycle_of_sub_process_migrators_is_rejected() {
+		registry.register("sub", new Migration[] {}, new String[] {"super"});
+		try {
+			registry.getMigrator("super", null);
+			fail("Expected an '" + InvalidMigrationException.class.getName() + "'");
+		} catch (InvalidMigrationException e) {
+			//expected
+		}
+	}
+
+	public void test_that_refreshing_a_sub_process_migrator_rebuilds_the_migrators_that_use_it() {
+		StateNodeMap superNodeMap = registry.getMigrator("super", null).getStateNodeMap();
+		StateNodeMap subNodeMap = registry.getMigrator("sub", null).getStateNodeMap();
+		registry.register("other", new Migration[] {}, null);
+		StateNodeMap otherNodeMap = registry.getMigrator("other", null).getStateNodeMap();
+		
+		registry.refresh("sub");
+		
+		assertNotSame(superNodeMap, registry.getMigrator("super", null).getStateNodeMap());
+		assertNotSame(subNodeMap, registry.getMigrator("sub", null).getStateNodeMap());
+		assertSame(otherNodeMap, registry.getMigrator("other", null).getStateNodeMap());
+	}
+
+	public void test_that_a_new_registration_replaces_the_built_migrator() {
+		assertEquals("A1", registry.getMigrator("super", null).getStateNodeMap().getCurrentNodeName("A"));
+		
+		registry.register("super", new Migration[] {new NodeMigration("A", "A2")}, new String[] {"sub"});
+		
+		assertEquals("A2", registry.getMigrator("super", null).getStateNodeMap().getCurrentNodeName("A"));
+	}
+
+	public void test_that_refresh_keeps_the_registrations() {
+		StateNodeMap superNodeMap = registry.getMigrator("super", null).getStateNodeMap();
+		
+		registry.refresh();
+		
+		assertTrue(registry.isRegistered("super"));
+		assertNotSame(superNodeMap, registry.getMigrator("super", null).getStateNodeMap());
+		registry.clear();
+		assertFalse(registry.isRegistered("super"));
+	}
+
+	public void test_that_threads_requesting_a_migrator_share_the_same_build() throws Exception {
+		final List nodeMaps = Collections.synchronizedList(new ArrayList());
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					nodeMaps.add(registry.getMigrator("super", null).getStateNodeMap());
+				}
+			};
+			threads[i].start();
+		}
+		for (int i = 0; i < threads.length; i++) {
+			threads[i].join();
+		}
+		
+		assertEquals(threads.length, nodeMaps.size());
+		for (int i = 1; i < nodeMaps.size(); i++) {
+			assertSame(nodeMaps.get(0), nodeMaps.get(i));
+		}
+	}
+
+	public void test_that_the_shared_registry_is_a_singleton() {
+		assertSame(MigratorRegistry.getInstance(), MigratorRegistry.getInstance());
+	}
+
+	private static class NodeMigration implements Migration {
+		private final String deprecatedNodeName;
+		private final String currentNodeName;
+
+		private NodeMigration(String deprecatedNodeName, String currentNodeName) {
+			this.deprecatedNodeName = deprecatedNodeName;
+			this.currentNodeName = currentNodeName;
+		}
+
+		public StateNodeMap createNodeMap() {
+			return new StateNodeMap(new String[][] {{deprecatedNodeName, currentNodeName}});
+		}
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.jbpm.graph.def.ProcessDefinition;
+
+public class NodeResolutionTableTest extends TestCase {
+
+	private ProcessDefinition sourceDefinition;
+	private ProcessDefinition targetDefinition;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		sourceDefinition = MigrationUtils.getProcessDefinition("simpleProcessDefinition_001.xml");
+		targetDefinition = MigrationUtils.getProcessDefinition("simpleProcessDefinition_002.xml");
+	}
+
+	public void test_that_deprecated_nodes_are_resolved_to_their_current_node() throws IOException {
+		NodeResolutionTable table = new NodeResolutionTable(sourceDefinition, targetDefinition, new StateNodeMap(new String[][] {{"A","first"}, {"B","second"}}));
+		
+		NodeResolutionTable.Entry entry = table.lookup(sourceDefinition.findNode("A"));
+		assertEquals("A", entry.getSourceNodeName());
+		assertEquals("first", entry.getCurrentNodeName());
+		assertSame(targetDefinition.findNode("first"), entry.getTargetNode());
+		assertFalse(entry.isDynamic());
+	}
+
+	public void test_that_nodes_that_are_not_deprecated_are_resolved_by_name() {
+		NodeResolutionTable table = new NodeResolutionTable(sourceDefinition, targetDefinition, new StateNodeMap());
+		
+		assertSame(targetDefinition.findNode("forkNode2"), table.lookup(sourceDefinition.findNode("forkNode2")).getTargetNode());
+		assertNull(table.lookup(sourceDefinition.findNode("B")).getTargetNode());
+	}
+
+	public void test_that_entries_are_compiled_once() {
+		NodeResolutionTable table = new NodeResolutionTable(sourceDefinition, targetDefinition, new StateNodeMap());
+		
+		assertSame(table.lookup(sourceDefinition.findNode("forkNode1")), table.lookup(sourceDefinition.findNode("forkNode1")));
+		assertTrue(table.isCompiledFor(sourceDefinition, targetDefinition));
+		assertFalse(table.isCompiledFor(targetDefinition, sourceDefinition));
+	}
+
+	public void test_that_dynamic_nodes_record_the_DynamicMigration_class_name() {
+		NodeResolutionTable table = new NodeResolutionTable(sourceDefinition, targetDefinition, 
+				new StateNodeMap(new String[][] {{"A", "java://org.jbpm.instance.migration.DynamicMigrationForTheSimpleProcessANode"}}));
+		
+		NodeResolutionTable.Entry entry = table.lookup(sourceDefinition.findNode("A"));
+		assertTrue(entry.isDynamic());
+		assertNull(entry.getTargetNode());
+		assertEquals("org.jbpm.instance.migration.DynamicMigrationForTheSimpleProcessANode", entry.getDynamicMigrationClassName());
+	}
+}
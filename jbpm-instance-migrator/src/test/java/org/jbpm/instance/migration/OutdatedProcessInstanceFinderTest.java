@@ -0,0 +1,149 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jbpm.graph.exe.ProcessInstance;
+
+public class OutdatedProcessInstanceFinderTest extends BaseTestCase {
+
+	private OutdatedProcessInstanceFinder finder;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		finder = new OutdatedProcessInstanceFinder(jbpmContext);
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+	}
+
+	public void test_that_no_ids_are_found_when_every_instance_is_current() throws IOException {
+		deployV1Definitions();
+		createSuperProcessInstanceWaitingOnItsSubProcess();
+		createSuperProcessInstanceWaitingInStateA();
+		
+		assertEquals(0, findOutdatedIds("simpleSuperProcess").size());
+	}
+
+	public void test_that_instances_with_an_outdated_sub_process_are_found() throws IOException {
+		deployV1Definitions();
+		ProcessInstance withSubProcess = createSuperProcessInstanceWaitingOnItsSubProcess();
+		createSuperProcessInstanceWaitingInStateA();
+		
+		deploySubProcessV2Definition();
+		
+		List ids = findOutdatedIds("simpleSuperProcess");
+		assertEquals(1, ids.size());
+		assertEquals(new Long(withSubProcess.getId()), ids.get(0));
+	}
+
+	public void test_that_outdated_instances_are_found_once_in_ascending_order() throws IOException {
+		deployV1Definitions();
+		ProcessInstance withSubProcess = createSuperProcessInstanceWaitingOnItsSubProcess();
+		ProcessInstance inStateA = createSuperProcessInstanceWaitingInStateA();
+		
+		deploySubProcessV2Definition();
+		deploySuperProcessV2Definition();
+		
+		List ids = findOutdatedIds("simpleSuperProcess");
+		assertEquals(2, ids.size());
+		assertEquals(new Long(Math.min(withSubProcess.getId(), inStateA.getId())), ids.get(0));
+		assertEquals(new Long(Math.max(withSubProcess.getId(), inStateA.getId())), ids.get(1));
+	}
+
+	public void test_that_sub_process_instances_are_not_found_on_their_own() throws IOException {
+		deployV1Definitions();
+		createSuperProcessInstanceWaitingOnItsSubProcess();
+		
+		deploySubProcessV2Definition();
+		
+		assertEquals(0, findOutdatedIds("simpleSubProcess").size());
+	}
+
+	public void test_that_ended_instances_are_not_found() throws IOException {
+		deployV1Definitions();
+		ProcessInstance processInstance = createSuperProcessInstanceWaitingInStateA();
+		processInstance.end();
+		jbpmContext.save(processInstance);
+		
+		deploySuperProcessV2Definition();
+		
+		assertEquals(0, findOutdatedIds("simpleSuperProcess").size());
+	}
+
+	public void test_that_small_batches_find_the_same_ids() throws IOException {
+		deployV1Definitions();
+		createSuperProcessInstanceWaitingOnItsSubProcess();
+		createSuperProcessInstanceWaitingOnItsSubProcess();
+		createSuperProcessInstanceWaitingOnItsSubProcess();
+		
+		deploySubProcessV2Definition();
+		finder.setBatchSize(1);
+		
+		assertEquals(3, findOutdatedIds("simpleSuperProcess").size());
+	}
+
+	private List findOutdatedIds(String processDefinitionName) {
+		jbpmContext.getSession().flush();
+		List ids = new ArrayList();
+		ProcessInstanceIdIterator iterator = finder.findOutdatedProcessInstanceIds(processDefinitionName);
+		try {
+			while (iterator.hasNext()) {
+				ids.add(iterator.next());
+			}
+		} finally {
+			iterator.close();
+		}
+		return ids;
+	}
+
+	private ProcessInstance createSuperProcessInstanceWaitingOnItsSubProcess() {
+		ProcessInstance processInstance = findLatestProcessDefinition("simpleSuperProcess").createProcessInstance();
+		processInstance.signal();
+		processInstance.signal();
+		jbpmContext.save(processInstance);
+		return processInstance;
+	}
+
+	private ProcessInstance createSuperProcessInstanceWaitingInStateA() {
+		ProcessInstance processInstance = findLatestProcessDefinition("simpleSuperProcess").createProcessInstance();
+		processInstance.signal();
+		jbpmContext.save(processInstance);
+		return processInstance;
+	}
+
+	private void deployV1Definitions() throws IOException {
+		jbpmContext.deployProcessDefinition(MigrationUtils.getProcessDefinition("simpleSubProcessDefinition_001.xml"));
+		jbpmContext.deployProcessDefinition(MigrationUtils.getProcessDefinition("simpleSuperProcessDefinition_001.xml"));
+	}
+
+	private void deploySubProcessV2Definition() throws IOException {
+		jbpmContext.deployProcessDefinition(MigrationUtils.getProcessDefinition("simpleSubProcessDefinition_002.xml"));
+	}
+
+	private void deploySuperProcessV2Definition() throws IOException {
+		jbpmContext.deployProcessDefinition(MigrationUtils.getProcessDefinition("simpleSuperProcessDefinition_002.xml"));
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.jbpm.JbpmConfiguration;
+import org.jbpm.graph.exe.ProcessInstance;
+import org.jbpm.instance.migration.handler.MigrationHandler;
+import org.jbpm.instance.migration.load.LargePopulationFixture;
+import org.jbpm.instance.migration.shape.ProcessShapeGenerator;
+
+public class ParallelBatchMigratorTest extends TestCase {
+
+	public void test_that_ids_are_partitioned_by_hash() {
+		assertEquals(0, ParallelBatchMigrator.partition(new Long(8), 4));
+		assertEquals(1, ParallelBatchMigrator.partition(new Long(9), 4));
+		assertEquals(3, ParallelBatchMigrator.partition(new Long(15), 4));
+		assertEquals(0, ParallelBatchMigrator.partition(new Long(15), 1));
+	}
+
+	public void test_that_the_workers_are_limited_by_the_connections() {
+		ParallelBatchMigrator parallelMigrator = new ParallelBatchMigrator(null, null, 8);
+		assertEquals(8, parallelMigrator.getEffectiveWorkerCount());
+		
+		parallelMigrator.setMaxConnections(3);
+		assertEquals(3, parallelMigrator.getEffectiveWorkerCount());
+	}
+
+	public void test_that_an_empty_id_source_completes() {
+		ParallelBatchMigrator parallelMigrator = new ParallelBatchMigrator(null, null, 4);
+		BatchMigrationResult result = parallelMigrator.run(new ArrayList().iterator());
+		
+		assertEquals(0, result.getMigratedCount());
+		assertEquals(0, result.getChunkResults().size());
+	}
+
+	public void test_that_the_workers_migrate_again_the_chunk_of_a_failed_instance() throws Exception {
+		LargePopulationFixture fixture = new LargePopulationFixture(new ProcessShapeGenerator("parallel", LargePopulationFixture.getDefaultShape()), 
+				12, new File(System.getProperty("java.io.tmpdir"), "jbpm-migrator-population"));
+		JbpmConfiguration jbpmConfiguration = fixture.open();
+		try {
+			List ids = fixture.findOutdatedProcessInstanceIds();
+			assertEquals(12, ids.size());
+			final Long failedId = (Long) ids.get(0);
+			Migrator migrator = fixture.createMigrator();
+			migrator.addMigrationHandler(new MigrationHandler() {
+				public void migrateInstance(ProcessInstance oldProcessInstance, ProcessInstance newProcessInstance) {
+					if(oldProcessInstance.getId() == failedId.longValue()) {
+						throw new IllegalStateException("handler failure");
+					}
+				}
+			});
+			ParallelBatchMigrator parallelMigrator = new ParallelBatchMigrator(migrator, jbpmConfiguration, 2);
+			parallelMigrator.setChunkSize(3);
+			BatchMigrationResult result = parallelMigrator.run(ids.iterator());
+			
+			assertEquals(11, result.getMigratedCount());
+			assertEquals(1, result.getFailedCount());
+			assertEquals(failedId, result.getFailedProcessInstanceIds().get(0));
+			assertEquals(1, result.getRetryCount());
+			
+			List outdatedIds = fixture.findOutdatedProcessInstanceIds();
+			assertEquals(1, outdatedIds.size());
+			assertEquals(failedId, outdatedIds.get(0));
+		} finally {
+			fixture.close();
+		}
+	}
+
+	public void test_that_invalid_settings_are_rejected() {
+		try {
+			new ParallelBatchMigrator(null, null, 0);
+			fail("Expected an '" + IllegalArgumentException.class.getName() + "'");
+		} catch (IllegalArgumentException e) {
+			//expected
+		}
+		try {
+			new ParallelBatchMigrator(null, null, 1).setChunkSize(0);
+			fail("Expected an '" + IllegalArgumentException.class.getName() + "'");
+		} catch (IllegalArgumentException e) {
+			//expected
+		}
+	}
+}
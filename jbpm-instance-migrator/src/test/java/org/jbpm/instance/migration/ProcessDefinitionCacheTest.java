@@ -0,0 +1,115 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration;
+
+import java.io.IOException;
+
+import org.jbpm.graph.def.ProcessDefinition;
+
+public class ProcessDefinitionCacheTest extends BaseTestCase {
+
+	protected void setUp() throws Exception {
+		super.setUp();
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+	}
+
+	public void test_that_repeated_lookups_are_answered_from_the_cache() throws IOException {
+		deployV1Definition();
+		ProcessDefinitionCache cache = new ProcessDefinitionCache();
+		
+		ProcessDefinition first = cache.findLatestProcessDefinition("simple", jbpmContext);
+		ProcessDefinition second = cache.findLatestProcessDefinition("simple", jbpmContext);
+		
+		assertSame(first, second);
+		assertEquals(1, cache.getMissCount());
+		assertEquals(1, cache.getHitCount());
+	}
+
+	public void test_that_an_invalidated_entry_is_reloaded() throws IOException {
+		deployV1Definition();
+		ProcessDefinitionCache cache = new ProcessDefinitionCache();
+		assertEquals(1, cache.findLatestProcessDefinition("simple", jbpmContext).getVersion());
+		
+		deployV2Definition();
+		assertEquals(1, cache.findLatestProcessDefinition("simple", jbpmContext).getVersion());
+		
+		cache.invalidate("simple");
+		assertEquals(2, cache.findLatestProcessDefinition("simple", jbpmContext).getVersion());
+		assertEquals(2, cache.getMissCount());
+	}
+
+	public void test_that_an_expired_entry_is_reloaded() throws IOException {
+		deployV1Definition();
+		ProcessDefinitionCache cache = new ProcessDefinitionCache(0);
+		cache.findLatestProcessDefinition("simple", jbpmContext);
+		cache.findLatestProcessDefinition("simple", jbpmContext);
+		
+		assertEquals(2, cache.getMissCount());
+		assertEquals(0, cache.getHitCount());
+	}
+
+	public void test_that_unknown_definitions_are_not_cached() {
+		ProcessDefinitionCache cache = new ProcessDefinitionCache();
+		assertNull(cache.findLatestProcessDefinition("nonexistent", jbpmContext));
+		assertNull(cache.findLatestProcessDefinition("nonexistent", jbpmContext));
+		assertEquals(2, cache.getMissCount());
+	}
+
+	public void test_that_the_latest_version_is_answered_from_the_cache() throws IOException {
+		deployV1Definition();
+		deployV2Definition();
+		ProcessDefinitionCache cache = new ProcessDefinitionCache();
+		
+		assertEquals(2, cache.getLatestVersion("simple", jbpmContext));
+		assertEquals(2, cache.getLatestVersion("simple", jbpmContext));
+		assertEquals(1, cache.getMissCount());
+	}
+
+	public void test_that_the_latest_version_of_an_unknown_definition_is_invalid() {
+		ProcessDefinitionCache cache = new ProcessDefinitionCache();
+		try {
+			cache.getLatestVersion("nonexistent", jbpmContext);
+			fail("Expected an '" + InvalidMigrationException.class.getName() + "'");
+		} catch (InvalidMigrationException e) {
+			//expected
+		}
+	}
+
+	public void test_that_a_put_definition_is_answered_without_a_query() throws IOException {
+		ProcessDefinitionCache cache = new ProcessDefinitionCache();
+		ProcessDefinition processDefinition = MigrationUtils.getProcessDefinition("simpleProcessDefinition_001.xml");
+		cache.put(processDefinition);
+		
+		assertSame(processDefinition, cache.findLatestProcessDefinition("simple", null));
+		assertEquals(0, cache.getMissCount());
+	}
+
+	private void deployV1Definition() throws IOException {
+		jbpmContext.deployProcessDefinition(MigrationUtils.getProcessDefinition("simpleProcessDefinition_001.xml"));
+	}
+
+	private void deployV2Definition() throws IOException {
+		jbpmContext.deployProcessDefinition(MigrationUtils.getProcessDefinition("simpleProcessDefinition_002.xml"));
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class StateNodeMapTest extends TestCase {
+
+	public void test_that_chained_mappings_are_collapsed() {
+		StateNodeMap nodeMap = new StateNodeMap(new String[][] {{"a", "b"}, {"x", "b"}, {"b", "c"}, {"y", "c"}, {"c", "d"}});
+		
+		assertEquals("d", nodeMap.getCurrentNodeName("a"));
+		assertEquals("d", nodeMap.getCurrentNodeName("x"));
+		assertEquals("d", nodeMap.getCurrentNodeName("y"));
+		assertEquals("d", nodeMap.getCurrentNodeName("c"));
+		assertTrue(nodeMap.containsCurrentNodeName("d"));
+		assertFalse(nodeMap.containsCurrentNodeName("b"));
+		assertFalse(nodeMap.containsCurrentNodeName("c"));
+		assertEquals(1, nodeMap.currentNodeNames().size());
+		assertEquals(5, nodeMap.deprecatedNodeNames().size());
+	}
+
+	public void test_that_chains_are_merged_into_an_existing_current_node() {
+		StateNodeMap nodeMap = new StateNodeMap(new String[][] {{"a", "b"}, {"x", "y"}, {"b", "y"}});
+		
+		assertEquals("y", nodeMap.getCurrentNodeName("a"));
+		assertEquals("y", nodeMap.getCurrentNodeName("b"));
+		assertEquals("y", nodeMap.getCurrentNodeName("x"));
+		assertEquals(1, nodeMap.currentNodeNames().size());
+	}
+
+	public void test_that_a_remapped_node_does_not_move_the_nodes_that_were_mapped_through_it() {
+		StateNodeMap nodeMap = new StateNodeMap(new String[][] {{"a", "b"}, {"b", "c"}, {"b", "d"}});
+		
+		assertEquals("c", nodeMap.getCurrentNodeName("a"));
+		assertEquals("d", nodeMap.getCurrentNodeName("b"));
+		assertTrue(nodeMap.containsCurrentNodeName("c"));
+		assertTrue(nodeMap.containsCurrentNodeName("d"));
+	}
+
+	public void test_that_a_current_node_is_removed_when_its_only_deprecated_node_is_remapped() {
+		StateNodeMap nodeMap = new StateNodeMap(new String[][] {{"a", "b"}, {"a", "c"}});
+		
+		assertEquals("c", nodeMap.getCurrentNodeName("a"));
+		assertFalse(nodeMap.containsCurrentNodeName("b"));
+		assertTrue(nodeMap.containsCurrentNodeName("c"));
+	}
+
+	public void test_that_a_deprecated_node_cannot_be_reintroduced() {
+		StateNodeMap nodeMap = new StateNodeMap(new String[][] {{"a", "b"}});
+		try {
+			nodeMap.addNodeMapping("c", "a");
+			fail("Expected an '" + InvalidMigrationException.class.getName() + "'");
+		} catch (InvalidMigrationException e) {
+			//expected
+		}
+	}
+
+	public void test_that_the_node_names_are_copies_of_the_mappings_at_the_time_of_the_call() {
+		StateNodeMap nodeMap = new StateNodeMap(new String[][] {{"a", "b"}});
+		Set deprecatedNodeNames = nodeMap.deprecatedNodeNames();
+		Collection currentNodeNames = nodeMap.currentNodeNames();
+		
+		nodeMap.addNodeMapping("x", "y");
+		
+		assertEquals(Collections.singleton("a"), deprecatedNodeNames);
+		assertEquals(Collections.singleton("b"), currentNodeNames);
+		assertEquals(2, nodeMap.deprecatedNodeNames().size());
+		try {
+			deprecatedNodeNames.add("c");
+			fail("Expected an '" + UnsupportedOperationException.class.getName() + "'");
+		} catch (UnsupportedOperationException e) {
+			//expected
+		}
+	}
+
+	public void test_that_long_chains_are_collapsed() {
+		StateNodeMap nodeMap = new StateNodeMap();
+		int chainLength = 10000;
+		for (int i = 0; i < chainLength; i++) {
+			nodeMap.addNodeMapping("node" + i, "node" + (i + 1));
+		}
+		
+		assertEquals("node" + chainLength, nodeMap.getCurrentNodeName("node0"));
+		assertEquals("node" + chainLength, nodeMap.getCurrentNodeName("node" + (chainLength / 2)));
+		assertEquals(1, nodeMap.currentNodeNames().size());
+	}
+}
@@ -24,6 +24,7 @@ import java.io.IOException;
 
 import org.jbpm.graph.def.ProcessDefinition;
 import org.jbpm.graph.exe.ProcessInstance;
+import org.jbpm.graph.exe.Token;
 import org.jbpm.instance.migration.InvalidMigrationException;
 import org.jbpm.instance.migration.Migration;
 import org.jbpm.instance.migration.MigrationUtils;
@@ -41,6 +42,8 @@ public class SubprocessMigratorTest extends BaseTestCase {
 
 	private static final String SUPER_PROCESS_NAME = "simpleSuperProcess";
 
+	private static final String FORKING_SUPER_PROCESS_NAME = "forkingSuperProcess";
+
 	protected void setUp() throws Exception {
 		super.setUp();
 	}
@@ -146,6 +149,47 @@ public class SubprocessMigratorTest extends BaseTestCase {
 		assertNotSame(instanceV2.getRootToken().getChild("to_forkNode3").getSubProcessInstance(), instanceV1.getRootToken().getChild("to_forkNode3").getSubProcessInstance());
 	}
 
+	public void test_that_the_sub_processes_of_a_fork_are_built_in_parallel_and_attached_to_their_tokens() throws Exception {
+		jbpmContext.deployProcessDefinition(MigrationUtils.getProcessDefinition("simpleSubProcessDefinition_001.xml"));
+		jbpmContext.deployProcessDefinition(MigrationUtils.getProcessDefinition("forkingSuperProcessDefinition_001.xml"));
+		ProcessInstance instanceV1 = findLatestProcessDefinition(FORKING_SUPER_PROCESS_NAME).createProcessInstance();
+		instanceV1.signal();
+		for (int i = 1; i <= 4; i++) {
+			assertEquals("SubA", instanceV1.getRootToken().getChild("to_call" + i).getSubProcessInstance().getRootToken().getNode().getName());
+		}
+		
+		jbpmContext.deployProcessDefinition(MigrationUtils.getProcessDefinition("simpleSubProcessDefinition_002.xml"));
+		jbpmContext.deployProcessDefinition(MigrationUtils.getProcessDefinition("forkingSuperProcessDefinition_001.xml"));
+		
+		Migrator subProcessMigrator = new Migrator(SUB_PROCESS_NAME, this.jbpmContext, new Migration[] {new SimpleSubProcessDefinitionMigration001()}, null );
+		Migrator superProcessMigrator = new Migrator(FORKING_SUPER_PROCESS_NAME, this.jbpmContext, new Migration[] {}, new Migrator[]{subProcessMigrator});
+		superProcessMigrator.setSubProcessThreadCount(3);
+		ProcessInstance instanceV2 = superProcessMigrator.migrate(instanceV1);
+		
+		for (int i = 1; i <= 4; i++) {
+			Token newSuperProcessToken = instanceV2.getRootToken().getChild("to_call" + i);
+			ProcessInstance newSubProcessInstance = newSuperProcessToken.getSubProcessInstance();
+			assertEquals(2, newSubProcessInstance.getProcessDefinition().getVersion());
+			assertEquals("Sub1", newSubProcessInstance.getRootToken().getNode().getName());
+			assertSame(newSuperProcessToken, newSubProcessInstance.getSuperProcessToken());
+			assertNotSame(instanceV1.getRootToken().getChild("to_call" + i).getSubProcessInstance(), newSubProcessInstance);
+		}
+		
+		instanceV2.getRootToken().getChild("to_call2").getSubProcessInstance().signal();
+		assertEquals("SubB", instanceV2.getRootToken().getChild("to_call2").getSubProcessInstance().getRootToken().getNode().getName());
+	}
+
+	public void test_that_the_sub_process_thread_count_must_be_positive() throws Exception {
+		Migrator superProcessMigrator = new Migrator(FORKING_SUPER_PROCESS_NAME, this.jbpmContext, new Migration[] {}, null);
+		assertEquals(1, superProcessMigrator.getSubProcessThreadCount());
+		try {
+			superProcessMigrator.setSubProcessThreadCount(0);
+			fail("Expected an '" + IllegalArgumentException.class.getName() + "'");
+		} catch (IllegalArgumentException e) {
+			//expected
+		}
+	}
+
 	private void deployV1Definitions() throws IOException {
 		jbpmContext.deployProcessDefinition(MigrationUtils.getProcessDefinition("simpleSubProcessDefinition_001.xml"));
 		jbpmContext.deployProcessDefinition(MigrationUtils.getProcessDefinition("simpleSuperProcessDefinition_001.xml"));
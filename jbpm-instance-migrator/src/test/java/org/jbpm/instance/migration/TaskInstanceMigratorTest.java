@@ -0,0 +1,172 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jbpm.graph.exe.ProcessInstance;
+import org.jbpm.instance.migration.handler.EndProcessMigrationHandler;
+import org.jbpm.taskmgmt.exe.SwimlaneInstance;
+import org.jbpm.taskmgmt.exe.TaskInstance;
+
+public class TaskInstanceMigratorTest extends BaseTestCase {
+
+	private static final String PROCESS_NAME = "swimlaneTaskNodeProcess";
+
+	protected void setUp() throws Exception {
+		super.setUp();
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+	}
+
+	public void test_that_open_task_instances_are_moved_to_the_new_tokens() throws IOException {
+		deployDefinition("swimlaneTaskNodeProcessDefinition_001.xml");
+		List ids = createProcessInstances(3);
+		deployDefinition("swimlaneTaskNodeProcessDefinition_002.xml");
+		
+		TaskInstanceMigrator taskInstanceMigrator = new TaskInstanceMigrator();
+		migrate(ids, taskInstanceMigrator);
+		
+		assertEquals(3, taskInstanceMigrator.getTaskInstanceCount());
+		assertEquals(0, taskInstanceMigrator.getUnmappedCount());
+		List newProcessInstances = findNewProcessInstances();
+		assertEquals(3, newProcessInstances.size());
+		for (int i = 0; i < newProcessInstances.size(); i++) {
+			ProcessInstance newProcessInstance = (ProcessInstance) newProcessInstances.get(i);
+			assertEquals(1, newProcessInstance.getTaskMgmtInstance().getTaskInstances().size());
+			TaskInstance taskInstance = (TaskInstance) newProcessInstance.getTaskMgmtInstance().getTaskInstances().iterator().next();
+			assertEquals(newProcessInstance.getRootToken().getId(), taskInstance.getToken().getId());
+			assertEquals(2, taskInstance.getTask().getProcessDefinition().getVersion());
+			assertTrue(taskInstance.isOpen());
+		}
+		assertEquals(0, jbpmContext.loadProcessInstance(((Long) ids.get(0)).longValue()).getTaskMgmtInstance().getTaskInstances().size());
+	}
+
+	public void test_that_swimlane_instances_are_moved_with_their_actor() throws IOException {
+		deployDefinition("swimlaneTaskNodeProcessDefinition_001.xml");
+		List ids = createProcessInstances(1);
+		deployDefinition("swimlaneTaskNodeProcessDefinition_002.xml");
+		
+		TaskInstanceMigrator taskInstanceMigrator = new TaskInstanceMigrator();
+		migrate(ids, taskInstanceMigrator);
+		
+		assertEquals(1, taskInstanceMigrator.getSwimlaneInstanceCount());
+		ProcessInstance newProcessInstance = (ProcessInstance) findNewProcessInstances().get(0);
+		SwimlaneInstance swimlaneInstance = newProcessInstance.getTaskMgmtInstance().getSwimlaneInstance("clerk");
+		assertNotNull(swimlaneInstance);
+		assertEquals("clerk1", swimlaneInstance.getActorId());
+		TaskInstance taskInstance = (TaskInstance) newProcessInstance.getTaskMgmtInstance().getTaskInstances().iterator().next();
+		assertEquals("clerk1", taskInstance.getActorId());
+		assertEquals(swimlaneInstance.getId(), taskInstance.getSwimlaneInstance().getId());
+	}
+
+	public void test_that_task_instances_without_a_task_in_the_new_version_are_left_behind() throws IOException {
+		deployDefinition("swimlaneTaskNodeProcessDefinition_001.xml");
+		List ids = createProcessInstances(1);
+		deployDefinition("swimlaneTaskNodeProcessDefinition_003.xml");
+		
+		TaskInstanceMigrator taskInstanceMigrator = new TaskInstanceMigrator();
+		migrate(ids, taskInstanceMigrator);
+		
+		assertEquals(0, taskInstanceMigrator.getTaskInstanceCount());
+		assertEquals(1, taskInstanceMigrator.getUnmappedCount());
+		assertEquals(1, jbpmContext.loadProcessInstance(((Long) ids.get(0)).longValue()).getTaskMgmtInstance().getTaskInstances().size());
+	}
+
+	public void test_that_the_task_instances_are_moved_before_a_handler_ends_the_old_instance() throws IOException {
+		deployDefinition("swimlaneTaskNodeProcessDefinition_001.xml");
+		List ids = createProcessInstances(1);
+		deployDefinition("swimlaneTaskNodeProcessDefinition_002.xml");
+		Migrator migrator = new Migrator(PROCESS_NAME, jbpmContext, new Migration[0], null);
+		migrator.addMigrationHandler(new EndProcessMigrationHandler());
+		
+		TaskInstanceMigrator taskInstanceMigrator = new TaskInstanceMigrator();
+		migrate(migrator, ids, taskInstanceMigrator);
+		
+		assertEquals(1, taskInstanceMigrator.getTaskInstanceCount());
+		assertTrue(jbpmContext.loadProcessInstance(((Long) ids.get(0)).longValue()).hasEnded());
+		ProcessInstance newProcessInstance = (ProcessInstance) findNewProcessInstances().get(0);
+		TaskInstance taskInstance = (TaskInstance) newProcessInstance.getTaskMgmtInstance().getTaskInstances().iterator().next();
+		assertTrue(taskInstance.isOpen());
+		assertTrue(taskInstance.isSignalling());
+	}
+
+	public void test_that_small_batches_move_every_task_instance() throws IOException {
+		deployDefinition("swimlaneTaskNodeProcessDefinition_001.xml");
+		List ids = createProcessInstances(3);
+		deployDefinition("swimlaneTaskNodeProcessDefinition_002.xml");
+		
+		TaskInstanceMigrator taskInstanceMigrator = new TaskInstanceMigrator();
+		taskInstanceMigrator.setBatchSize(1);
+		migrate(ids, taskInstanceMigrator);
+		
+		assertEquals(3, taskInstanceMigrator.getTaskInstanceCount());
+		assertEquals(3, taskInstanceMigrator.getSwimlaneInstanceCount());
+	}
+
+	public void test_that_the_batch_size_must_be_positive() {
+		try {
+			new TaskInstanceMigrator().setBatchSize(0);
+			fail("Expected an '" + IllegalArgumentException.class.getName() + "'");
+		} catch (IllegalArgumentException e) {
+			//expected
+		}
+	}
+
+	private void migrate(List ids, TaskInstanceMigrator taskInstanceMigrator) {
+		migrate(new Migrator(PROCESS_NAME, jbpmContext, new Migration[0], null), ids, taskInstanceMigrator);
+	}
+
+	private void migrate(Migrator migrator, List ids, TaskInstanceMigrator taskInstanceMigrator) {
+		BatchMigrator batchMigrator = new BatchMigrator(migrator, 2);
+		batchMigrator.setCommitChunks(false);
+		batchMigrator.setTaskInstanceMigrator(taskInstanceMigrator);
+		assertEquals(ids.size(), batchMigrator.run(ids.iterator()).getMigratedCount());
+	}
+
+	private List findNewProcessInstances() {
+		return jbpmContext.getGraphSession().findProcessInstances(findLatestProcessDefinition(PROCESS_NAME).getId());
+	}
+
+	/**
+	 * Creates ProcessInstances that wait in the task node, each with an open task instance assigned to the clerk swimlane.
+	 */
+	private List createProcessInstances(int count) {
+		List ids = new ArrayList();
+		for (int i = 0; i < count; i++) {
+			ProcessInstance processInstance = findLatestProcessDefinition(PROCESS_NAME).createProcessInstance();
+			processInstance.signal();
+			jbpmContext.save(processInstance);
+			ids.add(new Long(processInstance.getId()));
+		}
+		jbpmContext.getSession().flush();
+		jbpmContext.getSession().clear();
+		return ids;
+	}
+
+	private void deployDefinition(String resourceName) throws IOException {
+		jbpmContext.deployProcessDefinition(MigrationUtils.getProcessDefinition(resourceName));
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.jbpm.graph.exe.ProcessInstance;
+import org.jbpm.graph.exe.Token;
+import org.jbpm.instance.migration.shape.ProcessShape;
+import org.jbpm.instance.migration.shape.ProcessShapeGenerator;
+
+/**
+ * 
+ * @author Caleb Powell <caleb.powell@gmail.com> 
+ */
+public class TokenTreeWalkerTest extends TestCase {
+
+	private ProcessInstance processInstance;
+
+	protected void setUp() throws Exception {
+		ProcessShape shape = new ProcessShape();
+		shape.setNodeCount(6);
+		shape.setForkWidth(3);
+		shape.setSubProcessDepth(2);
+		shape.setVersionCount(1);
+		shape.setSeed(42);
+		processInstance = new ProcessShapeGenerator("walk", shape).createProcessInstance(1);
+		
+		Token branch1 = processInstance.getRootToken().getChild("branch1");
+		Token nestedToken = new Token(branch1, "nested");
+		new Token(nestedToken, "nestedAgain");
+		new Token(branch1, "nestedSibling");
+	}
+
+	public void test_that_the_process_instance_tree_is_walked_depth_first_with_sub_processes_before_children() {
+		RecordingVisitor visitor = new RecordingVisitor();
+		
+		assertTrue(TokenTreeWalker.PROCESS_INSTANCE_TREE.walk(processInstance, visitor));
+		
+		List expected = new ArrayList();
+		walkRecursively(processInstance, true, expected);
+		assertEquals(expected, visitor.visited);
+		assertEquals(3, visitor.getProcessInstanceCount());
+	}
+
+	public void test_that_the_process_instance_walker_does_not_descend_into_sub_processes() {
+		RecordingVisitor visitor = new RecordingVisitor();
+		
+		assertTrue(TokenTreeWalker.PROCESS_INSTANCE.walk(processInstance, visitor));
+		
+		List expected = new ArrayList();
+		walkRecursively(processInstance, false, expected);
+		assertEquals(expected, visitor.visited);
+		assertEquals(1, visitor.getProcessInstanceCount());
+		assertEquals(processInstance.findAllTokens().size(), visitor.visited.size() - 1);
+	}
+
+	public void test_that_the_visitor_can_stop_the_walk() {
+		RecordingVisitor visitor = new RecordingVisitor();
+		visitor.stopAt = processInstance.getRootToken().getChild("branch1");
+		
+		assertFalse(TokenTreeWalker.PROCESS_INSTANCE_TREE.walk(processInstance, visitor));
+		assertSame(visitor.stopAt, visitor.visited.get(visitor.visited.size() - 1));
+		assertFalse(visitor.hasVisited(processInstance.getRootToken().getChild("branch1").getChild("nested")));
+	}
+
+	public void test_that_a_deep_token_tree_does_not_overflow_the_stack() {
+		Token token = processInstance.getRootToken().getChild("branch2");
+		for (int i = 0; i < 20000; i++) {
+			token = new Token(token, "deep" + i);
+		}
+		RecordingVisitor visitor = new RecordingVisitor();
+		
+		assertTrue(TokenTreeWalker.PROCESS_INSTANCE.walk(processInstance, visitor));
+		assertTrue(visitor.hasVisited(token));
+		assertEquals(1 + 1 + 3 + 3 + 20000, visitor.visited.size());
+	}
+
+	private void walkRecursively(ProcessInstance processInstance, boolean walkSubProcesses, List visited) {
+		visited.add(processInstance);
+		walkRecursively(processInstance.getRootToken(), walkSubProcesses, visited);
+	}
+
+	private void walkRecursively(Token token, boolean walkSubProcesses, List visited) {
+		visited.add(token);
+		if(walkSubProcesses && token.getSubProcessInstance() != null) {
+			walkRecursively(token.getSubProcessInstance(), walkSubProcesses, visited);
+		}
+		if(token.getChildren() != null) {
+			for (Iterator iterator = token.getChildren().values().iterator(); iterator.hasNext();) {
+				walkRecursively((Token) iterator.next(), walkSubProcesses, visited);
+			}
+		}
+	}
+
+	private static class RecordingVisitor implements TokenTreeWalker.Visitor {
+		private final List visited = new ArrayList();
+		private Token stopAt;
+
+		public boolean visitProcessInstance(ProcessInstance processInstance) {
+			visited.add(processInstance);
+			return true;
+		}
+
+		public boolean visitToken(Token token) {
+			visited.add(token);
+			return token != stopAt;
+		}
+
+		private boolean hasVisited(Object visitedObject) {
+			for (Iterator iterator = visited.iterator(); iterator.hasNext();) {
+				if(iterator.next() == visitedObject) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private int getProcessInstanceCount() {
+			int count = 0;
+			for (Iterator iterator = visited.iterator(); iterator.hasNext();) {
+				if(iterator.next() instanceof ProcessInstance) {
+					count++;
+				}
+			}
+			return count;
+		}
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration.handler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.jbpm.graph.def.ProcessDefinition;
+import org.jbpm.graph.exe.ProcessInstance;
+import org.jbpm.instance.migration.InvalidMigrationException;
+
+public class AsyncBatchMigrationHandlerTest extends TestCase {
+
+	public void test_that_the_chunks_are_handled_in_order_by_a_single_thread() {
+		RecordingHandler recordingHandler = new RecordingHandler();
+		AsyncBatchMigrationHandler asyncHandler = new AsyncBatchMigrationHandler(recordingHandler, 2, 1);
+		for (int i = 0; i < 10; i++) {
+			asyncHandler.migrateInstances(Collections.singletonList(createProcessInstance(1)), Collections.singletonList(createProcessInstance(i + 2)));
+		}
+		asyncHandler.flush();
+		
+		assertEquals(10, asyncHandler.getHandledCount());
+		assertEquals(10, recordingHandler.snapshots.size());
+		assertEquals(2, ((MigrationSnapshot) recordingHandler.snapshots.get(0)).getProcessDefinitionVersion());
+		assertEquals(11, ((MigrationSnapshot) recordingHandler.snapshots.get(9)).getProcessDefinitionVersion());
+		asyncHandler.close();
+	}
+
+	public void test_that_a_snapshot_of_each_pair_is_queued() {
+		RecordingHandler recordingHandler = new RecordingHandler();
+		AsyncBatchMigrationHandler asyncHandler = new AsyncBatchMigrationHandler(recordingHandler, 2, 1);
+		List oldProcessInstances = new ArrayList();
+		oldProcessInstances.add(createProcessInstance(1));
+		List newProcessInstances = new ArrayList();
+		ProcessInstance newProcessInstance = createProcessInstance(2);
+		newProcessInstances.add(newProcessInstance);
+		asyncHandler.migrateInstances(oldProcessInstances, newProcessInstances);
+		oldProcessInstances.clear();
+		newProcessInstance.getProcessDefinition().setVersion(3);
+		asyncHandler.close();
+		
+		assertEquals(1, recordingHandler.snapshots.size());
+		MigrationSnapshot snapshot = (MigrationSnapshot) recordingHandler.snapshots.get(0);
+		assertEquals("foo", snapshot.getProcessDefinitionName());
+		assertEquals("The snapshot is taken by the migrating thread", 2, snapshot.getProcessDefinitionVersion());
+		assertEquals(newProcessInstance.getId(), snapshot.getNewProcessInstanceId());
+	}
+
+	public void test_that_a_failure_is_thrown_by_the_next_call() {
+		AsyncBatchMigrationHandler asyncHandler = new AsyncBatchMigrationHandler(new MigrationSnapshotHandler() {
+			public void handleSnapshots(List snapshots) {
+				throw new IllegalStateException("index unavailable");
+			}
+		}, 2, 1);
+		asyncHandler.migrateInstances(Collections.singletonList(createProcessInstance(1)), Collections.singletonList(createProcessInstance(2)));
+		try {
+			asyncHandler.flush();
+			fail("Expected an '" + InvalidMigrationException.class.getName() + "'");
+		} catch (InvalidMigrationException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+		try {
+			asyncHandler.migrateInstances(Collections.singletonList(createProcessInstance(1)), Collections.singletonList(createProcessInstance(2)));
+			fail("Expected an '" + InvalidMigrationException.class.getName() + "'");
+		} catch (InvalidMigrationException e) {
+			//expected
+		}
+		assertEquals(1, asyncHandler.getHandledCount());
+	}
+
+	public void test_that_a_closed_handler_refuses_chunks() {
+		AsyncBatchMigrationHandler asyncHandler = new AsyncBatchMigrationHandler(new RecordingHandler(), 2, 2);
+		asyncHandler.close();
+		try {
+			asyncHandler.migrateInstances(Collections.singletonList(createProcessInstance(1)), Collections.singletonList(createProcessInstance(2)));
+			fail("Expected an '" + InvalidMigrationException.class.getName() + "'");
+		} catch (InvalidMigrationException e) {
+			//expected
+		}
+		asyncHandler.flush();
+	}
+
+	private ProcessInstance createProcessInstance(int version) {
+		ProcessDefinition processDefinition = ProcessDefinition.parseXmlString(
+				"<process-definition name='foo'>" +
+				"<start-state name='start'/>" +
+				"</process-definition>");
+		processDefinition.setVersion(version);
+		return new ProcessInstance(processDefinition);
+	}
+
+	private static class RecordingHandler implements MigrationSnapshotHandler {
+		private final List snapshots = Collections.synchronizedList(new ArrayList());
+
+		public void handleSnapshots(List snapshots) {
+			this.snapshots.addAll(snapshots);
+		}
+	}
+}
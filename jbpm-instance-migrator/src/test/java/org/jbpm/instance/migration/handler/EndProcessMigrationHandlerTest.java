@@ -21,6 +21,8 @@
 package org.jbpm.instance.migration.handler;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.jbpm.graph.exe.ProcessInstance;
 import org.jbpm.instance.migration.BaseTestCase;
@@ -53,6 +55,35 @@ public class EndProcessMigrationHandlerTest extends BaseTestCase {
 		assertFalse(newProcessInstance.hasEnded());
 	}
 	
+	public void test_that_the_migrateInstances_method_will_end_each_old_ProcessInstance() throws IOException {
+		deployV1Definitions();
+		List originalProcessInstances = new ArrayList();
+		originalProcessInstances.add(findLatestProcessDefinition("simple").createProcessInstance());
+		originalProcessInstances.add(findLatestProcessDefinition("simple").createProcessInstance());
+		deployV2Definitions();
+		
+		Migrator migrator = createSimpleProcessDefinitionMigrator();
+		List newProcessInstances = new ArrayList();
+		newProcessInstances.add(migrator.migrate((ProcessInstance) originalProcessInstances.get(0)));
+		newProcessInstances.add(migrator.migrate((ProcessInstance) originalProcessInstances.get(1)));
+		new EndProcessMigrationHandler().migrateInstances(originalProcessInstances, newProcessInstances);
+		
+		assertTrue(((ProcessInstance) originalProcessInstances.get(0)).hasEnded());
+		assertTrue(((ProcessInstance) originalProcessInstances.get(1)).hasEnded());
+	}
+
+	public void test_that_a_batch_handler_is_invoked_by_migrate() throws IOException {
+		deployV1Definitions();
+		ProcessInstance originalProcessInstance = findLatestProcessDefinition("simple").createProcessInstance();
+		deployV2Definitions();
+		
+		Migrator migrator = createSimpleProcessDefinitionMigrator();
+		migrator.addBatchMigrationHandler(new EndProcessMigrationHandler());
+		migrator.migrate(originalProcessInstance);
+		
+		assertTrue(originalProcessInstance.hasEnded());
+	}
+	
 	private void deployV1Definitions() throws IOException {
 		jbpmContext.deployProcessDefinition(MigrationUtils.getProcessDefinition("simpleProcessDefinition_001.xml"));
 	}
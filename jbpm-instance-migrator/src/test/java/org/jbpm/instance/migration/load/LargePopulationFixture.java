@@ -0,0 +1,312 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration.load;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.Configuration;
+import org.jbpm.JbpmConfiguration;
+import org.jbpm.JbpmContext;
+import org.jbpm.context.exe.ContextInstance;
+import org.jbpm.graph.def.ProcessDefinition;
+import org.jbpm.graph.exe.ProcessInstance;
+import org.jbpm.graph.exe.Token;
+import org.jbpm.instance.migration.MigrationUtils;
+import org.jbpm.instance.migration.Migrator;
+import org.jbpm.instance.migration.ProcessInstanceIdIterator;
+import org.jbpm.instance.migration.shape.ProcessShape;
+import org.jbpm.instance.migration.shape.ProcessShapeGenerator;
+import org.jbpm.instance.migration.util.JbpmInstanceMigratorLogger;
+import org.jbpm.persistence.db.DbPersistenceServiceFactory;
+import org.jbpm.svc.Services;
+
+/**
+ * A file-mode HSQLDB database populated with a large number of outdated ProcessInstances, for measuring the 
+ * end-to-end throughput of the batch and parallel migrators.
+ * 
+ * Every version but the latest of each {@link ProcessShape} ProcessDefinition (and its sub process definitions) is 
+ * deployed, and the instances are spread evenly over those versions. Each instance waits in every branch of a fork,
+ * in a chain of sub processes, and holds process and token variables. The latest versions are deployed last, so every 
+ * instance requires migration.
+ * 
+ * Populating the database is slow, so the populated database is copied to a snapshot directory. Later fixtures of the 
+ * same shape and size copy the snapshot instead, and each fixture works on a copy of its own, i.e. a migration never 
+ * changes the snapshot. The size and the directory default to the values of the {@link #SIZE_PROPERTY} and 
+ * {@link #DIRECTORY_PROPERTY} system properties:
+ * <pre>
+ * mvn test -Dtest=LargePopulationFixtureTest -Djbpm.migrator.population.size=1000000
+ * </pre>
+ * @author Caleb Powell <caleb.powell@gmail.com> 
+ */
+public class LargePopulationFixture {
+
+	public static final String SIZE_PROPERTY = "jbpm.migrator.population.size";
+	public static final String DIRECTORY_PROPERTY = "jbpm.migrator.population.dir";
+	public static final int DEFAULT_SIZE = 200;
+	public static final int DEFAULT_CHUNK_SIZE = 500;
+
+	private static final String DATABASE_NAME = "population";
+	private static final String SNAPSHOT_MARKER = "snapshot.properties";
+	private static final String JBPM_CONFIGURATION = 
+		"<jbpm-configuration>" +
+		"<jbpm-context>" +
+		"<service name='persistence' factory='org.jbpm.persistence.db.DbPersistenceServiceFactory'/>" +
+		"</jbpm-context>" +
+		"</jbpm-configuration>";
+
+	private static Logger logger = Logger.getLogger(JbpmInstanceMigratorLogger.class);
+	
+	private final ProcessShapeGenerator generator;
+	private final int size;
+	private final File snapshotDirectory;
+	private final File workingDirectory;
+	private int chunkSize = DEFAULT_CHUNK_SIZE;
+	private SessionFactory sessionFactory;
+	private JbpmConfiguration jbpmConfiguration;
+
+	/**
+	 * A fixture of {@link #getDefaultShape()} with the size and directory given by the system properties.
+	 */
+	public LargePopulationFixture() {
+		this(new ProcessShapeGenerator("population", getDefaultShape()), Integer.getInteger(SIZE_PROPERTY, DEFAULT_SIZE).intValue(), 
+				new File(System.getProperty(DIRECTORY_PROPERTY, new File(System.getProperty("java.io.tmpdir"), "jbpm-migrator-population").getPath())));
+	}
+
+	/**
+	 * @param generator The generator of the ProcessDefinitions and ProcessInstances.
+	 * @param size The number of top level ProcessInstances.
+	 * @param directory The parent directory of the snapshots and working copies.
+	 */
+	public LargePopulationFixture(ProcessShapeGenerator generator, int size, File directory) {
+		if(generator.getShape().getVersionCount() < 2) {
+			throw new IllegalArgumentException("The shape must have at least two versions.");
+		}
+		this.generator = generator;
+		this.size = size;
+		String key = generator.getProcessName(0) + "-" + size + "-" + Integer.toHexString(generator.getShape().toString().hashCode());
+		this.snapshotDirectory = new File(directory, key);
+		this.workingDirectory = new File(directory, key + "-" + System.currentTimeMillis());
+	}
+
+	/**
+	 * @return 2 versions of 8 wait states in a fork of 4 branches, nested in 2 super states, with 2 levels of sub process.
+	 */
+	public static ProcessShape getDefaultShape() {
+		ProcessShape shape = new ProcessShape();
+		shape.setNodeCount(8);
+		shape.setForkWidth(4);
+		shape.setSuperStateDepth(2);
+		shape.setSubProcessDepth(2);
+		shape.setVersionCount(2);
+		shape.setChurn(0.25);
+		return shape;
+	}
+
+	/**
+	 * Copies the snapshot (populating it first if it does not exist yet) and opens the copy.
+	 * @return the configuration of the copy.
+	 */
+	public JbpmConfiguration open() throws IOException, SQLException {
+		if(!new File(snapshotDirectory, SNAPSHOT_MARKER).exists()) {
+			createSnapshot();
+		}
+		FileUtils.copyDirectory(snapshotDirectory, workingDirectory);
+		openDatabase(workingDirectory);
+		return jbpmConfiguration;
+	}
+
+	/**
+	 * Shuts the copy down and deletes it.
+	 */
+	public void close() throws IOException, SQLException {
+		closeDatabase(workingDirectory);
+		FileUtils.deleteDirectory(workingDirectory);
+	}
+
+	private void createSnapshot() throws IOException, SQLException {
+		FileUtils.deleteDirectory(snapshotDirectory);
+		logger.info("Populating a snapshot of " + size + " '" + generator.getProcessName(0) + "' ProcessInstances in " + snapshotDirectory);
+		long start = System.currentTimeMillis();
+		openDatabase(snapshotDirectory);
+		try {
+			populate();
+		} finally {
+			closeDatabase(snapshotDirectory);
+		}
+		FileUtils.writeStringToFile(new File(snapshotDirectory, SNAPSHOT_MARKER), "shape=" + generator.getShape() + "\nsize=" + size + "\n", "ISO-8859-1");
+		logger.info("Populated the snapshot in " + (System.currentTimeMillis() - start) + " ms.");
+	}
+
+	private void populate() {
+		ProcessShape shape = generator.getShape();
+		ProcessDefinition[][] deployedDefinitions = new ProcessDefinition[shape.getVersionCount() - 1][];
+		for (int version = 1; version < shape.getVersionCount(); version++) {
+			deployedDefinitions[version - 1] = deploy(version);
+		}
+		
+		Random random = new Random(shape.getSeed());
+		for (int first = 0; first < size; first += chunkSize) {
+			JbpmContext jbpmContext = jbpmConfiguration.createJbpmContext();
+			try {
+				for (int i = first; i < Math.min(first + chunkSize, size); i++) {
+					ProcessDefinition[] definitions = reload(jbpmContext, deployedDefinitions[i % deployedDefinitions.length]);
+					ProcessInstance processInstance = generator.createProcessInstance(definitions, random);
+					addVariables(processInstance, i);
+					jbpmContext.save(processInstance);
+				}
+			} finally {
+				jbpmContext.close();
+			}
+		}
+		deploy(shape.getVersionCount());
+	}
+
+	private ProcessDefinition[] deploy(int version) {
+		JbpmContext jbpmContext = jbpmConfiguration.createJbpmContext();
+		try {
+			ProcessDefinition[] definitions = generator.createDefinitions(version);
+			for (int level = definitions.length - 1; level >= 0; level--) {
+				jbpmContext.deployProcessDefinition(definitions[level]);
+			}
+			return definitions;
+		} finally {
+			jbpmContext.close();
+		}
+	}
+
+	private ProcessDefinition[] reload(JbpmContext jbpmContext, ProcessDefinition[] definitions) {
+		ProcessDefinition[] reloadedDefinitions = new ProcessDefinition[definitions.length];
+		for (int level = 0; level < definitions.length; level++) {
+			reloadedDefinitions[level] = jbpmContext.getGraphSession().loadProcessDefinition(definitions[level].getId());
+		}
+		return reloadedDefinitions;
+	}
+
+	private void addVariables(ProcessInstance processInstance, int index) {
+		ContextInstance contextInstance = processInstance.getContextInstance();
+		contextInstance.setVariable("customerId", new Long(index));
+		contextInstance.setVariable("reference", "REF-" + index);
+		contextInstance.setVariable("created", new Date(index * 1000L));
+		for (int branch = 0; branch < generator.getShape().getForkWidth(); branch++) {
+			Token token = processInstance.getRootToken().getChild("branch" + branch);
+			contextInstance.setVariable("branchIndex", new Integer(branch), token);
+		}
+	}
+
+	private void openDatabase(File directory) {
+		Configuration configuration = new Configuration().configure();
+		configuration.setProperty("hibernate.dialect", "org.hibernate.dialect.HSQLDialect");
+		configuration.setProperty("hibernate.connection.driver_class", "org.hsqldb.jdbcDriver");
+		configuration.setProperty("hibernate.connection.url", getUrl(directory));
+		configuration.setProperty("hibernate.connection.username", "sa");
+		configuration.setProperty("hibernate.connection.password", "");
+		configuration.setProperty("hibernate.hbm2ddl.auto", "update");
+		configuration.setProperty("hibernate.jdbc.batch_size", "50");
+		configuration.setProperty("hibernate.cache.use_second_level_cache", "false");
+		sessionFactory = configuration.buildSessionFactory();
+		
+		jbpmConfiguration = JbpmConfiguration.parseXmlString(JBPM_CONFIGURATION);
+		JbpmContext jbpmContext = jbpmConfiguration.createJbpmContext();
+		try {
+			DbPersistenceServiceFactory persistenceServiceFactory = (DbPersistenceServiceFactory) jbpmContext.getServices().getServiceFactory(Services.SERVICENAME_PERSISTENCE);
+			persistenceServiceFactory.setSessionFactory(sessionFactory);
+		} finally {
+			jbpmContext.close();
+		}
+	}
+
+	private void closeDatabase(File directory) throws SQLException {
+		if(sessionFactory != null) {
+			sessionFactory.close();
+			sessionFactory = null;
+		}
+		jbpmConfiguration = null;
+		Connection connection = DriverManager.getConnection(getUrl(directory), "sa", "");
+		try {
+			Statement statement = connection.createStatement();
+			statement.execute("SHUTDOWN COMPACT");
+			statement.close();
+		} finally {
+			connection.close();
+		}
+	}
+
+	private static String getUrl(File directory) {
+		// cached tables keep the rows on disk rather than in the heap
+		return "jdbc:hsqldb:file:" + new File(directory, DATABASE_NAME).getAbsolutePath() + ";hsqldb.default_table_type=cached";
+	}
+
+	/**
+	 * @return a Migrator of the population's ProcessDefinitions, to be bound to a JbpmContext with 
+	 * {@link Migrator#withJbpmContext(JbpmContext)}.
+	 */
+	public Migrator createMigrator() {
+		return generator.createMigrator(null);
+	}
+
+	/**
+	 * @return the ids of the opened copy's top level ProcessInstances that still require migration.
+	 */
+	public List findOutdatedProcessInstanceIds() {
+		List ids = new ArrayList();
+		JbpmContext jbpmContext = jbpmConfiguration.createJbpmContext();
+		try {
+			ProcessInstanceIdIterator iterator = MigrationUtils.findOutdatedProcessInstanceIds(getProcessDefinitionName(), jbpmContext);
+			try {
+				while (iterator.hasNext()) {
+					ids.add(iterator.next());
+				}
+			} finally {
+				iterator.close();
+			}
+		} finally {
+			jbpmContext.close();
+		}
+		return ids;
+	}
+
+	public String getProcessDefinitionName() {
+		return generator.getProcessName(0);
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * @param chunkSize The number of ProcessInstances saved in each transaction while the snapshot is populated.
+	 */
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+}
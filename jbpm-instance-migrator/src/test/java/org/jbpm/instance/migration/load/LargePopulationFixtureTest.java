@@ -0,0 +1,104 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration.load;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+import org.jbpm.JbpmConfiguration;
+import org.jbpm.JbpmContext;
+import org.jbpm.instance.migration.BatchMigrationResult;
+import org.jbpm.instance.migration.BatchMigrator;
+import org.jbpm.instance.migration.MigrationPipeline;
+import org.jbpm.instance.migration.ParallelBatchMigrator;
+import org.jbpm.instance.migration.util.JbpmInstanceMigratorLogger;
+
+/**
+ * Migrates a {@link LargePopulationFixture} end to end, and logs the throughput. 
+ */
+public class LargePopulationFixtureTest extends TestCase {
+
+	private static Logger logger = Logger.getLogger(JbpmInstanceMigratorLogger.class);
+
+	private LargePopulationFixture fixture;
+	private JbpmConfiguration jbpmConfiguration;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		fixture = new LargePopulationFixture();
+		jbpmConfiguration = fixture.open();
+	}
+
+	protected void tearDown() throws Exception {
+		fixture.close();
+		super.tearDown();
+	}
+
+	public void test_that_every_instance_of_the_population_is_outdated() {
+		assertEquals(fixture.getSize(), findOutdatedProcessInstanceIds().size());
+	}
+
+	public void test_that_the_batch_migrator_migrates_the_population() {
+		List ids = findOutdatedProcessInstanceIds();
+		JbpmContext jbpmContext = jbpmConfiguration.createJbpmContext();
+		BatchMigrationResult result;
+		try {
+			result = new BatchMigrator(fixture.createMigrator().withJbpmContext(jbpmContext)).run(ids.iterator());
+		} finally {
+			jbpmContext.close();
+		}
+		logger.info("BatchMigrator: " + result);
+		
+		assertEquals(fixture.getSize(), result.getMigratedCount());
+		assertEquals(0, result.getFailedCount());
+		assertTrue(findOutdatedProcessInstanceIds().isEmpty());
+	}
+
+	public void test_that_the_parallel_migrator_migrates_the_population() {
+		List ids = findOutdatedProcessInstanceIds();
+		BatchMigrationResult result = new ParallelBatchMigrator(fixture.createMigrator(), jbpmConfiguration, 4).run(ids.iterator());
+		logger.info("ParallelBatchMigrator: " + result);
+		
+		assertEquals(fixture.getSize(), result.getMigratedCount());
+		assertEquals(0, result.getFailedCount());
+		assertTrue(findOutdatedProcessInstanceIds().isEmpty());
+	}
+
+	public void test_that_the_pipeline_migrates_the_population() {
+		List ids = findOutdatedProcessInstanceIds();
+		MigrationPipeline pipeline = new MigrationPipeline(fixture.createMigrator(), jbpmConfiguration);
+		pipeline.setChunkSize(50);
+		pipeline.setThreadCount(MigrationPipeline.BUILD, 2);
+		BatchMigrationResult result = pipeline.run(ids.iterator());
+		logger.info("MigrationPipeline: " + result);
+		logger.info("MigrationPipeline stages: " + pipeline.getStageStatistics());
+		
+		assertEquals(fixture.getSize(), result.getMigratedCount());
+		assertEquals(0, result.getFailedCount());
+		assertTrue(findOutdatedProcessInstanceIds().isEmpty());
+	}
+
+	private List findOutdatedProcessInstanceIds() {
+		return fixture.findOutdatedProcessInstanceIds();
+	}
+}
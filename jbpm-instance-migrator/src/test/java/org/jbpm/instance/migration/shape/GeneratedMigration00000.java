@@ -0,0 +1,41 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration.shape;
+
+import org.jbpm.instance.migration.Migration;
+import org.jbpm.instance.migration.StateNodeMap;
+
+/**
+ * The template of the Migration classes defined by {@link GeneratedMigrations}.
+ * @author Caleb Powell <caleb.powell@gmail.com> 
+ */
+public class GeneratedMigration00000 implements Migration {
+
+	private final StateNodeMap nodeMap;
+
+	public GeneratedMigration00000(StateNodeMap nodeMap) {
+		this.nodeMap = nodeMap;
+	}
+
+	public StateNodeMap createNodeMap() {
+		return nodeMap;
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration.shape;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.jbpm.instance.migration.Migration;
+import org.jbpm.instance.migration.MigrationComparator;
+import org.jbpm.instance.migration.StateNodeMap;
+
+/**
+ * Creates {@link Migration} classes at run time. 
+ * 
+ * A Migrator orders its Migrations by Class name (see {@link MigrationComparator}), so every revision needs a Class 
+ * of its own. Each revision is a copy of {@link GeneratedMigration00000} whose name carries the revision number. The 
+ * number has the same width as the template's, so the copy only differs from the template in those bytes.
+ * @author Caleb Powell <caleb.powell@gmail.com> 
+ */
+public final class GeneratedMigrations {
+
+	public static final int MAX_REVISION = 99999;
+
+	private static final String TEMPLATE_NAME = GeneratedMigration00000.class.getName();
+	private static final int REVISION_WIDTH = 5;
+	private static byte[] templateBytes;
+
+	private GeneratedMigrations() {
+	}
+
+	/**
+	 * @param revision The revision number, from 1 to {@link #MAX_REVISION}.
+	 * @param nodeMap The map returned by the Migration's createNodeMap().
+	 * @return an instance of the Migration class of the revision.
+	 */
+	public static Migration create(int revision, StateNodeMap nodeMap) {
+		if(revision < 1 || revision > MAX_REVISION) {
+			throw new IllegalArgumentException("The revision must be between 1 and " + MAX_REVISION + ": " + revision);
+		}
+		String className = getClassName(revision);
+		try {
+			Class migrationClass = new RevisionClassLoader().define(className);
+			return (Migration) migrationClass.getConstructor(new Class[] {StateNodeMap.class}).newInstance(new Object[] {nodeMap});
+		} catch (Exception e) {
+			throw new IllegalStateException("Unable to create the Migration '" + className + "': " + e);
+		}
+	}
+
+	/**
+	 * @param revision
+	 * @return the name of the Migration class of the revision.
+	 */
+	public static String getClassName(int revision) {
+		String number = String.valueOf(revision);
+		StringBuffer className = new StringBuffer(TEMPLATE_NAME.substring(0, TEMPLATE_NAME.length() - REVISION_WIDTH));
+		for (int i = number.length(); i < REVISION_WIDTH; i++) {
+			className.append('0');
+		}
+		return className.append(number).toString();
+	}
+
+	private static synchronized byte[] getTemplateBytes() throws IOException {
+		if(templateBytes == null) {
+			InputStream in = GeneratedMigrations.class.getClassLoader().getResourceAsStream(TEMPLATE_NAME.replace('.', '/') + ".class");
+			try {
+				templateBytes = IOUtils.toByteArray(in);
+			} finally {
+				IOUtils.closeQuietly(in);
+			}
+		}
+		return templateBytes;
+	}
+
+	private static class RevisionClassLoader extends ClassLoader {
+
+		RevisionClassLoader() {
+			super(GeneratedMigrations.class.getClassLoader());
+		}
+
+		Class define(String className) throws IOException {
+			byte[] bytes = (byte[]) getTemplateBytes().clone();
+			byte[] templateRevision = TEMPLATE_NAME.substring(TEMPLATE_NAME.length() - REVISION_WIDTH).getBytes("US-ASCII");
+			byte[] revision = className.substring(className.length() - REVISION_WIDTH).getBytes("US-ASCII");
+			byte[] simpleName = TEMPLATE_NAME.substring(TEMPLATE_NAME.lastIndexOf('.') + 1).getBytes("US-ASCII");
+			// the name occurs in the class' own name, its descriptor and its source file attribute 
+			for (int i = 0; i <= bytes.length - simpleName.length; i++) {
+				if(regionMatches(bytes, i, simpleName)) {
+					System.arraycopy(revision, 0, bytes, i + simpleName.length - templateRevision.length, revision.length);
+				}
+			}
+			return defineClass(className, bytes, 0, bytes.length);
+		}
+
+		private static boolean regionMatches(byte[] bytes, int offset, byte[] region) {
+			for (int i = 0; i < region.length; i++) {
+				if(bytes[offset + i] != region[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration.shape;
+
+/**
+ * Describes the size of the ProcessDefinitions (and their migrations) created by a {@link ProcessShapeGenerator}. 
+ * @author Caleb Powell <caleb.powell@gmail.com> 
+ */
+public class ProcessShape {
+
+	private int nodeCount = 10;
+	private int superStateDepth = 0;
+	private int forkWidth = 1;
+	private int subProcessDepth = 0;
+	private int versionCount = 2;
+	private double churn = 0.1;
+	private long seed = 0;
+
+	/**
+	 * @return the number of wait states in each ProcessDefinition, spread evenly over the branches of the fork.
+	 */
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	public void setNodeCount(int nodeCount) {
+		if(nodeCount < 1) {
+			throw new IllegalArgumentException("The nodeCount must be greater than zero.");
+		}
+		this.nodeCount = nodeCount;
+	}
+
+	/**
+	 * @return the number of super states that each branch's wait states are nested in.
+	 */
+	public int getSuperStateDepth() {
+		return superStateDepth;
+	}
+
+	public void setSuperStateDepth(int superStateDepth) {
+		if(superStateDepth < 0) {
+			throw new IllegalArgumentException("The superStateDepth must not be negative.");
+		}
+		this.superStateDepth = superStateDepth;
+	}
+
+	/**
+	 * @return the number of branches of the fork that follows the start state.
+	 */
+	public int getForkWidth() {
+		return forkWidth;
+	}
+
+	public void setForkWidth(int forkWidth) {
+		if(forkWidth < 1) {
+			throw new IllegalArgumentException("The forkWidth must be greater than zero.");
+		}
+		this.forkWidth = forkWidth;
+	}
+
+	/**
+	 * @return the number of nested sub processes, i.e. the number of ProcessDefinitions below the top level one.
+	 */
+	public int getSubProcessDepth() {
+		return subProcessDepth;
+	}
+
+	public void setSubProcessDepth(int subProcessDepth) {
+		if(subProcessDepth < 0) {
+			throw new IllegalArgumentException("The subProcessDepth must not be negative.");
+		}
+		this.subProcessDepth = subProcessDepth;
+	}
+
+	/**
+	 * @return the number of versions of each ProcessDefinition.
+	 */
+	public int getVersionCount() {
+		return versionCount;
+	}
+
+	public void setVersionCount(int versionCount) {
+		if(versionCount < 1) {
+			throw new IllegalArgumentException("The versionCount must be greater than zero.");
+		}
+		this.versionCount = versionCount;
+	}
+
+	/**
+	 * @return the probability that a wait state is renamed from one version to the next.
+	 */
+	public double getChurn() {
+		return churn;
+	}
+
+	public void setChurn(double churn) {
+		if(churn < 0 || churn > 1) {
+			throw new IllegalArgumentException("The churn must be between 0 and 1.");
+		}
+		this.churn = churn;
+	}
+
+	/**
+	 * @return the seed of the random choices (i.e. which nodes are renamed, and where the tokens wait).
+	 */
+	public long getSeed() {
+		return seed;
+	}
+
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * @return the number of wait states in each branch of the fork.
+	 */
+	public int getNodesPerBranch() {
+		return Math.max(1, nodeCount / forkWidth);
+	}
+
+	public String toString() {
+		return "ProcessShape[nodeCount=" + nodeCount + ", superStateDepth=" + superStateDepth + ", forkWidth=" + forkWidth 
+			+ ", subProcessDepth=" + subProcessDepth + ", versionCount=" + versionCount + ", churn=" + churn + ", seed=" + seed + "]";
+	}
+}
@@ -0,0 +1,320 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration.shape;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.jbpm.JbpmContext;
+import org.jbpm.graph.def.ProcessDefinition;
+import org.jbpm.graph.exe.ProcessInstance;
+import org.jbpm.graph.exe.Token;
+import org.jbpm.instance.migration.Migration;
+import org.jbpm.instance.migration.Migrator;
+import org.jbpm.instance.migration.ProcessDefinitionCache;
+import org.jbpm.instance.migration.StateNodeMap;
+
+/**
+ * Generates jPDL ProcessDefinitions of a given {@link ProcessShape}, the Migrations between their versions, and 
+ * ProcessInstances that wait in them. The same shape (including its seed) always generates the same definitions, 
+ * migrations and instances.
+ * 
+ * Each ProcessDefinition forks into {@link ProcessShape#getForkWidth()} branches. A branch is a chain of wait states, 
+ * nested in {@link ProcessShape#getSuperStateDepth()} super states, that ends in the join:
+ * <pre>
+ * start - fork -+- branch0/level1/state0_0 - branch0/level1/state0_1 - ... -+- join - end
+ *               +- branch1/level1/state1_0 - branch1/level1/state1_1 - ... -+
+ * </pre>
+ * Unless it is the deepest sub process, the first branch ends in a process state named 'call' instead, which calls 
+ * the ProcessDefinition one level down. From one version to the next, each wait state is renamed with a probability 
+ * of {@link ProcessShape#getChurn()}; the renames are what the generated Migrations map.
+ * 
+ * The definitions are parsed from XML and are not deployed. Use {@link #createDefinitionCache()} to run a Migrator
+ * against them without a database.
+ * @author Caleb Powell <caleb.powell@gmail.com> 
+ */
+public class ProcessShapeGenerator {
+
+	public static final String PROCESS_STATE_NAME = "call";
+
+	private final String processName;
+	private final ProcessShape shape;
+	/** The revision of each wait state's name, indexed by [level][version][branch][node]. */
+	private final int[][][][] revisions;
+
+	/**
+	 * @param processName The name of the top level ProcessDefinition. Sub process definitions are named 
+	 * 'processName_sub1', 'processName_sub2', etc.
+	 * @param shape
+	 */
+	public ProcessShapeGenerator(String processName, ProcessShape shape) {
+		this.processName = processName;
+		this.shape = shape;
+		this.revisions = new int[shape.getSubProcessDepth() + 1][][][];
+		for (int level = 0; level < revisions.length; level++) {
+			revisions[level] = generateRevisions(new Random(shape.getSeed() + level));
+		}
+	}
+
+	private int[][][] generateRevisions(Random random) {
+		int[][][] levelRevisions = new int[shape.getVersionCount() + 1][shape.getForkWidth()][shape.getNodesPerBranch()];
+		for (int version = 2; version <= shape.getVersionCount(); version++) {
+			for (int branch = 0; branch < shape.getForkWidth(); branch++) {
+				for (int node = 0; node < shape.getNodesPerBranch(); node++) {
+					levelRevisions[version][branch][node] = levelRevisions[version - 1][branch][node] + (random.nextDouble() < shape.getChurn() ? 1 : 0);
+				}
+			}
+		}
+		return levelRevisions;
+	}
+
+	public ProcessShape getShape() {
+		return shape;
+	}
+
+	/**
+	 * @param level The sub process level, where 0 is the top level ProcessDefinition.
+	 * @return the name of the ProcessDefinition at the level.
+	 */
+	public String getProcessName(int level) {
+		return level == 0 ? processName : processName + "_sub" + level;
+	}
+
+	/**
+	 * @param level The sub process level, where 0 is the top level ProcessDefinition.
+	 * @param version The version, from 1 to {@link ProcessShape#getVersionCount()}.
+	 * @return the jPDL of the ProcessDefinition.
+	 */
+	public String createXml(int level, int version) {
+		checkLevelAndVersion(level, version);
+		StringBuffer xml = new StringBuffer();
+		xml.append("<process-definition name='").append(getProcessName(level)).append("'>");
+		xml.append("<start-state name='start'><transition to='fork'/></start-state>");
+		xml.append("<fork name='fork'>");
+		for (int branch = 0; branch < shape.getForkWidth(); branch++) {
+			xml.append("<transition name='").append(getBranchName(branch)).append("' to='").append(getNodePath(level, version, branch, 0)).append("'/>");
+		}
+		xml.append("</fork>");
+		for (int branch = 0; branch < shape.getForkWidth(); branch++) {
+			for (int depth = 0; depth < shape.getSuperStateDepth(); depth++) {
+				xml.append("<super-state name='").append(getSuperStateName(branch, depth)).append("'>");
+			}
+			for (int node = 0; node < shape.getNodesPerBranch(); node++) {
+				String nextNodeName = node + 1 < shape.getNodesPerBranch() ? getNodeName(level, version, branch, node + 1) : getJoinPath();
+				if(isProcessState(level, branch, node)) {
+					xml.append("<process-state name='").append(PROCESS_STATE_NAME).append("'><transition to='").append(nextNodeName).append("'/></process-state>");
+				} else {
+					xml.append("<state name='").append(getNodeName(level, version, branch, node)).append("'><transition to='").append(nextNodeName).append("'/></state>");
+				}
+			}
+			for (int depth = 0; depth < shape.getSuperStateDepth(); depth++) {
+				xml.append("</super-state>");
+			}
+		}
+		xml.append("<join name='join'><transition to='end'/></join>");
+		xml.append("<end-state name='end'/>");
+		xml.append("</process-definition>");
+		return xml.toString();
+	}
+
+	/**
+	 * @param level The sub process level, where 0 is the top level ProcessDefinition.
+	 * @param version The version, from 1 to {@link ProcessShape#getVersionCount()}.
+	 * @return the ProcessDefinition, with its version set.
+	 */
+	public ProcessDefinition createDefinition(int level, int version) {
+		ProcessDefinition processDefinition = ProcessDefinition.parseXmlString(createXml(level, version));
+		processDefinition.setVersion(version);
+		return processDefinition;
+	}
+
+	/**
+	 * @param version The version, from 1 to {@link ProcessShape#getVersionCount()}.
+	 * @return the ProcessDefinition of each level, indexed by level.
+	 */
+	public ProcessDefinition[] createDefinitions(int version) {
+		ProcessDefinition[] definitions = new ProcessDefinition[shape.getSubProcessDepth() + 1];
+		for (int level = 0; level < definitions.length; level++) {
+			definitions[level] = createDefinition(level, version);
+		}
+		return definitions;
+	}
+
+	/**
+	 * @return a cache holding the latest version of each level's ProcessDefinition, which never expires.
+	 */
+	public ProcessDefinitionCache createDefinitionCache() {
+		ProcessDefinitionCache definitionCache = new ProcessDefinitionCache();
+		ProcessDefinition[] definitions = createDefinitions(shape.getVersionCount());
+		for (int level = 0; level < definitions.length; level++) {
+			definitionCache.put(definitions[level]);
+		}
+		return definitionCache;
+	}
+
+	/**
+	 * @param level The sub process level, where 0 is the top level ProcessDefinition.
+	 * @param version The version, from 2 to {@link ProcessShape#getVersionCount()}.
+	 * @return the mappings of the wait states renamed between the previous version and this one.
+	 */
+	public StateNodeMap createNodeMap(int level, int version) {
+		checkLevelAndVersion(level, version);
+		StateNodeMap nodeMap = new StateNodeMap();
+		for (int branch = 0; branch < shape.getForkWidth(); branch++) {
+			for (int node = 0; node < shape.getNodesPerBranch(); node++) {
+				if(!isProcessState(level, branch, node) && revisions[level][version][branch][node] != revisions[level][version - 1][branch][node]) {
+					nodeMap.addNodeMapping(getNodePath(level, version - 1, branch, node), getNodePath(level, version, branch, node));
+				}
+			}
+		}
+		return nodeMap;
+	}
+
+	/**
+	 * @param level The sub process level, where 0 is the top level ProcessDefinition.
+	 * @return a Migration for each version after the first, in order.
+	 */
+	public Migration[] createMigrations(int level) {
+		Migration[] migrations = new Migration[shape.getVersionCount() - 1];
+		for (int version = 2; version <= shape.getVersionCount(); version++) {
+			migrations[version - 2] = GeneratedMigrations.create(version - 1, createNodeMap(level, version));
+		}
+		return migrations;
+	}
+
+	/**
+	 * @param jbpmContext The context of the Migrators, which may be null if the Migrators' ProcessDefinitionCache 
+	 * holds the latest definitions (see {@link #createDefinitionCache()}).
+	 * @return a Migrator for the top level ProcessDefinition, with a sub process Migrator for each of the other levels.
+	 */
+	public Migrator createMigrator(JbpmContext jbpmContext) {
+		Migrator migrator = null;
+		for (int level = shape.getSubProcessDepth(); level >= 0; level--) {
+			Migrator[] subProcessMigrators = migrator == null ? new Migrator[0] : new Migrator[] {migrator};
+			migrator = new Migrator(getProcessName(level), jbpmContext, createMigrations(level), subProcessMigrators);
+		}
+		return migrator;
+	}
+
+	/**
+	 * @param version The version, from 1 to {@link ProcessShape#getVersionCount()}.
+	 * @return a ProcessInstance of the top level ProcessDefinition that waits in each branch of the fork, and in each 
+	 * of its sub processes.
+	 */
+	public ProcessInstance createProcessInstance(int version) {
+		return createProcessInstance(createDefinitions(version), 0, new Random(shape.getSeed()));
+	}
+
+	/**
+	 * @param version The version, from 1 to {@link ProcessShape#getVersionCount()}.
+	 * @param count
+	 * @return count ProcessInstances of the same ProcessDefinitions, whose tokens wait in different nodes.
+	 */
+	public List createProcessInstances(int version, int count) {
+		ProcessDefinition[] definitions = createDefinitions(version);
+		Random random = new Random(shape.getSeed());
+		List processInstances = new ArrayList(count);
+		for (int i = 0; i < count; i++) {
+			processInstances.add(createProcessInstance(definitions, 0, random));
+		}
+		return processInstances;
+	}
+
+	/**
+	 * @param definitions The ProcessDefinition of each level (e.g. the deployed versions), indexed by level.
+	 * @param random The source of the nodes that the tokens wait in.
+	 * @return a ProcessInstance of definitions[0] that waits in each branch of the fork, and in each of its sub processes.
+	 */
+	public ProcessInstance createProcessInstance(ProcessDefinition[] definitions, Random random) {
+		return createProcessInstance(definitions, 0, random);
+	}
+
+	private ProcessInstance createProcessInstance(ProcessDefinition[] definitions, int level, Random random) {
+		ProcessDefinition processDefinition = definitions[level];
+		int version = processDefinition.getVersion();
+		ProcessInstance processInstance = new ProcessInstance(processDefinition);
+		Token rootToken = processInstance.getRootToken();
+		rootToken.setNode(processDefinition.findNode("fork"));
+		for (int branch = 0; branch < shape.getForkWidth(); branch++) {
+			Token childToken = new Token(rootToken, getBranchName(branch));
+			int node = random.nextInt(shape.getNodesPerBranch());
+			if(level < shape.getSubProcessDepth() && branch == 0) {
+				node = shape.getNodesPerBranch() - 1;
+			}
+			childToken.setNode(processDefinition.findNode(getNodePath(level, version, branch, node)));
+			if(isProcessState(level, branch, node)) {
+				ProcessInstance subProcessInstance = createProcessInstance(definitions, level + 1, random);
+				subProcessInstance.setSuperProcessToken(childToken);
+				childToken.setSubProcessInstance(subProcessInstance);
+			}
+		}
+		return processInstance;
+	}
+
+	/**
+	 * @return the fully qualified name of the node.
+	 */
+	public String getNodePath(int level, int version, int branch, int node) {
+		StringBuffer path = new StringBuffer();
+		for (int depth = 0; depth < shape.getSuperStateDepth(); depth++) {
+			path.append(getSuperStateName(branch, depth)).append('/');
+		}
+		return path.append(getNodeName(level, version, branch, node)).toString();
+	}
+
+	private String getNodeName(int level, int version, int branch, int node) {
+		if(isProcessState(level, branch, node)) {
+			return PROCESS_STATE_NAME;
+		}
+		int revision = revisions[level][version][branch][node];
+		return "state" + branch + "_" + node + (revision == 0 ? "" : "_r" + revision);
+	}
+
+	private boolean isProcessState(int level, int branch, int node) {
+		return level < shape.getSubProcessDepth() && branch == 0 && node == shape.getNodesPerBranch() - 1;
+	}
+
+	private String getJoinPath() {
+		StringBuffer path = new StringBuffer();
+		for (int depth = 0; depth < shape.getSuperStateDepth(); depth++) {
+			path.append("../");
+		}
+		return path.append("join").toString();
+	}
+
+	private static String getBranchName(int branch) {
+		return "branch" + branch;
+	}
+
+	private static String getSuperStateName(int branch, int depth) {
+		return depth == 0 ? getBranchName(branch) : "level" + depth;
+	}
+
+	private void checkLevelAndVersion(int level, int version) {
+		if(level < 0 || level > shape.getSubProcessDepth()) {
+			throw new IllegalArgumentException("The level must be between 0 and " + shape.getSubProcessDepth() + ": " + level);
+		}
+		if(version < 1 || version > shape.getVersionCount()) {
+			throw new IllegalArgumentException("The version must be between 1 and " + shape.getVersionCount() + ": " + version);
+		}
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration.shape;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.jbpm.graph.def.ProcessDefinition;
+import org.jbpm.graph.exe.ProcessInstance;
+import org.jbpm.graph.exe.Token;
+import org.jbpm.instance.migration.Migration;
+import org.jbpm.instance.migration.Migrator;
+import org.jbpm.instance.migration.StateNodeMap;
+
+public class ProcessShapeGeneratorTest extends TestCase {
+
+	private ProcessShape shape;
+
+	protected void setUp() throws Exception {
+		shape = new ProcessShape();
+		shape.setNodeCount(12);
+		shape.setForkWidth(3);
+		shape.setSuperStateDepth(2);
+		shape.setSubProcessDepth(2);
+		shape.setVersionCount(4);
+		shape.setChurn(0.5);
+		shape.setSeed(42);
+	}
+
+	public void test_that_the_same_shape_generates_the_same_definitions() {
+		assertEquals(new ProcessShapeGenerator("shape", shape).createXml(0, 4), new ProcessShapeGenerator("shape", shape).createXml(0, 4));
+		
+		ProcessShape otherShape = new ProcessShape();
+		otherShape.setNodeCount(12);
+		otherShape.setForkWidth(3);
+		otherShape.setSuperStateDepth(2);
+		otherShape.setSubProcessDepth(2);
+		otherShape.setVersionCount(4);
+		otherShape.setChurn(0.5);
+		otherShape.setSeed(43);
+		assertFalse(new ProcessShapeGenerator("shape", shape).createXml(0, 4).equals(new ProcessShapeGenerator("shape", otherShape).createXml(0, 4)));
+	}
+
+	public void test_that_the_definitions_have_the_requested_shape() {
+		ProcessShapeGenerator generator = new ProcessShapeGenerator("shape", shape);
+		ProcessDefinition[] definitions = generator.createDefinitions(1);
+		
+		assertEquals(3, definitions.length);
+		assertEquals("shape", definitions[0].getName());
+		assertEquals("shape_sub2", definitions[2].getName());
+		assertEquals(1, definitions[0].getVersion());
+		assertNotNull(definitions[0].findNode("branch2/level1/state2_3"));
+		assertNotNull(definitions[0].findNode("branch0/level1/" + ProcessShapeGenerator.PROCESS_STATE_NAME));
+		assertNull(definitions[2].findNode("branch0/level1/" + ProcessShapeGenerator.PROCESS_STATE_NAME));
+	}
+
+	public void test_that_every_wait_state_is_renamed_when_the_churn_is_total() {
+		shape.setChurn(1);
+		ProcessShapeGenerator generator = new ProcessShapeGenerator("shape", shape);
+		
+		StateNodeMap nodeMap = generator.createNodeMap(2, 2);
+		assertEquals(12, nodeMap.deprecatedNodeNames().size());
+		assertEquals("branch1/level1/state1_0_r1", nodeMap.getCurrentNodeName("branch1/level1/state1_0"));
+	}
+
+	public void test_that_no_wait_state_is_renamed_without_churn() {
+		shape.setChurn(0);
+		ProcessShapeGenerator generator = new ProcessShapeGenerator("shape", shape);
+		
+		assertTrue(generator.createNodeMap(0, 2).deprecatedNodeNames().isEmpty());
+		assertEquals(generator.createXml(0, 1), generator.createXml(0, 4));
+	}
+
+	public void test_that_the_migrations_are_ordered_by_version() {
+		shape.setChurn(1);
+		ProcessShapeGenerator generator = new ProcessShapeGenerator("shape", shape);
+		Migration[] migrations = generator.createMigrations(0);
+		
+		assertEquals(3, migrations.length);
+		assertEquals(GeneratedMigrations.getClassName(1), migrations[0].getClass().getName());
+		assertEquals(GeneratedMigrations.getClassName(3), migrations[2].getClass().getName());
+		
+		Migrator migrator = new Migrator("shape", null, migrations, null);
+		assertEquals("branch1/level1/state1_0_r3", migrator.getStateNodeMap().getCurrentNodeName("branch1/level1/state1_0"));
+	}
+
+	public void test_that_a_generated_instance_waits_in_each_branch_and_sub_process() {
+		ProcessShapeGenerator generator = new ProcessShapeGenerator("shape", shape);
+		ProcessInstance processInstance = generator.createProcessInstance(1);
+		
+		Map children = processInstance.getRootToken().getChildren();
+		assertEquals(3, children.size());
+		ProcessInstance subProcessInstance = ((Token) children.get("branch0")).getSubProcessInstance();
+		assertNotNull(subProcessInstance);
+		assertEquals("shape_sub1", subProcessInstance.getProcessDefinition().getName());
+		assertNotNull(((Token) subProcessInstance.getRootToken().getChildren().get("branch0")).getSubProcessInstance());
+	}
+
+	public void test_that_a_generated_instance_can_be_migrated_to_the_latest_version() {
+		ProcessShapeGenerator generator = new ProcessShapeGenerator("shape", shape);
+		Migrator migrator = generator.createMigrator(null);
+		migrator.setProcessDefinitionCache(generator.createDefinitionCache());
+		
+		ProcessInstance newProcessInstance = migrator.migrate(generator.createProcessInstance(1));
+		
+		assertEquals(4, newProcessInstance.getProcessDefinition().getVersion());
+		for (Iterator iterator = newProcessInstance.getRootToken().getChildren().values().iterator(); iterator.hasNext();) {
+			Token token = (Token) iterator.next();
+			assertEquals(4, token.getNode().getProcessDefinition().getVersion());
+		}
+		ProcessInstance newSubProcessInstance = ((Token) newProcessInstance.getRootToken().getChildren().get("branch0")).getSubProcessInstance();
+		assertEquals(4, newSubProcessInstance.getProcessDefinition().getVersion());
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration.util;
+
+import junit.framework.TestCase;
+
+public class BoundedBufferTest extends TestCase {
+
+	public void test_that_elements_are_taken_in_order() throws InterruptedException {
+		BoundedBuffer buffer = new BoundedBuffer(3);
+		buffer.put("a");
+		buffer.put("b");
+		buffer.put("c");
+		
+		assertEquals(3, buffer.size());
+		assertEquals("a", buffer.take());
+		assertEquals("b", buffer.take());
+		assertEquals("c", buffer.take());
+		assertEquals(0, buffer.size());
+	}
+
+	public void test_that_a_closed_buffer_is_drained_before_take_returns_null() throws InterruptedException {
+		BoundedBuffer buffer = new BoundedBuffer(2);
+		buffer.put("a");
+		buffer.close();
+		
+		assertFalse(buffer.put("b"));
+		assertEquals("a", buffer.take());
+		assertNull(buffer.take());
+	}
+
+	public void test_that_a_full_buffer_blocks_the_producer_until_an_element_is_taken() throws InterruptedException {
+		final BoundedBuffer buffer = new BoundedBuffer(1);
+		buffer.put("a");
+		Thread producer = new Thread() {
+			public void run() {
+				try {
+					buffer.put("b");
+				} catch (InterruptedException e) {
+					//ignore
+				}
+			}
+		};
+		producer.start();
+		producer.join(100);
+		assertTrue(producer.isAlive());
+		
+		assertEquals("a", buffer.take());
+		producer.join(5000);
+		assertFalse(producer.isAlive());
+		assertEquals("b", buffer.take());
+	}
+
+	public void test_that_closing_wakes_a_waiting_consumer() throws InterruptedException {
+		final BoundedBuffer buffer = new BoundedBuffer(1);
+		final Object[] taken = new Object[] {"unset"};
+		Thread consumer = new Thread() {
+			public void run() {
+				try {
+					taken[0] = buffer.take();
+				} catch (InterruptedException e) {
+					//ignore
+				}
+			}
+		};
+		consumer.start();
+		consumer.join(100);
+		assertTrue(consumer.isAlive());
+		
+		buffer.close();
+		consumer.join(5000);
+		assertFalse(consumer.isAlive());
+		assertNull(taken[0]);
+	}
+
+	public void test_that_the_capacity_must_be_positive() {
+		try {
+			new BoundedBuffer(0);
+			fail("Expected an '" + IllegalArgumentException.class.getName() + "'");
+		} catch (IllegalArgumentException e) {
+			//expected
+		}
+	}
+}
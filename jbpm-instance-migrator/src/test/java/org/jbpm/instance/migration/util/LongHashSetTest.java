@@ -0,0 +1,60 @@
+/*
+ * *##% 
+ * jBPM Instance Migrator
+ * Copyright (C) null - 2010 JBoss Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * ##%*
+ */
+package org.jbpm.instance.migration.util;
+
+import junit.framework.TestCase;
+
+public class LongHashSetTest extends TestCase {
+
+	public void test_that_added_values_are_contained() {
+		LongHashSet set = new LongHashSet();
+		assertTrue(set.add(42));
+		assertTrue(set.add(-7));
+		assertTrue(set.add(0));
+		
+		assertTrue(set.contains(42));
+		assertTrue(set.contains(-7));
+		assertTrue(set.contains(0));
+		assertFalse(set.contains(43));
+		assertEquals(3, set.size());
+	}
+
+	public void test_that_duplicates_are_not_added() {
+		LongHashSet set = new LongHashSet();
+		assertTrue(set.add(1));
+		assertFalse(set.add(1));
+		assertTrue(set.add(0));
+		assertFalse(set.add(0));
+		assertEquals(2, set.size());
+	}
+
+	public void test_that_the_set_grows() {
+		LongHashSet set = new LongHashSet(2);
+		for (long i = 1; i <= 100000; i++) {
+			set.add(i * 1024);
+		}
+		assertEquals(100000, set.size());
+		for (long i = 1; i <= 100000; i++) {
+			assertTrue(set.contains(i * 1024));
+		}
+		assertFalse(set.contains(1023));
+	}
+}